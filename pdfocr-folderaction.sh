@@ -59,17 +59,12 @@ sleep $[ ( $RANDOM % 10 )  + 1 ]s
   cd "$wd"
 
   #
-  # If the file was moved already to the processing
-  # directory, just return doing nothing: This will
-  # be a race condition.
+  # Move the file to the processing directory now. The
+  # move is an atomic rename, so if another instance was
+  # faster, it fails and we just return doing nothing.
   #
-  if [ -f "$wd/processing/$*" ]; then exit 0; fi
-
-  #
-  # Otherwise, move the file to the processing directory now
-  #
-  if [ ! -f "$wd/$*" ]; then echo "$wd/$*" not found | tee -a "$log"; fi 
-  mv "$wd/$*" "$wd/processing" 2>&1 | tee -a "$log"
+  if [ ! -f "$wd/$*" ]; then echo "$wd/$*" not found | tee -a "$log"; exit 0; fi 
+  if ! mv "$wd/$*" "$wd/processing" >>"$log" 2>&1; then exit 0; fi
   
   #
   # Go to the processing directory
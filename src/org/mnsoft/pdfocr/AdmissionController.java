@@ -0,0 +1,124 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Admits engine runs only while their estimated
+ * memory fits into the configured budget.<p>
+ *
+ * Each run is admitted with its {@link CostModel.Estimate}.
+ * The memory of all admitted runs is added up; a run whose
+ * estimate does not fit next to the runs already admitted
+ * waits until enough of them have finished. A single run
+ * is always admitted if nothing else is running, so that
+ * a file larger than the budget still gets done, just on
+ * its own.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class AdmissionController {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log      = Logger.getLogger(AdmissionController.class);
+
+  /**
+   * The memory budget, in bytes; 0 for no limit.
+   */
+  private final long          budget;
+
+  /**
+   * The memory of the admitted runs, in bytes.
+   */
+  private long                reserved = 0;
+
+  /**
+   * The number of admitted runs.
+   */
+  private int                 running  = 0;
+
+
+  /**
+   * Constructor.
+   *
+   * @param budget The memory budget, in bytes; 0 for no limit.
+   */
+  public AdmissionController(long budget) {
+    this.budget = budget;
+  }
+
+
+  /**
+   * Wait until a run fits into the budget.
+   *
+   * @param estimate The estimated cost of the run
+   * @throws InterruptedException
+   */
+  public synchronized void admit(CostModel.Estimate estimate) throws InterruptedException {
+    boolean waited = false;
+
+    while ((this.budget > 0) && (this.running > 0) && ((this.reserved + estimate.memory) > this.budget)) {
+      if (!waited) {
+        log.debug("+ Waiting for admission: " + estimate + ", " + (this.reserved / (1024 * 1024)) + " of " + (this.budget / (1024 * 1024)) + " MB in use.");
+        waited = true;
+      }
+
+      wait();
+    }
+
+    this.reserved += estimate.memory;
+    this.running++;
+
+    Metrics.set("admission.reserved", this.reserved);
+    Metrics.add("admission.admitted", 1);
+
+    if (waited) {
+      Metrics.add("admission.waited", 1);
+    }
+  }
+
+
+  /**
+   * Admit a run only if it fits into the budget right
+   * now, e.g. a hedged run that is not worth waiting for.
+   *
+   * @param estimate The estimated cost of the run
+   * @return true if the run was admitted; give back its memory with {@link #done(CostModel.Estimate)}.
+   */
+  public synchronized boolean tryAdmit(CostModel.Estimate estimate) {
+    if ((this.budget > 0) && (this.running > 0) && ((this.reserved + estimate.memory) > this.budget)) {
+      return false;
+    }
+
+    this.reserved += estimate.memory;
+    this.running++;
+
+    Metrics.set("admission.reserved", this.reserved);
+    Metrics.add("admission.admitted", 1);
+
+    return true;
+  }
+
+
+  /**
+   * Give back the memory of a finished run.
+   *
+   * @param estimate The estimate the run was admitted with
+   */
+  public synchronized void done(CostModel.Estimate estimate) {
+    this.reserved -= estimate.memory;
+    this.running--;
+
+    Metrics.set("admission.reserved", this.reserved);
+
+    notifyAll();
+  }
+}
@@ -0,0 +1,280 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import org.apache.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Iterator;
+
+
+/**
+ * Finds the blank pages of a scan, like the empty backs
+ * of duplex scans, so that they can be left out of the
+ * engine input.<p>
+ *
+ * A page is blank if it has no text, and all it shows are
+ * page images with hardly any ink on them: at most a given
+ * number of dark pixels per thousand, not counting a margin
+ * of {@link #MARGIN} percent on each side, where scanners
+ * leave shadows and punch holes. The images are sampled on
+ * a grid of about {@link #SAMPLES} points across, and JPEGs
+ * are decoded at the resolution of that grid only, so that
+ * a page takes a few milliseconds.<p>
+ *
+ * A page that cannot be judged, e.g. because it uses forms
+ * or images in a format we cannot decode, counts as not
+ * blank, and goes to the engine as usual.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class BlankPageDetector {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log     = Logger.getLogger(BlankPageDetector.class);
+
+  /**
+   * Margin not looked at, in percent of the width and height.
+   */
+  public static final int     MARGIN  = 5;
+
+  /**
+   * Number of sample points across a page image.
+   */
+  public static final int     SAMPLES = 200;
+
+  /**
+   * Gray value below which a pixel is ink.
+   */
+  private static final int    DARK    = 128;
+
+  /**
+   * Dark pixels per thousand a blank page may have.
+   */
+  private final int           maxInk;
+
+
+  /**
+   * Constructor.
+   *
+   * @param maxInk Dark pixels per thousand a blank page may have
+   */
+  public BlankPageDetector(int maxInk) {
+    this.maxInk = maxInk;
+  }
+
+
+  /**
+   * Find the blank pages of a PDF.
+   *
+   * @param reader The reader
+   * @return For each page, starting at 0, whether it is blank
+   * @throws IOException
+   */
+  public boolean[] detect(PdfReader reader) throws IOException {
+    final boolean[] blank = new boolean[reader.getNumberOfPages()];
+
+    for (int i = 1; i <= blank.length; i++) {
+      blank[i - 1] = isBlank(reader, i);
+
+      reader.releasePage(i);
+    }
+
+    return blank;
+  }
+
+
+  /**
+   * Check whether a page is blank.
+   *
+   * @param reader The reader
+   * @param page The page, starting at 1
+   * @return true if it is blank.
+   * @throws IOException
+   */
+  boolean isBlank(PdfReader reader, int page) throws IOException {
+    final byte[] content = reader.getPageContent(page);
+
+    if ((content != null) && hasText(content)) {
+      return false;
+    }
+
+    final PdfDictionary resources = reader.getPageN(page).getAsDict(PdfName.RESOURCES);
+    final PdfDictionary xobjects  = (resources == null) ? null : resources.getAsDict(PdfName.XOBJECT);
+
+    if ((xobjects == null) || (xobjects.size() == 0)) {
+      /*
+       * No images: blank if nothing is drawn at all,
+       * else it is not a scan, and not for us to judge
+       */
+      return (content == null) || (new String(content, "ISO-8859-1").trim().length() == 0);
+    }
+
+    for (final Iterator<?> it = xobjects.getKeys().iterator(); it.hasNext();) {
+      final PdfObject obj = PdfReader.getPdfObject(xobjects.get((PdfName) it.next()));
+
+      if ((obj == null) || !obj.isStream() || !PdfImages.isImage((PdfDictionary) obj)) {
+        return false;
+      }
+
+      final int ink = getInk((PRStream) obj);
+
+      if ((ink < 0) || (ink > this.maxInk)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Get the ink on an image.
+   *
+   * @param stream The image
+   * @return Dark pixels per thousand, or -1 if the image cannot be decoded.
+   */
+  int getInk(PRStream stream) {
+    try {
+      final BufferedImage image = PdfImages.decodeSampled(stream, PdfReader.getStreamBytesRaw(stream), SAMPLES);
+
+      return (image == null) ? -1 : getInk(image);
+    } catch (Exception e) {
+      log.debug("+ Cannot judge an image: " + e.getMessage());
+
+      return -1;
+    }
+  }
+
+
+  /**
+   * Get the ink on a decoded image, sampled on a grid.
+   *
+   * @param image The image
+   * @return Dark pixels per thousand
+   */
+  static int getInk(BufferedImage image) {
+    final int w       = image.getWidth();
+    final int h       = image.getHeight();
+    final int step    = Math.max(1, w / SAMPLES);
+    long      samples = 0;
+    long      dark    = 0;
+
+    for (int y = (h * MARGIN) / 100; y < ((h * (100 - MARGIN)) / 100); y += step) {
+      for (int x = (w * MARGIN) / 100; x < ((w * (100 - MARGIN)) / 100); x += step) {
+        final int rgb  = image.getRGB(x, y);
+        final int gray = ((((rgb >> 16) & 0xff) * 30) + (((rgb >> 8) & 0xff) * 59) + ((rgb & 0xff) * 11)) / 100;
+
+        samples++;
+
+        if (gray < DARK) {
+          dark++;
+        }
+      }
+    }
+
+    return (samples == 0) ? 0 : (int) ((dark * 1000) / samples);
+  }
+
+
+  /**
+   * Check whether a content stream shows text.
+   *
+   * @param content The content stream
+   * @return true if it has a BT operator.
+   */
+  static boolean hasText(byte[] content) {
+    return hasOperator(content, 'B', 'T');
+  }
+
+
+  /**
+   * Check whether a content stream has an operator of two
+   * letters, standing on its own between white space. It
+   * may also be found in a string, which only makes us err
+   * on the safe side.
+   *
+   * @param content The content stream
+   * @param first The first letter of the operator
+   * @param second The second letter of the operator
+   * @return true if it has.
+   */
+  static boolean hasOperator(byte[] content, char first, char second) {
+    for (int i = 0; i < (content.length - 1); i++) {
+      if ((content[i] == first) && (content[i + 1] == second) && ((i == 0) || isWhite(content[i - 1])) && (((i + 2) == content.length) || isWhite(content[i + 2]))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * @param b A byte
+   * @return true if it is white space in a content stream.
+   */
+  private static boolean isWhite(byte b) {
+    return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t') || (b == '\f');
+  }
+
+
+  /**
+   * Print the blank pages of files, for trying out BLANKINK.
+   *
+   * @param args [maxInk] file.pdf ...
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int maxInk = 1;
+    int first  = 0;
+
+    if ((args.length > 0) && args[0].matches("\\d+")) {
+      maxInk = Integer.parseInt(args[0]);
+      first  = 1;
+    }
+
+    final BlankPageDetector detector = new BlankPageDetector(maxInk);
+
+    for (int i = first; i < args.length; i++) {
+      final PdfReader reader = new PdfReader(new RandomAccessFileOrArray(new File(args[i]).getAbsolutePath()), null);
+
+      try {
+        final long      start = System.currentTimeMillis();
+        final boolean[] blank = detector.detect(reader);
+        final long      ms    = System.currentTimeMillis() - start;
+
+        final StringBuffer sb = new StringBuffer();
+        int                n  = 0;
+
+        for (int p = 0; p < blank.length; p++) {
+          if (blank[p]) {
+            sb.append(' ').append(p + 1);
+            n++;
+          }
+        }
+
+        System.out.println(args[i] + ": " + n + " of " + blank.length + " pages blank in " + ms + " ms:" + sb);
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+
+/**
+ * Compares the size and write time of PDF files written
+ * plainly, with full compression only, and compacted with
+ * {@link PdfCompactor}. Run it on a few merged files to see
+ * whether COMPACT pays off for an archive:
+ *
+ * <pre>
+ *   java org.mnsoft.pdfocr.CompactionBenchmark [-runs n] a.pdf b.pdf ...
+ * </pre>
+ *
+ * Each variant is written n times (default 3) and the fastest
+ * time is reported, so that the first run warming up the JVM
+ * does not count.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class CompactionBenchmark {
+  /**
+   * The variants.
+   */
+  private static final String[] VARIANTS = { "plain", "full", "compact" };
+
+
+  /**
+   * @param args [-runs n] files
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int runs  = 3;
+    int first = 0;
+
+    if ((args.length > 1) && "-runs".equals(args[0])) {
+      runs  = Math.max(1, StringUtility.StringToInteger(args[1], 3));
+      first = 2;
+    }
+
+    if (args.length <= first) {
+      System.err.println("usage: CompactionBenchmark [-runs n] a.pdf b.pdf ...");
+      System.exit(1);
+    }
+
+    final long[] totalBytes  = new long[VARIANTS.length];
+    final long[] totalMillis = new long[VARIANTS.length];
+    long         totalIn     = 0;
+
+    System.out.println("file\tbytes\tplain\tms\tfull\tms\tcompact\tms");
+
+    for (int i = first; i < args.length; i++) {
+      final File         in   = new File(args[i]);
+      final File         out  = File.createTempFile("bench", ".pdf");
+      final StringBuffer line = new StringBuffer(in.getName() + "\t" + in.length());
+
+      totalIn += in.length();
+
+      try {
+        for (int v = 0; v < VARIANTS.length; v++) {
+          long best = Long.MAX_VALUE;
+
+          for (int r = 0; r < runs; r++) {
+            final long start = System.currentTimeMillis();
+
+            write(VARIANTS[v], in, out);
+
+            best = Math.min(best, System.currentTimeMillis() - start);
+          }
+
+          totalBytes[v]  += out.length();
+          totalMillis[v] += best;
+
+          line.append('\t').append(out.length()).append('\t').append(best);
+        }
+      } catch (Exception e) {
+        line.append("\tERROR: ").append(e.getMessage());
+      } finally {
+        FileUtils.deleteQuietly(out);
+      }
+
+      System.out.println(line);
+    }
+
+    final StringBuffer line = new StringBuffer("total\t" + totalIn);
+
+    for (int v = 0; v < VARIANTS.length; v++) {
+      line.append('\t').append(totalBytes[v]).append('\t').append(totalMillis[v]);
+    }
+
+    System.out.println(line);
+
+    for (int v = 1; v < VARIANTS.length; v++) {
+      System.out.println(VARIANTS[v] + ": " + ((totalBytes[v] * 100) / Math.max(1, totalBytes[0])) + "% of the plain size, " + ((totalMillis[v] * 100) / Math.max(1, totalMillis[0])) + "% of the plain write time");
+    }
+  }
+
+
+  /**
+   * Write a file in one of the variants.
+   *
+   * @param variant The variant
+   * @param in The file to read
+   * @param out The file to write
+   * @throws Exception
+   */
+  private static void write(String variant, File in, File out) throws Exception {
+    if ("compact".equals(variant)) {
+      PdfCompactor.compact(in, out);
+
+      return;
+    }
+
+    final PdfReader reader = new PdfReader(in.getAbsolutePath());
+
+    try {
+      PdfCompactor.write(reader, out, "full".equals(variant));
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,533 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Adaptive limit for the number of OCR engine
+ * processes running at the same time.<p>
+ *
+ * Before starting an engine process, a job has to
+ * {@link #acquire()} a slot. A sampler thread watches
+ * the system load, the available memory, the resident
+ * set size of the running engine processes, and the
+ * recent time per page of finished jobs, and moves the
+ * limit between the configured minimum and maximum:
+ *
+ * <ul>
+ *   <li>it shrinks by one if available memory is below the
+ *       minimum, if the load is above the maximum, or if the
+ *       time per page got considerably worse than the best
+ *       we have seen;</li>
+ *   <li>it grows by one if all slots are in use and there is
+ *       room for another engine in terms of load and memory.</li>
+ * </ul>
+ *
+ * Every change is logged with its reason, and the limit is
+ * published as the metric <code>concurrency.limit</code>.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class ConcurrencyController {
+  /**
+   * Logger for this class
+   */
+  private static final Logger      log                = Logger.getLogger(ConcurrencyController.class);
+
+  /**
+   * Weight of a new sample in the moving average of the time per page.
+   */
+  private static final double      ALPHA              = 0.3;
+
+  /**
+   * Number of finished jobs before we trust the time per page.
+   */
+  private static final int         MIN_SAMPLES        = 3;
+
+  /**
+   * Minimum number of engine processes.
+   */
+  private final int                min;
+
+  /**
+   * Maximum number of engine processes.
+   */
+  private final int                max;
+
+  /**
+   * Sampling interval, in milliseconds.
+   */
+  private final long               interval;
+
+  /**
+   * Maximum system load, as a multiple of the number of processors.
+   */
+  private final double             maxLoad;
+
+  /**
+   * Minimum available memory, in bytes.
+   */
+  private final long               minFree;
+
+  /**
+   * Factor by which the time per page may get worse than the best one.
+   */
+  private final double             latencyFactor;
+
+  /**
+   * The running engine processes, with the peak
+   * resident set size seen for each, in bytes.
+   */
+  private final Map<Process, Long> processes          = new HashMap<Process, Long>();
+
+  /**
+   * The current limit.
+   */
+  private int                      limit;
+
+  /**
+   * The number of slots in use.
+   */
+  private int                      active             = 0;
+
+  /**
+   * Moving average of the time per page, in seconds.
+   */
+  private double                   secondsPerPage     = 0;
+
+  /**
+   * Best moving average of the time per page we have seen, in seconds.
+   */
+  private double                   bestSecondsPerPage = 0;
+
+  /**
+   * Number of finished jobs.
+   */
+  private int                      samples            = 0;
+
+  /**
+   * Highest resident set size of a single engine process seen, in bytes.
+   */
+  private long                     maxRss             = 0;
+
+  /**
+   * The sampler thread.
+   */
+  private Thread                   sampler            = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param min Minimum number of engine processes
+   * @param max Maximum number of engine processes
+   * @param interval Sampling interval, in milliseconds
+   * @param maxLoad Maximum system load, as a multiple of the number of processors
+   * @param minFree Minimum available memory, in bytes
+   * @param latencyFactor Factor by which the time per page may get worse than the best one
+   */
+  public ConcurrencyController(int min, int max, long interval, double maxLoad, long minFree, double latencyFactor) {
+    this.min           = Math.max(1, min);
+    this.max           = Math.max(this.min, max);
+    this.interval      = interval;
+    this.maxLoad       = maxLoad;
+    this.minFree       = minFree;
+    this.latencyFactor = latencyFactor;
+    this.limit         = this.min;
+
+    Metrics.set("concurrency.limit", this.limit);
+    Metrics.set("concurrency.active", 0);
+  }
+
+
+  /**
+   * Get the maximum number of engine processes.
+   *
+   * @return The maximum
+   */
+  public int getMax() {
+    return this.max;
+  }
+
+
+  /**
+   * Get the current limit.
+   *
+   * @return The number of engine processes allowed to run at the same time.
+   */
+  public synchronized int getLimit() {
+    return this.limit;
+  }
+
+
+  /**
+   * Start the sampler thread. It also runs if the
+   * limit is fixed, to learn the memory of the
+   * engine processes.
+   */
+  public void start() {
+    this.sampler = new Thread("pdfocr-concurrency") {
+        @Override public void run() {
+          while (true) {
+            try {
+              Thread.sleep(interval);
+            } catch (InterruptedException e) {
+              return;
+            }
+
+            adjust();
+          }
+        }
+      };
+    this.sampler.setDaemon(true);
+    this.sampler.start();
+  }
+
+
+  /**
+   * Stop the sampler thread.
+   */
+  public void shutdown() {
+    if (this.sampler != null) {
+      this.sampler.interrupt();
+    }
+  }
+
+
+  /**
+   * Wait for a free slot.
+   *
+   * @throws InterruptedException
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (this.active >= this.limit) {
+      wait();
+    }
+
+    this.active++;
+    Metrics.set("concurrency.active", this.active);
+  }
+
+
+  /**
+   * Take a free slot, if there is one.
+   *
+   * @return true if a slot was taken.
+   */
+  public synchronized boolean tryAcquire() {
+    if (this.active >= this.limit) {
+      return false;
+    }
+
+    this.active++;
+    Metrics.set("concurrency.active", this.active);
+
+    return true;
+  }
+
+
+  /**
+   * Give back a slot.
+   */
+  public synchronized void release() {
+    this.active--;
+    Metrics.set("concurrency.active", this.active);
+    notifyAll();
+  }
+
+
+  /**
+   * Register a running engine process, so
+   * that we can watch its memory.
+   *
+   * @param process The engine process
+   */
+  public void register(Process process) {
+    synchronized (this.processes) {
+      this.processes.put(process, Long.valueOf(-1));
+    }
+  }
+
+
+  /**
+   * Unregister an engine process.
+   *
+   * @param process The engine process
+   * @return The peak resident set size seen for the process, in bytes; negative if never sampled.
+   */
+  public long unregister(Process process) {
+    synchronized (this.processes) {
+      final Long peak = this.processes.remove(process);
+
+      return (peak == null) ? -1 : peak.longValue();
+    }
+  }
+
+
+  /**
+   * Report a finished engine run.
+   *
+   * @param pages The number of pages
+   * @param millis The time the engine took
+   */
+  public synchronized void completed(int pages, long millis) {
+    if (pages <= 0) {
+      return;
+    }
+
+    final double sample = (millis / 1000.0) / pages;
+
+    this.secondsPerPage = (this.samples == 0) ? sample : ((ALPHA * sample) + ((1 - ALPHA) * this.secondsPerPage));
+    this.samples++;
+
+    if ((this.samples >= MIN_SAMPLES) && ((this.bestSecondsPerPage == 0) || (this.secondsPerPage < this.bestSecondsPerPage))) {
+      this.bestSecondsPerPage = this.secondsPerPage;
+    }
+
+    Metrics.set("concurrency.secondsPerPage", this.secondsPerPage);
+  }
+
+
+  /**
+   * Look at the system and adjust the limit.
+   */
+  void adjust() {
+    final int    cores = Runtime.getRuntime().availableProcessors();
+    final double load  = getSystemLoad();
+    final long   free  = getAvailableMemory();
+    final long   rss   = getEngineRss();
+
+    Metrics.set("system.load", load);
+    Metrics.set("system.availableMemory", free);
+    Metrics.set("concurrency.engineRss", rss);
+
+    synchronized (this) {
+      final double loadLimit = this.maxLoad * cores;
+
+      if ((free >= 0) && (free < this.minFree)) {
+        shrink("available memory " + mb(free) + " below " + mb(this.minFree));
+      } else if ((load >= 0) && (load > loadLimit)) {
+        shrink("load " + round(load) + " above " + round(loadLimit));
+      } else if ((this.samples >= MIN_SAMPLES) && (this.bestSecondsPerPage > 0) && (this.secondsPerPage > (this.bestSecondsPerPage * this.latencyFactor))) {
+        shrink("time per page " + round(this.secondsPerPage) + "s above " + round(this.bestSecondsPerPage * this.latencyFactor) + "s");
+
+        /*
+         * Start over measuring at the new limit
+         */
+        this.bestSecondsPerPage = this.secondsPerPage;
+      } else if ((this.active >= this.limit) && ((load < 0) || ((load + 1) <= loadLimit)) && ((free < 0) || ((free - this.maxRss) > this.minFree))) {
+        grow("all slots in use, load " + round(load) + " of " + round(loadLimit) + ", available memory " + mb(free) + ", engine rss " + mb(this.maxRss));
+      }
+    }
+  }
+
+
+  /**
+   * Shrink the limit by one.
+   *
+   * @param reason The reason, for the log
+   */
+  private void shrink(String reason) {
+    if (this.limit <= this.min) {
+      return;
+    }
+
+    log.info("+ Concurrency limit " + this.limit + " -> " + (this.limit - 1) + ": " + reason);
+
+    this.limit--;
+    Metrics.set("concurrency.limit", this.limit);
+  }
+
+
+  /**
+   * Grow the limit by one.
+   *
+   * @param reason The reason, for the log
+   */
+  private void grow(String reason) {
+    if (this.limit >= this.max) {
+      return;
+    }
+
+    log.info("+ Concurrency limit " + this.limit + " -> " + (this.limit + 1) + ": " + reason);
+
+    this.limit++;
+    Metrics.set("concurrency.limit", this.limit);
+    notifyAll();
+  }
+
+
+  /**
+   * Get the system load average.
+   *
+   * @return The load average of the last minute, negative if not available.
+   */
+  private double getSystemLoad() {
+    final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    return os.getSystemLoadAverage();
+  }
+
+
+  /**
+   * Get the available memory, from /proc/meminfo
+   * where there is one, else from the JVM's view
+   * of free physical memory.
+   *
+   * @return The available memory in bytes, negative if not available.
+   */
+  private long getAvailableMemory() {
+    final long available = readProcValue(new File("/proc/meminfo"), "MemAvailable:");
+    if (available >= 0) {
+      return available;
+    }
+
+    try {
+      final OperatingSystemMXBean os     = ManagementFactory.getOperatingSystemMXBean();
+      final Method                method = os.getClass().getMethod("getFreePhysicalMemorySize");
+      method.setAccessible(true);
+
+      return ((Long) method.invoke(os)).longValue();
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+
+  /**
+   * Get the resident set size of the running engine
+   * processes, and remember the peak of each and the
+   * largest one.
+   *
+   * @return The total resident set size, in bytes.
+   */
+  private long getEngineRss() {
+    final Process[] running;
+    synchronized (this.processes) {
+      running = this.processes.keySet().toArray(new Process[0]);
+    }
+
+    long total = 0;
+    for (int i = 0; i < running.length; i++) {
+      final long pid = getPid(running[i]);
+      if (pid < 0) {
+        continue;
+      }
+
+      final long rss = readProcValue(new File("/proc/" + pid + "/status"), "VmRSS:");
+      if (rss < 0) {
+        continue;
+      }
+
+      total += rss;
+
+      synchronized (this.processes) {
+        final Long peak = this.processes.get(running[i]);
+        if ((peak != null) && (rss > peak.longValue())) {
+          this.processes.put(running[i], Long.valueOf(rss));
+        }
+      }
+
+      synchronized (this) {
+        this.maxRss = Math.max(this.maxRss, rss);
+      }
+    }
+
+    return total;
+  }
+
+
+  /**
+   * Get the process id of a process.
+   *
+   * @param process The process
+   * @return The process id, negative if not available.
+   */
+  static long getPid(Process process) {
+    try {
+      final Method method = Process.class.getMethod("pid");
+
+      return ((Long) method.invoke(process)).longValue();
+    } catch (Exception e) {
+      /* Before Java 9 */
+    }
+
+    try {
+      final Field field = process.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+
+      return field.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+
+  /**
+   * Read a value given in kB from a /proc file.
+   *
+   * @param file The /proc file
+   * @param key The line prefix
+   * @return The value in bytes, negative if not available.
+   */
+  private static long readProcValue(File file, String key) {
+    if (!file.exists()) {
+      return -1;
+    }
+
+    try {
+      for (final Iterator<?> it = FileUtils.readLines(file, "US-ASCII").iterator(); it.hasNext();) {
+        final String line = (String) it.next();
+
+        if (line.startsWith(key)) {
+          final String[] tokens = line.substring(key.length()).trim().split("\\s+");
+
+          return Long.parseLong(tokens[0]) * 1024L;
+        }
+      }
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Format a byte count in MB.
+   */
+  private static String mb(long bytes) {
+    return (bytes < 0) ? "n/a" : ((bytes / (1024 * 1024)) + " MB");
+  }
+
+
+  /**
+   * Round to two decimals.
+   */
+  private static String round(double value) {
+    return Double.toString(Math.round(value * 100) / 100.0);
+  }
+}
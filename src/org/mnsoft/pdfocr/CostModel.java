@@ -0,0 +1,322 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Properties;
+
+
+/**
+ * Estimates what an engine run costs in memory and
+ * time, from the number of pages and the file size.<p>
+ *
+ * Files are put into density classes by their bytes per page,
+ * as a page with a large color scan costs the engine a lot more
+ * than a page of plain black and white text. For each class, the
+ * model keeps a moving average of the engine memory per page and
+ * of the engine time per page. It learns from every finished run
+ * and is stored on disk, so the next run starts with what the
+ * last one has learned.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class CostModel {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log                   = Logger.getLogger(CostModel.class);
+
+  /**
+   * Default file name of the cost model, relative to the working directory.
+   */
+  public static final String  DEFAULT_FILE          = ".pdfocr-costmodel.properties";
+
+  /**
+   * Number of density classes.
+   */
+  private static final int    CLASSES               = 10;
+
+  /**
+   * Bytes per page of the lowest density class; each
+   * following class has twice as many.
+   */
+  private static final long   CLASS_BASE            = 16 * 1024;
+
+  /**
+   * Weight of a new observation in the moving averages.
+   */
+  private static final double ALPHA                 = 0.2;
+
+  /**
+   * Memory of the engine process regardless of the document, in bytes.
+   */
+  private static final long   BASE_MEMORY           = 200L * 1024 * 1024;
+
+  /**
+   * Default engine time per page, in seconds, until we have learned better.
+   */
+  private static final double DEFAULT_SECONDS       = 2.0;
+
+  /**
+   * Default engine memory per page, as a multiple of the bytes per page.
+   */
+  private static final double DEFAULT_MEMORY_FACTOR = 8.0;
+
+  /**
+   * The file the model is stored in.
+   */
+  private final File          file;
+
+  /**
+   * Engine memory per page, in bytes, by density class.
+   */
+  private final double[]      memoryPerPage         = new double[CLASSES];
+
+  /**
+   * Engine time per page, in seconds, by density class.
+   */
+  private final double[]      secondsPerPage        = new double[CLASSES];
+
+  /**
+   * Number of observations, by density class.
+   */
+  private final int[]         samples               = new int[CLASSES];
+
+
+  /**
+   * Constructor. Loads the model from
+   * its file, if there is one.
+   *
+   * @param file The file the model is stored in
+   */
+  public CostModel(File file) {
+    this.file = file;
+
+    load();
+  }
+
+
+  /**
+   * Estimate the cost of an engine run.
+   *
+   * @param pages The number of pages
+   * @param bytes The file size
+   * @return The estimate
+   */
+  public synchronized Estimate estimate(int pages, long bytes) {
+    final int    p            = Math.max(1, pages);
+    final long   bytesPerPage = bytes / p;
+    final int    c            = getClass(bytesPerPage);
+
+    final double memory       = (this.samples[c] > 0) ? this.memoryPerPage[c] : (DEFAULT_MEMORY_FACTOR * bytesPerPage);
+    final double seconds      = (this.samples[c] > 0) ? this.secondsPerPage[c] : DEFAULT_SECONDS;
+
+    return new Estimate(pages, bytes, BASE_MEMORY + (long) (memory * p), seconds * p, seconds, this.samples[c]);
+  }
+
+
+  /**
+   * Learn from a finished engine run, and store
+   * the model.
+   *
+   * @param pages The number of pages
+   * @param bytes The file size
+   * @param peakMemory The peak resident set size of the engine, in bytes; negative if unknown
+   * @param millis The time the engine took
+   */
+  public void observe(int pages, long bytes, long peakMemory, long millis) {
+    if (pages <= 0) {
+      return;
+    }
+
+    synchronized (this) {
+      final int    c       = getClass(bytes / pages);
+      final double seconds = (millis / 1000.0) / pages;
+
+      this.secondsPerPage[c] = (this.samples[c] == 0) ? seconds : ((ALPHA * seconds) + ((1 - ALPHA) * this.secondsPerPage[c]));
+
+      if (peakMemory >= 0) {
+        final double memory = Math.max(0, peakMemory - BASE_MEMORY) / (double) pages;
+
+        this.memoryPerPage[c] = (this.samples[c] == 0) ? memory : ((ALPHA * memory) + ((1 - ALPHA) * this.memoryPerPage[c]));
+      } else if (this.samples[c] == 0) {
+        this.memoryPerPage[c] = DEFAULT_MEMORY_FACTOR * (bytes / pages);
+      }
+
+      this.samples[c]++;
+    }
+
+    save();
+  }
+
+
+  /**
+   * Get the density class for a number of bytes per page.
+   *
+   * @param bytesPerPage The bytes per page
+   * @return The density class
+   */
+  private static int getClass(long bytesPerPage) {
+    int  c     = 0;
+    long limit = CLASS_BASE;
+
+    while ((bytesPerPage > limit) && (c < (CLASSES - 1))) {
+      c++;
+      limit *= 2;
+    }
+
+    return c;
+  }
+
+
+  /**
+   * Load the model from its file.
+   */
+  private synchronized void load() {
+    if (!this.file.exists()) {
+      log.debug("+ No cost model at " + this.file.getAbsolutePath() + " yet. Using defaults.");
+
+      return;
+    }
+
+    final Properties p = new Properties();
+
+    try {
+      final InputStream is = new FileInputStream(this.file);
+
+      try {
+        p.load(is);
+      } finally {
+        is.close();
+      }
+    } catch (IOException e) {
+      log.error("! ERROR: Could not read cost model " + this.file.getAbsolutePath() + ": " + e.getMessage());
+
+      return;
+    }
+
+    for (int c = 0; c < CLASSES; c++) {
+      this.samples[c] = StringUtility.StringToInteger(p.getProperty("class." + c + ".samples"), 0);
+
+      try {
+        this.memoryPerPage[c]  = Double.parseDouble(p.getProperty("class." + c + ".memoryPerPage", "0"));
+        this.secondsPerPage[c] = Double.parseDouble(p.getProperty("class." + c + ".secondsPerPage", "0"));
+      } catch (NumberFormatException e) {
+        this.samples[c] = 0;
+      }
+    }
+
+    log.debug("+ Loaded cost model from " + this.file.getAbsolutePath());
+  }
+
+
+  /**
+   * Store the model in its file. It is written to
+   * a temporary file first and then renamed, so that
+   * a concurrent reader never sees half of it.
+   */
+  private synchronized void save() {
+    final Properties p = new Properties();
+
+    for (int c = 0; c < CLASSES; c++) {
+      if (this.samples[c] == 0) {
+        continue;
+      }
+
+      p.setProperty("class." + c + ".samples", Integer.toString(this.samples[c]));
+      p.setProperty("class." + c + ".memoryPerPage", Double.toString(this.memoryPerPage[c]));
+      p.setProperty("class." + c + ".secondsPerPage", Double.toString(this.secondsPerPage[c]));
+    }
+
+    File temp = null;
+
+    try {
+      /*
+       * Nodes sharing the model write it at the same time;
+       * each of them needs a temporary file of its own
+       */
+      temp = File.createTempFile(this.file.getName() + ".", ".tmp", this.file.getAbsoluteFile().getParentFile());
+
+      final OutputStream os = new FileOutputStream(temp);
+
+      try {
+        p.store(os, "PDF OCR Wrapper cost model; class n holds files with up to " + CLASS_BASE + " * 2^n bytes per page");
+      } finally {
+        os.close();
+      }
+
+      Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("! ERROR: Could not write cost model " + this.file.getAbsolutePath() + ": " + e.getMessage());
+      FileUtils.deleteQuietly(temp);
+    }
+  }
+
+
+  /**
+   * The estimated cost of an engine run.
+   */
+  public static class Estimate {
+    /**
+     * The number of pages.
+     */
+    public final int    pages;
+
+    /**
+     * The file size.
+     */
+    public final long   bytes;
+
+    /**
+     * The estimated peak memory of the engine, in bytes.
+     */
+    public final long   memory;
+
+    /**
+     * The estimated engine time, in seconds.
+     */
+    public final double seconds;
+
+    /**
+     * The estimated engine time per page, in seconds.
+     */
+    public final double secondsPerPage;
+
+    /**
+     * The number of observations the estimate is based on.
+     */
+    public final int    samples;
+
+    Estimate(int pages, long bytes, long memory, double seconds, double secondsPerPage, int samples) {
+      this.pages          = pages;
+      this.bytes          = bytes;
+      this.memory         = memory;
+      this.seconds        = seconds;
+      this.secondsPerPage = secondsPerPage;
+      this.samples        = samples;
+    }
+
+
+    @Override public String toString() {
+      return this.pages + " pages, " + (this.bytes / 1024) + " kB: ~" + (this.memory / (1024 * 1024)) + " MB, ~" + Math.round(this.seconds) + "s" + ((this.samples == 0) ? " (default)" : (" (" + this.samples + " samples)"));
+    }
+  }
+}
@@ -7,6 +7,7 @@ import com.lowagie.text.pdf.PRAcroForm;
 import com.lowagie.text.pdf.PdfCopy;
 import com.lowagie.text.pdf.PdfImportedPage;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -47,13 +48,25 @@ public class CreatorSetter {
      * Verify arguments
      */
     if ((args == null) || (args.length < 2)) {
-      System.err.println("Usage: first parameter: Creator to set, following parameters: Files to work on.");
+      System.err.println("Usage: [-compact] first parameter: Creator to set, following parameters: Files to work on.");
       System.exit(1);
     }
 
-    final String creator = args[0];
+    /*
+     * With -compact, shared resources are written only
+     * once, and object streams are used
+     */
+    final boolean compact = "-compact".equals(args[0]);
+    final int     first   = compact ? 1 : 0;
+
+    if (args.length < (first + 2)) {
+      System.err.println("Usage: [-compact] first parameter: Creator to set, following parameters: Files to work on.");
+      System.exit(1);
+    }
+
+    final String creator = args[first];
 
-    for (int i = 1; i < args.length; i++) {
+    for (int i = first + 1; i < args.length; i++) {
       final File f = new File(args[i]);
 
       if ((f == null) || !f.exists() || !f.isFile() || !f.getName().endsWith(".pdf")) {
@@ -161,7 +174,11 @@ public class CreatorSetter {
       /*
        * Step 2: we create a writer that listens to the document
        */
-      PdfCopy        writer   = new PdfCopy(document, new FileOutputStream(p + ".tmp"));
+      PdfCopy        writer   = compact ? new PdfSmartCopy(document, new FileOutputStream(p + ".tmp")) : new PdfCopy(document, new FileOutputStream(p + ".tmp"));
+
+      if (compact) {
+        writer.setFullCompression();
+      }
 
       /*
        * Step 3: we add the meta data
@@ -19,14 +19,36 @@ import java.io.File;
  * @author (c) 2010, Matthias Nott
  */
 public class FileFilter implements java.io.FileFilter {
-  private String ext = "";
+  private String  ext    = "";
+  private boolean images = false;
+  private boolean zips   = false;
 
   public FileFilter(String ext) {
     this.ext = ext;
   }
 
+  /**
+   * @param ext The extension of the files to take
+   * @param images Whether to take scans that come as an image, too, see {@link ImageIngest}
+   */
+  public FileFilter(String ext, boolean images) {
+    this.ext    = ext;
+    this.images = images;
+  }
+
+  /**
+   * @param ext The extension of the files to take
+   * @param images Whether to take scans that come as an image, too, see {@link ImageIngest}
+   * @param zips Whether to take ZIP archives, too, see {@link ZipProcessor}
+   */
+  public FileFilter(String ext, boolean images, boolean zips) {
+    this.ext    = ext;
+    this.images = images;
+    this.zips   = zips;
+  }
+
   @Override public boolean accept(File pathname) {
-    if (pathname.isDirectory() || pathname.getName().endsWith(this.ext)) {
+    if (pathname.isDirectory() || pathname.getName().endsWith(this.ext) || (this.images && ImageIngest.isImage(pathname)) || (this.zips && ZipProcessor.isZip(pathname))) {
       if (pathname.getName().startsWith(".")) {
         return false;
       }
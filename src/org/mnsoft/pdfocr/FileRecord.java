@@ -0,0 +1,338 @@
+package org.mnsoft.pdfocr;
+
+import java.io.File;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * What happened to a single file during a run: its
+ * outcome, the time spent in each stage, pages and
+ * bytes, and errors. Written to the run report as
+ * one JSON line.<p>
+ *
+ * A record is only ever touched by the thread working
+ * on the file.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class FileRecord {
+  /**
+   * The file was run through the engine and replaced.
+   */
+  public static final String     DONE           = "done";
+
+  /**
+   * The file was not worked on, see the reason.
+   */
+  public static final String     SKIPPED        = "skipped";
+
+  /**
+   * Working on the file failed, see the reason and error.
+   */
+  public static final String     FAILED         = "failed";
+
+  /**
+   * Working on the file was cancelled; this is not held
+   * against the file.
+   */
+  public static final String     CANCELLED      = "cancelled";
+
+  /**
+   * Reason for files that had been run through the engine already.
+   */
+  public static final String     REASON_DONE    = "already processed";
+
+  /**
+   * The file.
+   */
+  public final File              file;
+
+  /**
+   * The key of the file, its path relative to the working directory.
+   */
+  public String                  key            = null;
+
+  /**
+   * Whether the file is an archive whose entries have
+   * records of their own; its pages and bytes are those
+   * of the entries, and are not counted again in the totals.
+   */
+  public boolean                 archive        = false;
+
+  /**
+   * The text of the pages as recognized by the engine, if
+   * it is collected for the full text index or sidecar.
+   */
+  public List<String>            text           = null;
+
+  /**
+   * Whether to keep the text after the index stage, for callers that want it.
+   */
+  public boolean                 keepText       = false;
+
+  /**
+   * Start time of the work on the file.
+   */
+  public final long              started        = System.currentTimeMillis();
+
+  /**
+   * Time spent in each stage, in milliseconds, in the order of the stages.
+   */
+  public final Map<String, Long> stages         = new LinkedHashMap<String, Long>();
+
+  /**
+   * The outcome: {@link #DONE}, {@link #SKIPPED}, {@link #FAILED} or {@link #CANCELLED}.
+   */
+  public String                  status         = null;
+
+  /**
+   * Why the file was skipped or failed.
+   */
+  public String                  reason         = null;
+
+  /**
+   * The error message, if any.
+   */
+  public String                  error          = null;
+
+  /**
+   * The number of pages.
+   */
+  public int                     pages          = -1;
+
+  /**
+   * Size of the original file.
+   */
+  public long                    bytesIn        = -1;
+
+  /**
+   * Size of the resulting file.
+   */
+  public long                    bytesOut       = -1;
+
+  /**
+   * Size of the merged file before its images were recompressed, if they were.
+   */
+  public long                    bytesMerged    = -1;
+
+  /**
+   * Number of images that were recompressed.
+   */
+  public int                     recompressed   = 0;
+
+  /**
+   * The tier of scratch space the file was worked on in, see {@link ScratchSpace}.
+   */
+  public String                  scratch        = null;
+
+  /**
+   * Whether a hedged engine run won or lost, if one was started.
+   */
+  public String                  hedge          = null;
+
+  /**
+   * Checksum of the resulting file, if it was verified.
+   */
+  public String                  checksum       = null;
+
+  /**
+   * Pages that got the OCR text added.
+   */
+  public int                     pagesMerged    = 0;
+
+  /**
+   * Pages that did not get the OCR text added because of THRESHOLD.
+   */
+  public int                     pagesSkipped   = 0;
+
+  /**
+   * Pages left out of the engine input for being blank.
+   */
+  public int                     pagesBlank     = 0;
+
+  /**
+   * Pages left out of the engine input for being in the page cache.
+   */
+  public int                     pagesCached    = 0;
+
+  /**
+   * How the file was repaired, if it could not be opened,
+   * see {@link PdfRepair#JVM} and {@link PdfRepair#COMMAND}.
+   */
+  public String                  repaired       = null;
+
+  /**
+   * Exit code of the engine process, if it ran.
+   */
+  public Integer                 engineExitCode = null;
+
+  /**
+   * Total time, in milliseconds, set by {@link #finish()}.
+   */
+  public long                    millis         = -1;
+
+  /**
+   * Start time of the current stage.
+   */
+  private long                   stageStart     = 0;
+
+  /**
+   * Name of the current stage.
+   */
+  private String                 stage          = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param file The file
+   */
+  public FileRecord(File file) {
+    this.file = file;
+  }
+
+
+  /**
+   * Begin a stage, ending the current one.
+   *
+   * @param name The stage name
+   */
+  public void begin(String name) {
+    end();
+
+    this.stage      = name;
+    this.stageStart = System.currentTimeMillis();
+  }
+
+
+  /**
+   * End the current stage, if any.
+   */
+  public void end() {
+    if (this.stage == null) {
+      return;
+    }
+
+    final Long before = this.stages.get(this.stage);
+
+    this.stages.put(this.stage, Long.valueOf(((before == null) ? 0 : before.longValue()) + (System.currentTimeMillis() - this.stageStart)));
+    this.stage = null;
+  }
+
+
+  /**
+   * Get the time spent in a stage.
+   *
+   * @param name The stage name
+   * @return The time in milliseconds, 0 if the stage did not run.
+   */
+  public long getStage(String name) {
+    final Long millis = this.stages.get(name);
+
+    return (millis == null) ? 0 : millis.longValue();
+  }
+
+
+  /**
+   * Mark the file as skipped.
+   *
+   * @param reason Why
+   */
+  public void skipped(String reason) {
+    this.status = SKIPPED;
+    this.reason = reason;
+  }
+
+
+  /**
+   * Mark the file as failed.
+   *
+   * @param reason Why
+   * @param e The exception, if any
+   */
+  public void failed(String reason, Throwable e) {
+    this.status = FAILED;
+    this.reason = reason;
+
+    if (e != null) {
+      this.error = e.getClass().getName() + ": " + e.getMessage();
+    }
+  }
+
+
+  /**
+   * Mark the file as cancelled.
+   */
+  public void cancelled() {
+    this.status = CANCELLED;
+    this.reason = null;
+  }
+
+
+  /**
+   * Mark the file as done.
+   */
+  public void done() {
+    this.status = DONE;
+    this.reason = null;
+  }
+
+
+  /**
+   * End the work on the file.
+   */
+  public void finish() {
+    end();
+
+    if (this.status == null) {
+      failed("aborted", null);
+    }
+
+    this.millis = System.currentTimeMillis() - this.started;
+  }
+
+
+  /**
+   * Get the record as a JSON object.
+   *
+   * @return The JSON text, on one line
+   */
+  public String toJson() {
+    final Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+    m.put("type", this.archive ? "archive" : "file");
+    m.put("file", this.file.getAbsolutePath());
+    m.put("status", this.status);
+    m.put("reason", this.reason);
+    m.put("started", Long.valueOf(this.started));
+    m.put("millis", Long.valueOf(this.millis));
+    m.put("stages", this.stages);
+    m.put("pages", Integer.valueOf(this.pages));
+    m.put("bytesIn", Long.valueOf(this.bytesIn));
+    m.put("bytesOut", Long.valueOf(this.bytesOut));
+    m.put("bytesMerged", Long.valueOf(this.bytesMerged));
+    m.put("recompressed", Integer.valueOf(this.recompressed));
+    m.put("pagesMerged", Integer.valueOf(this.pagesMerged));
+    m.put("pagesSkipped", Integer.valueOf(this.pagesSkipped));
+    m.put("pagesBlank", Integer.valueOf(this.pagesBlank));
+    m.put("pagesCached", Integer.valueOf(this.pagesCached));
+    m.put("repaired", this.repaired);
+    m.put("engineExitCode", this.engineExitCode);
+    m.put("scratch", this.scratch);
+    m.put("hedge", this.hedge);
+    m.put("checksum", this.checksum);
+    m.put("error", this.error);
+
+    return Json.toJson(m);
+  }
+}
@@ -0,0 +1,226 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Image;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PdfWriter;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+import com.lowagie.text.pdf.codec.TiffImage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Makes a PDF of a scan that comes as an image, a TIFF of
+ * one or more pages, a PNG or a JPEG, so that the wrapper
+ * can take what scanners write without a conversion job
+ * that reads and writes every scan once more.<p>
+ *
+ * The PDF is written as it goes, one page per image, and
+ * each image is written out when it is added, so that only
+ * one page is held in memory. The images are taken over as
+ * they are where the format allows it: JPEGs as they are,
+ * CCITT compressed TIFFs without decoding them. The size of
+ * a page is that of the image at its resolution, or at
+ * {@link #DEFAULT_DPI} if it has none.<p>
+ *
+ * The PDF has the name of the image, with .pdf instead of
+ * its extension, and is what the text is put under.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class ImageIngest {
+  /**
+   * Logger for this class
+   */
+  private static final Logger  log         = Logger.getLogger(ImageIngest.class);
+
+  /**
+   * Extensions of the images taken, in lower case.
+   */
+  public static final String[] EXTENSIONS  = { ".tif", ".tiff", ".png", ".jpg", ".jpeg" };
+
+  /**
+   * Resolution assumed for images that do not have one.
+   */
+  public static final int      DEFAULT_DPI = 300;
+
+
+  /**
+   * Utility class.
+   */
+  private ImageIngest() {
+  }
+
+
+  /**
+   * Check whether a file is an image we take.
+   *
+   * @param file The file
+   * @return true if it is.
+   */
+  public static boolean isImage(File file) {
+    final String name = file.getName().toLowerCase();
+
+    for (int i = 0; i < EXTENSIONS.length; i++) {
+      if (name.endsWith(EXTENSIONS[i])) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Get the PDF to make of an image.
+   *
+   * @param image The image
+   * @return The file of the same name, with .pdf instead of its extension
+   */
+  public static File getTarget(File image) {
+    final String name = image.getName();
+    final int    dot  = name.lastIndexOf('.');
+
+    return new File(image.getParentFile(), ((dot > 0) ? name.substring(0, dot) : name) + ".pdf");
+  }
+
+
+  /**
+   * Get the number of pages of an image.
+   *
+   * @param image The image
+   * @return The number of pages, 1 but for TIFFs
+   * @throws IOException If the TIFF cannot be read
+   */
+  public static int getPages(File image) throws IOException {
+    if (!isTiff(image)) {
+      return 1;
+    }
+
+    final RandomAccessFileOrArray ra = new RandomAccessFileOrArray(image.getAbsolutePath());
+
+    try {
+      return TiffImage.getNumberOfPages(ra);
+    } finally {
+      ra.close();
+    }
+  }
+
+
+  /**
+   * Write the PDF of an image.
+   *
+   * @param image The image
+   * @param pdf The PDF to write
+   * @return The number of pages written
+   * @throws IOException If the image cannot be read, or the PDF not written
+   */
+  public static int write(File image, File pdf) throws IOException {
+    final OutputStream            os       = new BufferedOutputStream(new FileOutputStream(pdf));
+    final RandomAccessFileOrArray ra       = isTiff(image) ? new RandomAccessFileOrArray(image.getAbsolutePath()) : null;
+    final Document                document = new Document();
+    int                           pages    = 0;
+
+    try {
+      final PdfWriter writer = PdfWriter.getInstance(document, os);
+      final int       n      = (ra == null) ? 1 : TiffImage.getNumberOfPages(ra);
+
+      for (int i = 1; i <= n; i++) {
+        final Image img = (ra == null) ? Image.getInstance(image.getAbsolutePath()) : TiffImage.getTiffImage(ra, i);
+
+        if (img == null) {
+          throw new IOException("Page " + i + " of " + image.getAbsolutePath() + " cannot be read");
+        }
+
+        final float w = (img.getWidth() * 72) / getDpi(img.getDpiX());
+        final float h = (img.getHeight() * 72) / getDpi(img.getDpiY());
+
+        document.setPageSize(new Rectangle(w, h));
+
+        if (i == 1) {
+          document.setMargins(0, 0, 0, 0);
+          document.open();
+        } else {
+          document.newPage();
+        }
+
+        img.scaleAbsolute(w, h);
+        img.setAbsolutePosition(0, 0);
+
+        writer.getDirectContent().addImage(img);
+
+        pages++;
+      }
+
+      document.close();
+    } catch (DocumentException e) {
+      throw new IOException("Could not write " + pdf.getAbsolutePath() + ": " + e.getMessage(), e);
+    } finally {
+      os.close();
+
+      if (ra != null) {
+        ra.close();
+      }
+    }
+
+    log.debug("+ Wrote " + pages + " pages of " + image.getAbsolutePath() + " to " + pdf.getAbsolutePath());
+
+    return pages;
+  }
+
+
+  /**
+   * @param file An image
+   * @return true if it is a TIFF.
+   */
+  private static boolean isTiff(File file) {
+    final String name = file.getName().toLowerCase();
+
+    return name.endsWith(".tif") || name.endsWith(".tiff");
+  }
+
+
+  /**
+   * @param dpi The resolution of an image, or 0
+   * @return The resolution to use.
+   */
+  private static float getDpi(float dpi) {
+    return (dpi > 0) ? dpi : DEFAULT_DPI;
+  }
+
+
+  /**
+   * Make the PDF of an image by hand.
+   *
+   * @param args image [file.pdf]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: ImageIngest scan.tif [scan.pdf]");
+      System.exit(1);
+    }
+
+    final File image = new File(args[0]);
+    final File pdf   = (args.length > 1) ? new File(args[1]) : getTarget(image);
+    final long start = System.currentTimeMillis();
+    final int  pages = write(image, pdf);
+
+    System.out.println(image + ": " + pages + " pages to " + pdf + " in " + (System.currentTimeMillis() - start) + " ms");
+  }
+}
@@ -0,0 +1,285 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+
+import org.apache.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Recompresses the page images of a PDF to make it
+ * smaller: bilevel images to CCITT Group 4, gray and
+ * colour images to JPEG at a set quality, downsampled
+ * if their resolution is above a limit.<p>
+ *
+ * The images are decoded and encoded on a pool of threads,
+ * a few at a time; reading the raw streams and writing
+ * the result stays on the calling thread, since the
+ * PdfReader is not thread safe. An image is only replaced
+ * if the new version is smaller.<p>
+ *
+ * The resolution of an image is taken against the width of
+ * the page it is found on, which is right for scans, where
+ * the image covers the page. For smaller images, it is
+ * underestimated, so they are downsampled less, never more.
+ * Bilevel images are never downsampled, since that would
+ * make the text hard to read.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class ImageRecompressor {
+  /**
+   * Logger for this class
+   */
+  private static final Logger   log = Logger.getLogger(ImageRecompressor.class);
+
+  /**
+   * The threads to decode and encode on.
+   */
+  private final ExecutorService pool;
+
+  /**
+   * The number of threads.
+   */
+  private final int             threads;
+
+  /**
+   * The JPEG quality, from 0 to 1.
+   */
+  private final float           quality;
+
+  /**
+   * Resolution above which gray and colour images are downsampled; 0 for no limit.
+   */
+  private final int             maxDpi;
+
+
+  /**
+   * Constructor.
+   *
+   * @param threads The number of threads to decode and encode on
+   * @param quality The JPEG quality, from 0 to 100
+   * @param maxDpi Resolution above which gray and colour images are downsampled; 0 for no limit
+   */
+  public ImageRecompressor(int threads, int quality, int maxDpi) {
+    this.threads = Math.max(1, threads);
+    this.quality = Math.max(1, Math.min(100, quality)) / 100f;
+    this.maxDpi  = Math.max(0, maxDpi);
+    this.pool    = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "pdfocr-recompress");
+            t.setDaemon(true);
+
+            return t;
+          }
+        });
+  }
+
+
+  /**
+   * Recompress a PDF.
+   *
+   * @param in The PDF
+   * @param out The recompressed PDF to write
+   * @return The number of images that were replaced.
+   * @throws IOException
+   * @throws DocumentException
+   */
+  public int recompress(File in, File out) throws IOException, DocumentException {
+    final PdfReader reader = new PdfReader(in.getAbsolutePath());
+
+    try {
+      final Map<Integer, Float> images   = PdfImages.findImages(reader);
+      final List<Integer>       numbers  = new ArrayList<Integer>(images.keySet());
+      int                       replaced = 0;
+
+      /*
+       * A few images at a time, so that we do not
+       * hold all of them in memory at once
+       */
+      final int batch = this.threads * 2;
+
+      for (int start = 0; start < numbers.size(); start += batch) {
+        final List<Future<Encoded>> futures = new ArrayList<Future<Encoded>>();
+
+        for (int i = start; i < Math.min(start + batch, numbers.size()); i++) {
+          final int           number = numbers.get(i).intValue();
+          final PRStream      stream = (PRStream) reader.getPdfObject(number);
+          final byte[]        raw    = PdfReader.getStreamBytesRaw(stream);
+          final float         width  = images.get(numbers.get(i)).floatValue();
+          final PdfDictionary dict   = stream;
+
+          futures.add(this.pool.submit(new Callable<Encoded>() {
+                public Encoded call() throws Exception {
+                  return encode(number, dict, raw, width);
+                }
+              }));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+          final Encoded encoded;
+
+          try {
+            encoded = futures.get(i).get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while recompressing " + in.getAbsolutePath());
+          } catch (ExecutionException e) {
+            log.warn("! WARNING: Could not recompress an image of " + in.getAbsolutePath() + ": " + e.getCause());
+
+            continue;
+          }
+
+          if (encoded == null) {
+            continue;
+          }
+
+          final PRStream stream = (PRStream) reader.getPdfObject(encoded.number);
+
+          stream.setData(encoded.data, false);
+
+          if (encoded.g4) {
+            PdfImages.setG4(stream, encoded.width, encoded.height);
+          } else {
+            PdfImages.setJpeg(stream, encoded.width, encoded.height);
+          }
+
+          replaced++;
+        }
+      }
+
+      final OutputStream os = new FileOutputStream(out);
+
+      try {
+        final PdfStamper stamper = new PdfStamper(reader, os);
+
+        stamper.close();
+      } finally {
+        os.close();
+      }
+
+      return replaced;
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Stop the threads.
+   */
+  public void shutdown() {
+    this.pool.shutdown();
+  }
+
+
+  /**
+   * Decode an image and encode it again.
+   *
+   * @param number The object number of the image
+   * @param dict The image dictionary
+   * @param raw The raw stream bytes
+   * @param pageWidth The width of the page, in points
+   * @return The encoded image, or null if it is not smaller.
+   * @throws IOException
+   */
+  private Encoded encode(int number, PdfDictionary dict, byte[] raw, float pageWidth) throws IOException {
+    BufferedImage image = PdfImages.decode(dict, raw);
+
+    if (image == null) {
+      return null;
+    }
+
+    final Encoded encoded = new Encoded();
+
+    encoded.number = number;
+    encoded.g4     = (image.getType() == BufferedImage.TYPE_BYTE_BINARY);
+
+    if (!encoded.g4 && (this.maxDpi > 0) && (pageWidth > 0)) {
+      final float dpi = image.getWidth() / (pageWidth / 72f);
+
+      if (dpi > this.maxDpi) {
+        final float factor = this.maxDpi / dpi;
+
+        image = PdfImages.scale(image, Math.max(1, Math.round(image.getWidth() * factor)), Math.max(1, Math.round(image.getHeight() * factor)));
+      }
+    }
+
+    encoded.width  = image.getWidth();
+    encoded.height = image.getHeight();
+    encoded.data   = encoded.g4 ? PdfImages.encodeG4(image) : PdfImages.encodeJpeg(image, this.quality);
+
+    if ((encoded.data == null) || (encoded.data.length >= raw.length)) {
+      return null;
+    }
+
+    return encoded;
+  }
+
+
+  /**
+   * An image, encoded again.
+   */
+  private static class Encoded {
+    int     number;
+    int     width;
+    int     height;
+    boolean g4;
+    byte[]  data;
+  }
+
+
+  /**
+   * Recompress a single file, for trying out the settings.
+   *
+   * @param args in.pdf out.pdf [quality [maxdpi]]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: ImageRecompressor in.pdf out.pdf [quality [maxdpi]]");
+      System.exit(1);
+    }
+
+    final File              in           = new File(args[0]);
+    final File              out          = new File(args[1]);
+    final ImageRecompressor recompressor = new ImageRecompressor(Runtime.getRuntime().availableProcessors(), (args.length > 2) ? Integer.parseInt(args[2]) : 75, (args.length > 3) ? Integer.parseInt(args[3]) : 0);
+    final long              start        = System.currentTimeMillis();
+
+    try {
+      final int replaced = recompressor.recompress(in, out);
+
+      System.out.println(in.getName() + ": " + in.length() + " -> " + out.length() + " bytes, " + replaced + " images recompressed in " + (System.currentTimeMillis() - start) + " ms");
+    } finally {
+      recompressor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.mnsoft.pdfocr;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Integrity Sweep.
+ *
+ * Checks the files the wrapper worked on against the checksums
+ * taken when they were verified, on several threads, without
+ * parsing them. Call it from the working directory of the
+ * wrapper, like
+ *
+ * <xmp>
+ *   java org.mnsoft.pdfocr.IntegritySweep [threads=8]
+ * </xmp>
+ *
+ * Each file is reported as OK, MISSING, CHANGED (size or time
+ * changed since, so somebody wrote it) or CORRUPT (same size and
+ * time, but different content). The exit code is 1 if a file is
+ * missing or corrupt.
+ *
+ * Configuration parameters like STATEDIR are read from
+ * pdfocr.properties, and can be given on the command line
+ * like for the wrapper itself.
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class IntegritySweep {
+  /**
+   * @param args Configuration parameters
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final Wrapper w = new Wrapper(".");
+    w.init(args);
+
+    final int             threads = Math.max(1, StringUtility.StringToInteger(w.getParameter("THREADS"), Runtime.getRuntime().availableProcessors()));
+    final JobStore        jobs    = w.createJobStore();
+    final ExecutorService pool    = Executors.newFixedThreadPool(threads, Threads.daemon("pdfocr-sweep"));
+    final List<Future<?>> tasks   = new ArrayList<Future<?>>();
+    final AtomicInteger   ok      = new AtomicInteger();
+    final AtomicInteger   changed = new AtomicInteger();
+    final AtomicInteger   bad     = new AtomicInteger();
+
+    for (final JobState state : jobs.list()) {
+      if (state.checksum == null) {
+        continue;
+      }
+
+      tasks.add(pool.submit(new Runnable() {
+          public void run() {
+            final File file = jobs.getFile(state.key);
+
+            if (!file.exists()) {
+              System.out.println("MISSING " + state.key);
+              bad.incrementAndGet();
+
+              return;
+            }
+
+            final String checksum;
+
+            try {
+              checksum = OutputVerifier.checksum(file);
+            } catch (IOException e) {
+              System.out.println("CORRUPT " + state.key + " unreadable: " + e.getMessage());
+              bad.incrementAndGet();
+
+              return;
+            }
+
+            if (state.checksum.equals(checksum)) {
+              ok.incrementAndGet();
+            } else if (!state.matches(file)) {
+              System.out.println("CHANGED " + state.key);
+              changed.incrementAndGet();
+            } else {
+              System.out.println("CORRUPT " + state.key + " checksum " + checksum + " instead of " + state.checksum);
+              bad.incrementAndGet();
+            }
+          }
+        }));
+    }
+
+    for (final Future<?> task : tasks) {
+      task.get();
+    }
+
+    pool.shutdown();
+
+    System.out.println("+ " + ok.get() + " ok, " + changed.get() + " changed, " + bad.get() + " missing or corrupt.");
+
+    if (bad.get() > 0) {
+      System.exit(1);
+    }
+  }
+}
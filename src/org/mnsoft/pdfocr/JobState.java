@@ -0,0 +1,187 @@
+package org.mnsoft.pdfocr;
+
+import java.io.File;
+
+import java.util.Properties;
+
+
+/**
+ * What we remember about a file between runs: its
+ * failures, when to try it again, and whether it is
+ * in quarantine. Stored by the {@link JobStore}.<p>
+ *
+ * For a file that was worked on successfully, the state
+ * holds the checksum of the result instead, for integrity
+ * sweeps over the archive, see {@link IntegritySweep}.<p>
+ *
+ * The state belongs to a particular version of the file,
+ * identified by its size and modification time. When the
+ * file changes, e.g. because somebody fixed it, the state
+ * no longer applies.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class JobState {
+  /**
+   * The key of the file, its path relative to the working directory.
+   */
+  public final String key;
+
+  /**
+   * Size of the file when the state was recorded.
+   */
+  public long         size            = -1;
+
+  /**
+   * Modification time of the file when the state was recorded.
+   */
+  public long         modified        = -1;
+
+  /**
+   * Number of failures in a row.
+   */
+  public int          failures        = 0;
+
+  /**
+   * Time of the last failure.
+   */
+  public long         lastFailure     = 0;
+
+  /**
+   * Earliest time of the next attempt.
+   */
+  public long         nextAttempt     = 0;
+
+  /**
+   * The last error.
+   */
+  public String       lastError       = null;
+
+  /**
+   * Whether the file is in quarantine.
+   */
+  public boolean      quarantined     = false;
+
+  /**
+   * Where the file was moved to when it went into quarantine, if it was moved.
+   */
+  public String       quarantinedPath = null;
+
+  /**
+   * Checksum of the file after it was worked on successfully,
+   * see {@link OutputVerifier#checksum(java.io.File)}.
+   */
+  public String       checksum        = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param key The key of the file
+   */
+  public JobState(String key) {
+    this.key = key;
+  }
+
+
+  /**
+   * Check whether the state applies to
+   * the file as it is now.
+   *
+   * @param file The file
+   * @return true if size and modification time are unchanged.
+   */
+  public boolean matches(File file) {
+    return (file.length() == this.size) && (file.lastModified() == this.modified);
+  }
+
+
+  /**
+   * Remember size and modification time of the file.
+   *
+   * @param file The file
+   */
+  public void setFingerprint(File file) {
+    this.size     = file.length();
+    this.modified = file.lastModified();
+  }
+
+
+  /**
+   * Get the state as Properties.
+   *
+   * @return The Properties
+   */
+  Properties toProperties() {
+    final Properties p = new Properties();
+
+    p.setProperty("key", this.key);
+    p.setProperty("size", Long.toString(this.size));
+    p.setProperty("modified", Long.toString(this.modified));
+    p.setProperty("failures", Integer.toString(this.failures));
+    p.setProperty("lastFailure", Long.toString(this.lastFailure));
+    p.setProperty("nextAttempt", Long.toString(this.nextAttempt));
+    p.setProperty("quarantined", Boolean.toString(this.quarantined));
+
+    if (this.lastError != null) {
+      p.setProperty("lastError", this.lastError);
+    }
+
+    if (this.quarantinedPath != null) {
+      p.setProperty("quarantinedPath", this.quarantinedPath);
+    }
+
+    if (this.checksum != null) {
+      p.setProperty("checksum", this.checksum);
+    }
+
+    return p;
+  }
+
+
+  /**
+   * Create a state from Properties.
+   *
+   * @param p The Properties
+   * @return The state, or null if the Properties do not hold one.
+   */
+  static JobState fromProperties(Properties p) {
+    final String key = p.getProperty("key");
+    if (key == null) {
+      return null;
+    }
+
+    final JobState state = new JobState(key);
+
+    state.size            = toLong(p.getProperty("size"), -1);
+    state.modified        = toLong(p.getProperty("modified"), -1);
+    state.failures        = StringUtility.StringToInteger(p.getProperty("failures"), 0);
+    state.lastFailure     = toLong(p.getProperty("lastFailure"), 0);
+    state.nextAttempt     = toLong(p.getProperty("nextAttempt"), 0);
+    state.quarantined     = "true".equals(p.getProperty("quarantined"));
+    state.lastError       = p.getProperty("lastError");
+    state.quarantinedPath = p.getProperty("quarantinedPath");
+    state.checksum        = p.getProperty("checksum");
+
+    return state;
+  }
+
+
+  /**
+   * Convert a String to a long, with a default.
+   */
+  private static long toLong(String s, long dflt) {
+    try {
+      return Long.parseLong(s);
+    } catch (NumberFormatException e) {
+      return dflt;
+    }
+  }
+}
@@ -0,0 +1,512 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * Keeps the {@link JobState} of files between runs,
+ * one small properties file per file in a state
+ * directory, named by the MD5 of the file's key. The
+ * files are spread over subdirectories named by the
+ * first digits of the MD5, so that no directory gets
+ * too large when the results of millions of files are
+ * verified and their checksums kept.<p>
+ *
+ * When working on a file fails, the failure is counted and
+ * the next attempt is put off with exponential backoff: the
+ * first retry waits the base delay, each following one twice
+ * as long as the one before, up to a maximum. After a given
+ * number of failures, the file goes into quarantine; if a
+ * quarantine directory is configured, it is also moved there.
+ * Files in quarantine are skipped until they are released, or
+ * until they change.<p>
+ *
+ * Files that never failed, and whose results are not verified,
+ * have no state file, so checking them costs a single lookup.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class JobStore {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log               = Logger.getLogger(JobStore.class);
+
+  /**
+   * Default name of the state directory, relative to the working
+   * directory. It starts with a dot so that the scanner skips it.
+   */
+  public static final String  DEFAULT_STATE_DIR = ".pdfocr-state";
+
+  /**
+   * Extension of the state files.
+   */
+  private static final String STATE_EXTENSION   = ".state";
+
+  /**
+   * Number of digits of the MD5 naming the subdirectory
+   * of a state file; 4096 subdirectories.
+   */
+  private static final int    SHARD_DIGITS      = 3;
+
+  /**
+   * The root of the tree; keys are relative to it.
+   */
+  private final String        root;
+
+  /**
+   * The directory holding the state files.
+   */
+  private final File          dir;
+
+  /**
+   * Number of failures after which a file goes into quarantine.
+   */
+  private final int           maxFailures;
+
+  /**
+   * Delay before the first retry, in milliseconds.
+   */
+  private final long          retryBase;
+
+  /**
+   * Maximum delay between retries, in milliseconds.
+   */
+  private final long          retryMax;
+
+  /**
+   * Directory to move files in quarantine to; null to leave them where they are.
+   */
+  private final File          quarantineDir;
+
+
+  /**
+   * Constructor.
+   *
+   * @param root The root of the tree
+   * @param dir The directory holding the state files
+   * @param maxFailures Number of failures after which a file goes into quarantine
+   * @param retryBase Delay before the first retry, in milliseconds
+   * @param retryMax Maximum delay between retries, in milliseconds
+   * @param quarantineDir Directory to move files in quarantine to; null to leave them where they are
+   * @throws IOException If the state directory cannot be created
+   */
+  public JobStore(File root, File dir, int maxFailures, long retryBase, long retryMax, File quarantineDir) throws IOException {
+    this.root          = root.getCanonicalPath();
+    this.dir           = dir;
+    this.maxFailures   = Math.max(1, maxFailures);
+    this.retryBase     = retryBase;
+    this.retryMax      = retryMax;
+    this.quarantineDir = quarantineDir;
+
+    FileUtils.forceMkdir(dir);
+
+    migrate();
+  }
+
+
+  /**
+   * Get the key of a file: its path relative
+   * to the root of the tree.
+   *
+   * @param file The file
+   * @return The key
+   * @throws IOException
+   */
+  public String getKey(File file) throws IOException {
+    final String path = file.getCanonicalPath();
+
+    if (path.startsWith(this.root + File.separator)) {
+      return path.substring(this.root.length() + 1);
+    }
+
+    return path;
+  }
+
+
+  /**
+   * Check whether a file may be worked on now.
+   *
+   * @param key The key of the file
+   * @param file The file
+   * @return null if the file may be worked on, else the reason why not.
+   */
+  public String check(String key, File file) {
+    final JobState state = get(key);
+
+    if (state == null) {
+      return null;
+    }
+
+    if (!state.matches(file)) {
+      if (state.failures > 0) {
+        log.info("+ INFO: File " + file.getAbsolutePath() + " has changed since it last failed. Trying again.");
+
+        delete(key);
+      }
+
+      return null;
+    }
+
+    if (state.quarantined) {
+      return "quarantined";
+    }
+
+    if (System.currentTimeMillis() < state.nextAttempt) {
+      return "retry after " + new Date(state.nextAttempt);
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Count a failure of a file, put off its next attempt,
+   * and put it into quarantine if it failed too often.
+   *
+   * @param key The key of the file
+   * @param file The file
+   * @param error The error
+   */
+  public void failed(String key, File file, String error) {
+    JobState state = get(key);
+
+    if ((state == null) || !state.matches(file)) {
+      state = new JobState(key);
+    }
+
+    final long now = System.currentTimeMillis();
+
+    state.setFingerprint(file);
+    state.failures++;
+    state.lastFailure = now;
+    state.lastError   = error;
+
+    /*
+     * Exponential backoff: base, 2 * base, 4 * base, ...
+     */
+    long delay = this.retryBase;
+    for (int i = 1; (i < state.failures) && (delay < this.retryMax); i++) {
+      delay *= 2;
+    }
+
+    state.nextAttempt = now + Math.min(delay, this.retryMax);
+
+    if (state.failures >= this.maxFailures) {
+      state.quarantined = true;
+
+      log.warn("! WARNING: File " + file.getAbsolutePath() + " failed " + state.failures + " times. Putting it into quarantine.");
+
+      if (this.quarantineDir != null) {
+        final File target = new File(this.quarantineDir, key);
+
+        try {
+          FileUtils.moveFile(file, target);
+          state.quarantinedPath = target.getAbsolutePath();
+        } catch (IOException e) {
+          log.error("! ERROR: Could not move " + file.getAbsolutePath() + " to " + target.getAbsolutePath() + ": " + e.getMessage());
+        }
+      }
+
+      Metrics.add("jobs.quarantined", 1);
+    } else {
+      log.info("+ INFO: File " + file.getAbsolutePath() + " failed " + state.failures + " times. Next attempt after " + new Date(state.nextAttempt) + ".");
+    }
+
+    save(state);
+  }
+
+
+  /**
+   * Forget the failures of a file that was worked on
+   * successfully, and remember the checksum of the result.
+   *
+   * @param key The key of the file
+   * @param file The file
+   * @param checksum The checksum of the file, or null if it was not verified
+   */
+  public void succeeded(String key, File file, String checksum) {
+    if (checksum == null) {
+      delete(key);
+
+      return;
+    }
+
+    final JobState state = new JobState(key);
+
+    state.setFingerprint(file);
+    state.checksum = checksum;
+
+    save(state);
+  }
+
+
+  /**
+   * Get a file by its key.
+   *
+   * @param key The key of the file
+   * @return The file
+   */
+  public File getFile(String key) {
+    return new File(this.root, key);
+  }
+
+
+  /**
+   * Release a file from quarantine: move it back if it
+   * was moved, and forget its failures.
+   *
+   * @param key The key of the file
+   * @return true if the file was released.
+   */
+  public boolean release(String key) {
+    final JobState state = get(key);
+
+    if (state == null) {
+      log.error("! ERROR: No state for " + key);
+
+      return false;
+    }
+
+    if (state.quarantinedPath != null) {
+      final File from = new File(state.quarantinedPath);
+      final File to   = new File(this.root, key);
+
+      if (to.exists()) {
+        log.error("! ERROR: Cannot move " + from.getAbsolutePath() + " back since " + to.getAbsolutePath() + " exists.");
+
+        return false;
+      }
+
+      try {
+        FileUtils.moveFile(from, to);
+      } catch (IOException e) {
+        log.error("! ERROR: Could not move " + from.getAbsolutePath() + " back to " + to.getAbsolutePath() + ": " + e.getMessage());
+
+        return false;
+      }
+    }
+
+    delete(key);
+
+    log.info("+ Released " + key);
+
+    return true;
+  }
+
+
+  /**
+   * Get the states of all files.
+   *
+   * @return The states
+   */
+  public List<JobState> list() {
+    final List<JobState> states = new ArrayList<JobState>();
+    final File[]         shards = this.dir.listFiles();
+
+    if (shards == null) {
+      return states;
+    }
+
+    for (int i = 0; i < shards.length; i++) {
+      final File[] files = shards[i].listFiles();
+
+      if (files == null) {
+        continue;
+      }
+
+      for (int j = 0; j < files.length; j++) {
+        if (!files[j].getName().endsWith(STATE_EXTENSION)) {
+          continue;
+        }
+
+        final JobState state = read(files[j]);
+        if (state != null) {
+          states.add(state);
+        }
+      }
+    }
+
+    return states;
+  }
+
+
+  /**
+   * Get the state of a file.
+   *
+   * @param key The key of the file
+   * @return The state, or null if there is none.
+   */
+  public JobState get(String key) {
+    final File file = getStateFile(key);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    return read(file);
+  }
+
+
+  /**
+   * Store the state of a file. It is written to a
+   * temporary file first and then renamed atomically.
+   *
+   * @param state The state
+   */
+  public void save(JobState state) {
+    final File file = getStateFile(state.key);
+    File       temp = null;
+
+    try {
+      /*
+       * Another node may save the same state at the same
+       * time, so the temporary file is not of a fixed name
+       */
+      FileUtils.forceMkdir(file.getParentFile());
+
+      temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+
+      final OutputStream os = new FileOutputStream(temp);
+
+      try {
+        state.toProperties().store(os, null);
+      } finally {
+        os.close();
+      }
+
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("! ERROR: Could not write job state " + file.getAbsolutePath() + ": " + e.getMessage());
+      FileUtils.deleteQuietly(temp);
+    }
+  }
+
+
+  /**
+   * Forget the state of a file.
+   *
+   * @param key The key of the file
+   */
+  public void delete(String key) {
+    FileUtils.deleteQuietly(getStateFile(key));
+  }
+
+
+  /**
+   * Read a state file.
+   *
+   * @param file The state file
+   * @return The state, or null if it cannot be read.
+   */
+  private JobState read(File file) {
+    final Properties p = new Properties();
+
+    try {
+      final InputStream is = new FileInputStream(file);
+
+      try {
+        p.load(is);
+      } finally {
+        is.close();
+      }
+    } catch (IOException e) {
+      log.error("! ERROR: Could not read job state " + file.getAbsolutePath() + ": " + e.getMessage());
+
+      return null;
+    }
+
+    return JobState.fromProperties(p);
+  }
+
+
+  /**
+   * Get the state file for a key.
+   *
+   * @param key The key
+   * @return The state file
+   */
+  private File getStateFile(String key) {
+    final String md5 = StringUtility.md5(key);
+
+    return new File(new File(this.dir, md5.substring(0, SHARD_DIGITS)), md5 + STATE_EXTENSION);
+  }
+
+
+  /**
+   * Move the state files that earlier versions kept
+   * in the state directory itself into their
+   * subdirectories.
+   *
+   * @throws IOException If a state file cannot be moved
+   */
+  private void migrate() throws IOException {
+    final File[] files = this.dir.listFiles();
+
+    if (files == null) {
+      return;
+    }
+
+    int moved = 0;
+
+    for (int i = 0; i < files.length; i++) {
+      final String name = files[i].getName();
+
+      if (!files[i].isFile() || !name.endsWith(STATE_EXTENSION)) {
+        continue;
+      }
+
+      final File shard = new File(this.dir, name.substring(0, SHARD_DIGITS));
+      final File to    = new File(shard, name);
+
+      FileUtils.forceMkdir(shard);
+
+      if (to.exists()) {
+        /*
+         * Written by a newer version meanwhile
+         */
+        FileUtils.deleteQuietly(files[i]);
+      } else {
+        try {
+          Files.move(files[i].toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+          /*
+           * Moved by another node
+           */
+          continue;
+        }
+      }
+
+      moved++;
+    }
+
+    if (moved > 0) {
+      log.info("+ Moved " + moved + " job states into subdirectories of " + this.dir.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,482 @@
+package org.mnsoft.pdfocr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Minimal JSON support, enough for writing the
+ * run report and reading manifests without another
+ * library.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Json {
+  /**
+   * Quote a String as a JSON string.
+   *
+   * @param s The String, may be null
+   * @return The JSON string, or null
+   */
+  public static String quote(String s) {
+    if (s == null) {
+      return "null";
+    }
+
+    final StringBuffer sb = new StringBuffer(s.length() + 2);
+    sb.append('"');
+
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+
+          break;
+
+        case '\\':
+          sb.append("\\\\");
+
+          break;
+
+        case '\n':
+          sb.append("\\n");
+
+          break;
+
+        case '\r':
+          sb.append("\\r");
+
+          break;
+
+        case '\t':
+          sb.append("\\t");
+
+          break;
+
+        default:
+          if (c < 0x20) {
+            sb.append("\\u");
+            sb.append(Integer.toHexString(c | 0x10000).substring(1));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+
+    sb.append('"');
+
+    return sb.toString();
+  }
+
+
+  /**
+   * Write a value as JSON. Maps become objects, numbers
+   * and booleans stay as they are, everything else is
+   * written as a string.
+   *
+   * @param value The value
+   * @return The JSON text
+   */
+  @SuppressWarnings("rawtypes")
+  public static String toJson(Object value) {
+    if (value == null) {
+      return "null";
+    }
+
+    if ((value instanceof Number) || (value instanceof Boolean)) {
+      return value.toString();
+    }
+
+    if (value instanceof Map) {
+      final StringBuffer sb    = new StringBuffer("{");
+      boolean            first = true;
+
+      for (final Iterator it = ((Map) value).entrySet().iterator(); it.hasNext();) {
+        final Map.Entry entry = (Map.Entry) it.next();
+
+        if (!first) {
+          sb.append(',');
+        }
+
+        first = false;
+
+        sb.append(quote(String.valueOf(entry.getKey())));
+        sb.append(':');
+        sb.append(toJson(entry.getValue()));
+      }
+
+      sb.append('}');
+
+      return sb.toString();
+    }
+
+    if (value instanceof Iterable) {
+      final StringBuffer sb    = new StringBuffer("[");
+      boolean            first = true;
+
+      for (final Iterator it = ((Iterable) value).iterator(); it.hasNext();) {
+        if (!first) {
+          sb.append(',');
+        }
+
+        first = false;
+
+        sb.append(toJson(it.next()));
+      }
+
+      sb.append(']');
+
+      return sb.toString();
+    }
+
+    return quote(value.toString());
+  }
+
+
+  /**
+   * Parse a JSON text. Objects become Maps, arrays become
+   * Lists, numbers become Doubles or Longs.
+   *
+   * @param text The JSON text
+   * @return The value
+   * @throws IllegalArgumentException If the text is not valid JSON
+   */
+  public static Object parse(String text) {
+    final Parser parser = new Parser(text);
+    final Object value  = parser.value();
+
+    parser.skipWhitespace();
+
+    if (parser.pos < text.length()) {
+      throw parser.error("Unexpected text after the value");
+    }
+
+    return value;
+  }
+
+
+  /**
+   * A recursive descent parser.
+   */
+  private static class Parser {
+    /**
+     * The text.
+     */
+    private final String text;
+
+    /**
+     * The position in the text.
+     */
+    private int          pos = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param text The text
+     */
+    Parser(String text) {
+      this.text = text;
+    }
+
+
+    /**
+     * Parse a value.
+     *
+     * @return The value
+     */
+    Object value() {
+      skipWhitespace();
+
+      if (this.pos >= this.text.length()) {
+        throw error("Unexpected end");
+      }
+
+      final char c = this.text.charAt(this.pos);
+
+      switch (c) {
+        case '{':
+          return object();
+
+        case '[':
+          return array();
+
+        case '"':
+          return string();
+
+        case 't':
+          literal("true");
+
+          return Boolean.TRUE;
+
+        case 'f':
+          literal("false");
+
+          return Boolean.FALSE;
+
+        case 'n':
+          literal("null");
+
+          return null;
+
+        default:
+          return number();
+      }
+    }
+
+
+    /**
+     * Parse an object.
+     *
+     * @return The object
+     */
+    Map<String, Object> object() {
+      final Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+      expect('{');
+      skipWhitespace();
+
+      if (peek() == '}') {
+        this.pos++;
+
+        return map;
+      }
+
+      while (true) {
+        skipWhitespace();
+
+        final String key = string();
+
+        skipWhitespace();
+        expect(':');
+
+        map.put(key, value());
+
+        skipWhitespace();
+
+        if (peek() == ',') {
+          this.pos++;
+
+          continue;
+        }
+
+        expect('}');
+
+        return map;
+      }
+    }
+
+
+    /**
+     * Parse an array.
+     *
+     * @return The array
+     */
+    List<Object> array() {
+      final List<Object> list = new ArrayList<Object>();
+
+      expect('[');
+      skipWhitespace();
+
+      if (peek() == ']') {
+        this.pos++;
+
+        return list;
+      }
+
+      while (true) {
+        list.add(value());
+
+        skipWhitespace();
+
+        if (peek() == ',') {
+          this.pos++;
+
+          continue;
+        }
+
+        expect(']');
+
+        return list;
+      }
+    }
+
+
+    /**
+     * Parse a string.
+     *
+     * @return The string
+     */
+    String string() {
+      expect('"');
+
+      final StringBuffer sb = new StringBuffer();
+
+      while (this.pos < this.text.length()) {
+        final char c = this.text.charAt(this.pos++);
+
+        if (c == '"') {
+          return sb.toString();
+        }
+
+        if (c != '\\') {
+          sb.append(c);
+
+          continue;
+        }
+
+        if (this.pos >= this.text.length()) {
+          break;
+        }
+
+        final char e = this.text.charAt(this.pos++);
+
+        switch (e) {
+          case 'n':
+            sb.append('\n');
+
+            break;
+
+          case 'r':
+            sb.append('\r');
+
+            break;
+
+          case 't':
+            sb.append('\t');
+
+            break;
+
+          case 'b':
+            sb.append('\b');
+
+            break;
+
+          case 'f':
+            sb.append('\f');
+
+            break;
+
+          case 'u':
+            if ((this.pos + 4) > this.text.length()) {
+              throw error("Bad unicode escape");
+            }
+
+            try {
+              sb.append((char) Integer.parseInt(this.text.substring(this.pos, this.pos + 4), 16));
+            } catch (NumberFormatException ex) {
+              throw error("Bad unicode escape");
+            }
+
+            this.pos += 4;
+
+            break;
+
+          default:
+            sb.append(e);
+        }
+      }
+
+      throw error("Unterminated string");
+    }
+
+
+    /**
+     * Parse a number.
+     *
+     * @return The number
+     */
+    Number number() {
+      final int start = this.pos;
+
+      while ((this.pos < this.text.length()) && ("+-0123456789.eE".indexOf(this.text.charAt(this.pos)) >= 0)) {
+        this.pos++;
+      }
+
+      final String number = this.text.substring(start, this.pos);
+
+      try {
+        if ((number.indexOf('.') < 0) && (number.indexOf('e') < 0) && (number.indexOf('E') < 0)) {
+          return Long.valueOf(number);
+        }
+
+        return Double.valueOf(number);
+      } catch (NumberFormatException e) {
+        this.pos = start;
+
+        throw error("Bad value");
+      }
+    }
+
+
+    /**
+     * Parse a literal.
+     *
+     * @param literal The literal
+     */
+    void literal(String literal) {
+      if (!this.text.startsWith(literal, this.pos)) {
+        throw error("Bad value");
+      }
+
+      this.pos += literal.length();
+    }
+
+
+    /**
+     * Skip a character that must come next.
+     *
+     * @param c The character
+     */
+    void expect(char c) {
+      if (peek() != c) {
+        throw error("Expected '" + c + "'");
+      }
+
+      this.pos++;
+    }
+
+
+    /**
+     * Get the next character without skipping it.
+     *
+     * @return The character, or 0 at the end.
+     */
+    char peek() {
+      return (this.pos < this.text.length()) ? this.text.charAt(this.pos) : 0;
+    }
+
+
+    /**
+     * Skip whitespace.
+     */
+    void skipWhitespace() {
+      while ((this.pos < this.text.length()) && Character.isWhitespace(this.text.charAt(this.pos))) {
+        this.pos++;
+      }
+    }
+
+
+    /**
+     * Create an exception for a parse error.
+     *
+     * @param message The message
+     * @return The exception
+     */
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at position " + this.pos);
+    }
+  }
+}
@@ -0,0 +1,579 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Coordinates several wrapper instances ("nodes") working
+ * on the same shared directory tree.<p>
+ *
+ * Before a node works on a file, it takes a lease on it. A
+ * lease is a small file in a shared lease directory. It is
+ * created by writing a node private file first and then hard
+ * linking it to the lease name; creating a hard link is atomic
+ * also on NFS, so exactly one node wins. The node keeps its
+ * private link for as long as it holds the lease.<p>
+ *
+ * While a node holds a lease, a heartbeat thread rewrites the
+ * lease file regularly. Since the modification time is then set
+ * by the file server, we do not depend on the clocks of the nodes
+ * being in sync: to find out whether a lease has expired, we
+ * compare its modification time against the modification time
+ * of our own node file, which we rewrite just before. A lease
+ * that has not seen a heartbeat for longer than the time to
+ * live belongs to a dead node; it is broken by renaming it
+ * away (again atomic), the private link of the dead node is
+ * removed, and the file is picked up again.<p>
+ *
+ * The heartbeat writes through the private link, never by the
+ * lease name: if the lease has been broken and taken by another
+ * node in the meantime, the lease of the other node is left
+ * alone, and the node sees that the lease file is no longer the
+ * same file as its link.<p>
+ *
+ * Several JVMs on the same box can act as separate nodes against
+ * a local directory: by default, the node id contains the process
+ * id.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class LeaseManager {
+  /**
+   * Logger for this class
+   */
+  private static final Logger     log               = Logger.getLogger(LeaseManager.class);
+
+  /**
+   * Default name of the lease directory, relative to the working
+   * directory. It starts with a dot so that the scanner skips it.
+   */
+  public static final String      DEFAULT_LEASE_DIR = ".pdfocr-leases";
+
+  /**
+   * Extension of the lease files.
+   */
+  private static final String     LEASE_EXTENSION   = ".lease";
+
+  /**
+   * Extension of the private links of the nodes to their leases.
+   */
+  private static final String     LINK_EXTENSION    = ".link";
+
+  /**
+   * The root of the shared tree; lease keys are relative to it.
+   */
+  private final String            root;
+
+  /**
+   * The directory holding the lease files.
+   */
+  private final File              leaseDir;
+
+  /**
+   * Our node id.
+   */
+  private final String            nodeId;
+
+  /**
+   * Time to live of a lease without heartbeat, in milliseconds.
+   */
+  private final long              ttl;
+
+  /**
+   * Heartbeat interval, in milliseconds.
+   */
+  private final long              heartbeat;
+
+  /**
+   * Our node file, used to read the time of the file server.
+   */
+  private final File              nodeFile;
+
+  /**
+   * The leases we currently hold, by key.
+   */
+  private final Map<String, File> held              = new HashMap<String, File>();
+
+  /**
+   * Held while a lease file is rewritten by the heartbeat, and
+   * while it is checked by verify and release, so that these do
+   * not see it empty in between, and a lease being released is
+   * not rewritten.
+   */
+  private final Object            beatLock          = new Object();
+
+  /**
+   * The heartbeat thread.
+   */
+  private Thread                  heartbeatThread   = null;
+
+  /**
+   * Set when we are shutting down.
+   */
+  private volatile boolean        stopped           = false;
+
+
+  /**
+   * Constructor.
+   *
+   * @param root The root of the shared tree
+   * @param leaseDir The directory holding the lease files
+   * @param nodeId Our node id
+   * @param ttl Time to live of a lease without heartbeat, in milliseconds
+   * @param heartbeat Heartbeat interval, in milliseconds
+   * @throws IOException If the lease directory cannot be created
+   */
+  public LeaseManager(File root, File leaseDir, String nodeId, long ttl, long heartbeat) throws IOException {
+    this.root      = root.getCanonicalPath();
+    this.leaseDir  = leaseDir;
+    this.nodeId    = nodeId.replaceAll("[^A-Za-z0-9._@-]", "_");
+    this.ttl       = ttl;
+    this.heartbeat = heartbeat;
+
+    FileUtils.forceMkdir(leaseDir);
+
+    this.nodeFile = new File(leaseDir, this.nodeId + ".node");
+  }
+
+
+  /**
+   * Get a default node id, made from the
+   * process id and the host name.
+   *
+   * @return The default node id
+   */
+  public static String getDefaultNodeId() {
+    return ManagementFactory.getRuntimeMXBean().getName();
+  }
+
+
+  /**
+   * Get the lease key of a file: its path
+   * relative to the root of the shared tree,
+   * so that it is the same on all nodes.
+   *
+   * @param file The file
+   * @return The lease key
+   * @throws IOException
+   */
+  public String getKey(File file) throws IOException {
+    final String path = file.getCanonicalPath();
+
+    if (path.startsWith(this.root + File.separator)) {
+      return path.substring(this.root.length() + 1);
+    }
+
+    return path;
+  }
+
+
+  /**
+   * Start the heartbeat thread.
+   */
+  public void start() {
+    this.heartbeatThread = new Thread("pdfocr-lease-heartbeat") {
+        @Override public void run() {
+          while (!stopped) {
+            try {
+              Thread.sleep(heartbeat);
+            } catch (InterruptedException e) {
+              return;
+            }
+
+            beat();
+          }
+        }
+      };
+    this.heartbeatThread.setDaemon(true);
+    this.heartbeatThread.start();
+  }
+
+
+  /**
+   * Stop the heartbeat thread and give
+   * up all leases we still hold.
+   */
+  public void shutdown() {
+    this.stopped = true;
+
+    if (this.heartbeatThread != null) {
+      this.heartbeatThread.interrupt();
+    }
+
+    final String[] keys;
+    synchronized (this.held) {
+      keys = this.held.keySet().toArray(new String[0]);
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      release(keys[i]);
+    }
+
+    FileUtils.deleteQuietly(this.nodeFile);
+  }
+
+
+  /**
+   * Try to take the lease on a key.
+   *
+   * @param key The lease key, see {@link #getKey(File)}
+   * @return true if we hold the lease now, false if another node holds it.
+   */
+  public boolean acquire(String key) {
+    final File lease = getLeaseFile(key);
+
+    /*
+     * Two attempts: if the first one fails because of an
+     * expired lease of a dead node, we break that lease
+     * and try once more.
+     */
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        if (create(lease, key)) {
+          synchronized (this.held) {
+            this.held.put(key, lease);
+          }
+
+          log.debug("+ Acquired lease on " + key);
+
+          return true;
+        }
+      } catch (IOException e) {
+        log.error("! ERROR: Could not create lease " + lease.getAbsolutePath() + ": " + e.getMessage());
+
+        return false;
+      }
+
+      if ((attempt > 0) || !isExpired(lease)) {
+        return false;
+      }
+
+      breakLease(lease, key);
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Check that we still hold the lease on a key,
+   * e.g. before replacing the original file.
+   *
+   * @param key The lease key
+   * @return true if the lease file is still ours.
+   */
+  public boolean verify(String key) {
+    final File lease;
+    synchronized (this.held) {
+      lease = this.held.get(key);
+    }
+
+    if (lease == null) {
+      return false;
+    }
+
+    synchronized (this.beatLock) {
+      return isLinked(lease);
+    }
+  }
+
+
+  /**
+   * Give up the lease on a key.
+   *
+   * @param key The lease key
+   */
+  public void release(String key) {
+    final File lease;
+    synchronized (this.held) {
+      lease = this.held.remove(key);
+    }
+
+    if (lease == null) {
+      return;
+    }
+
+    synchronized (this.beatLock) {
+      if (isLinked(lease)) {
+        FileUtils.deleteQuietly(lease);
+        log.debug("+ Released lease on " + key);
+      } else {
+        log.warn("! WARNING: Lease on " + key + " was no longer ours when releasing it.");
+      }
+
+      FileUtils.deleteQuietly(getLinkFile(lease, this.nodeId));
+    }
+  }
+
+
+  /**
+   * Create the lease file, atomically.
+   *
+   * @param lease The lease file
+   * @param key The lease key
+   * @return true if we created the lease, false if it existed already.
+   * @throws IOException
+   */
+  private boolean create(File lease, String key) throws IOException {
+    final File mine    = getLinkFile(lease, this.nodeId);
+    boolean    created = false;
+
+    write(mine, key, 0);
+
+    try {
+      Files.createLink(lease.toPath(), mine.toPath());
+
+      created = true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    } catch (IOException e) {
+      /*
+       * On NFS, the reply to a successful link may get
+       * lost; the link then exists nevertheless.
+       */
+      created = isLinked(lease);
+
+      if (!created) {
+        throw e;
+      }
+    } finally {
+      if (!created) {
+        FileUtils.deleteQuietly(mine);
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Break the lease of a dead node.
+   *
+   * @param lease The lease file
+   * @param key The lease key
+   */
+  private void breakLease(File lease, String key) {
+    final File stale = new File(this.leaseDir, lease.getName() + "." + this.nodeId + ".stale");
+
+    if (!lease.renameTo(stale)) {
+      /*
+       * Another node broke it before us.
+       */
+      return;
+    }
+
+    /*
+     * Between our check and the rename, another node may
+     * have broken the lease and created a fresh one, which
+     * we have just renamed away. In this case, put it back.
+     */
+    if (!isExpired(stale) && !lease.exists()) {
+      log.warn("! WARNING: Lease on " + key + " was renewed while breaking it. Restoring it.");
+
+      stale.renameTo(lease);
+
+      return;
+    }
+
+    final String owner = read(stale);
+
+    log.info("+ Broke expired lease on " + key + " (" + owner + ").");
+
+    /*
+     * The dead node does not remove its link any more
+     */
+    if ((owner != null) && owner.startsWith("node=")) {
+      FileUtils.deleteQuietly(getLinkFile(lease, owner.substring("node=".length())));
+    }
+
+    FileUtils.deleteQuietly(stale);
+  }
+
+
+  /**
+   * Check whether a lease has expired, using
+   * the time of the file server.
+   *
+   * @param lease The lease file
+   * @return true if the lease has not seen a heartbeat for longer than the time to live.
+   */
+  private boolean isExpired(File lease) {
+    final long modified = lease.lastModified();
+
+    if (modified == 0) {
+      /*
+       * Gone in the meantime
+       */
+      return false;
+    }
+
+    return (modified + this.ttl) < now();
+  }
+
+
+  /**
+   * Get the current time of the file server
+   * by rewriting our node file.
+   *
+   * @return The current time of the file server, or the local time in case of an error.
+   */
+  private long now() {
+    try {
+      write(this.nodeFile, "node", System.currentTimeMillis());
+
+      final long now = this.nodeFile.lastModified();
+      if (now != 0) {
+        return now;
+      }
+    } catch (IOException e) {
+      log.warn("! WARNING: Could not write node file " + this.nodeFile.getAbsolutePath() + ": " + e.getMessage());
+    }
+
+    return System.currentTimeMillis();
+  }
+
+
+  /**
+   * Rewrite all our lease files so that their
+   * modification time is refreshed by the file
+   * server. They are written through our links
+   * to them, and checked afterwards: checking
+   * first and then writing the lease file by its
+   * name could overwrite the lease of a node that
+   * broke ours and took it in between.
+   */
+  private void beat() {
+    final Map<String, File> leases;
+    synchronized (this.held) {
+      leases = new HashMap<String, File>(this.held);
+    }
+
+    for (final Iterator<Map.Entry<String, File>> it = leases.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, File> entry = it.next();
+
+      synchronized (this.beatLock) {
+        synchronized (this.held) {
+          if (this.held.get(entry.getKey()) != entry.getValue()) {
+            /*
+             * Released in the meantime
+             */
+            continue;
+          }
+        }
+
+        try {
+          write(getLinkFile(entry.getValue(), this.nodeId), entry.getKey(), System.currentTimeMillis());
+        } catch (IOException e) {
+          log.error("! ERROR: Heartbeat failed on " + entry.getValue().getAbsolutePath() + ": " + e.getMessage());
+        }
+
+        if (!isLinked(entry.getValue())) {
+          log.error("! ERROR: Lost the lease on " + entry.getKey());
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Check whether a lease file is ours: whether it
+   * is the same file as our link to it.
+   *
+   * @param lease The lease file
+   * @return true if the lease file is our link.
+   */
+  private boolean isLinked(File lease) {
+    try {
+      return Files.isSameFile(lease.toPath(), getLinkFile(lease, this.nodeId).toPath());
+    } catch (IOException e) {
+      /*
+       * One of them is gone
+       */
+      return false;
+    }
+  }
+
+
+  /**
+   * Read the owner line of a lease file.
+   *
+   * @param lease The lease file
+   * @return The owner line, or null if the file cannot be read.
+   */
+  private String read(File lease) {
+    try {
+      final String content = FileUtils.readFileToString(lease, "UTF-8");
+      final int    eol     = content.indexOf('\n');
+
+      return (eol < 0) ? content : content.substring(0, eol);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Write a lease or node file in place, so that
+   * the file server sets its modification time.
+   *
+   * @param file The file
+   * @param key The lease key
+   * @param beat The heartbeat time stamp
+   * @throws IOException
+   */
+  private void write(File file, String key, long beat) throws IOException {
+    final FileOutputStream os = new FileOutputStream(file);
+
+    try {
+      os.write(("node=" + this.nodeId + "\nkey=" + key + "\nbeat=" + beat + "\n").getBytes("UTF-8"));
+      os.getFD().sync();
+    } finally {
+      os.close();
+    }
+  }
+
+
+  /**
+   * Get the private link of a node to a lease.
+   *
+   * @param lease The lease file
+   * @param node The node id
+   * @return The link
+   */
+  private File getLinkFile(File lease, String node) {
+    return new File(this.leaseDir, lease.getName() + "." + node + LINK_EXTENSION);
+  }
+
+
+  /**
+   * Get the lease file for a key.
+   *
+   * @param key The lease key
+   * @return The lease file
+   */
+  private File getLeaseFile(String key) {
+    return new File(this.leaseDir, StringUtility.md5(key) + LEASE_EXTENSION);
+  }
+}
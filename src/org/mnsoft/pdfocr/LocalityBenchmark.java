@@ -0,0 +1,194 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Measures how fast the files of an archive are scanned and
+ * probed in each ORDER, to see whether ordering them by
+ * where they lie on disk pays off for it:
+ *
+ * <pre>
+ *   java org.mnsoft.pdfocr.LocalityBenchmark [-order o] [-threads n] [-window n] [-copy] directory
+ * </pre>
+ *
+ * For each order (or only the one given), the directory is
+ * scanned as the wrapper scans it, and each PDF is opened and
+ * its pages counted by n threads (default 1), like the probe
+ * before a file is worked on; with -copy, each file is also
+ * copied to a temporary file, like the copy to scratch space.
+ * The time includes the scan and the ordering itself.<p>
+ *
+ * What is measured are the disk reads, so the page cache has
+ * to be dropped before each order. The benchmark tries to do
+ * that itself, which needs root; if it cannot, the orders after
+ * the first read from memory, and each order should be run on
+ * its own, after
+ *
+ * <pre>
+ *   sync; echo 3 > /proc/sys/vm/drop_caches
+ * </pre>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class LocalityBenchmark {
+  /**
+   * The orders.
+   */
+  private static final String[] ORDERS = { LocalityOrder.LISTING, LocalityOrder.INODE, LocalityOrder.EXTENT };
+
+
+  /**
+   * @param args [-order o] [-threads n] [-window n] [-copy] directory
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final List<String> orders  = new ArrayList<String>();
+    int                threads = 1;
+    int                window  = 1000;
+    boolean            copy    = false;
+    int                i       = 0;
+
+    for (; (i < args.length) && args[i].startsWith("-"); i++) {
+      if ("-copy".equals(args[i])) {
+        copy = true;
+      } else if ("-order".equals(args[i]) && (i + 1 < args.length)) {
+        orders.add(args[++i]);
+      } else if ("-threads".equals(args[i]) && (i + 1 < args.length)) {
+        threads = Math.max(1, StringUtility.StringToInteger(args[++i], 1));
+      } else if ("-window".equals(args[i]) && (i + 1 < args.length)) {
+        window = Math.max(1, StringUtility.StringToInteger(args[++i], 1000));
+      } else {
+        break;
+      }
+    }
+
+    if (i != (args.length - 1)) {
+      System.err.println("usage: LocalityBenchmark [-order listing|inode|extent] [-threads n] [-window n] [-copy] directory");
+      System.exit(1);
+    }
+
+    final File dir = new File(args[i]);
+
+    if (orders.isEmpty()) {
+      for (int o = 0; o < ORDERS.length; o++) {
+        orders.add(ORDERS[o]);
+      }
+    }
+
+    System.out.println("order\tfiles\tbytes\tpages\terrors\tms\tfiles/s\tMB/s");
+
+    for (final String order : orders) {
+      if (!dropCaches() && (orders.size() > 1)) {
+        System.err.println("! WARNING: Cannot drop the page cache. Run each order on its own, with -order, after dropping it.");
+      }
+
+      final AtomicLong      files  = new AtomicLong();
+      final AtomicLong      bytes  = new AtomicLong();
+      final AtomicLong      pages  = new AtomicLong();
+      final AtomicLong      errors = new AtomicLong();
+      final boolean         doCopy = copy;
+      final ExecutorService pool   = Executors.newFixedThreadPool(threads);
+      final long            start  = System.currentTimeMillis();
+
+      for (final Iterator<File> it = LocalityOrder.wrap(new RecursiveFileListIterator(dir, new FileFilter(".pdf")), order, window); it.hasNext();) {
+        final File file = it.next();
+
+        pool.execute(new Runnable() {
+            public void run() {
+              try {
+                pages.addAndGet(probe(file, doCopy));
+                bytes.addAndGet(file.length());
+              } catch (Exception e) {
+                errors.incrementAndGet();
+              }
+
+              files.incrementAndGet();
+            }
+          });
+      }
+
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+      final long ms = Math.max(1, System.currentTimeMillis() - start);
+
+      System.out.println(order + "\t" + files.get() + "\t" + bytes.get() + "\t" + pages.get() + "\t" + errors.get() + "\t" + ms + "\t" + ((files.get() * 1000) / ms) + "\t" + ((bytes.get() * 1000) / ms / (1024 * 1024)));
+    }
+  }
+
+
+  /**
+   * Probe a file like the wrapper does before working on it.
+   *
+   * @param file The file
+   * @param copy Whether to copy it to a temporary file, too
+   * @return The number of pages
+   * @throws IOException If it cannot be read
+   */
+  private static int probe(File file, boolean copy) throws IOException {
+    final PdfReader reader = new PdfReader(new RandomAccessFileOrArray(file.getAbsolutePath()), null);
+
+    try {
+      if (copy) {
+        final File tmp = File.createTempFile("locality", ".pdf");
+
+        try {
+          FileUtils.copyFile(file, tmp);
+        } finally {
+          FileUtils.deleteQuietly(tmp);
+        }
+      }
+
+      return reader.getNumberOfPages();
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Drop the page cache, so that the files are read from disk.
+   *
+   * @return true if it was dropped.
+   */
+  private static boolean dropCaches() {
+    try {
+      Runtime.getRuntime().exec(new String[] { "sync" }).waitFor();
+
+      final FileWriter w = new FileWriter("/proc/sys/vm/drop_caches");
+
+      try {
+        w.write("3\n");
+      } finally {
+        w.close();
+      }
+
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Puts the files found by the scanner into the order in
+ * which they lie on disk, so that on spinning disks the
+ * probes and copies of files worked on one after the other,
+ * or at the same time, read from places close to each other
+ * instead of seeking across the disk.<p>
+ *
+ * The files are taken from the scanner in windows of a given
+ * number, and each window is sorted by device, and then by
+ * one of:
+ *
+ * <ul>
+ *   <li>{@link #INODE}: the inode number, which on most file
+ *       systems grows with the place of the inode, and often
+ *       with that of the data, too; costs a stat per file</li>
+ *   <li>{@link #EXTENT}: the physical block of the first extent
+ *       of the file, as filefrag reads it with FIEMAP; costs
+ *       one filefrag call per {@link #BATCH} files. Files that
+ *       filefrag cannot place, e.g. on file systems without
+ *       FIEMAP, come after the others, by inode</li>
+ * </ul>
+ *
+ * Files whose inode cannot be had come last, in the order of
+ * the scanner. {@link #LISTING} keeps that order throughout.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class LocalityOrder implements Iterator<File> {
+  /**
+   * Logger for this class
+   */
+  private static final Logger  log       = Logger.getLogger(LocalityOrder.class);
+
+  /**
+   * The order of the scanner.
+   */
+  public static final String   LISTING   = "listing";
+
+  /**
+   * By inode number.
+   */
+  public static final String   INODE     = "inode";
+
+  /**
+   * By the physical place of the data.
+   */
+  public static final String   EXTENT    = "extent";
+
+  /**
+   * Number of files per filefrag call.
+   */
+  public static final int      BATCH     = 200;
+
+  /**
+   * The first extent in the output of filefrag -v, like
+   * "   0:        0..     255:    1234567..   1234822:    256:".
+   */
+  private static final Pattern FIRST     = Pattern.compile("^\\s*0:\\s*\\d+\\.\\.\\s*\\d+:\\s*(\\d+)\\.\\.");
+
+  /**
+   * Whether filefrag has failed, so that it is not tried again.
+   */
+  private static volatile boolean noFilefrag = false;
+
+  /**
+   * The files in the order of the scanner.
+   */
+  private final Iterator<File> source;
+
+  /**
+   * The order.
+   */
+  private final String         order;
+
+  /**
+   * The number of files sorted at a time.
+   */
+  private final int            window;
+
+  /**
+   * The sorted files of the current window.
+   */
+  private Iterator<File>       sorted    = Collections.<File>emptyList().iterator();
+
+
+  /**
+   * Constructor.
+   *
+   * @param source The files in the order of the scanner
+   * @param order {@link #INODE} or {@link #EXTENT}
+   * @param window The number of files sorted at a time
+   */
+  public LocalityOrder(Iterator<File> source, String order, int window) {
+    this.source = source;
+    this.order  = order;
+    this.window = Math.max(1, window);
+  }
+
+
+  /**
+   * Put files into an order.
+   *
+   * @param source The files in the order of the scanner
+   * @param order {@link #LISTING}, {@link #INODE} or {@link #EXTENT}; null or empty for {@link #LISTING}
+   * @param window The number of files sorted at a time
+   * @return The files in that order
+   */
+  public static Iterator<File> wrap(Iterator<File> source, String order, int window) {
+    if ((order == null) || "".equals(order) || LISTING.equals(order)) {
+      return source;
+    }
+
+    if (!INODE.equals(order) && !EXTENT.equals(order)) {
+      log.warn("! WARNING: Unknown ORDER " + order + ". Keeping the order of the scanner.");
+
+      return source;
+    }
+
+    return new LocalityOrder(source, order, window);
+  }
+
+
+  public boolean hasNext() {
+    if (!this.sorted.hasNext() && this.source.hasNext()) {
+      fill();
+    }
+
+    return this.sorted.hasNext();
+  }
+
+
+  public File next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return this.sorted.next();
+  }
+
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+
+  /**
+   * Take the next window of files from the scanner, and sort it.
+   */
+  private void fill() {
+    final List<File> files = new ArrayList<File>();
+
+    while ((files.size() < this.window) && this.source.hasNext()) {
+      files.add(this.source.next());
+    }
+
+    final long              start = System.currentTimeMillis();
+    final Map<File, long[]> keys  = getKeys(files, this.order);
+
+    Collections.sort(files, new Comparator<File>() {
+        public int compare(File a, File b) {
+          final long[] x = keys.get(a);
+          final long[] y = keys.get(b);
+
+          for (int i = 0; i < x.length; i++) {
+            if (x[i] != y[i]) {
+              return (x[i] < y[i]) ? -1 : 1;
+            }
+          }
+
+          return 0;
+        }
+      });
+
+    log.debug("+ Sorted " + files.size() + " files by " + this.order + " in " + (System.currentTimeMillis() - start) + " ms.");
+
+    this.sorted = files.iterator();
+  }
+
+
+  /**
+   * Get the sort keys of files: device, whether the
+   * file could be placed, and where it is.
+   *
+   * @param files The files
+   * @param order {@link #INODE} or {@link #EXTENT}
+   * @return The keys
+   */
+  static Map<File, long[]> getKeys(List<File> files, String order) {
+    final Map<File, long[]> keys    = new HashMap<File, long[]>();
+    final Map<String, Long> extents = EXTENT.equals(order) ? getExtents(files) : new HashMap<String, Long>();
+
+    for (final File file : files) {
+      final long device = getLong(file, "unix:dev");
+      final long inode  = getLong(file, "unix:ino");
+      final Long extent = extents.get(file.getAbsolutePath());
+
+      if (extent != null) {
+        keys.put(file, new long[] { device, 0, extent.longValue() });
+      } else {
+        keys.put(file, new long[] { device, 1, inode });
+      }
+    }
+
+    return keys;
+  }
+
+
+  /**
+   * Get a number attribute of a file.
+   *
+   * @param file The file
+   * @param attribute The attribute, like unix:ino
+   * @return Its value, or Long.MAX_VALUE if there is none.
+   */
+  private static long getLong(File file, String attribute) {
+    try {
+      final Object value = Files.getAttribute(file.toPath(), attribute);
+
+      return (value instanceof Number) ? ((Number) value).longValue() : Long.MAX_VALUE;
+    } catch (Exception e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+
+  /**
+   * Get the physical block of the first extent of files,
+   * with filefrag.
+   *
+   * @param files The files
+   * @return The blocks by the absolute path of the files; files that cannot be placed are missing.
+   */
+  static Map<String, Long> getExtents(List<File> files) {
+    final Map<String, Long> extents = new HashMap<String, Long>();
+
+    for (int i = 0; (i < files.size()) && !noFilefrag; i += BATCH) {
+      final List<String> cmd = new ArrayList<String>();
+
+      cmd.add("filefrag");
+      cmd.add("-v");
+
+      for (final File file : files.subList(i, Math.min(files.size(), i + BATCH))) {
+        cmd.add(file.getAbsolutePath());
+      }
+
+      try {
+        final ProcessBuilder pb = new ProcessBuilder(cmd);
+
+        pb.redirectErrorStream(true);
+
+        final Process        pr = pb.start();
+        final BufferedReader br = new BufferedReader(new InputStreamReader(pr.getInputStream(), "UTF-8"));
+
+        try {
+          String current = null;
+          String line;
+
+          while ((line = br.readLine()) != null) {
+            if (line.startsWith("File size of ")) {
+              final int is = line.lastIndexOf(" is ");
+
+              current = (is > 13) ? line.substring(13, is) : null;
+
+              continue;
+            }
+
+            final Matcher m = FIRST.matcher(line);
+
+            if ((current != null) && m.find()) {
+              /*
+               * Data not yet written has no place on disk
+               */
+              if (!line.contains("unknown_loc")) {
+                extents.put(current, Long.valueOf(m.group(1)));
+              }
+
+              current = null;
+            }
+          }
+        } finally {
+          br.close();
+        }
+
+        pr.waitFor();
+      } catch (IOException e) {
+        log.warn("! WARNING: Cannot run filefrag: " + e.getMessage() + ". Ordering by inode.");
+
+        noFilefrag = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        break;
+      }
+    }
+
+    return extents;
+  }
+}
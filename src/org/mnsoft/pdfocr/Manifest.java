@@ -0,0 +1,202 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Reads a manifest for batch runs: a list of entries, each
+ * a set of named fields, e.g. src, dest, title, author.<p>
+ *
+ * A manifest is either
+ * <ul>
+ * <li>a JSON array of objects,</li>
+ * <li>JSON lines, one object per line, or</li>
+ * <li>CSV with a header line naming the fields. Fields may
+ *     be quoted with double quotes; a double quote inside a
+ *     quoted field is written twice.</li>
+ * </ul>
+ * Empty lines, and in CSV lines starting with #, are ignored.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Manifest {
+  /**
+   * Utility class.
+   */
+  private Manifest() {
+  }
+
+
+  /**
+   * Read a manifest.
+   *
+   * @param file The manifest file
+   * @return The entries
+   * @throws IOException If the file cannot be read or is malformed
+   */
+  public static List<Map<String, String>> read(File file) throws IOException {
+    final String text    = FileUtils.readFileToString(file, "UTF-8");
+    final String trimmed = text.trim();
+
+    try {
+      if (trimmed.startsWith("[")) {
+        return fromJson(Json.parse(trimmed), file);
+      }
+
+      if (trimmed.startsWith("{")) {
+        final List<Object> objects = new ArrayList<Object>();
+        final String[]     lines   = text.split("\r?\n");
+
+        for (int i = 0; i < lines.length; i++) {
+          if (lines[i].trim().length() > 0) {
+            objects.add(Json.parse(lines[i]));
+          }
+        }
+
+        return fromJson(objects, file);
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Malformed manifest " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+
+    return fromCsv(text, file);
+  }
+
+
+  /**
+   * Get the entries from a parsed JSON array.
+   *
+   * @param json The array
+   * @param file The manifest file, for error messages
+   * @return The entries
+   * @throws IOException If the array does not hold objects
+   */
+  @SuppressWarnings("rawtypes")
+  private static List<Map<String, String>> fromJson(Object json, File file) throws IOException {
+    final List<Map<String, String>> entries = new ArrayList<Map<String, String>>();
+
+    if (!(json instanceof List)) {
+      throw new IOException("Malformed manifest " + file.getAbsolutePath() + ": not an array");
+    }
+
+    for (final Iterator it = ((List) json).iterator(); it.hasNext();) {
+      final Object object = it.next();
+
+      if (!(object instanceof Map)) {
+        throw new IOException("Malformed manifest " + file.getAbsolutePath() + ": entry " + (entries.size() + 1) + " is not an object");
+      }
+
+      final Map<String, String> entry = new LinkedHashMap<String, String>();
+
+      for (final Iterator fields = ((Map) object).entrySet().iterator(); fields.hasNext();) {
+        final Map.Entry field = (Map.Entry) fields.next();
+
+        if (field.getValue() != null) {
+          entry.put(String.valueOf(field.getKey()), String.valueOf(field.getValue()));
+        }
+      }
+
+      entries.add(entry);
+    }
+
+    return entries;
+  }
+
+
+  /**
+   * Get the entries from CSV text.
+   *
+   * @param text The text
+   * @param file The manifest file, for error messages
+   * @return The entries
+   * @throws IOException If there is no header line
+   */
+  private static List<Map<String, String>> fromCsv(String text, File file) throws IOException {
+    final List<Map<String, String>> entries = new ArrayList<Map<String, String>>();
+    final String[]                  lines   = text.split("\r?\n");
+    List<String>                    header  = null;
+
+    for (int i = 0; i < lines.length; i++) {
+      if ((lines[i].trim().length() == 0) || lines[i].startsWith("#")) {
+        continue;
+      }
+
+      final List<String> fields = splitCsv(lines[i]);
+
+      if (header == null) {
+        header = fields;
+
+        continue;
+      }
+
+      final Map<String, String> entry = new LinkedHashMap<String, String>();
+
+      for (int j = 0; (j < fields.size()) && (j < header.size()); j++) {
+        entry.put(header.get(j).trim(), fields.get(j));
+      }
+
+      entries.add(entry);
+    }
+
+    if (header == null) {
+      throw new IOException("Malformed manifest " + file.getAbsolutePath() + ": no header line");
+    }
+
+    return entries;
+  }
+
+
+  /**
+   * Split a CSV line into its fields.
+   *
+   * @param line The line
+   * @return The fields
+   */
+  static List<String> splitCsv(String line) {
+    final List<String> fields = new ArrayList<String>();
+    final StringBuffer field  = new StringBuffer();
+    boolean            quoted = false;
+
+    for (int i = 0; i < line.length(); i++) {
+      final char c = line.charAt(i);
+
+      if (quoted) {
+        if (c != '"') {
+          field.append(c);
+        } else if (((i + 1) < line.length()) && (line.charAt(i + 1) == '"')) {
+          field.append('"');
+          i++;
+        } else {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+
+    fields.add(field.toString());
+
+    return fields;
+  }
+}
@@ -0,0 +1,287 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfWriter;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+
+/**
+ * Checks that the merge runs in bounded memory. Generates
+ * an original and an engine output of growing page counts,
+ * merges them as the wrapper does, and measures the peak of
+ * the heap the merge keeps alive, by collecting the garbage
+ * every {@link #SAMPLE} ms while it runs:
+ *
+ * <pre>
+ *   java -Xmx64m org.mnsoft.pdfocr.MergeHeapProbe [MERGEFLUSH=50] [10 100 1000 10000]
+ * </pre>
+ *
+ * The check fails, with exit code 1, if the peak of a larger
+ * page count exceeds that of the smallest one by more than
+ * {@link #SLACK} and {@link #PER_PAGE} bytes per additional
+ * page. The bytes per page are for what every PDF writer has
+ * to keep until the end, the places of the objects written
+ * and the references to the pages; a merge that keeps the
+ * pages themselves takes several kilobytes per page. With a
+ * small -Xmx, such a merge runs out of memory instead.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class MergeHeapProbe {
+  /**
+   * Default page counts.
+   */
+  private static final int[]  PAGES    = { 10, 100, 1000, 10000 };
+
+  /**
+   * Time between two measurements of the heap, in milliseconds.
+   */
+  private static final long   SAMPLE   = 100;
+
+  /**
+   * Heap a merge may keep per page, in bytes.
+   */
+  private static final long   PER_PAGE = 1024;
+
+  /**
+   * Relative growth of the peak allowed besides that, for
+   * the measurements being taken at different times.
+   */
+  private static final double SLACK    = 0.25;
+
+
+  /**
+   * @param args [parameters for the wrapper] [page counts]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final StringBuffer params = new StringBuffer("cfg=none mergefiles=true");
+    int[]              pages  = PAGES;
+    int                n      = 0;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].indexOf('=') > 0) {
+        params.append(" ").append(args[i]);
+      } else {
+        n++;
+      }
+    }
+
+    if (n > 0) {
+      pages = new int[n];
+      n     = 0;
+
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].indexOf('=') < 0) {
+          pages[n++] = StringUtility.StringToInteger(args[i], 10);
+        }
+      }
+    }
+
+    final Wrapper wrapper = new Wrapper(".");
+    wrapper.init(params.toString().split(" "));
+
+    final File dir = new File(System.getProperty("java.io.tmpdir"), "mergeprobe" + System.currentTimeMillis());
+    FileUtils.forceMkdir(dir);
+
+    System.out.println("pages\tms\tpeak MB\tbytes");
+
+    final long[] peaks = new long[pages.length];
+
+    try {
+      for (int p = 0; p < pages.length; p++) {
+        final File fg  = new File(dir, "fg.pdf");
+        final File bg  = new File(dir, "bg.pdf");
+        final File out = new File(dir, "out.pdf");
+
+        generate(fg, pages[p], 1);
+        generate(bg, pages[p], 40);
+
+        final FileRecord record  = new FileRecord(fg);
+        final Sampler    sampler = new Sampler();
+        final long       start   = System.currentTimeMillis();
+
+        sampler.start();
+
+        final boolean merged = wrapper.mergePDFs(fg, bg, null, out, null, null, null, null, "ocr", record);
+
+        peaks[p] = sampler.finish();
+
+        if (!merged) {
+          System.err.println("Merging " + pages[p] + " pages failed: " + record.error);
+          System.exit(1);
+        }
+
+        final long millis = System.currentTimeMillis() - start;
+
+        System.out.println(pages[p] + "\t" + millis + "\t" + (peaks[p] / (1024 * 1024)) + "\t" + out.length());
+
+        FileUtils.deleteQuietly(fg);
+        FileUtils.deleteQuietly(bg);
+        FileUtils.deleteQuietly(out);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+
+    boolean bounded = true;
+
+    for (int p = 1; p < pages.length; p++) {
+      final long allowed = (long) (peaks[0] * (1 + SLACK)) + ((pages[p] - pages[0]) * PER_PAGE);
+
+      if (peaks[p] > allowed) {
+        System.err.println("! The merge of " + pages[p] + " pages kept " + (peaks[p] / 1024) + " KB, more than the " + (allowed / 1024) + " KB allowed after " + (peaks[0] / 1024) + " KB for " + pages[0] + " pages.");
+
+        bounded = false;
+      }
+    }
+
+    if (!bounded) {
+      System.exit(1);
+    }
+
+    System.out.println("+ The heap kept by the merge does not grow with the number of pages.");
+  }
+
+
+  /**
+   * Generate a PDF with a number of lines of text on each page.
+   * The engine output gets more lines than the original, so that
+   * its pages are not skipped for being too small (see THRESHOLD).
+   *
+   * @param file The file to write
+   * @param pages The number of pages
+   * @param lines The number of lines per page
+   * @throws Exception
+   */
+  private static void generate(File file, int pages, int lines) throws Exception {
+    final Document     document = new Document(new Rectangle(595, 842));
+    final OutputStream os       = new FileOutputStream(file);
+
+    try {
+      final PdfWriter writer = PdfWriter.getInstance(document, os);
+      final BaseFont  font   = BaseFont.createFont(BaseFont.HELVETICA, BaseFont.WINANSI, BaseFont.NOT_EMBEDDED);
+
+      document.open();
+
+      for (int i = 0; i < pages; i++) {
+        if (i > 0) {
+          document.newPage();
+        }
+
+        final PdfContentByte cb = writer.getDirectContent();
+
+        cb.beginText();
+        cb.setFontAndSize(font, 10);
+
+        for (int l = 0; l < lines; l++) {
+          cb.setTextMatrix(40, 800 - (l * 18));
+          cb.showText("Page " + (i + 1) + ", line " + (l + 1) + ": the quick brown fox jumps over the lazy dog.");
+        }
+
+        cb.endText();
+      }
+
+      document.close();
+    } finally {
+      os.close();
+    }
+  }
+
+
+  /**
+   * Measures the peak of the heap that stays after the
+   * garbage is collected, while a merge runs.
+   */
+  private static class Sampler extends Thread {
+    /**
+     * The peak, in bytes.
+     */
+    private long             peak = 0;
+
+    /**
+     * Whether the merge has ended.
+     */
+    private volatile boolean done = false;
+
+
+    /**
+     * Constructor.
+     */
+    Sampler() {
+      setDaemon(true);
+    }
+
+
+    public void run() {
+      while (!this.done) {
+        measure();
+
+        try {
+          Thread.sleep(SAMPLE);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+
+    /**
+     * Collect the garbage and take the heap that is left.
+     * It is taken as the heap pools had it right after the
+     * collection, since the merge goes on allocating.
+     */
+    private synchronized void measure() {
+      System.gc();
+
+      long used = 0;
+
+      for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        final MemoryUsage usage = (pool.getType() == MemoryType.HEAP) ? pool.getCollectionUsage() : null;
+
+        if (usage != null) {
+          used += usage.getUsed();
+        }
+      }
+
+      this.peak = Math.max(this.peak, used);
+    }
+
+
+    /**
+     * Stop measuring.
+     *
+     * @return The peak, in bytes.
+     * @throws InterruptedException
+     */
+    long finish() throws InterruptedException {
+      this.done = true;
+
+      join();
+
+      synchronized (this) {
+        return this.peak;
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Simple process wide metrics.<p>
+ *
+ * Gauges and counters are kept by name. Every change is
+ * logged to the logger <code>org.mnsoft.pdfocr.Metrics</code>
+ * at debug level, so it can be routed to a separate appender
+ * in log4j.properties; {@link #dump()} logs all values at info
+ * level.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Metrics {
+  /**
+   * Logger for this class
+   */
+  private static final Logger              log    = Logger.getLogger(Metrics.class);
+
+  /**
+   * The values, by name.
+   */
+  private static final Map<String, Double> values = new TreeMap<String, Double>();
+
+
+  /**
+   * Set a gauge.
+   *
+   * @param name The metric name
+   * @param value The value
+   */
+  public static void set(String name, double value) {
+    synchronized (values) {
+      values.put(name, Double.valueOf(value));
+    }
+
+    log.debug(name + "=" + format(value));
+  }
+
+
+  /**
+   * Add to a counter.
+   *
+   * @param name The metric name
+   * @param delta The amount to add
+   * @return The new value of the counter
+   */
+  public static double add(String name, double delta) {
+    final double value;
+
+    synchronized (values) {
+      final Double old = values.get(name);
+      value = ((old == null) ? 0 : old.doubleValue()) + delta;
+      values.put(name, Double.valueOf(value));
+    }
+
+    log.debug(name + "=" + format(value));
+
+    return value;
+  }
+
+
+  /**
+   * Get a metric.
+   *
+   * @param name The metric name
+   * @return The value, 0 if not set.
+   */
+  public static double get(String name) {
+    synchronized (values) {
+      final Double value = values.get(name);
+
+      return (value == null) ? 0 : value.doubleValue();
+    }
+  }
+
+
+  /**
+   * Get a copy of all metrics.
+   *
+   * @return All metrics, sorted by name.
+   */
+  public static Map<String, Double> snapshot() {
+    synchronized (values) {
+      return new TreeMap<String, Double>(values);
+    }
+  }
+
+
+  /**
+   * Log all metrics at info level.
+   */
+  public static void dump() {
+    for (final Iterator<Map.Entry<String, Double>> it = snapshot().entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, Double> entry = it.next();
+      log.info(entry.getKey() + "=" + format(entry.getValue().doubleValue()));
+    }
+  }
+
+
+  /**
+   * Format a value, without decimals if it has none.
+   *
+   * @param value The value
+   * @return The formatted value
+   */
+  private static String format(double value) {
+    if (value == Math.rint(value)) {
+      return Long.toString((long) value);
+    }
+
+    return Double.toString(value);
+  }
+}
@@ -0,0 +1,72 @@
+package org.mnsoft.pdfocr;
+
+
+/**
+ * Options for a single file submitted to the {@link OcrService}.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class OcrOptions {
+  /**
+   * The name of the file, used as its key in the run report
+   * and full text index; null for the name of the spool file.
+   */
+  public String  name    = null;
+
+  /**
+   * Whether to return the recognized text of the pages.
+   */
+  public boolean text    = false;
+
+  /**
+   * Time after which the file is given up, in milliseconds, counted
+   * from the submission; 0 to wait as long as it takes.
+   */
+  public long    timeout = 0;
+
+
+  /**
+   * Set the name of the file.
+   *
+   * @param name The name
+   * @return The options
+   */
+  public OcrOptions name(String name) {
+    this.name = name;
+
+    return this;
+  }
+
+
+  /**
+   * Set whether to return the recognized text.
+   *
+   * @param text Whether to return the text
+   * @return The options
+   */
+  public OcrOptions text(boolean text) {
+    this.text = text;
+
+    return this;
+  }
+
+
+  /**
+   * Set the time after which the file is given up.
+   *
+   * @param timeout The timeout in milliseconds, 0 for none
+   * @return The options
+   */
+  public OcrOptions timeout(long timeout) {
+    this.timeout = timeout;
+
+    return this;
+  }
+}
@@ -0,0 +1,96 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.List;
+
+
+/**
+ * The result of a file submitted to the {@link OcrService}:
+ * the record of what happened to it, and the resulting PDF.<p>
+ *
+ * The PDF is a temporary file owned by the result. Read it,
+ * or move it away, and then {@link #close()} the result to
+ * delete it.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class OcrResult implements Closeable {
+  /**
+   * What happened to the file: status, stage times, pages, sizes.
+   */
+  public final FileRecord record;
+
+  /**
+   * The resulting PDF. If the file was skipped, e.g. because
+   * it had been run through the engine already, this is the
+   * file as it was submitted.
+   */
+  public final File       output;
+
+
+  /**
+   * Constructor.
+   *
+   * @param record The record of what happened to the file
+   * @param output The resulting PDF
+   */
+  OcrResult(FileRecord record, File output) {
+    this.record = record;
+    this.output = output;
+  }
+
+
+  /**
+   * Check whether the file was run through the engine.
+   *
+   * @return true if the output has the OCR text.
+   */
+  public boolean isDone() {
+    return FileRecord.DONE.equals(this.record.status);
+  }
+
+
+  /**
+   * Get the recognized text of the pages, if
+   * it was asked for with {@link OcrOptions#text}.
+   *
+   * @return The text of the pages, or null.
+   */
+  public List<String> getText() {
+    return this.record.text;
+  }
+
+
+  /**
+   * Open the resulting PDF.
+   *
+   * @return A stream on the resulting PDF
+   * @throws IOException
+   */
+  public InputStream openStream() throws IOException {
+    return new FileInputStream(this.output);
+  }
+
+
+  /**
+   * Delete the resulting PDF, and its text sidecar if one was written.
+   */
+  public void close() {
+    FileUtils.deleteQuietly(this.output);
+    FileUtils.deleteQuietly(new File(this.output.getAbsolutePath() + ".txt"));
+  }
+}
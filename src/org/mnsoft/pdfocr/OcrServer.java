@@ -0,0 +1,640 @@
+package org.mnsoft.pdfocr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+
+/**
+ * A small HTTP server in front of the {@link OcrService}, so
+ * that PDFs can be OCR'd without access to the shared tree:
+ *
+ * <pre>
+ *   POST   /ocr              the PDF as body; answers with the result
+ *   POST   /ocr?async=true   the PDF as body; answers 202 with a job id
+ *   GET    /jobs/&lt;id&gt;        the state of a job, as JSON
+ *   GET    /jobs/&lt;id&gt;/result the result of a finished job
+ *   DELETE /jobs/&lt;id&gt;        cancel a job, or drop its result
+ *   GET    /health           free places, as JSON
+ * </pre>
+ *
+ * The upload is streamed to the temporary directory and the
+ * result is streamed back; neither is held in memory. Uploads
+ * larger than MAXUPLOAD megabytes are refused with 413. If the
+ * service is full, uploads are refused with 503 right away, so
+ * that the number of files in the server is bounded by the engine
+ * pool and its queue. Results of asynchronous jobs are kept for
+ * JOBTTL seconds. Connections are kept alive between requests.<p>
+ *
+ * Start it with
+ *
+ * <pre>
+ *   java org.mnsoft.pdfocr.OcrServer [SERVERPORT=8080] [cfg=pdfocr.properties]
+ * </pre>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class OcrServer {
+  /**
+   * Logger for this class
+   */
+  private static final Logger    log       = Logger.getLogger(OcrServer.class);
+
+  /**
+   * The service doing the work.
+   */
+  private final OcrService       service;
+
+  /**
+   * The HTTP server.
+   */
+  private final HttpServer       server;
+
+  /**
+   * The asynchronous jobs, by id.
+   */
+  private final Map<String, Job> jobs      = new ConcurrentHashMap<String, Job>();
+
+  /**
+   * Largest upload, in bytes.
+   */
+  private final long             maxUpload;
+
+  /**
+   * Time to keep the results of asynchronous jobs, in milliseconds.
+   */
+  private final long             jobTtl;
+
+
+  /**
+   * Constructor. Starts the server.
+   *
+   * @param params The parameters, as on the command line of the wrapper
+   * @throws IOException
+   */
+  public OcrServer(String[] params) throws IOException {
+    final Wrapper config = new Wrapper(".");
+    config.init(params);
+
+    final int port    = StringUtility.StringToInteger(config.getParameter("SERVERPORT"), 8080);
+    final int threads = StringUtility.StringToInteger(config.getParameter("SERVERTHREADS"), 16);
+
+    this.maxUpload = StringUtility.StringToInteger(config.getParameter("MAXUPLOAD"), 512) * 1024L * 1024L;
+    this.jobTtl    = StringUtility.StringToInteger(config.getParameter("JOBTTL"), 3600) * 1000L;
+    this.service   = new OcrService(params, 0, StringUtility.StringToInteger(config.getParameter("SERVERQUEUE"), 0));
+
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.server.setExecutor(Executors.newFixedThreadPool(threads, Threads.daemon("pdfocr-http")));
+
+    this.server.createContext("/ocr", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          handleOcr(exchange);
+        }
+      });
+    this.server.createContext("/jobs/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          handleJob(exchange);
+        }
+      });
+    this.server.createContext("/health", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          final Map<String, Object> health = new LinkedHashMap<String, Object>();
+
+          health.put("free", Integer.valueOf(service.getFree()));
+          health.put("jobs", Integer.valueOf(jobs.size()));
+
+          sendJson(exchange, 200, health);
+        }
+      });
+
+    this.server.start();
+
+    log.info("+ OCR server listening on port " + port + ".");
+  }
+
+
+  /**
+   * Stop the server, and the service behind it.
+   */
+  public void stop() {
+    this.server.stop(1);
+    this.service.close();
+  }
+
+
+  /**
+   * Handle an upload.
+   *
+   * @param exchange The exchange
+   * @throws IOException
+   */
+  private void handleOcr(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, "Use POST");
+
+        return;
+      }
+
+      final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+      if ((length != null) && (getLength(length) > this.maxUpload)) {
+        sendError(exchange, 413, "Upload larger than " + this.maxUpload + " bytes");
+
+        return;
+      }
+
+      final String                       query  = exchange.getRequestURI().getQuery();
+      final boolean                      async  = (query != null) && (query.indexOf("async=true") >= 0);
+      final OcrOptions                   option = new OcrOptions().name(getName(query)).text(false);
+      final CompletableFuture<OcrResult> future;
+
+      try {
+        future = this.service.trySubmit(new LimitedInputStream(exchange.getRequestBody(), this.maxUpload), option);
+      } catch (UploadTooLargeException e) {
+        sendError(exchange, 413, e.getMessage());
+
+        return;
+      }
+
+      if (future == null) {
+        exchange.getResponseHeaders().set("Retry-After", "10");
+        sendError(exchange, 503, "Busy");
+
+        return;
+      }
+
+      if (async) {
+        expireJobs();
+
+        final Job job = new Job(future);
+
+        this.jobs.put(job.id, job);
+
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+        sendJson(exchange, 202, job.toMap());
+
+        return;
+      }
+
+      final OcrResult result;
+
+      try {
+        result = future.get();
+      } catch (InterruptedException e) {
+        future.cancel(true);
+        Thread.currentThread().interrupt();
+        sendError(exchange, 503, "Interrupted");
+
+        return;
+      } catch (ExecutionException e) {
+        sendError(exchange, 500, String.valueOf(e.getCause()));
+
+        return;
+      }
+
+      sendResult(exchange, result, null);
+    } finally {
+      exchange.close();
+    }
+  }
+
+
+  /**
+   * Handle a request on a job.
+   *
+   * @param exchange The exchange
+   * @throws IOException
+   */
+  private void handleJob(HttpExchange exchange) throws IOException {
+    try {
+      expireJobs();
+
+      final String   path   = exchange.getRequestURI().getPath().substring("/jobs/".length());
+      final String[] parts  = path.split("/");
+      final Job      job    = this.jobs.get(parts[0]);
+      final boolean  result = (parts.length > 1) && "result".equals(parts[1]);
+
+      if (job == null) {
+        sendError(exchange, 404, "No such job");
+
+        return;
+      }
+
+      if ("DELETE".equals(exchange.getRequestMethod())) {
+        this.jobs.remove(job.id);
+        job.discard();
+
+        sendJson(exchange, 200, job.toMap());
+
+        return;
+      }
+
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, "Use GET or DELETE");
+
+        return;
+      }
+
+      if (!result) {
+        sendJson(exchange, 200, job.toMap());
+
+        return;
+      }
+
+      if (!job.future.isDone()) {
+        sendError(exchange, 409, "Not done yet");
+
+        return;
+      }
+
+      final OcrResult r = job.getResult();
+
+      if (r == null) {
+        sendJson(exchange, 500, job.toMap());
+
+        return;
+      }
+
+      /*
+       * The result is handed out once
+       */
+      this.jobs.remove(job.id);
+
+      sendResult(exchange, r, job.toMap());
+    } finally {
+      exchange.close();
+    }
+  }
+
+
+  /**
+   * Send a result, and delete it. If working on the
+   * file failed, the state is sent instead, with 500.
+   *
+   * @param exchange The exchange
+   * @param result The result
+   * @param state The state of the job, or null to make it up from the result
+   * @throws IOException
+   */
+  private void sendResult(HttpExchange exchange, OcrResult result, Map<String, Object> state) throws IOException {
+    try {
+      if (FileRecord.FAILED.equals(result.record.status)) {
+        Map<String, Object> body = state;
+
+        if (body == null) {
+          body = new LinkedHashMap<String, Object>();
+          body.put("status", result.record.status);
+          body.put("reason", result.record.reason);
+          body.put("error", result.record.error);
+        }
+
+        sendJson(exchange, 500, body);
+
+        return;
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+      exchange.getResponseHeaders().set("X-OCR-Status", String.valueOf(result.record.status));
+      exchange.getResponseHeaders().set("X-OCR-Pages", String.valueOf(result.record.pages));
+
+      exchange.sendResponseHeaders(200, result.output.length());
+
+      final InputStream  in  = result.openStream();
+      final OutputStream out = exchange.getResponseBody();
+
+      try {
+        IOUtils.copyLarge(in, out);
+      } finally {
+        in.close();
+        out.close();
+      }
+    } finally {
+      result.close();
+    }
+  }
+
+
+  /**
+   * Send a JSON answer.
+   *
+   * @param exchange The exchange
+   * @param status The HTTP status
+   * @param body The body
+   * @throws IOException
+   */
+  private void sendJson(HttpExchange exchange, int status, Map<String, Object> body) throws IOException {
+    final byte[] bytes = (Json.toJson(body) + "\n").getBytes("UTF-8");
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+
+    final OutputStream out = exchange.getResponseBody();
+
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+
+  /**
+   * Send an error. What is left of the request body is
+   * read first, so that the connection can be kept alive.
+   *
+   * @param exchange The exchange
+   * @param status The HTTP status
+   * @param message The message
+   * @throws IOException
+   */
+  private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    final Map<String, Object> body = new LinkedHashMap<String, Object>();
+
+    body.put("error", message);
+
+    try {
+      final InputStream in = exchange.getRequestBody();
+
+      while (in.skip(65536) > 0) {
+        // skip
+      }
+    } catch (IOException e) {
+      // the connection is closed anyway
+    }
+
+    sendJson(exchange, status, body);
+  }
+
+
+  /**
+   * Get the name of the upload from the query, name=...
+   *
+   * @param query The query
+   * @return The name, or null.
+   */
+  private static String getName(String query) {
+    if (query == null) {
+      return null;
+    }
+
+    final String[] pairs = query.split("&");
+
+    for (int i = 0; i < pairs.length; i++) {
+      if (pairs[i].startsWith("name=")) {
+        try {
+          return URLDecoder.decode(pairs[i].substring(5), "UTF-8");
+        } catch (IOException e) {
+          return null;
+        }
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Parse a Content-Length header.
+   *
+   * @param length The header
+   * @return The length, or 0 if it cannot be parsed.
+   */
+  private static long getLength(String length) {
+    try {
+      return Long.parseLong(length.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+
+  /**
+   * Drop the results of jobs that were not fetched in time.
+   */
+  private void expireJobs() {
+    final long now = System.currentTimeMillis();
+
+    for (final Iterator<Job> it = this.jobs.values().iterator(); it.hasNext();) {
+      final Job job = it.next();
+
+      if (job.future.isDone() && ((job.finished + this.jobTtl) < now)) {
+        it.remove();
+        job.discard();
+      }
+    }
+  }
+
+
+  /**
+   * An asynchronous job.
+   */
+  private static class Job {
+    /**
+     * The job id.
+     */
+    final String                       id       = UUID.randomUUID().toString();
+
+    /**
+     * The future result.
+     */
+    final CompletableFuture<OcrResult> future;
+
+    /**
+     * When the job was submitted.
+     */
+    final long                         created  = System.currentTimeMillis();
+
+    /**
+     * When the job finished.
+     */
+    volatile long                      finished = Long.MAX_VALUE;
+
+
+    /**
+     * Constructor.
+     *
+     * @param future The future result
+     */
+    Job(CompletableFuture<OcrResult> future) {
+      this.future = future;
+
+      future.whenComplete(new BiConsumer<OcrResult, Throwable>() {
+          public void accept(OcrResult r, Throwable e) {
+            finished = System.currentTimeMillis();
+          }
+        });
+    }
+
+
+    /**
+     * Get the result, if the job is done and did not fail.
+     *
+     * @return The result, or null.
+     */
+    OcrResult getResult() {
+      try {
+        return this.future.isDone() ? this.future.get() : null;
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+
+    /**
+     * Cancel the job, or delete its result.
+     */
+    void discard() {
+      if (!this.future.cancel(true)) {
+        final OcrResult result = getResult();
+
+        if (result != null) {
+          result.close();
+        }
+      }
+    }
+
+
+    /**
+     * Get the state of the job.
+     *
+     * @return The state, for JSON
+     */
+    Map<String, Object> toMap() {
+      final Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+      m.put("id", this.id);
+      m.put("created", Long.valueOf(this.created));
+
+      if (!this.future.isDone()) {
+        m.put("state", "pending");
+
+        return m;
+      }
+
+      try {
+        final OcrResult result = this.future.get();
+
+        m.put("state", "finished");
+        m.put("status", result.record.status);
+        m.put("reason", result.record.reason);
+        m.put("pages", Integer.valueOf(result.record.pages));
+        m.put("bytes", Long.valueOf(result.output.length()));
+        m.put("result", "/jobs/" + this.id + "/result");
+      } catch (CancellationException e) {
+        m.put("state", "cancelled");
+      } catch (Exception e) {
+        m.put("state", "failed");
+        m.put("error", String.valueOf((e.getCause() == null) ? e : e.getCause()));
+      }
+
+      return m;
+    }
+  }
+
+
+  /**
+   * Thrown when an upload is larger than allowed.
+   */
+  private static class UploadTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+
+    UploadTooLargeException(String message) {
+      super(message);
+    }
+  }
+
+
+  /**
+   * A stream that fails once more than a given number of bytes is read.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    /**
+     * Bytes that may still be read.
+     */
+    private long left;
+
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+
+      this.left = limit;
+    }
+
+
+    @Override public int read() throws IOException {
+      final int b = super.read();
+
+      if (b >= 0) {
+        count(1);
+      }
+
+      return b;
+    }
+
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      final int n = super.read(b, off, len);
+
+      if (n > 0) {
+        count(n);
+      }
+
+      return n;
+    }
+
+
+    private void count(int n) throws UploadTooLargeException {
+      this.left -= n;
+
+      if (this.left < 0) {
+        throw new UploadTooLargeException("Upload too large");
+      }
+    }
+  }
+
+
+  /**
+   * @param args Parameters, as for the wrapper
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final OcrServer server = new OcrServer(args);
+
+    Runtime.getRuntime().addShutdownHook(new Thread("pdfocr-server-shutdown") {
+        @Override public void run() {
+          server.stop();
+        }
+      });
+  }
+}
@@ -0,0 +1,494 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+
+/**
+ * Library API to run files through the wrapper from another
+ * program, e.g. an ingestion service, without a polling folder:
+ *
+ * <pre>
+ *   OcrService service = new OcrService(new String[] { "cfg=pdfocr.properties" }, 4, 16);
+ *
+ *   service.submit(upload, new OcrOptions().name("invoice.pdf").text(true))
+ *     .thenAccept(result -&gt; ...);
+ *
+ *   service.close();
+ * </pre>
+ *
+ * Files go through the same engine call, merge and following
+ * stages as in a scan, and are recorded in the run report.<p>
+ *
+ * The engine works on files, so a submitted stream is spooled
+ * to the temporary directory first; a submitted path is copied
+ * there, so that the caller's file is left alone. The result is
+ * a temporary file as well, see {@link OcrResult}.<p>
+ *
+ * At most a given number of files is worked on at a time, and at
+ * most a given number more wait in the queue. When the service is
+ * full, {@link #submit(InputStream, OcrOptions)} waits for room
+ * before it reads the stream, so uploads are slowed down rather
+ * than piling up; {@link #trySubmit(InputStream, OcrOptions)}
+ * returns null instead.<p>
+ *
+ * Cancelling the future, or its timeout running out, takes the
+ * file out of the queue, or stops the engine if it is running
+ * already. Its place is given free once it is out of the queue,
+ * or once the worker has stopped and cleaned up.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class OcrService implements Closeable {
+  /**
+   * Logger for this class
+   */
+  private static final Logger            log     = Logger.getLogger(OcrService.class);
+
+  /**
+   * The wrapper doing the work.
+   */
+  private final Wrapper                  wrapper;
+
+  /**
+   * The threads working on files.
+   */
+  private final ThreadPoolExecutor       pool;
+
+  /**
+   * The timer for timeouts.
+   */
+  private final ScheduledExecutorService timer;
+
+  /**
+   * Places for files being worked on or waiting.
+   */
+  private final Semaphore                slots;
+
+  /**
+   * Number of files submitted, for the names of the spool files.
+   */
+  private final AtomicInteger            counter = new AtomicInteger();
+
+  /**
+   * Set once the service is closed.
+   */
+  private volatile boolean               closed  = false;
+
+
+  /**
+   * Constructor. Runs as many files at a time as
+   * MAXJOBS allows, with as many again waiting.
+   *
+   * @param params The parameters, as on the command line of the wrapper, e.g. cfg=pdfocr.properties
+   * @throws IOException
+   */
+  public OcrService(String[] params) throws IOException {
+    this(params, 0, 0);
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param params The parameters, as on the command line of the wrapper, e.g. cfg=pdfocr.properties
+   * @param threads The number of files to work on at a time; 0 for MAXJOBS
+   * @param queue The number of files that may wait; 0 for as many as there are threads
+   * @throws IOException
+   */
+  public OcrService(String[] params, int threads, int queue) throws IOException {
+    this.wrapper = new Wrapper(".");
+    this.wrapper.init(params);
+    this.wrapper.start();
+
+    final int n = (threads > 0) ? threads : this.wrapper.getMaxJobs();
+    final int q = (queue > 0) ? queue : n;
+
+    /*
+     * The places bound the number of files; the queue has room
+     * for all of them, since a place is given back just before
+     * its worker is free to take the next file
+     */
+    this.slots = new Semaphore(n + q);
+    this.pool  = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(n + q), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "pdfocr-service");
+            t.setDaemon(true);
+
+            return t;
+          }
+        });
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "pdfocr-service-timer");
+            t.setDaemon(true);
+
+            return t;
+          }
+        });
+
+    log.info("+ OCR service working on " + n + " files at a time, with " + q + " more waiting.");
+  }
+
+
+  /**
+   * Submit a PDF. It is copied first, so the file itself
+   * is not changed. Waits while the service is full.
+   *
+   * @param path The PDF
+   * @param options The options
+   * @return The future result
+   * @throws IOException If the file cannot be copied
+   * @throws InterruptedException If interrupted while waiting for room
+   */
+  public CompletableFuture<OcrResult> submit(Path path, OcrOptions options) throws IOException, InterruptedException {
+    checkOpen();
+
+    this.slots.acquire();
+
+    File spool = null;
+
+    try {
+      spool = createSpoolFile();
+
+      Files.copy(path, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      FileUtils.deleteQuietly(spool);
+
+      this.slots.release();
+
+      throw e;
+    }
+
+    return enqueue(spool, (options.name == null) ? path.getFileName().toString() : options.name, options);
+  }
+
+
+  /**
+   * Submit a PDF as a stream. Waits while the service is
+   * full, before reading the stream. The stream is read to
+   * its end, but not closed.
+   *
+   * @param in The PDF
+   * @param options The options
+   * @return The future result
+   * @throws IOException If the stream cannot be read
+   * @throws InterruptedException If interrupted while waiting for room
+   */
+  public CompletableFuture<OcrResult> submit(InputStream in, OcrOptions options) throws IOException, InterruptedException {
+    checkOpen();
+
+    this.slots.acquire();
+
+    return spoolAndEnqueue(in, options);
+  }
+
+
+  /**
+   * Submit a PDF as a stream, if there is room.
+   *
+   * @param in The PDF
+   * @param options The options
+   * @return The future result, or null if the service is full; the stream is not read then.
+   * @throws IOException If the stream cannot be read
+   */
+  public CompletableFuture<OcrResult> trySubmit(InputStream in, OcrOptions options) throws IOException {
+    checkOpen();
+
+    if (!this.slots.tryAcquire()) {
+      return null;
+    }
+
+    return spoolAndEnqueue(in, options);
+  }
+
+
+  /**
+   * Get the number of files that can be submitted
+   * right now without waiting.
+   *
+   * @return The number of free places
+   */
+  public int getFree() {
+    return this.slots.availablePermits();
+  }
+
+
+  /**
+   * Stop taking files, wait for the files submitted
+   * so far, and write the run report and index.
+   */
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+
+    this.closed = true;
+
+    this.pool.shutdown();
+
+    try {
+      this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    this.timer.shutdownNow();
+
+    this.wrapper.stop();
+  }
+
+
+  /**
+   * Spool a stream to a file and queue it. The
+   * caller holds a place, which is given back if
+   * spooling fails.
+   *
+   * @param in The PDF
+   * @param options The options
+   * @return The future result
+   * @throws IOException
+   */
+  private CompletableFuture<OcrResult> spoolAndEnqueue(InputStream in, OcrOptions options) throws IOException {
+    File spool = null;
+
+    try {
+      spool = createSpoolFile();
+
+      final OutputStream os = new FileOutputStream(spool);
+
+      try {
+        IOUtils.copyLarge(in, os);
+      } finally {
+        os.close();
+      }
+    } catch (IOException e) {
+      FileUtils.deleteQuietly(spool);
+
+      this.slots.release();
+
+      throw e;
+    }
+
+    return enqueue(spool, (options.name == null) ? spool.getName() : options.name, options);
+  }
+
+
+  /**
+   * Queue a spooled file. The caller holds a place, which
+   * is given back once the file is out of the queue and
+   * no worker is on it any more.
+   *
+   * @param spool The spooled file
+   * @param key The key of the file for the report and full text index
+   * @param options The options
+   * @return The future result
+   */
+  private CompletableFuture<OcrResult> enqueue(final File spool, final String key, final OcrOptions options) {
+    final CompletableFuture<OcrResult> result = new CompletableFuture<OcrResult>();
+    final Job                          job    = new Job(spool, key, options, result);
+
+    try {
+      this.pool.execute(job);
+    } catch (RejectedExecutionException e) {
+      FileUtils.deleteQuietly(spool);
+
+      this.slots.release();
+
+      result.completeExceptionally(e);
+
+      return result;
+    }
+
+    result.whenComplete(new BiConsumer<OcrResult, Throwable>() {
+        public void accept(OcrResult r, Throwable e) {
+          if (e == null) {
+            return;
+          }
+
+          /*
+           * Still waiting: no worker will see it, so we clean
+           * up; else the worker stops, and cleans up itself
+           */
+          if (pool.remove(job)) {
+            FileUtils.deleteQuietly(spool);
+
+            slots.release();
+          } else {
+            job.cancel();
+          }
+        }
+      });
+
+    if (options.timeout > 0) {
+      this.timer.schedule(new Runnable() {
+          public void run() {
+            if (result.completeExceptionally(new TimeoutException("No result for " + key + " after " + options.timeout + " ms"))) {
+              log.warn("! WARNING: Gave up on " + key + " after " + options.timeout + " ms.");
+            }
+          }
+        }, options.timeout, TimeUnit.MILLISECONDS);
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Create a spool file in the temporary directory.
+   *
+   * @return The spool file
+   * @throws IOException
+   */
+  private File createSpoolFile() throws IOException {
+    final File dir = this.wrapper.getTempDir();
+
+    FileUtils.forceMkdir(dir);
+
+    return File.createTempFile("upload" + this.counter.incrementAndGet() + ".", ".pdf", dir);
+  }
+
+
+  /**
+   * Make sure the service is still open.
+   *
+   * @throws IllegalStateException If it is closed
+   */
+  private void checkOpen() {
+    if (this.closed) {
+      throw new IllegalStateException("The OCR service is closed");
+    }
+  }
+
+
+  /**
+   * A file in the queue. The worker running it gives
+   * back its place, and deletes the spool file unless
+   * it went into the result.
+   */
+  private final class Job implements Runnable {
+    /**
+     * The spooled file.
+     */
+    private final File                         spool;
+
+    /**
+     * The key of the file for the report and full text index.
+     */
+    private final String                       key;
+
+    /**
+     * The options.
+     */
+    private final OcrOptions                   options;
+
+    /**
+     * The future result.
+     */
+    private final CompletableFuture<OcrResult> result;
+
+    /**
+     * The worker running the job, while it does.
+     */
+    private Thread                             runner = null;
+
+
+    /**
+     * Constructor.
+     *
+     * @param spool The spooled file
+     * @param key The key of the file for the report and full text index
+     * @param options The options
+     * @param result The future result
+     */
+    Job(File spool, String key, OcrOptions options, CompletableFuture<OcrResult> result) {
+      this.spool   = spool;
+      this.key     = key;
+      this.options = options;
+      this.result  = result;
+    }
+
+
+    public void run() {
+      boolean kept = false;
+
+      try {
+        synchronized (this) {
+          /*
+           * Cancelled or timed out while waiting
+           */
+          if (this.result.isDone()) {
+            return;
+          }
+
+          this.runner = Thread.currentThread();
+        }
+
+        final FileRecord record = wrapper.processFile(this.spool, this.key, this.options.text);
+
+        kept = this.result.complete(new OcrResult(record, this.spool));
+      } catch (Throwable e) {
+        this.result.completeExceptionally(e);
+      } finally {
+        synchronized (this) {
+          this.runner = null;
+
+          /*
+           * A cancel that came too late must not
+           * hit the next file of this worker
+           */
+          Thread.interrupted();
+        }
+
+        if (!kept) {
+          FileUtils.deleteQuietly(this.spool);
+        }
+
+        slots.release();
+      }
+    }
+
+
+    /**
+     * Stop the engine, if the job is running.
+     */
+    synchronized void cancel() {
+      if (this.runner != null) {
+        this.runner.interrupt();
+      }
+    }
+  }
+}
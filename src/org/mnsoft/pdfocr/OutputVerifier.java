@@ -0,0 +1,212 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.zip.CRC32;
+
+
+/**
+ * Checks a written PDF before it replaces the original, so
+ * that a file truncated e.g. by a full disk is never taken
+ * for a result.<p>
+ *
+ * The checks go from cheap to less cheap, and stop at the
+ * first that fails:
+ *
+ * <ol>
+ *   <li>the file is longer than a PDF can possibly be, and starts with %PDF-</li>
+ *   <li>its tail, memory mapped, ends with %%EOF after a startxref pointing into the file</li>
+ *   <li>its cross reference table and trailer parse without having to be rebuilt;
+ *       only the cross reference table is read, not the objects</li>
+ *   <li>it has the expected number of pages</li>
+ * </ol>
+ *
+ * The checksum of a verified file is kept in the job state, see
+ * {@link JobState#checksum}, so that {@link IntegritySweep} can
+ * check the archive later without parsing the files again.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class OutputVerifier {
+  /**
+   * Smallest possible PDF: header, one page, xref and trailer.
+   */
+  private static final int MIN_LENGTH = 64;
+
+  /**
+   * Number of bytes at the end of the file in which
+   * startxref and %%EOF must be found.
+   */
+  private static final int TAIL       = 1024;
+
+
+  /**
+   * Utility class.
+   */
+  private OutputVerifier() {
+  }
+
+
+  /**
+   * Verify a PDF.
+   *
+   * @param file The PDF
+   * @param pages The number of pages it must have, or -1 for any
+   * @return null if the file is fine, else why not.
+   */
+  public static String verify(File file, int pages) {
+    final long length = file.length();
+
+    if (length < MIN_LENGTH) {
+      return "too short (" + length + " bytes)";
+    }
+
+    try {
+      final String tail = checkTail(file, length);
+
+      if (tail != null) {
+        return tail;
+      }
+    } catch (IOException e) {
+      return "unreadable: " + e.getMessage();
+    }
+
+    PdfReader reader = null;
+
+    try {
+      reader = new PdfReader(new RandomAccessFileOrArray(file.getAbsolutePath()), null);
+
+      if (reader.isRebuilt()) {
+        return "cross reference table is broken";
+      }
+
+      if ((pages >= 0) && (reader.getNumberOfPages() != pages)) {
+        return "has " + reader.getNumberOfPages() + " pages instead of " + pages;
+      }
+    } catch (Exception e) {
+      return "does not parse: " + e.getMessage();
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Compute the checksum of a file: its CRC32, in hex.
+   *
+   * @param file The file
+   * @return The checksum
+   * @throws IOException
+   */
+  public static String checksum(File file) throws IOException {
+    final CRC32       crc    = new CRC32();
+    final byte[]      buffer = new byte[65536];
+    final InputStream in     = new FileInputStream(file);
+
+    try {
+      int n;
+
+      while ((n = in.read(buffer)) >= 0) {
+        crc.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+
+    return Long.toHexString(crc.getValue());
+  }
+
+
+  /**
+   * Check the header and the tail of a file. Only the
+   * first and last bytes are mapped, not the whole file.
+   *
+   * @param file The file
+   * @param length Its length
+   * @return null if they are fine, else why not.
+   * @throws IOException
+   */
+  private static String checkTail(File file, long length) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      final FileChannel      channel = raf.getChannel();
+      final MappedByteBuffer head    = channel.map(FileChannel.MapMode.READ_ONLY, 0, 5);
+
+      if (!"%PDF-".equals(toString(head, 5))) {
+        return "no PDF header";
+      }
+
+      final int              size = (int) Math.min(TAIL, length);
+      final MappedByteBuffer end  = channel.map(FileChannel.MapMode.READ_ONLY, length - size, size);
+      final String           tail = toString(end, size);
+
+      final int eof = tail.lastIndexOf("%%EOF");
+      if (eof < 0) {
+        return "no %%EOF at the end, truncated?";
+      }
+
+      final int xref = tail.lastIndexOf("startxref", eof);
+      if (xref < 0) {
+        return "no startxref at the end, truncated?";
+      }
+
+      final long offset;
+
+      try {
+        offset = Long.parseLong(tail.substring(xref + "startxref".length(), eof).trim());
+      } catch (NumberFormatException e) {
+        return "startxref is not a number";
+      }
+
+      if ((offset <= 0) || (offset >= length)) {
+        return "startxref " + offset + " points outside of the file";
+      }
+
+      return null;
+    } finally {
+      raf.close();
+    }
+  }
+
+
+  /**
+   * Get the bytes of a buffer as a String.
+   *
+   * @param buffer The buffer
+   * @param size The number of bytes
+   * @return The String
+   */
+  private static String toString(MappedByteBuffer buffer, int size) {
+    final byte[] bytes = new byte[size];
+
+    buffer.get(bytes);
+
+    try {
+      return new String(bytes, "ISO-8859-1");
+    } catch (IOException e) {
+      return new String(bytes);
+    }
+  }
+}
@@ -5,13 +5,26 @@ import com.lowagie.text.pdf.PRAcroForm;
 import com.lowagie.text.pdf.PdfCopy;
 import com.lowagie.text.pdf.PdfImportedPage;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
+import com.lowagie.text.pdf.PdfStamper;
 import com.lowagie.text.pdf.PdfWriter;
 
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -66,7 +79,7 @@ public class PDFTrans extends java.lang.Object {
 
 
   public static void usage() {
-    System.err.print("usage: pdftrans [options] srcfile destfile\n" + "\n" + "metadata options:\n" + "  --title <string>    sets the title of the document\n" + "  --subject <string>  sets the subject of the document\n" + "  --keywords <string> sets the keywords field of the document\n" + "  --creator <string>  sets the creator field of the document\n" + "  --author <string>   sets the author field of the document\n" + "  --print-info        prints document information before processing\n" + "  --print-keywords    prints document keywords before processing\n" + "\n" + "protection/encryption options:\n" + "  --user-password <string>    sets the user password\n" + "  --master-password <string>  sets the master password\n" + "  --encryption-bits <number>  number of encryption bits (40 or 128)\n" + "  --permissions <list>        comma-separated list of the allowed actions\n" + "      available actions: print, degraded-print, copy, modify-contents,\n" + "                         modify-annotations, assembly, fill-in, screen-readers\n");
+    System.err.print("usage: pdftrans [options] srcfile destfile\n" + "       pdftrans [options] --recursive srcdir destdir\n" + "       pdftrans [options] --manifest file\n" + "\n" + "metadata options:\n" + "  --title <string>    sets the title of the document\n" + "  --subject <string>  sets the subject of the document\n" + "  --keywords <string> sets the keywords field of the document\n" + "  --creator <string>  sets the creator field of the document\n" + "  --author <string>   sets the author field of the document\n" + "  --print-info        prints document information before processing\n" + "  --print-keywords    prints document keywords before processing\n" + "\n" + "size options:\n" + "  --compact           writes shared resources only once, with object streams\n" + "\n" + "protection/encryption options:\n" + "  --user-password <string>    sets the user password\n" + "  --master-password <string>  sets the master password\n" + "  --encryption-bits <number>  number of encryption bits (40 or 128)\n" + "  --permissions <list>        comma-separated list of the allowed actions\n" + "      available actions: print, degraded-print, copy, modify-contents,\n" + "                         modify-annotations, assembly, fill-in, screen-readers\n" + "\n" + "batch options:\n" + "  --recursive         works on all .pdf files below srcdir, writing\n" + "                      them to the same place below destdir\n" + "  --manifest <file>   works on the files listed in a CSV or JSON file with\n" + "                      the fields src, dest, title, subject, keywords,\n" + "                      creator and author; fields not given there are\n" + "                      taken from the options\n" + "  --threads <number>  number of files to work on at a time\n");
     System.exit(1);
   }
 
@@ -80,46 +93,59 @@ public class PDFTrans extends java.lang.Object {
       usage();
     }
 
-    String  input_file      = null, output_file = null, doc_title = null, doc_subject = null, doc_keywords = null, doc_creator = null, doc_author = null, user_passwd = null, owner_passwd = null;
+    final Job options        = new Job();
 
-    boolean encrypt         = false;
-    boolean encryption_bits = PdfWriter.STRENGTH128BITS;
-    int     permissions     = 0;
-    boolean print_info      = false;
-    boolean print_keywords  = false;
+    String    input_file     = null, output_file = null, manifest = null;
+
+    boolean   print_info     = false;
+    boolean   print_keywords = false;
+    boolean   recursive      = false;
+    int       threads        = Runtime.getRuntime().availableProcessors();
 
     /*
      *  parse options
      */
     for (int i = 0; i < args.length; i++) {
       if (args[i].equals("--title")) {
-        doc_title = args[++i];
+        options.title = args[++i];
       } else if (args[i].equals("--subject")) {
-        doc_subject = args[++i];
+        options.subject = args[++i];
       } else if (args[i].equals("--keywords")) {
-        doc_keywords = args[++i];
+        options.keywords = args[++i];
       } else if (args[i].equals("--creator")) {
-        doc_creator = args[++i];
+        options.creator = args[++i];
       } else if (args[i].equals("--author")) {
-        doc_author = args[++i];
+        options.author = args[++i];
       } else if (args[i].equals("--print-info")) {
         print_info = true;
       } else if (args[i].equals("--print-keywords")) {
         print_keywords = true;
+      } else if (args[i].equals("--compact")) {
+        options.compact = true;
+      } else if (args[i].equals("--recursive")) {
+        recursive = true;
+      } else if (args[i].equals("--manifest")) {
+        manifest = args[++i];
+      } else if (args[i].equals("--threads")) {
+        threads = StringUtility.StringToInteger(args[++i], 0);
+
+        if (threads < 1) {
+          usage();
+        }
       } else if (args[i].equals("--user-password")) {
-        encrypt     = true;
-        user_passwd = args[++i];
+        options.encrypt     = true;
+        options.user_passwd = args[++i];
       } else if (args[i].equals("--master-password")) {
-        encrypt      = true;
-        owner_passwd = args[++i];
+        options.encrypt      = true;
+        options.owner_passwd = args[++i];
       } else if (args[i].equals("--encryption-bits")) {
         i++;
-        encrypt = true;
+        options.encrypt = true;
 
         if (args[i].equals("128")) {
-          encryption_bits = PdfWriter.STRENGTH128BITS;
+          options.encryption_bits = PdfWriter.STRENGTH128BITS;
         } else if (args[i].equals("40")) {
-          encryption_bits = PdfWriter.STRENGTH40BITS;
+          options.encryption_bits = PdfWriter.STRENGTH40BITS;
         } else {
           usage();
         }
@@ -132,21 +158,21 @@ public class PDFTrans extends java.lang.Object {
         while (st.hasMoreTokens()) {
           String s = st.nextToken();
           if (s.equals("print")) {
-            permissions |= PdfWriter.AllowPrinting;
+            options.permissions |= PdfWriter.AllowPrinting;
           } else if (s.equals("degraded-print")) {
-            permissions |= PdfWriter.AllowDegradedPrinting;
+            options.permissions |= PdfWriter.AllowDegradedPrinting;
           } else if (s.equals("copy")) {
-            permissions |= PdfWriter.AllowCopy;
+            options.permissions |= PdfWriter.AllowCopy;
           } else if (s.equals("modify-contents")) {
-            permissions |= PdfWriter.AllowModifyContents;
+            options.permissions |= PdfWriter.AllowModifyContents;
           } else if (s.equals("modify-annotations")) {
-            permissions |= PdfWriter.AllowModifyAnnotations;
+            options.permissions |= PdfWriter.AllowModifyAnnotations;
           } else if (s.equals("assembly")) {
-            permissions |= PdfWriter.AllowAssembly;
+            options.permissions |= PdfWriter.AllowAssembly;
           } else if (s.equals("fill-in")) {
-            permissions |= PdfWriter.AllowFillIn;
+            options.permissions |= PdfWriter.AllowFillIn;
           } else if (s.equals("screen-readers")) {
-            permissions |= PdfWriter.AllowScreenReaders;
+            options.permissions |= PdfWriter.AllowScreenReaders;
           } else {
             warning("Unknown permission '" + s + "' ignored");
           }
@@ -164,6 +190,33 @@ public class PDFTrans extends java.lang.Object {
       }
     }
 
+    /*
+     *  batch mode: many files in one JVM
+     */
+    if ((manifest != null) || recursive) {
+      List<Job> jobs = null;
+
+      try {
+        if (manifest != null) {
+          if (input_file != null) {
+            usage();
+          }
+
+          jobs = getManifestJobs(new File(manifest), options);
+        } else {
+          if ((input_file == null) || (output_file == null)) {
+            usage();
+          }
+
+          jobs = getRecursiveJobs(new File(input_file), new File(output_file), options);
+        }
+      } catch (IOException e) {
+        error(e.getMessage());
+      }
+
+      System.exit((batch(jobs, threads) > 0) ? 1 : 0);
+    }
+
     if (!print_keywords) {
       if ((input_file == null) || (output_file == null)) {
         usage();
@@ -176,95 +229,279 @@ public class PDFTrans extends java.lang.Object {
 
     try {
       /*
-       *  we create a reader for the input file
+       *  print the document information if asked to do so
        */
-      if (!print_keywords) {
-        System.out.println("Reading " + input_file + "...");
-      }
+      if (print_info || print_keywords) {
+        final PdfReader reader = new PdfReader(input_file);
+        final Map       info   = reader.getInfo();
 
-      PdfReader reader = new PdfReader(input_file);
+        reader.close();
 
-      /*
-       *  we retrieve the total number of pages
-       */
-      final int n      = reader.getNumberOfPages();
-      if (!print_keywords) {
-        System.out.println("There are " + n + " pages in the original file.");
-      }
+        if (print_info) {
+          System.out.println("Document information:");
 
-      /*
-       *  get the document information
-       */
-      final Map info = reader.getInfo();
+          final Iterator it = info.entrySet().iterator();
+          while (it.hasNext()) {
+            final Map.Entry entry = (Map.Entry) it.next();
+            System.out.println(entry.getKey() + " = \"" + entry.getValue() + "\"");
+          }
+        }
 
-      /*
-       *  print the document information if asked to do so
-       */
-      if (print_info) {
-        System.out.println("Document information:");
+        if (print_keywords) {
+          String keywords = "" + info.get("Keywords");
+          if ((null == keywords) || "null".equals(keywords)) {
+            keywords = "";
+          }
 
-        final Iterator it = info.entrySet().iterator();
-        while (it.hasNext()) {
-          final Map.Entry entry = (Map.Entry) it.next();
-          System.out.println(entry.getKey() + " = \"" + entry.getValue() + "\"");
+          System.out.println(keywords);
+          System.exit(0);
         }
       }
 
-      if (print_keywords) {
-        String keywords = "" + info.get("Keywords");
-        if ((null == keywords) || "null".equals(keywords)) {
-          keywords = "";
-        }
+      final Job job = options.copy();
 
-        System.out.println(keywords);
-        System.exit(0);
-      }
+      job.src  = input_file;
+      job.dest = output_file;
 
-      /*
-       *  if any meta data field is unspecified,
-       *  copy the value from the input document
-       */
-      if (doc_title == null) {
-        doc_title = (String) info.get("Title");
-      }
+      transform(job, true);
+    } catch (Exception e) {
+      error(e.getClass().getName() + ": " + e.getMessage());
+    }
+  }
 
-      if (doc_subject == null) {
-        doc_subject = (String) info.get("Subject");
-      }
 
-      if (doc_keywords == null) {
-        doc_keywords = (String) info.get("Keywords");
-      }
+  /**
+   * Work on a list of files on a pool of threads. Errors
+   * are reported per file; the other files go on.
+   *
+   * @param jobs The files to work on
+   * @param threads The number of files to work on at a time
+   * @return The number of files that failed.
+   */
+  public static int batch(List<Job> jobs, int threads) {
+    final ExecutorService pool     = Executors.newFixedThreadPool(threads);
+    final Semaphore       slots    = new Semaphore(threads * 2);
+    final AtomicInteger   failures = new AtomicInteger();
+    final long            start    = System.currentTimeMillis();
 
-      if (doc_creator == null) {
-        doc_creator = (String) info.get("Creator");
+    try {
+      for (int i = 0; i < jobs.size(); i++) {
+        final Job job = jobs.get(i);
+
+        /*
+         * Do not queue more than a few files ahead
+         */
+        slots.acquireUninterruptibly();
+
+        pool.execute(new Runnable() {
+            public void run() {
+              try {
+                final long started = System.currentTimeMillis();
+                final int  pages   = transform(job, false);
+
+                System.out.println("+ " + job.src + " -> " + job.dest + " (" + pages + " pages, " + (System.currentTimeMillis() - started) + " ms)");
+              } catch (Throwable e) {
+                failures.incrementAndGet();
+                System.err.println("PDFTrans: error: " + job.src + ": " + e.getClass().getName() + ": " + e.getMessage());
+              } finally {
+                slots.release();
+              }
+            }
+          });
       }
+    } finally {
+      pool.shutdown();
 
-      if (doc_author == null) {
-        doc_author = (String) info.get("Author");
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
+    }
 
-      // null metadata field are simply set to the empty string
-      if (doc_title == null) {
-        doc_title = "";
-      }
+    System.out.println((jobs.size() - failures.get()) + " of " + jobs.size() + " files done, " + failures.get() + " failed, in " + (System.currentTimeMillis() - start) + " ms.");
 
-      if (doc_subject == null) {
-        doc_subject = "";
+    return failures.get();
+  }
+
+
+  /**
+   * Get the jobs for the files listed in a manifest.
+   *
+   * @param manifest The manifest
+   * @param options The options from the command line, for the fields not given in the manifest
+   * @return The jobs
+   * @throws IOException If the manifest cannot be read, or an entry has no src or dest
+   */
+  static List<Job> getManifestJobs(File manifest, Job options) throws IOException {
+    final List<Map<String, String>> entries = Manifest.read(manifest);
+    final List<Job>                 jobs    = new ArrayList<Job>(entries.size());
+
+    for (int i = 0; i < entries.size(); i++) {
+      final Map<String, String> entry = entries.get(i);
+      final Job                 job   = options.copy();
+
+      job.src      = entry.get("src");
+      job.dest     = entry.get("dest");
+      job.title    = field(entry, "title", job.title);
+      job.subject  = field(entry, "subject", job.subject);
+      job.keywords = field(entry, "keywords", job.keywords);
+      job.creator  = field(entry, "creator", job.creator);
+      job.author   = field(entry, "author", job.author);
+
+      if ((job.src == null) || (job.dest == null) || "".equals(job.src) || "".equals(job.dest)) {
+        throw new IOException("Entry " + (i + 1) + " of " + manifest + " has no src or dest");
       }
 
-      if (doc_keywords == null) {
-        doc_keywords = "";
+      jobs.add(job);
+    }
+
+    return jobs;
+  }
+
+
+  /**
+   * Get a field of a manifest entry.
+   *
+   * @param entry The entry
+   * @param name The field name
+   * @param dflt The default
+   * @return The field, or the default if it is not given.
+   */
+  private static String field(Map<String, String> entry, String name, String dflt) {
+    final String value = entry.get(name);
+
+    return (value == null) ? dflt : value;
+  }
+
+
+  /**
+   * Get the jobs for all .pdf files below a directory.
+   *
+   * @param srcDir The directory to read from
+   * @param destDir The directory to write to
+   * @param options The options from the command line
+   * @return The jobs
+   * @throws IOException
+   */
+  static List<Job> getRecursiveJobs(File srcDir, File destDir, Job options) throws IOException {
+    if (!srcDir.isDirectory()) {
+      throw new IOException(srcDir + " is not a directory");
+    }
+
+    final String                    root = srcDir.getCanonicalPath();
+    final List<Job>                 jobs = new ArrayList<Job>();
+    final RecursiveFileListIterator it   = new RecursiveFileListIterator(srcDir, new FileFilter(".pdf"));
+
+    while (it.hasNext()) {
+      final File file = it.next();
+
+      if (file.isDirectory()) {
+        continue;
       }
 
-      if (doc_creator == null) {
-        doc_creator = "";
+      final String path = file.getCanonicalPath();
+      final Job    job  = options.copy();
+
+      job.src  = file.getPath();
+      job.dest = new File(destDir, path.startsWith(root + File.separator) ? path.substring(root.length() + 1) : file.getName()).getPath();
+
+      jobs.add(job);
+    }
+
+    return jobs;
+  }
+
+
+  /**
+   * Work on a single file.<p>
+   *
+   * If neither encryption nor compaction is asked for, and
+   * the file is not encrypted, only the metadata is changed:
+   * the original is copied as it is and the new document
+   * information is appended as an incremental update. Else,
+   * every page is copied into a new document.
+   *
+   * @param job The file and what to do with it
+   * @param verbose Whether to print progress
+   * @return The number of pages.
+   * @throws Exception
+   */
+  @SuppressWarnings({ "deprecation", "rawtypes", "unchecked" })
+  public static int transform(Job job, boolean verbose) throws Exception {
+    if (new File(job.src).getCanonicalPath().equals(new File(job.dest).getCanonicalPath())) {
+      throw new IOException("Input and output files must be different");
+    }
+
+    final File parent = new File(job.dest).getAbsoluteFile().getParentFile();
+    if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+
+    /*
+     *  we create a reader for the input file
+     */
+    if (verbose) {
+      System.out.println("Reading " + job.src + "...");
+    }
+
+    final PdfReader reader = new PdfReader(job.src);
+
+    try {
+      /*
+       *  we retrieve the total number of pages
+       */
+      final int n = reader.getNumberOfPages();
+      if (verbose) {
+        System.out.println("There are " + n + " pages in the original file.");
       }
 
-      if (doc_author == null) {
-        doc_author = "";
+      /*
+       *  fast path: only the metadata changes
+       */
+      if (!job.encrypt && !job.compact && !reader.isEncrypted()) {
+        if (verbose) {
+          System.out.println("Writing " + job.dest + "... ");
+        }
+
+        final OutputStream os = new FileOutputStream(job.dest);
+
+        try {
+          final PdfStamper stamper = new PdfStamper(reader, os, '\0', true);
+          final HashMap    info    = new HashMap();
+
+          put(info, "Title", job.title);
+          put(info, "Subject", job.subject);
+          put(info, "Keywords", job.keywords);
+          put(info, "Creator", job.creator);
+          put(info, "Author", job.author);
+
+          stamper.setMoreInfo(info);
+          stamper.close();
+        } finally {
+          os.close();
+        }
+
+        return n;
       }
 
+      /*
+       *  get the document information
+       */
+      final Map info = reader.getInfo();
+
+      /*
+       *  if any meta data field is unspecified,
+       *  copy the value from the input document;
+       *  null metadata field are simply set to the
+       *  empty string
+       */
+      final String doc_title    = value(job.title, (String) info.get("Title"));
+      final String doc_subject  = value(job.subject, (String) info.get("Subject"));
+      final String doc_keywords = value(job.keywords, (String) info.get("Keywords"));
+      final String doc_creator  = value(job.creator, (String) info.get("Creator"));
+      final String doc_author   = value(job.author, (String) info.get("Author"));
+
       /*
        *  step 1: creation of a document-object
        */
@@ -273,7 +510,11 @@ public class PDFTrans extends java.lang.Object {
       /*
        *  step 2: we create a writer that listens to the document
        */
-      final PdfCopy  writer   = new PdfCopy(document, new FileOutputStream(output_file));
+      final PdfCopy  writer   = job.compact ? new PdfSmartCopy(document, new FileOutputStream(job.dest)) : new PdfCopy(document, new FileOutputStream(job.dest));
+
+      if (job.compact) {
+        writer.setFullCompression();
+      }
 
       /*
        *  step 3.1: we add the meta data
@@ -287,14 +528,17 @@ public class PDFTrans extends java.lang.Object {
       /*
        *  step 3.2: we set up the protection and encryption parameters
        */
-      if (encrypt) {
-        writer.setEncryption(encryption_bits, user_passwd, owner_passwd, permissions);
+      if (job.encrypt) {
+        writer.setEncryption(job.encryption_bits, job.user_passwd, job.owner_passwd, job.permissions);
       }
 
       /*
        *  step 4: we open the document
        */
-      System.out.print("Writing " + output_file + "... ");
+      if (verbose) {
+        System.out.print("Writing " + job.dest + "... ");
+      }
+
       document.open();
 
       PdfImportedPage page;
@@ -307,7 +551,9 @@ public class PDFTrans extends java.lang.Object {
         page = writer.getImportedPage(reader, i);
         writer.addPage(page);
 
-        System.out.print("[" + i + "] ");
+        if (verbose) {
+          System.out.print("[" + i + "] ");
+        }
       }
 
       final PRAcroForm form = reader.getAcroForm();
@@ -315,12 +561,87 @@ public class PDFTrans extends java.lang.Object {
         writer.copyAcroForm(reader);
       }
 
-      System.out.println();
+      if (verbose) {
+        System.out.println();
+      }
 
       // step 6: we close the document
       document.close();
-    } catch (Exception e) {
-      error(e.getClass().getName() + ": " + e.getMessage());
+
+      return n;
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Put a document information field, if it is given.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static void put(HashMap info, String key, String value) {
+    if (value != null) {
+      info.put(key, value);
+    }
+  }
+
+
+  /**
+   * Get a metadata value, falling back to the
+   * original value, and then to the empty string.
+   */
+  private static String value(String value, String original) {
+    if (value != null) {
+      return value;
+    }
+
+    return (original == null) ? "" : original;
+  }
+
+
+  /**
+   * A file to work on, and what to do with it.
+   */
+  @SuppressWarnings("deprecation")
+  public static class Job {
+    public String  src             = null;
+    public String  dest            = null;
+    public String  title           = null;
+    public String  subject         = null;
+    public String  keywords        = null;
+    public String  creator         = null;
+    public String  author          = null;
+    public String  user_passwd     = null;
+    public String  owner_passwd    = null;
+    public boolean encrypt         = false;
+    public boolean encryption_bits = PdfWriter.STRENGTH128BITS;
+    public int     permissions     = 0;
+    public boolean compact         = false;
+
+
+    /**
+     * Get a copy of the job.
+     *
+     * @return The copy
+     */
+    public Job copy() {
+      final Job job = new Job();
+
+      job.src             = this.src;
+      job.dest            = this.dest;
+      job.title           = this.title;
+      job.subject         = this.subject;
+      job.keywords        = this.keywords;
+      job.creator         = this.creator;
+      job.author          = this.author;
+      job.user_passwd     = this.user_passwd;
+      job.owner_passwd    = this.owner_passwd;
+      job.encrypt         = this.encrypt;
+      job.encryption_bits = this.encryption_bits;
+      job.permissions     = this.permissions;
+      job.compact         = this.compact;
+
+      return job;
     }
   }
 }
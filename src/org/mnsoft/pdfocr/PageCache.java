@@ -0,0 +1,516 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Cache of the engine output for pages seen before, like
+ * fax cover sheets, letterheads and form templates that
+ * come in thousands of documents. Such pages are left out
+ * of the engine input, and the merge takes the page the
+ * engine made for them the first time instead.<p>
+ *
+ * Pages are found by a hash of what they show, which only
+ * scanned pages have: pages with text of their own, or with
+ * forms, are not cached. There are two kinds of hashes:
+ *
+ * <ul>
+ *   <li>exact: the bytes of the page images and the content
+ *       stream. Finds pages that were rendered by the same
+ *       program from the same source, e.g. fax servers.</li>
+ *   <li>perceptual: a difference hash of the page images,
+ *       scaled down to {@link #HASH_SIZE} pixels across. Also
+ *       finds separate scans of the same sheet, but may take
+ *       two pages that differ in a few words for the same,
+ *       and so give one of them the text of the other. Only
+ *       use it if the recurring pages are all alike.</li>
+ * </ul>
+ *
+ * Each entry is a PDF file of one page, named by the hash.
+ * The cache is kept within a total size by removing the
+ * least recently used entries; when it was used is kept in
+ * the time stamp of the file, so that this survives a run.
+ * Several nodes may share the directory. Hits and misses
+ * are counted in the metrics pagecache.hits and
+ * pagecache.misses.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PageCache {
+  /**
+   * Logger for this class
+   */
+  private static final Logger     log               = Logger.getLogger(PageCache.class);
+
+  /**
+   * Default cache directory, relative to the working directory.
+   */
+  public static final String      DEFAULT_CACHE_DIR = ".pdfocr-pagecache";
+
+  /**
+   * Height of the perceptual hash grid; it is one wider.
+   */
+  public static final int         HASH_SIZE         = 32;
+
+  /**
+   * Extension of the cache entries.
+   */
+  private static final String     EXTENSION         = ".pdf";
+
+  /**
+   * The cache directory.
+   */
+  private final File              dir;
+
+  /**
+   * The total size of the cache, in bytes.
+   */
+  private final long              limit;
+
+  /**
+   * Whether to use the perceptual hash.
+   */
+  private final boolean           perceptual;
+
+  /**
+   * The entries with their sizes, least recently used first.
+   */
+  private final Map<String, Long> entries           = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+  /**
+   * The size of the entries.
+   */
+  private long                    bytes             = 0;
+
+  /**
+   * Hits, since the start.
+   */
+  private long                    hits              = 0;
+
+  /**
+   * Misses, since the start.
+   */
+  private long                    misses            = 0;
+
+
+  /**
+   * Constructor. Reads the entries there are.
+   *
+   * @param dir The cache directory
+   * @param limit The total size of the cache, in bytes
+   * @param perceptual Whether to use the perceptual hash rather than the exact one
+   * @throws IOException If the directory cannot be created
+   */
+  public PageCache(File dir, long limit, boolean perceptual) throws IOException {
+    FileUtils.forceMkdir(dir);
+
+    this.dir        = dir;
+    this.limit      = limit;
+    this.perceptual = perceptual;
+
+    final File[]     files = dir.listFiles();
+    final List<File> list  = new ArrayList<File>((files == null) ? Collections.<File>emptyList() : Arrays.asList(files));
+
+    Collections.sort(list, new Comparator<File>() {
+        public int compare(File a, File b) {
+          return Long.valueOf(a.lastModified()).compareTo(Long.valueOf(b.lastModified()));
+        }
+      });
+
+    for (final File file : list) {
+      if (file.getName().endsWith(EXTENSION)) {
+        add(file.getName().substring(0, file.getName().length() - EXTENSION.length()), file.length());
+      }
+    }
+
+    evict();
+
+    log.info("+ Page cache in " + dir.getAbsolutePath() + ": " + this.entries.size() + " pages, " + (this.bytes / (1024 * 1024)) + " of " + (limit / (1024 * 1024)) + " MB, " + (perceptual ? "perceptual" : "exact") + " hashes.");
+  }
+
+
+  /**
+   * Get the key of a page: the hash of what it shows.
+   *
+   * @param reader The reader
+   * @param page The page, starting at 1
+   * @return The key, or null if the page is not cached, e.g. because it has text.
+   * @throws IOException
+   */
+  public String getKey(PdfReader reader, int page) throws IOException {
+    final byte[] content = reader.getPageContent(page);
+
+    if ((content == null) || BlankPageDetector.hasText(content)) {
+      return null;
+    }
+
+    final PdfDictionary resources = reader.getPageN(page).getAsDict(PdfName.RESOURCES);
+    final PdfDictionary xobjects  = (resources == null) ? null : resources.getAsDict(PdfName.XOBJECT);
+
+    if ((xobjects == null) || (xobjects.size() == 0)) {
+      return null;
+    }
+
+    final MessageDigest digest = getDigest();
+    final Rectangle     size   = reader.getPageSize(page);
+
+    update(digest, Math.round(size.getWidth()) + "x" + Math.round(size.getHeight()) + "r" + reader.getPageRotation(page));
+
+    if (!this.perceptual) {
+      digest.update(content);
+    }
+
+    /*
+     * The images sorted by name, as the order of
+     * the dictionary is that of a hash map
+     */
+    final List<PdfName> names = new ArrayList<PdfName>();
+
+    for (final Iterator<?> it = xobjects.getKeys().iterator(); it.hasNext();) {
+      names.add((PdfName) it.next());
+    }
+
+    Collections.sort(names, new Comparator<PdfName>() {
+        public int compare(PdfName a, PdfName b) {
+          return a.toString().compareTo(b.toString());
+        }
+      });
+
+    for (final PdfName name : names) {
+      final PdfObject obj = PdfReader.getPdfObject(xobjects.get(name));
+
+      if ((obj == null) || !obj.isStream() || !PdfImages.isImage((PdfDictionary) obj)) {
+        return null;
+      }
+
+      final byte[] raw = PdfReader.getStreamBytesRaw((PRStream) obj);
+
+      if (!this.perceptual) {
+        digest.update(raw);
+
+        continue;
+      }
+
+      final BufferedImage image = PdfImages.decodeSampled((PdfDictionary) obj, raw, HASH_SIZE * 8);
+
+      if (image == null) {
+        return null;
+      }
+
+      digest.update(differenceHash(image));
+    }
+
+    return (this.perceptual ? "p" : "x") + toHex(digest.digest());
+  }
+
+
+  /**
+   * Get the engine output for a page seen before, copied
+   * to the scratch space so that it cannot be removed from
+   * the cache while it is used.
+   *
+   * @param key The key of the page
+   * @param area The scratch space of the file
+   * @return The copy of the engine output, or null if the page was not seen before.
+   * @throws IOException
+   */
+  public File get(String key, ScratchSpace.Area area) throws IOException {
+    final File file = getFile(key);
+
+    synchronized (this) {
+      if (this.entries.get(key) == null) {
+        /*
+         * Another node may have added it
+         */
+        if (!file.exists()) {
+          miss();
+
+          return null;
+        }
+
+        add(key, file.length());
+      }
+
+      if (!file.exists()) {
+        remove(key);
+        miss();
+
+        return null;
+      }
+
+      file.setLastModified(System.currentTimeMillis());
+
+      this.hits++;
+    }
+
+    Metrics.add("pagecache.hits", 1);
+
+    final File copy = area.createTempFile("page", EXTENSION);
+    copy.deleteOnExit();
+
+    try {
+      FileUtils.copyFile(file, copy);
+    } catch (IOException e) {
+      FileUtils.deleteQuietly(copy);
+
+      throw e;
+    }
+
+    return copy;
+  }
+
+
+  /**
+   * Add the engine output for a page.
+   *
+   * @param key The key of the page
+   * @param reader The reader on the engine output
+   * @param page The page of the engine output, starting at 1
+   * @throws IOException
+   */
+  public void put(String key, PdfReader reader, int page) throws IOException {
+    final File file = getFile(key);
+
+    synchronized (this) {
+      if (this.entries.containsKey(key)) {
+        return;
+      }
+    }
+
+    final File         temp = new File(this.dir, key + "." + Thread.currentThread().getId() + ".tmp");
+    final OutputStream os   = new FileOutputStream(temp);
+
+    try {
+      final Document document = new Document();
+      final PdfCopy  copy     = new PdfCopy(document, os);
+
+      document.open();
+
+      copy.addPage(copy.getImportedPage(reader, page));
+
+      document.close();
+    } catch (Exception e) {
+      FileUtils.deleteQuietly(temp);
+
+      throw new IOException("Could not write the cache entry " + key + ": " + e.getMessage(), e);
+    } finally {
+      os.close();
+    }
+
+    synchronized (this) {
+      if (this.entries.containsKey(key) || !temp.renameTo(file)) {
+        FileUtils.deleteQuietly(temp);
+
+        return;
+      }
+
+      add(key, file.length());
+
+      Metrics.add("pagecache.stores", 1);
+
+      evict();
+    }
+  }
+
+
+  /**
+   * Log the hits and misses since the start.
+   */
+  public synchronized void close() {
+    final long total = this.hits + this.misses;
+
+    if (total > 0) {
+      Metrics.set("pagecache.hitRate", (this.hits * 100.0) / total);
+    }
+
+    log.info("+ Page cache: " + this.hits + " hits, " + this.misses + " misses" + ((total == 0) ? "" : (" (" + ((this.hits * 100) / total) + "% hit rate)")) + ", " + this.entries.size() + " pages, " + (this.bytes / (1024 * 1024)) + " MB.");
+  }
+
+
+  /**
+   * Count a miss.
+   */
+  private void miss() {
+    this.misses++;
+
+    Metrics.add("pagecache.misses", 1);
+  }
+
+
+  /**
+   * Add an entry, as the most recently used.
+   *
+   * @param key The key
+   * @param size Its size
+   */
+  private void add(String key, long size) {
+    this.entries.put(key, Long.valueOf(size));
+    this.bytes += size;
+  }
+
+
+  /**
+   * Forget an entry.
+   *
+   * @param key The key
+   */
+  private void remove(String key) {
+    final Long size = this.entries.remove(key);
+
+    if (size != null) {
+      this.bytes -= size.longValue();
+    }
+  }
+
+
+  /**
+   * Remove the least recently used entries until
+   * the cache is within its size.
+   */
+  private void evict() {
+    for (final Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator(); (this.bytes > this.limit) && it.hasNext();) {
+      final Map.Entry<String, Long> entry = it.next();
+
+      FileUtils.deleteQuietly(getFile(entry.getKey()));
+
+      this.bytes -= entry.getValue().longValue();
+      it.remove();
+
+      Metrics.add("pagecache.evictions", 1);
+    }
+
+    Metrics.set("pagecache.bytes", this.bytes);
+  }
+
+
+  /**
+   * @param key The key
+   * @return The file of an entry.
+   */
+  private File getFile(String key) {
+    return new File(this.dir, key + EXTENSION);
+  }
+
+
+  /**
+   * Compute the difference hash of an image: scaled down
+   * to a grid of {@link #HASH_SIZE} + 1 by {@link #HASH_SIZE}
+   * gray pixels, one bit for each pair of neighbours in a row,
+   * set if the left one is darker.
+   *
+   * @param image The image
+   * @return The hash bits
+   */
+  static byte[] differenceHash(BufferedImage image) {
+    final BufferedImage small = new BufferedImage(HASH_SIZE + 1, HASH_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+    final Graphics2D    g     = small.createGraphics();
+
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(image, 0, 0, HASH_SIZE + 1, HASH_SIZE, null);
+    } finally {
+      g.dispose();
+    }
+
+    final byte[] gray = ((DataBufferByte) small.getRaster().getDataBuffer()).getData();
+    final byte[] bits = new byte[(HASH_SIZE * HASH_SIZE) / 8];
+
+    for (int y = 0; y < HASH_SIZE; y++) {
+      for (int x = 0; x < HASH_SIZE; x++) {
+        final int left  = gray[(y * (HASH_SIZE + 1)) + x] & 0xff;
+        final int right = gray[(y * (HASH_SIZE + 1)) + x + 1] & 0xff;
+
+        if (left < right) {
+          final int bit = (y * HASH_SIZE) + x;
+
+          bits[bit >> 3] |= (byte) (0x80 >> (bit & 7));
+        }
+      }
+    }
+
+    return bits;
+  }
+
+
+  /**
+   * @return A SHA-1 digest.
+   */
+  private static MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * Add a String to a digest.
+   *
+   * @param digest The digest
+   * @param s The String
+   */
+  private static void update(MessageDigest digest, String s) {
+    try {
+      digest.update(s.getBytes("UTF-8"));
+    } catch (IOException e) {
+      digest.update(s.getBytes());
+    }
+  }
+
+
+  /**
+   * @param bytes Some bytes
+   * @return The bytes in hex.
+   */
+  private static String toHex(byte[] bytes) {
+    final StringBuffer sb = new StringBuffer();
+
+    for (int i = 0; i < bytes.length; i++) {
+      sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+    }
+
+    return sb.toString();
+  }
+}
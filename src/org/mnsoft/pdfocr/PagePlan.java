@@ -0,0 +1,238 @@
+package org.mnsoft.pdfocr;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Which pages of a file go to the engine. Pages left
+ * out are passed through by the merge: blank pages as
+ * they are, pages found in the {@link PageCache} with
+ * the text layer the engine made for them before. The
+ * engine input holds the other pages in their order, so
+ * page 3 of the engine output may belong to page 5 of
+ * the original.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PagePlan {
+  /**
+   * For each page of the original, starting at 1,
+   * whether it is left out of the engine input.
+   */
+  private final boolean[] leftOut;
+
+  /**
+   * For each page of the original, starting at 1, its
+   * page in the engine input, or 0 if it is left out;
+   * null if it has to be worked out again.
+   */
+  private int[]           enginePage = null;
+
+  /**
+   * For each page of the original, starting at 1, the
+   * cached text layer to use, if any.
+   */
+  private final File[]    layers;
+
+  /**
+   * For each page of the original, starting at 1, its
+   * key in the page cache, if it has one.
+   */
+  private final String[]  keys;
+
+  /**
+   * Number of pages that go to the engine.
+   */
+  private int             enginePages;
+
+
+  /**
+   * Constructor, for all pages going to the engine.
+   *
+   * @param pages The number of pages of the original
+   */
+  public PagePlan(int pages) {
+    this.leftOut     = new boolean[pages + 1];
+    this.layers      = new File[pages + 1];
+    this.keys        = new String[pages + 1];
+    this.enginePages = pages;
+  }
+
+
+  /**
+   * Leave a page out of the engine input.
+   *
+   * @param page The page of the original, starting at 1
+   */
+  public void leaveOut(int page) {
+    if (this.leftOut[page]) {
+      return;
+    }
+
+    this.leftOut[page] = true;
+    this.enginePages--;
+    this.enginePage    = null;
+  }
+
+
+  /**
+   * Leave a page out of the engine input, and
+   * use a cached text layer for it instead.
+   *
+   * @param page The page of the original, starting at 1
+   * @param layer The text layer, a PDF of one page
+   */
+  public void useLayer(int page, File layer) {
+    leaveOut(page);
+
+    this.layers[page] = layer;
+  }
+
+
+  /**
+   * Get the number of pages of the original.
+   *
+   * @return The number of pages
+   */
+  public int getPages() {
+    return this.leftOut.length - 1;
+  }
+
+
+  /**
+   * Get the number of pages that go to the engine.
+   *
+   * @return The number of pages
+   */
+  public int getEnginePages() {
+    return this.enginePages;
+  }
+
+
+  /**
+   * Get the number of pages left out.
+   *
+   * @return The number of pages
+   */
+  public int getLeftOut() {
+    return getPages() - this.enginePages;
+  }
+
+
+  /**
+   * Check whether a page is left out of the engine input.
+   *
+   * @param page The page of the original, starting at 1
+   * @return true if it is left out.
+   */
+  public boolean isLeftOut(int page) {
+    return this.leftOut[page];
+  }
+
+
+  /**
+   * Get the page of the engine input for a page of the original.
+   *
+   * @param page The page of the original, starting at 1
+   * @return The page of the engine input, or 0 if it is left out.
+   */
+  public int getEnginePage(int page) {
+    if (this.enginePage == null) {
+      final int[] numbers = new int[this.leftOut.length];
+      int         n       = 0;
+
+      for (int i = 1; i < numbers.length; i++) {
+        numbers[i] = this.leftOut[i] ? 0 : ++n;
+      }
+
+      this.enginePage = numbers;
+    }
+
+    return this.enginePage[page];
+  }
+
+
+  /**
+   * Get the page of the original for a page of the engine input.
+   *
+   * @param enginePage The page of the engine input, starting at 1
+   * @return The page of the original, or 0 if there is none.
+   */
+  public int getOriginalPage(int enginePage) {
+    if (enginePage <= 0) {
+      return 0;
+    }
+
+    int n = 0;
+
+    for (int i = 1; i < this.leftOut.length; i++) {
+      if (!this.leftOut[i] && (++n == enginePage)) {
+        return i;
+      }
+    }
+
+    return 0;
+  }
+
+
+  /**
+   * Get the cached text layer for a page.
+   *
+   * @param page The page of the original, starting at 1
+   * @return The text layer, or null if there is none.
+   */
+  public File getLayer(int page) {
+    return this.layers[page];
+  }
+
+
+  /**
+   * Set the key of a page in the page cache.
+   *
+   * @param page The page of the original, starting at 1
+   * @param key The key
+   */
+  public void setKey(int page, String key) {
+    this.keys[page] = key;
+  }
+
+
+  /**
+   * Get the key of a page in the page cache.
+   *
+   * @param page The page of the original, starting at 1
+   * @return The key, or null if the page has none.
+   */
+  public String getKey(int page) {
+    return this.keys[page];
+  }
+
+
+  /**
+   * Get the pages of the original that go to the engine,
+   * for {@link com.lowagie.text.pdf.PdfReader#selectPages(List)}.
+   *
+   * @return The pages, starting at 1
+   */
+  public List<Integer> getSelection() {
+    final List<Integer> pages = new ArrayList<Integer>();
+
+    for (int i = 1; i < this.leftOut.length; i++) {
+      if (!this.leftOut[i]) {
+        pages.add(Integer.valueOf(i));
+      }
+    }
+
+    return pages;
+  }
+}
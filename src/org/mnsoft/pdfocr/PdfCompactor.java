@@ -0,0 +1,312 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PRIndirectReference;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Makes a PDF smaller without touching its content: identical
+ * streams, fonts and graphics states are stored only once,
+ * unused objects are removed, and the file is written with
+ * object streams and a cross reference stream (PDF 1.5 "full
+ * compression").<p>
+ *
+ * The OCR engine embeds the same fonts on every page, and the
+ * merge imports them page by page, so there is a lot to gain.
+ * Two objects are taken as identical if their dictionaries
+ * and stream bytes are; since merging objects makes the objects
+ * that refer to them identical as well, this is repeated a few
+ * times. Only objects that may be shared between pages are
+ * merged: streams, fonts, font descriptors, encodings, graphics
+ * states and arrays. Pages and annotations are never merged.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PdfCompactor {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log        = Logger.getLogger(PdfCompactor.class);
+
+  /**
+   * Maximum number of passes over the objects.
+   */
+  private static final int    MAX_PASSES = 4;
+
+  /**
+   * Dictionary types that may be merged.
+   */
+  private static final String SHAREABLE  = " /Font /FontDescriptor /Encoding /ExtGState ";
+
+
+  /**
+   * Utility class.
+   */
+  private PdfCompactor() {
+  }
+
+
+  /**
+   * Compact a PDF.
+   *
+   * @param in The PDF
+   * @param out The compacted PDF to write
+   * @return The number of objects that were merged with identical ones.
+   * @throws IOException
+   * @throws DocumentException
+   */
+  public static int compact(File in, File out) throws IOException, DocumentException {
+    final PdfReader reader = new PdfReader(in.getAbsolutePath());
+
+    try {
+      final int merged  = dedupe(reader);
+      final int removed = reader.removeUnusedObjects();
+
+      log.debug("+ Compacting " + in.getAbsolutePath() + ": " + merged + " objects merged, " + removed + " unused objects removed.");
+
+      write(reader, out, true);
+
+      return merged;
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Write the objects of a reader to a file.
+   *
+   * @param reader The reader
+   * @param out The file
+   * @param fullCompression Whether to use object streams and a cross reference stream
+   * @throws IOException
+   * @throws DocumentException
+   */
+  static void write(PdfReader reader, File out, boolean fullCompression) throws IOException, DocumentException {
+    final OutputStream os = new FileOutputStream(out);
+
+    try {
+      final PdfStamper stamper = new PdfStamper(reader, os);
+
+      if (fullCompression) {
+        stamper.setFullCompression();
+      }
+
+      stamper.close();
+    } finally {
+      os.close();
+    }
+  }
+
+
+  /**
+   * Merge identical objects of a reader, by pointing all
+   * references to the first of them. The others become
+   * unused; remove them with {@link PdfReader#removeUnusedObjects()}.
+   *
+   * @param reader The reader
+   * @return The number of objects that were merged.
+   * @throws IOException
+   */
+  public static int dedupe(PdfReader reader) throws IOException {
+    int total = 0;
+
+    for (int pass = 0; pass < MAX_PASSES; pass++) {
+      final Map<String, Integer>  seen    = new HashMap<String, Integer>();
+      final Map<Integer, Integer> replace = new HashMap<Integer, Integer>();
+
+      for (int i = 1; i < reader.getXrefSize(); i++) {
+        final PdfObject obj = reader.getPdfObject(i);
+
+        if (!isShareable(obj)) {
+          continue;
+        }
+
+        final String  key   = getKey(obj);
+        final Integer first = seen.get(key);
+
+        if (first == null) {
+          seen.put(key, Integer.valueOf(i));
+        } else {
+          replace.put(Integer.valueOf(i), first);
+        }
+      }
+
+      if (replace.isEmpty()) {
+        break;
+      }
+
+      for (int i = 1; i < reader.getXrefSize(); i++) {
+        remap(reader.getPdfObject(i), replace);
+      }
+
+      remap(reader.getTrailer(), replace);
+
+      total += replace.size();
+    }
+
+    return total;
+  }
+
+
+  /**
+   * Check whether an object may be merged with an identical one.
+   *
+   * @param obj The object
+   * @return true if it may be shared.
+   */
+  private static boolean isShareable(PdfObject obj) {
+    if (obj == null) {
+      return false;
+    }
+
+    if (obj.isStream() || obj.isArray()) {
+      return true;
+    }
+
+    if (!obj.isDictionary()) {
+      return false;
+    }
+
+    final PdfName type = ((PdfDictionary) obj).getAsName(PdfName.TYPE);
+
+    return (type != null) && (SHAREABLE.indexOf(" " + type.toString() + " ") >= 0);
+  }
+
+
+  /**
+   * Get a key for an object that is the same for identical objects.
+   *
+   * @param obj The object
+   * @return The key
+   * @throws IOException
+   */
+  private static String getKey(PdfObject obj) throws IOException {
+    final StringBuffer sb = new StringBuffer();
+
+    append(obj, sb);
+
+    if (obj.isStream()) {
+      sb.append(" stream ").append(StringUtility.md5(PdfReader.getStreamBytesRaw((PRStream) obj)));
+    }
+
+    return sb.toString();
+  }
+
+
+  /**
+   * Append an object to a key, with the keys of
+   * dictionaries in order. References are not
+   * followed.
+   *
+   * @param obj The object
+   * @param sb The key so far
+   */
+  private static void append(PdfObject obj, StringBuffer sb) {
+    if (obj == null) {
+      sb.append("null ");
+    } else if (obj.isIndirect()) {
+      sb.append(((PdfIndirectReference) obj).getNumber()).append(" R ");
+    } else if (obj.isDictionary()) {
+      final Map<String, PdfObject> sorted = new TreeMap<String, PdfObject>();
+
+      for (final Iterator<?> it = ((PdfDictionary) obj).getKeys().iterator(); it.hasNext();) {
+        final PdfName name = (PdfName) it.next();
+
+        /*
+         * The length of a stream is covered by its bytes
+         */
+        if (obj.isStream() && PdfName.LENGTH.equals(name)) {
+          continue;
+        }
+
+        sorted.put(name.toString(), ((PdfDictionary) obj).get(name));
+      }
+
+      sb.append("<< ");
+
+      for (final Iterator<Map.Entry<String, PdfObject>> it = sorted.entrySet().iterator(); it.hasNext();) {
+        final Map.Entry<String, PdfObject> entry = it.next();
+
+        sb.append(entry.getKey()).append(' ');
+        append(entry.getValue(), sb);
+      }
+
+      sb.append(">> ");
+    } else if (obj.isArray()) {
+      final PdfArray array = (PdfArray) obj;
+
+      sb.append("[ ");
+
+      for (int i = 0; i < array.size(); i++) {
+        append(array.getPdfObject(i), sb);
+      }
+
+      sb.append("] ");
+    } else {
+      sb.append(obj.type()).append(':').append(obj.toString()).append(' ');
+    }
+  }
+
+
+  /**
+   * Point the references in an object to the objects
+   * they are merged into.
+   *
+   * @param obj The object
+   * @param replace The object numbers to replace, with their replacements
+   */
+  private static void remap(PdfObject obj, Map<Integer, Integer> replace) {
+    if (obj == null) {
+      return;
+    }
+
+    if (obj instanceof PRIndirectReference) {
+      final PRIndirectReference ref = (PRIndirectReference) obj;
+      final Integer             to  = replace.get(Integer.valueOf(ref.getNumber()));
+
+      if (to != null) {
+        ref.setNumber(to.intValue(), 0);
+      }
+    } else if (obj.isDictionary()) {
+      final PdfDictionary dict = (PdfDictionary) obj;
+
+      for (final Iterator<?> it = dict.getKeys().iterator(); it.hasNext();) {
+        remap(dict.get((PdfName) it.next()), replace);
+      }
+    } else if (obj.isArray()) {
+      final PdfArray array = (PdfArray) obj;
+
+      for (int i = 0; i < array.size(); i++) {
+        remap(array.getPdfObject(i), replace);
+      }
+    }
+  }
+}
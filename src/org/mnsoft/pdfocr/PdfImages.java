@@ -0,0 +1,620 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PRIndirectReference;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfBoolean;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.codec.CCITTG4Encoder;
+import com.lowagie.text.pdf.codec.TIFFFaxDecoder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+
+/**
+ * Helpers to turn image XObjects of a PDF into
+ * BufferedImages and back.<p>
+ *
+ * Only the kinds of images that come out of scanners
+ * are decoded: gray and RGB with 8 bits per component,
+ * and bilevel gray, either uncompressed, Flate compressed
+ * (with or without predictor) or JPEG. Anything else, in
+ * particular masks, indexed and CMYK images and images with
+ * a Decode array, is left alone: {@link #decode} returns null.<p>
+ *
+ * The methods work on raw stream bytes read beforehand,
+ * and do not touch the PdfReader, so that they can run on
+ * several threads at once.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PdfImages {
+  /**
+   * Utility class.
+   */
+  private PdfImages() {
+  }
+
+
+  /**
+   * Check whether a dictionary is that of an image XObject.
+   *
+   * @param dict The dictionary
+   * @return true if it is an image.
+   */
+  public static boolean isImage(PdfDictionary dict) {
+    return (dict != null) && PdfName.IMAGE.equals(dict.get(PdfName.SUBTYPE));
+  }
+
+
+  /**
+   * Get the single filter of an image.
+   *
+   * @param dict The image dictionary
+   * @return The filter, null if there is none, or {@link PdfName#FILTER} itself if there are several.
+   */
+  public static PdfName getFilter(PdfDictionary dict) {
+    final PdfObject filter = PdfReader.getPdfObject(dict.get(PdfName.FILTER));
+
+    if (filter == null) {
+      return null;
+    }
+
+    if (filter.isName()) {
+      return (PdfName) filter;
+    }
+
+    if (filter.isArray()) {
+      final PdfArray array = (PdfArray) filter;
+
+      if (array.size() == 0) {
+        return null;
+      }
+
+      if (array.size() == 1) {
+        return (PdfName) PdfReader.getPdfObject(array.getPdfObject(0));
+      }
+    }
+
+    return PdfName.FILTER;
+  }
+
+
+  /**
+   * Get the number of colour components of an image.
+   *
+   * @param dict The image dictionary
+   * @return 1 for gray, 3 for RGB, or 0 if the colour space is not supported.
+   */
+  public static int getComponents(PdfDictionary dict) {
+    final PdfObject cs = PdfReader.getPdfObject(dict.get(PdfName.COLORSPACE));
+
+    if (PdfName.DEVICEGRAY.equals(cs)) {
+      return 1;
+    }
+
+    if (PdfName.DEVICERGB.equals(cs)) {
+      return 3;
+    }
+
+    /*
+     * [/ICCBased stream], with /N in the stream dictionary
+     */
+    if ((cs != null) && cs.isArray() && (((PdfArray) cs).size() == 2) && PdfName.ICCBASED.equals(PdfReader.getPdfObject(((PdfArray) cs).getPdfObject(0)))) {
+      final PdfObject profile = PdfReader.getPdfObject(((PdfArray) cs).getPdfObject(1));
+
+      if ((profile != null) && profile.isDictionary()) {
+        final PdfNumber n = ((PdfDictionary) profile).getAsNumber(PdfName.N);
+
+        if ((n != null) && ((n.intValue() == 1) || (n.intValue() == 3))) {
+          return n.intValue();
+        }
+      }
+    }
+
+    return 0;
+  }
+
+
+  /**
+   * Check whether an image is bilevel.
+   *
+   * @param dict The image dictionary
+   * @return true if the image has one bit per component.
+   */
+  public static boolean isBilevel(PdfDictionary dict) {
+    final PdfNumber bpc = dict.getAsNumber(PdfName.BITSPERCOMPONENT);
+
+    return (bpc != null) && (bpc.intValue() == 1);
+  }
+
+
+  /**
+   * Check whether an image can be decoded by {@link #decode}.
+   *
+   * @param dict The image dictionary
+   * @return true if it can be decoded.
+   */
+  public static boolean isSupported(PdfDictionary dict) {
+    if (!isImage(dict)) {
+      return false;
+    }
+
+    if (dict.contains(PdfName.IMAGEMASK) || dict.contains(PdfName.MASK) || dict.contains(PdfName.DECODE)) {
+      return false;
+    }
+
+    final PdfName filter = getFilter(dict);
+    if ((filter != null) && !PdfName.FLATEDECODE.equals(filter) && !PdfName.DCTDECODE.equals(filter)) {
+      return false;
+    }
+
+    final PdfNumber bpc        = dict.getAsNumber(PdfName.BITSPERCOMPONENT);
+    final int       components = getComponents(dict);
+
+    if ((bpc == null) || (components == 0)) {
+      return false;
+    }
+
+    if (bpc.intValue() == 1) {
+      return (components == 1) && !PdfName.DCTDECODE.equals(filter);
+    }
+
+    return bpc.intValue() == 8;
+  }
+
+
+  /**
+   * Find the images {@link #decode} can decode, on the
+   * pages and in the forms used on them.
+   *
+   * @param reader The reader
+   * @return The object numbers of the images, with the width in points of the widest page they are on.
+   */
+  public static Map<Integer, Float> findImages(PdfReader reader) {
+    final Map<Integer, Float> images  = new LinkedHashMap<Integer, Float>();
+    final Set<Integer>        visited = new HashSet<Integer>();
+
+    for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+      final Rectangle size = reader.getPageSize(i);
+
+      findImages(reader, reader.getPageN(i).getAsDict(PdfName.RESOURCES), size.getWidth(), images, visited);
+
+      visited.clear();
+    }
+
+    return images;
+  }
+
+
+  /**
+   * Find the images in the resources of a page or form.
+   *
+   * @param reader The reader
+   * @param resources The resources
+   * @param width The width of the page, in points
+   * @param images The images found so far
+   * @param visited The forms seen so far on this page
+   */
+  private static void findImages(PdfReader reader, PdfDictionary resources, float width, Map<Integer, Float> images, Set<Integer> visited) {
+    if (resources == null) {
+      return;
+    }
+
+    final PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+    if (xobjects == null) {
+      return;
+    }
+
+    for (final Iterator<?> it = xobjects.getKeys().iterator(); it.hasNext();) {
+      final PdfObject ref = xobjects.get((PdfName) it.next());
+
+      if ((ref == null) || !(ref instanceof PRIndirectReference)) {
+        continue;
+      }
+
+      final Integer   number = Integer.valueOf(((PRIndirectReference) ref).getNumber());
+      final PdfObject obj    = reader.getPdfObject(number.intValue());
+
+      if ((obj == null) || !obj.isStream()) {
+        continue;
+      }
+
+      final PdfDictionary dict = (PdfDictionary) obj;
+
+      if (PdfName.FORM.equals(dict.get(PdfName.SUBTYPE))) {
+        if (visited.add(number)) {
+          findImages(reader, dict.getAsDict(PdfName.RESOURCES), width, images, visited);
+        }
+
+        continue;
+      }
+
+      if (!PdfImages.isSupported(dict)) {
+        continue;
+      }
+
+      final Float before = images.get(number);
+      if ((before == null) || (before.floatValue() < width)) {
+        images.put(number, Float.valueOf(width));
+      }
+    }
+  }
+
+
+  /**
+   * Decode an image.
+   *
+   * @param dict The image dictionary
+   * @param raw The raw, still encoded, stream bytes
+   * @return The image, or null if it is not supported.
+   * @throws IOException
+   */
+  public static BufferedImage decode(PdfDictionary dict, byte[] raw) throws IOException {
+    if (!isSupported(dict)) {
+      return null;
+    }
+
+    final PdfName filter = getFilter(dict);
+
+    if (PdfName.DCTDECODE.equals(filter)) {
+      /*
+       * ImageIO returns null or throws on JPEGs it cannot
+       * read, e.g. CMYK. Either way, we leave them alone.
+       */
+      try {
+        return ImageIO.read(new ByteArrayInputStream(raw));
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    byte[] data = raw;
+
+    if (PdfName.FLATEDECODE.equals(filter)) {
+      data = PdfReader.FlateDecode(raw);
+
+      if (data == null) {
+        return null;
+      }
+
+      final PdfObject parms = PdfReader.getPdfObject(dict.get(PdfName.DECODEPARMS));
+      if (parms != null) {
+        data = PdfReader.decodePredictor(data, parms);
+      }
+    }
+
+    final int width      = dict.getAsNumber(PdfName.WIDTH).intValue();
+    final int height     = dict.getAsNumber(PdfName.HEIGHT).intValue();
+    final int components = getComponents(dict);
+
+    if ((width <= 0) || (height <= 0)) {
+      return null;
+    }
+
+    if (isBilevel(dict)) {
+      /*
+       * Packed rows, 0 is black: the same layout and
+       * palette as TYPE_BYTE_BINARY.
+       */
+      final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+      final byte[]        pixel = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+      if (data.length < pixel.length) {
+        return null;
+      }
+
+      System.arraycopy(data, 0, pixel, 0, pixel.length);
+
+      return image;
+    }
+
+    if (components == 1) {
+      final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+      final byte[]        pixel = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+      if (data.length < pixel.length) {
+        return null;
+      }
+
+      System.arraycopy(data, 0, pixel, 0, pixel.length);
+
+      return image;
+    }
+
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    final byte[]        pixel = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+    if (data.length < pixel.length) {
+      return null;
+    }
+
+    for (int i = 0; i < pixel.length; i += 3) {
+      pixel[i]     = data[i + 2];
+      pixel[i + 1] = data[i + 1];
+      pixel[i + 2] = data[i];
+    }
+
+    return image;
+  }
+
+
+  /**
+   * Decode an image at a low resolution, for looking at
+   * rather than for writing back. JPEGs are decoded at
+   * about the given width only; CCITT fax images, the
+   * usual format of bilevel scans, are decoded, too.
+   *
+   * @param dict The image dictionary
+   * @param raw The raw, still encoded, stream bytes
+   * @param width The width needed
+   * @return The image, at least about width wide if the original is, or null if it cannot be decoded.
+   * @throws IOException
+   */
+  public static BufferedImage decodeSampled(PdfDictionary dict, byte[] raw, int width) throws IOException {
+    final PdfName filter = getFilter(dict);
+
+    if (PdfName.CCITTFAXDECODE.equals(filter)) {
+      return decodeFax(dict, raw);
+    }
+
+    if (!isSupported(dict)) {
+      return null;
+    }
+
+    if (!PdfName.DCTDECODE.equals(filter)) {
+      return decode(dict, raw);
+    }
+
+    final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+
+    if (!readers.hasNext()) {
+      return null;
+    }
+
+    final ImageReader      reader = readers.next();
+    final ImageInputStream in     = ImageIO.createImageInputStream(new ByteArrayInputStream(raw));
+
+    try {
+      reader.setInput(in);
+
+      final int            sub   = Math.max(1, reader.getWidth(0) / Math.max(1, width));
+      final ImageReadParam param = reader.getDefaultReadParam();
+
+      param.setSourceSubsampling(sub, sub, 0, 0);
+
+      return reader.read(0, param);
+    } catch (IOException e) {
+      /*
+       * E.g. CMYK, which ImageIO cannot read
+       */
+      return null;
+    } finally {
+      reader.dispose();
+      in.close();
+    }
+  }
+
+
+  /**
+   * Decode a CCITT fax encoded image.
+   *
+   * @param dict The image dictionary
+   * @param raw The raw, still encoded, stream bytes
+   * @return The image, of TYPE_BYTE_BINARY, or null if it cannot be decoded.
+   */
+  public static BufferedImage decodeFax(PdfDictionary dict, byte[] raw) {
+    if (dict.contains(PdfName.DECODE) || dict.contains(PdfName.IMAGEMASK)) {
+      return null;
+    }
+
+    PdfDictionary parms = null;
+
+    final PdfObject p = PdfReader.getPdfObject(dict.get(PdfName.DECODEPARMS));
+    if ((p != null) && p.isDictionary()) {
+      parms = (PdfDictionary) p;
+    }
+
+    final int     w     = getInt(parms, PdfName.COLUMNS, getInt(dict, PdfName.WIDTH, 1728));
+    final int     h     = getInt(dict, PdfName.HEIGHT, getInt(parms, PdfName.ROWS, 0));
+    final int     k     = getInt(parms, PdfName.K, 0);
+    final boolean align = (parms != null) && PdfBoolean.PDFTRUE.equals(parms.get(PdfName.ENCODEDBYTEALIGN));
+
+    if ((w <= 0) || (h <= 0)) {
+      return null;
+    }
+
+    final BufferedImage  image   = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+    final byte[]         pixel   = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    final TIFFFaxDecoder decoder = new TIFFFaxDecoder(1, w, h);
+
+    try {
+      if (k < 0) {
+        decoder.decodeT6(pixel, raw, 0, h, 0);
+      } else {
+        decoder.decode2D(pixel, raw, 0, h, ((k > 0) ? 1 : 0) | (align ? 4 : 0));
+      }
+    } catch (RuntimeException e) {
+      return null;
+    }
+
+    /*
+     * The decoder sets the bits of black pixels, whatever
+     * BlackIs1 says; TYPE_BYTE_BINARY takes 0 for black
+     */
+    for (int i = 0; i < pixel.length; i++) {
+      pixel[i] = (byte) ~pixel[i];
+    }
+
+    return image;
+  }
+
+
+  /**
+   * Get an integer from a dictionary.
+   *
+   * @param dict The dictionary, may be null
+   * @param key The key
+   * @param def The default
+   * @return The integer, or the default if there is none.
+   */
+  private static int getInt(PdfDictionary dict, PdfName key, int def) {
+    final PdfNumber n = (dict == null) ? null : dict.getAsNumber(key);
+
+    return (n == null) ? def : n.intValue();
+  }
+
+
+  /**
+   * Encode a gray or colour image as JPEG.
+   *
+   * @param image The image
+   * @param quality The quality, from 0 to 1
+   * @return The JPEG bytes
+   * @throws IOException
+   */
+  public static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+    final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+
+    if (!writers.hasNext()) {
+      throw new IOException("No JPEG writer available");
+    }
+
+    final ImageWriter           writer = writers.next();
+    final ByteArrayOutputStream bos    = new ByteArrayOutputStream();
+    final ImageOutputStream     ios    = ImageIO.createImageOutputStream(bos);
+
+    try {
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+      ios.close();
+    }
+
+    return bos.toByteArray();
+  }
+
+
+  /**
+   * Encode a bilevel image as CCITT Group 4.
+   *
+   * @param image The image, of TYPE_BYTE_BINARY
+   * @return The G4 bytes
+   */
+  public static byte[] encodeG4(BufferedImage image) {
+    final byte[] pixel = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    final byte[] bits  = new byte[pixel.length];
+
+    /*
+     * The encoder takes 1 for black
+     */
+    for (int i = 0; i < pixel.length; i++) {
+      bits[i] = (byte) ~pixel[i];
+    }
+
+    return CCITTG4Encoder.compress(bits, image.getWidth(), image.getHeight());
+  }
+
+
+  /**
+   * Scale an image.
+   *
+   * @param image The image
+   * @param width The new width
+   * @param height The new height
+   * @return The scaled image, of the same type
+   */
+  public static BufferedImage scale(BufferedImage image, int width, int height) {
+    final BufferedImage scaled = new BufferedImage(width, height, image.getType());
+    final Graphics2D    g      = scaled.createGraphics();
+
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      g.dispose();
+    }
+
+    return scaled;
+  }
+
+
+  /**
+   * Set the dictionary entries of an image
+   * that was encoded as JPEG.
+   *
+   * @param dict The image dictionary
+   * @param width The width
+   * @param height The height
+   */
+  public static void setJpeg(PdfDictionary dict, int width, int height) {
+    dict.put(PdfName.FILTER, PdfName.DCTDECODE);
+    dict.remove(PdfName.DECODEPARMS);
+    dict.put(PdfName.BITSPERCOMPONENT, new PdfNumber(8));
+    dict.put(PdfName.WIDTH, new PdfNumber(width));
+    dict.put(PdfName.HEIGHT, new PdfNumber(height));
+  }
+
+
+  /**
+   * Set the dictionary entries of an image
+   * that was encoded as CCITT Group 4.
+   *
+   * @param dict The image dictionary
+   * @param width The width
+   * @param height The height
+   */
+  public static void setG4(PdfDictionary dict, int width, int height) {
+    final PdfDictionary parms = new PdfDictionary();
+
+    parms.put(PdfName.K, new PdfNumber(-1));
+    parms.put(PdfName.COLUMNS, new PdfNumber(width));
+    parms.put(PdfName.ROWS, new PdfNumber(height));
+    parms.put(PdfName.BLACKIS1, PdfBoolean.PDFFALSE);
+
+    dict.put(PdfName.FILTER, PdfName.CCITTFAXDECODE);
+    dict.put(PdfName.DECODEPARMS, parms);
+    dict.put(PdfName.BITSPERCOMPONENT, new PdfNumber(1));
+    dict.put(PdfName.WIDTH, new PdfNumber(width));
+    dict.put(PdfName.HEIGHT, new PdfNumber(height));
+  }
+}
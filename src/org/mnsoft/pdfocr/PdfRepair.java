@@ -0,0 +1,708 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Repairs files that iText cannot open, so that they can
+ * be worked on like any other, instead of failing on every
+ * run until they are fixed by hand. The repaired copy is
+ * what goes to the engine and what the text is put under;
+ * the result replaces the broken original.<p>
+ *
+ * The steps go from cheap to expensive, and stop at the
+ * first that gives a file that opens without having to be
+ * rebuilt, with at least one page:
+ *
+ * <ol>
+ *   <li>in the JVM: anything before the %PDF- header and
+ *       after the last %%EOF is cut off; a file that was cut
+ *       off before its trailer gets one pointing to its
+ *       catalog; the file is then read with its cross
+ *       reference table rebuilt from the objects, and written
+ *       again from scratch</li>
+ *   <li>REPAIRCMD, an external command, e.g. Ghostscript or
+ *       qpdf, with ###IF### and ###OF### for its input and
+ *       output file, run for at most REPAIRTIMEOUT seconds</li>
+ * </ol>
+ *
+ * Encrypted files are not repaired: their protection is not
+ * ours to remove.<p>
+ *
+ * The broken file is never read into memory as a whole: it is
+ * searched and copied in pieces, and the trimmed copy is read
+ * from the repair directory as any other file.<p>
+ *
+ * Results are kept in the repair directory, by the MD5 of
+ * the broken file, so that each file costs this only once:
+ * a repaired copy until the file has been worked on, and a
+ * marker for a file that could not be repaired, until it
+ * changes.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PdfRepair {
+  /**
+   * Logger for this class
+   */
+  private static final Logger  log               = Logger.getLogger(PdfRepair.class);
+
+  /**
+   * Default repair directory, relative to the working directory.
+   */
+  public static final String   DEFAULT_DIR       = ".pdfocr-repair";
+
+  /**
+   * Repaired in the JVM.
+   */
+  public static final String   JVM               = "jvm";
+
+  /**
+   * Repaired by REPAIRCMD.
+   */
+  public static final String   COMMAND           = "command";
+
+  /**
+   * Extension of the markers of files that could not be repaired.
+   */
+  private static final String  FAILED            = ".failed";
+
+  /**
+   * Number of bytes at the start of the file in which
+   * the header is looked for.
+   */
+  private static final int     HEADER_WINDOW     = 64 * 1024;
+
+  /**
+   * Number of bytes of the file read at a time.
+   */
+  private static final int     BUFFER            = 64 * 1024;
+
+  /**
+   * Number of bytes by which the windows searched
+   * for the catalog overlap.
+   */
+  private static final int     OVERLAP           = 4 * 1024;
+
+  /**
+   * Object and generation number of the catalog.
+   */
+  private static final Pattern CATALOG           = Pattern.compile("(\\d+)\\s+(\\d+)\\s+obj\\s*<<[^>]*?/Type\\s*/Catalog\\b");
+
+  /**
+   * The repair directory.
+   */
+  private final File           dir;
+
+  /**
+   * The external command, or null.
+   */
+  private final String         command;
+
+  /**
+   * Seconds the external command may take.
+   */
+  private final long           timeout;
+
+
+  /**
+   * Constructor.
+   *
+   * @param dir The repair directory
+   * @param command The external command, with ###IF### and ###OF###, or null
+   * @param timeout Seconds the external command may take
+   * @throws IOException If the directory cannot be created
+   */
+  public PdfRepair(File dir, String command, long timeout) throws IOException {
+    this.dir     = dir;
+    this.command = ((command == null) || "".equals(command.trim())) ? null : command.trim();
+    this.timeout = timeout;
+
+    FileUtils.forceMkdir(dir);
+  }
+
+
+  /**
+   * A repaired copy of a file.
+   */
+  public static class Result {
+    /**
+     * The repaired copy.
+     */
+    public final File   file;
+
+    /**
+     * How it was repaired, {@link #JVM} or {@link #COMMAND}.
+     */
+    public final String how;
+
+
+    Result(File file, String how) {
+      this.file = file;
+      this.how  = how;
+    }
+  }
+
+
+  /**
+   * Repair a file, or get its repaired copy from
+   * an earlier run.
+   *
+   * @param file The broken file
+   * @return The repaired copy, or null if it cannot be repaired.
+   * @throws IOException If the file cannot be read
+   */
+  public Result repair(File file) throws IOException {
+    final String key    = StringUtility.md5(file);
+    final File   marker = new File(this.dir, key + FAILED);
+
+    for (final String how : new String[] { JVM, COMMAND }) {
+      final File cached = new File(this.dir, key + "." + how + ".pdf");
+
+      if (cached.exists()) {
+        log.debug("+ Using the repaired copy of " + file.getAbsolutePath() + " from an earlier run.");
+
+        Metrics.add("repair.cacheHits", 1);
+
+        return new Result(cached, how);
+      }
+    }
+
+    if (marker.exists()) {
+      log.debug("+ " + file.getAbsolutePath() + " could not be repaired in an earlier run.");
+
+      Metrics.add("repair.cacheHits", 1);
+
+      return null;
+    }
+
+    if (isEncrypted(file)) {
+      log.warn("! WARNING: " + file.getAbsolutePath() + " is encrypted. Not repairing it.");
+
+      FileUtils.touch(marker);
+
+      return null;
+    }
+
+    final long start  = System.currentTimeMillis();
+    final File target = File.createTempFile(key + ".", ".tmp", this.dir);
+
+    String     how    = null;
+
+    if (repairInJvm(file, target)) {
+      how = JVM;
+    } else if ((this.command != null) && repairByCommand(file, key, target)) {
+      how = COMMAND;
+    }
+
+    if (how == null) {
+      log.warn("! WARNING: Could not repair " + file.getAbsolutePath() + ".");
+
+      Metrics.add("repair.failed", 1);
+
+      FileUtils.deleteQuietly(target);
+      FileUtils.touch(marker);
+
+      return null;
+    }
+
+    final File result = new File(this.dir, key + "." + how + ".pdf");
+
+    FileUtils.deleteQuietly(result);
+    FileUtils.moveFile(target, result);
+
+    log.info("+ Repaired " + file.getAbsolutePath() + " (" + how + ") in " + (System.currentTimeMillis() - start) + " ms.");
+
+    Metrics.add("repair." + how, 1);
+
+    return new Result(result, how);
+  }
+
+
+  /**
+   * Forget the repaired copy of a file, once the
+   * file has been replaced by the result.
+   *
+   * @param result The repaired copy
+   */
+  public void forget(Result result) {
+    FileUtils.deleteQuietly(result.file);
+  }
+
+
+  /**
+   * Repair a file in the JVM. The trimmed file is
+   * written to the repair directory and read from
+   * there, not held in memory.
+   *
+   * @param file The broken file
+   * @param target The repaired file to write
+   * @return true if it was repaired.
+   */
+  boolean repairInJvm(File file, File target) {
+    File trimmed = null;
+
+    try {
+      trimmed = File.createTempFile(target.getName() + ".", ".pdf", target.getParentFile());
+
+      if (!trim(file, trimmed)) {
+        return false;
+      }
+
+      final PdfReader reader = new PdfReader(new RandomAccessFileOrArray(trimmed.getAbsolutePath()), null);
+
+      try {
+        if (reader.getNumberOfPages() == 0) {
+          return false;
+        }
+
+        /*
+         * Written from scratch, with a new cross reference table
+         */
+        final OutputStream os = new FileOutputStream(target);
+
+        try {
+          new PdfStamper(reader, os).close();
+        } finally {
+          os.close();
+        }
+      } finally {
+        reader.close();
+      }
+
+      return check(target);
+    } catch (Exception e) {
+      log.debug("+ Could not repair in the JVM: " + e.getMessage());
+
+      return false;
+    } finally {
+      FileUtils.deleteQuietly(trimmed);
+    }
+  }
+
+
+  /**
+   * Repair a file with the external command.
+   *
+   * @param file The broken file
+   * @param key The key of the file
+   * @param target The repaired file to write
+   * @return true if it was repaired.
+   */
+  boolean repairByCommand(File file, String key, File target) {
+    final File output = new File(this.dir, key + ".log");
+    File       input  = null;
+
+    try {
+      /*
+       * The command gets a copy with a plain
+       * name, for the same reason as the engine
+       */
+      input = File.createTempFile(key + ".", ".pdf", this.dir);
+
+      FileUtils.copyFile(file, input);
+
+      final String[] cmd = StringUtility.split(this.command, " ");
+      for (int i = 0; i < cmd.length; i++) {
+        if ("###IF###".equals(cmd[i])) {
+          cmd[i] = input.getAbsolutePath();
+        } else if ("###OF###".equals(cmd[i])) {
+          cmd[i] = target.getAbsolutePath();
+        }
+      }
+
+      final ProcessBuilder pb = new ProcessBuilder(cmd);
+
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(ProcessBuilder.Redirect.appendTo(output));
+
+      final Process pr = pb.start();
+
+      if (!pr.waitFor(this.timeout, TimeUnit.SECONDS)) {
+        pr.destroyForcibly();
+
+        log.warn("! WARNING: The repair command took longer than " + this.timeout + " seconds, see " + output.getAbsolutePath());
+
+        return false;
+      }
+
+      if (pr.exitValue() != 0) {
+        log.warn("! WARNING: The repair command exited with " + pr.exitValue() + ", see " + output.getAbsolutePath());
+
+        return false;
+      }
+
+      return (target.length() > 0) && check(target);
+    } catch (IOException e) {
+      log.warn("! WARNING: Could not run the repair command: " + e.getMessage());
+
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      return false;
+    } finally {
+      FileUtils.deleteQuietly(input);
+    }
+  }
+
+
+  /**
+   * Check whether a file opens without having
+   * to be rebuilt, and has pages.
+   *
+   * @param file The file
+   * @return true if it does.
+   */
+  static boolean check(File file) {
+    try {
+      final PdfReader reader = new PdfReader(new RandomAccessFileOrArray(file.getAbsolutePath()), null);
+
+      try {
+        return !reader.isRebuilt() && (reader.getNumberOfPages() > 0);
+      } finally {
+        reader.close();
+      }
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+
+  /**
+   * Cut off what is before the header and after the last
+   * %%EOF, and give a file that has no trailer one that
+   * points to its catalog.
+   *
+   * @param file The file
+   * @param trimmed The trimmed file to write
+   * @return true if it was written, false if the file has no header.
+   * @throws IOException
+   */
+  static boolean trim(File file, File trimmed) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      final long start = indexOf(raf, "%PDF-", 0, Math.min(raf.length(), HEADER_WINDOW));
+
+      if (start < 0) {
+        return false;
+      }
+
+      long       end  = raf.length();
+      final long eof  = lastIndexOf(raf, "%%EOF", start);
+
+      if (eof >= 0) {
+        end = eof + 5;
+      }
+
+      String tail = "";
+
+      if ((lastIndexOf(raf, "trailer", start) < 0) && (lastIndexOf(raf, "/XRef", start) < 0)) {
+        final String catalog = findCatalog(raf, start, end);
+
+        if (catalog == null) {
+          return false;
+        }
+
+        tail = "\ntrailer\n<</Root " + catalog + " R>>\n%%EOF\n";
+      }
+
+      final OutputStream os = new BufferedOutputStream(new FileOutputStream(trimmed));
+
+      try {
+        final byte[] buffer = new byte[BUFFER];
+
+        for (long pos = start; pos < end; pos += BUFFER) {
+          final int n = read(raf, pos, buffer, (int) Math.min(BUFFER, end - pos));
+
+          os.write(buffer, 0, n);
+        }
+
+        os.write(latin1(tail));
+      } finally {
+        os.close();
+      }
+
+      return true;
+    } finally {
+      raf.close();
+    }
+  }
+
+
+  /**
+   * Check whether a file is encrypted, by its trailer.
+   *
+   * @param file The file
+   * @return true if it has an /Encrypt entry.
+   * @throws IOException
+   */
+  static boolean isEncrypted(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      return lastIndexOf(raf, "/Encrypt", 0) >= 0;
+    } finally {
+      raf.close();
+    }
+  }
+
+
+  /**
+   * Find the object and generation number of the
+   * catalog. The file is searched in windows that
+   * overlap by {@link #OVERLAP} bytes, so that the
+   * start of the catalog is found in one of them.
+   *
+   * @param raf The file
+   * @param start The first position to look at
+   * @param end The position up to which to look
+   * @return The object and generation number, or null.
+   * @throws IOException
+   */
+  private static String findCatalog(RandomAccessFile raf, long start, long end) throws IOException {
+    final byte[] buffer = new byte[BUFFER];
+
+    for (long pos = start; pos < end; pos += BUFFER - OVERLAP) {
+      final int     n = read(raf, pos, buffer, (int) Math.min(BUFFER, end - pos));
+      final Matcher m = CATALOG.matcher(latin1(buffer, 0, n));
+
+      if (m.find()) {
+        return m.group(1) + " " + m.group(2);
+      }
+
+      if ((pos + n) >= end) {
+        break;
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Find the first occurrence of a word in a file.
+   *
+   * @param raf The file
+   * @param word The word
+   * @param from The first position to look at
+   * @param to The position up to which to look
+   * @return The position, or -1.
+   * @throws IOException
+   */
+  private static long indexOf(RandomAccessFile raf, String word, long from, long to) throws IOException {
+    final byte[] buffer = new byte[BUFFER];
+
+    for (long pos = from; pos <= (to - word.length()); pos += (BUFFER - word.length()) + 1) {
+      final int n = read(raf, pos, buffer, (int) Math.min(BUFFER, to - pos));
+      final int i = indexOf(buffer, word, 0, n);
+
+      if (i >= 0) {
+        return pos + i;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Find the last occurrence of a word in a file.
+   *
+   * @param raf The file
+   * @param word The word
+   * @param from The first position to look at
+   * @return The position, or -1.
+   * @throws IOException
+   */
+  private static long lastIndexOf(RandomAccessFile raf, String word, long from) throws IOException {
+    final byte[] buffer = new byte[BUFFER];
+    long         end    = raf.length();
+
+    while ((end - from) >= word.length()) {
+      final long pos = Math.max(from, end - BUFFER);
+      final int  n   = read(raf, pos, buffer, (int) (end - pos));
+      final int  i   = lastIndexOf(buffer, word, 0, n);
+
+      if (i >= 0) {
+        return pos + i;
+      }
+
+      if (pos == from) {
+        break;
+      }
+
+      end = (pos + word.length()) - 1;
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Read a part of a file.
+   *
+   * @param raf The file
+   * @param pos Where to start
+   * @param buffer The buffer to read into
+   * @param length The number of bytes to read
+   * @return The number of bytes read
+   * @throws IOException
+   */
+  private static int read(RandomAccessFile raf, long pos, byte[] buffer, int length) throws IOException {
+    raf.seek(pos);
+    raf.readFully(buffer, 0, length);
+
+    return length;
+  }
+
+
+  /**
+   * Find the first occurrence of a word.
+   *
+   * @param bytes The bytes
+   * @param word The word
+   * @param from The first position to look at
+   * @param to The position up to which to look
+   * @return The position, or -1.
+   */
+  private static int indexOf(byte[] bytes, String word, int from, int to) {
+    for (int i = from; i <= (to - word.length()); i++) {
+      if (matches(bytes, word, i)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Find the last occurrence of a word.
+   *
+   * @param bytes The bytes
+   * @param word The word
+   * @param from The first position to look at
+   * @param to The position up to which to look
+   * @return The position, or -1.
+   */
+  private static int lastIndexOf(byte[] bytes, String word, int from, int to) {
+    for (int i = to - word.length(); i >= from; i--) {
+      if (matches(bytes, word, i)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * @param bytes The bytes
+   * @param word A word
+   * @param at A position
+   * @return true if the word is at the position.
+   */
+  private static boolean matches(byte[] bytes, String word, int at) {
+    for (int k = 0; k < word.length(); k++) {
+      if (bytes[at + k] != word.charAt(k)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * @param bytes Some bytes
+   * @param start The first
+   * @param end After the last
+   * @return The bytes as ISO-8859-1.
+   */
+  private static String latin1(byte[] bytes, int start, int end) {
+    try {
+      return new String(bytes, start, end - start, "ISO-8859-1");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * @param s A String
+   * @return Its bytes in ISO-8859-1.
+   */
+  private static byte[] latin1(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * Repair files by hand, for trying out REPAIRCMD.
+   *
+   * @param args [-cmd "command"] broken.pdf repaired.pdf
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    String command = null;
+    int    first   = 0;
+
+    if ((args.length > 1) && "-cmd".equals(args[0])) {
+      command = args[1];
+      first   = 2;
+    }
+
+    if ((args.length - first) != 2) {
+      System.err.println("usage: PdfRepair [-cmd \"gs -o ###OF### -sDEVICE=pdfwrite ###IF###\"] broken.pdf repaired.pdf");
+      System.exit(1);
+    }
+
+    final File      dir    = new File(System.getProperty("java.io.tmpdir"), "pdfrepair" + System.currentTimeMillis());
+    final PdfRepair repair = new PdfRepair(dir, command, 600);
+
+    try {
+      final Result result = repair.repair(new File(args[first]));
+
+      if (result == null) {
+        System.out.println(args[first] + ": cannot be repaired");
+        System.exit(2);
+      }
+
+      FileUtils.copyFile(result.file, new File(args[first + 1]));
+
+      System.out.println(args[first] + ": repaired (" + result.how + ")");
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+}
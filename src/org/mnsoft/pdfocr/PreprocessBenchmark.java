@@ -0,0 +1,160 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+
+/**
+ * Compares the time the engine takes per page with and
+ * without preprocessing. Each file is copied, optionally
+ * preprocessed, and run through the engine configured as
+ * for the wrapper:
+ *
+ * <pre>
+ *   java org.mnsoft.pdfocr.PreprocessBenchmark [PREPROCESS=deskew,despeckle,binarize] file.pdf ...
+ * </pre>
+ *
+ * For each file, the engine seconds per page of the raw and
+ * the preprocessed copy are printed, together with the time
+ * the preprocessing itself took. What the engine prints is
+ * appended to a log next to the scratch directory; its
+ * output files are not kept; compare it by running the wrapper on copies of the
+ * files, if the recognition quality is of interest, too.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class PreprocessBenchmark {
+  /**
+   * @param args [parameters for the wrapper] files
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final StringBuffer params = new StringBuffer();
+    int                n      = 0;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].indexOf('=') > 0) {
+        params.append(args[i]).append(" ");
+      } else {
+        n++;
+      }
+    }
+
+    if (n == 0) {
+      System.err.println("usage: PreprocessBenchmark [PREPROCESS=deskew,despeckle,binarize] file.pdf ...");
+      System.exit(1);
+    }
+
+    final Wrapper wrapper = new Wrapper(".");
+    wrapper.init(params.toString().trim().split(" "));
+
+    String steps = wrapper.getParameter("PREPROCESS");
+    if ((steps == null) || "".equals(steps) || "false".equals(steps)) {
+      steps = "deskew,despeckle,binarize";
+    }
+
+    final Preprocessor preprocessor = new Preprocessor(Runtime.getRuntime().availableProcessors(), steps.indexOf("deskew") >= 0, steps.indexOf("despeckle") >= 0, steps.indexOf("binarize") >= 0);
+    final File         dir          = new File(System.getProperty("java.io.tmpdir"), "preprocessbench" + System.currentTimeMillis());
+    FileUtils.forceMkdir(dir);
+
+    System.out.println("file\tpages\traw s/page\t" + steps + " s/page\tpreprocess s/page");
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].indexOf('=') > 0) {
+          continue;
+        }
+
+        final File file  = new File(args[i]);
+        final int  pages = getPages(file);
+
+        final File raw = new File(dir, "raw.pdf");
+        FileUtils.copyFile(file, raw);
+
+        final double rawSeconds = runEngine(wrapper, raw);
+
+        final File cleaned = new File(dir, "cleaned.pdf");
+        final long start   = System.currentTimeMillis();
+
+        preprocessor.preprocess(raw, cleaned);
+
+        final double preprocessSeconds = (System.currentTimeMillis() - start) / 1000.0;
+        final double cleanedSeconds    = runEngine(wrapper, cleaned);
+
+        System.out.println(file.getName() + "\t" + pages + "\t" + format(rawSeconds / pages) + "\t" + format(cleanedSeconds / pages) + "\t" + format(preprocessSeconds / pages));
+
+        FileUtils.cleanDirectory(dir);
+      }
+    } finally {
+      preprocessor.shutdown();
+
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+
+  /**
+   * Run the engine on a file.
+   *
+   * @param wrapper The wrapper, for the command line
+   * @param source The input file of the engine
+   * @return The seconds the engine took
+   * @throws Exception If the engine fails
+   */
+  private static double runEngine(Wrapper wrapper, File source) throws Exception {
+    final File           log = new File(source.getParentFile().getPath() + ".log");
+    final ProcessBuilder pb  = new ProcessBuilder(wrapper.getCommand(source));
+
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+
+    final long start = System.currentTimeMillis();
+    final int  exit  = pb.start().waitFor();
+
+    if (exit != 0) {
+      throw new Exception("The engine exited with " + exit + " on " + source.getAbsolutePath() + ", see " + log.getAbsolutePath());
+    }
+
+    return (System.currentTimeMillis() - start) / 1000.0;
+  }
+
+
+  /**
+   * Get the number of pages of a PDF.
+   *
+   * @param file The PDF
+   * @return The number of pages, at least 1
+   * @throws Exception
+   */
+  private static int getPages(File file) throws Exception {
+    final PdfReader reader = new PdfReader(new RandomAccessFileOrArray(file.getAbsolutePath()), null);
+
+    try {
+      return Math.max(1, reader.getNumberOfPages());
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Format seconds with two decimals.
+   *
+   * @param seconds The seconds
+   * @return The formatted seconds
+   */
+  private static String format(double seconds) {
+    return String.valueOf(Math.round(seconds * 100) / 100.0);
+  }
+}
@@ -0,0 +1,628 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PRStream;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+
+import org.apache.log4j.Logger;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Cleans up the page images of a scan before it goes to the
+ * engine, which is slower and less accurate on noisy, skewed
+ * or gray scans:
+ *
+ * <ul>
+ *   <li>deskew: the skew of the text lines, up to {@link #MAX_SKEW}
+ *       degrees, is found from the projection profile of the dark
+ *       pixels, and the image is turned straight</li>
+ *   <li>despeckle: single dark pixels and pairs of them are removed
+ *       from bilevel images; gray images get a 3x3 median filter</li>
+ *   <li>binarize: gray and colour images are turned into bilevel
+ *       images, with a threshold found by Otsu's method</li>
+ * </ul>
+ *
+ * The result is gray or bilevel, which is all the engine needs.
+ * The images are worked on in parallel on a fork/join pool, a few
+ * at a time; reading and writing the PDF stays on the calling
+ * thread, since the PdfReader is not thread safe.<p>
+ *
+ * The cleaned file only goes to the engine; the original stays
+ * the foreground of the merge. The text the engine puts under a
+ * deskewed page follows the straightened lines, so on the original
+ * it is off by up to the skew angle, which is kept small for this
+ * reason.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Preprocessor {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log          = Logger.getLogger(Preprocessor.class);
+
+  /**
+   * Largest skew that is corrected, in degrees.
+   */
+  public static final double  MAX_SKEW     = 5;
+
+  /**
+   * Step in which skew angles are tried, in degrees.
+   */
+  private static final double SKEW_STEP    = 0.1;
+
+  /**
+   * Smallest skew that is corrected, in degrees.
+   */
+  private static final double MIN_SKEW     = 0.2;
+
+  /**
+   * Number of sample columns for finding the skew.
+   */
+  private static final int    SKEW_SAMPLES = 800;
+
+  /**
+   * JPEG quality for gray images that are not binarized.
+   */
+  private static final float  QUALITY      = 0.9f;
+
+  /**
+   * The fork/join pool.
+   */
+  private final ForkJoinPool  pool;
+
+  /**
+   * Whether to deskew.
+   */
+  private final boolean       deskew;
+
+  /**
+   * Whether to despeckle.
+   */
+  private final boolean       despeckle;
+
+  /**
+   * Whether to binarize.
+   */
+  private final boolean       binarize;
+
+
+  /**
+   * Constructor.
+   *
+   * @param threads The parallelism of the fork/join pool
+   * @param deskew Whether to deskew
+   * @param despeckle Whether to despeckle
+   * @param binarize Whether to binarize
+   */
+  public Preprocessor(int threads, boolean deskew, boolean despeckle, boolean binarize) {
+    this.pool      = new ForkJoinPool(Math.max(1, threads));
+    this.deskew    = deskew;
+    this.despeckle = despeckle;
+    this.binarize  = binarize;
+  }
+
+
+  /**
+   * Clean up the page images of a PDF.
+   *
+   * @param in The PDF
+   * @param out The cleaned PDF to write
+   * @return The number of images that were cleaned.
+   * @throws IOException
+   * @throws DocumentException
+   */
+  public int preprocess(File in, File out) throws IOException, DocumentException {
+    final PdfReader reader = new PdfReader(in.getAbsolutePath());
+
+    try {
+      final Map<Integer, Float> images  = PdfImages.findImages(reader);
+      final List<Integer>       numbers = new ArrayList<Integer>(images.keySet());
+      int                       cleaned = 0;
+
+      /*
+       * A few images at a time, so that we do not
+       * hold all of them in memory at once
+       */
+      final int batch = this.pool.getParallelism() * 2;
+
+      for (int start = 0; start < numbers.size(); start += batch) {
+        final List<Page> pages = new ArrayList<Page>();
+
+        for (int i = start; i < Math.min(start + batch, numbers.size()); i++) {
+          final Page page = new Page();
+
+          page.number = numbers.get(i).intValue();
+          page.dict   = (PRStream) reader.getPdfObject(page.number);
+          page.raw    = PdfReader.getStreamBytesRaw((PRStream) page.dict);
+
+          pages.add(page);
+        }
+
+        this.pool.invoke(new Clean(pages, 0, pages.size()));
+
+        for (final Page page : pages) {
+          if (page.error != null) {
+            log.warn("! WARNING: Could not clean up an image of " + in.getAbsolutePath() + ": " + page.error);
+
+            continue;
+          }
+
+          if (page.data == null) {
+            continue;
+          }
+
+          final PRStream stream = (PRStream) reader.getPdfObject(page.number);
+
+          stream.setData(page.data, false);
+
+          if (page.g4) {
+            PdfImages.setG4(stream, page.width, page.height);
+          } else {
+            PdfImages.setJpeg(stream, page.width, page.height);
+          }
+
+          stream.put(PdfName.COLORSPACE, PdfName.DEVICEGRAY);
+
+          cleaned++;
+        }
+      }
+
+      final OutputStream os = new FileOutputStream(out);
+
+      try {
+        final PdfStamper stamper = new PdfStamper(reader, os);
+
+        stamper.close();
+      } finally {
+        os.close();
+      }
+
+      return cleaned;
+    } finally {
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Stop the threads.
+   */
+  public void shutdown() {
+    this.pool.shutdown();
+  }
+
+
+  /**
+   * Clean up a single image.
+   *
+   * @param page The image, with its raw bytes; the result is set on it
+   * @throws IOException
+   */
+  void clean(Page page) throws IOException {
+    final BufferedImage image = PdfImages.decode(page.dict, page.raw);
+
+    if (image == null) {
+      return;
+    }
+
+    final int    w         = image.getWidth();
+    final int    h         = image.getHeight();
+    byte[]       gray      = toGray(image);
+    final int    threshold = otsu(gray);
+
+    if (this.deskew) {
+      final double angle = findSkew(gray, w, h, threshold);
+
+      if (Math.abs(angle) >= MIN_SKEW) {
+        gray = rotate(gray, w, h, angle);
+      }
+    }
+
+    page.width  = w;
+    page.height = h;
+
+    if (this.binarize || (image.getType() == BufferedImage.TYPE_BYTE_BINARY)) {
+      final boolean[] black = new boolean[w * h];
+
+      for (int i = 0; i < black.length; i++) {
+        black[i] = (gray[i] & 0xff) < threshold;
+      }
+
+      if (this.despeckle) {
+        despeckle(black, w, h);
+      }
+
+      page.g4   = true;
+      page.data = PdfImages.encodeG4(toBinary(black, w, h));
+    } else {
+      if (this.despeckle) {
+        gray = median(gray, w, h);
+      }
+
+      final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+
+      System.arraycopy(gray, 0, ((DataBufferByte) result.getRaster().getDataBuffer()).getData(), 0, gray.length);
+
+      page.data = PdfImages.encodeJpeg(result, QUALITY);
+    }
+  }
+
+
+  /**
+   * Get the gray values of an image, one byte per pixel.
+   *
+   * @param image The image
+   * @return The gray values
+   */
+  static byte[] toGray(BufferedImage image) {
+    final BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    final Graphics2D    g    = gray.createGraphics();
+
+    try {
+      g.drawImage(image, 0, 0, null);
+    } finally {
+      g.dispose();
+    }
+
+    return ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+  }
+
+
+  /**
+   * Find the threshold between dark and light
+   * by Otsu's method: the one that maximizes
+   * the variance between the two classes.
+   *
+   * @param gray The gray values
+   * @return The threshold; values below it are dark.
+   */
+  static int otsu(byte[] gray) {
+    final long[] histogram = new long[256];
+
+    for (int i = 0; i < gray.length; i++) {
+      histogram[gray[i] & 0xff]++;
+    }
+
+    double sum = 0;
+    for (int i = 0; i < 256; i++) {
+      sum += i * (double) histogram[i];
+    }
+
+    double sumDark   = 0;
+    long   dark      = 0;
+    double best      = -1;
+    int    threshold = 128;
+
+    for (int t = 0; t < 256; t++) {
+      dark += histogram[t];
+      if (dark == 0) {
+        continue;
+      }
+
+      final long light = gray.length - dark;
+      if (light == 0) {
+        break;
+      }
+
+      sumDark += t * (double) histogram[t];
+
+      final double meanDark  = sumDark / dark;
+      final double meanLight = (sum - sumDark) / light;
+      final double between   = (double) dark * light * (meanDark - meanLight) * (meanDark - meanLight);
+
+      if (between > best) {
+        best      = between;
+        threshold = t + 1;
+      }
+    }
+
+    return threshold;
+  }
+
+
+  /**
+   * Find the skew of the text lines: the angle at which
+   * the dark pixels, projected onto the vertical, give
+   * the sharpest profile, i.e. the most distinct lines.
+   *
+   * @param gray The gray values
+   * @param w The width
+   * @param h The height
+   * @param threshold The threshold between dark and light
+   * @return The skew, in degrees; positive if the lines go down to the right.
+   */
+  static double findSkew(byte[] gray, int w, int h, int threshold) {
+    final int    step  = Math.max(1, w / SKEW_SAMPLES);
+    final int    n     = (int) Math.round(MAX_SKEW / SKEW_STEP);
+    final int[]  xs    = new int[(w / step) * ((h / step) + 1)];
+    final int[]  ys    = new int[xs.length];
+    int          count = 0;
+
+    for (int y = 0; y < h; y += step) {
+      for (int x = 0; x < w; x += step) {
+        if (((gray[(y * w) + x] & 0xff) < threshold) && (count < xs.length)) {
+          xs[count] = x;
+          ys[count] = y;
+          count++;
+        }
+      }
+    }
+
+    if (count == 0) {
+      return 0;
+    }
+
+    final int[] profile   = new int[h + w];
+    double      bestScore = -1;
+    double      best      = 0;
+
+    for (int a = -n; a <= n; a++) {
+      final double angle = Math.toRadians(a * SKEW_STEP);
+      final double sin   = Math.sin(angle);
+      final double cos   = Math.cos(angle);
+
+      Arrays.fill(profile, 0);
+
+      for (int i = 0; i < count; i++) {
+        final int row = (int) Math.round((ys[i] * cos) - (xs[i] * sin)) + w;
+
+        if ((row >= 0) && (row < profile.length)) {
+          profile[row]++;
+        }
+      }
+
+      double score = 0;
+      for (int i = 0; i < profile.length; i++) {
+        score += (double) profile[i] * profile[i];
+      }
+
+      if (score > bestScore) {
+        bestScore = score;
+        best      = a * SKEW_STEP;
+      }
+    }
+
+    return best;
+  }
+
+
+  /**
+   * Turn an image about its centre to take out a skew.
+   * Pixels from outside of the image are white.
+   *
+   * @param gray The gray values
+   * @param w The width
+   * @param h The height
+   * @param degrees The skew, as found by {@link #findSkew}
+   * @return The gray values of the straightened image
+   */
+  static byte[] rotate(byte[] gray, int w, int h, double degrees) {
+    final byte[] out = new byte[gray.length];
+    final double sin = Math.sin(Math.toRadians(degrees));
+    final double cos = Math.cos(Math.toRadians(degrees));
+    final double cx  = w / 2.0;
+    final double cy  = h / 2.0;
+
+    for (int y = 0; y < h; y++) {
+      final double dy = y - cy;
+
+      for (int x = 0; x < w; x++) {
+        final double dx = x - cx;
+        final int    sx = (int) Math.round((cx + (dx * cos)) - (dy * sin));
+        final int    sy = (int) Math.round(cy + (dx * sin) + (dy * cos));
+
+        out[(y * w) + x] = ((sx >= 0) && (sx < w) && (sy >= 0) && (sy < h)) ? gray[(sy * w) + sx] : (byte) 0xff;
+      }
+    }
+
+    return out;
+  }
+
+
+  /**
+   * Remove dark specks: dark pixels with at most one
+   * dark neighbour, i.e. single pixels and pairs.
+   *
+   * @param black The dark pixels; changed in place
+   * @param w The width
+   * @param h The height
+   */
+  static void despeckle(boolean[] black, int w, int h) {
+    final boolean[] copy = black.clone();
+
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        if (!copy[(y * w) + x]) {
+          continue;
+        }
+
+        int neighbours = 0;
+
+        for (int dy = -1; dy <= 1; dy++) {
+          for (int dx = -1; dx <= 1; dx++) {
+            final int nx = x + dx;
+            final int ny = y + dy;
+
+            if (((dx != 0) || (dy != 0)) && (nx >= 0) && (nx < w) && (ny >= 0) && (ny < h) && copy[(ny * w) + nx]) {
+              neighbours++;
+            }
+          }
+        }
+
+        if (neighbours <= 1) {
+          black[(y * w) + x] = false;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Apply a 3x3 median filter.
+   *
+   * @param gray The gray values
+   * @param w The width
+   * @param h The height
+   * @return The filtered gray values
+   */
+  static byte[] median(byte[] gray, int w, int h) {
+    final byte[] out    = gray.clone();
+    final int[]  window = new int[9];
+
+    for (int y = 1; y < (h - 1); y++) {
+      for (int x = 1; x < (w - 1); x++) {
+        int k = 0;
+
+        for (int dy = -1; dy <= 1; dy++) {
+          for (int dx = -1; dx <= 1; dx++) {
+            window[k++] = gray[((y + dy) * w) + x + dx] & 0xff;
+          }
+        }
+
+        Arrays.sort(window);
+
+        out[(y * w) + x] = (byte) window[4];
+      }
+    }
+
+    return out;
+  }
+
+
+  /**
+   * Make a bilevel image.
+   *
+   * @param black The dark pixels
+   * @param w The width
+   * @param h The height
+   * @return The image, of TYPE_BYTE_BINARY, where 0 is black
+   */
+  static BufferedImage toBinary(boolean[] black, int w, int h) {
+    final BufferedImage image  = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+    final byte[]        pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    final int           stride = (w + 7) / 8;
+
+    Arrays.fill(pixels, (byte) 0xff);
+
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        if (black[(y * w) + x]) {
+          pixels[(y * stride) + (x >> 3)] &= (byte) ~(0x80 >> (x & 7));
+        }
+      }
+    }
+
+    return image;
+  }
+
+
+  /**
+   * An image being cleaned up.
+   */
+  static class Page {
+    int           number;
+    PdfDictionary dict;
+    byte[]        raw;
+    int           width;
+    int           height;
+    boolean       g4;
+    byte[]        data;
+    Exception     error;
+  }
+
+
+  /**
+   * Cleans up a range of images, splitting it
+   * in halves until a single image is left.
+   */
+  private class Clean extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Page>  pages;
+    private final int         from;
+    private final int         to;
+
+
+    Clean(List<Page> pages, int from, int to) {
+      this.pages = pages;
+      this.from  = from;
+      this.to    = to;
+    }
+
+
+    @Override protected void compute() {
+      if ((this.to - this.from) > 1) {
+        final int middle = (this.from + this.to) >>> 1;
+
+        invokeAll(new Clean(this.pages, this.from, middle), new Clean(this.pages, middle, this.to));
+
+        return;
+      }
+
+      if (this.from < this.to) {
+        final Page page = this.pages.get(this.from);
+
+        try {
+          clean(page);
+        } catch (Exception e) {
+          page.error = e;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Clean up a single file, for trying out the settings.
+   *
+   * @param args in.pdf out.pdf [deskew,despeckle,binarize]
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: Preprocessor in.pdf out.pdf [deskew,despeckle,binarize]");
+      System.exit(1);
+    }
+
+    final String       steps        = (args.length > 2) ? args[2] : "deskew,despeckle,binarize";
+    final File         in           = new File(args[0]);
+    final File         out          = new File(args[1]);
+    final Preprocessor preprocessor = new Preprocessor(Runtime.getRuntime().availableProcessors(), steps.indexOf("deskew") >= 0, steps.indexOf("despeckle") >= 0, steps.indexOf("binarize") >= 0);
+    final long         start        = System.currentTimeMillis();
+
+    try {
+      final int cleaned = preprocessor.preprocess(in, out);
+
+      System.out.println(in.getName() + ": " + cleaned + " images cleaned up in " + (System.currentTimeMillis() - start) + " ms");
+    } finally {
+      preprocessor.shutdown();
+    }
+  }
+}
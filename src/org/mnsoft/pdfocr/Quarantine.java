@@ -0,0 +1,101 @@
+package org.mnsoft.pdfocr;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Quarantine Tool.
+ *
+ * Lists the files that failed in the OCR wrapper, and
+ * releases files from quarantine after they have been
+ * fixed, so that the wrapper works on them again. Call
+ * it from the working directory of the wrapper, like
+ *
+ * <xmp>
+ *   java org.mnsoft.pdfocr.Quarantine list
+ *   java org.mnsoft.pdfocr.Quarantine release a.pdf dir/b.pdf
+ *   java org.mnsoft.pdfocr.Quarantine release-all
+ * </xmp>
+ *
+ * Configuration parameters like STATEDIR are read from
+ * pdfocr.properties, and can be given on the command line
+ * like for the wrapper itself.
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Quarantine {
+  /**
+   * @param args Configuration parameters, followed by the command and its arguments.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final List<String> parameters = new ArrayList<String>();
+    final List<String> command    = new ArrayList<String>();
+
+    for (int i = 0; i < args.length; i++) {
+      if (command.isEmpty() && (args[i].indexOf('=') > 0)) {
+        parameters.add(args[i]);
+      } else {
+        command.add(args[i]);
+      }
+    }
+
+    if (command.isEmpty()) {
+      System.err.println("Usage: [name=value ...] list | release file ... | release-all");
+      System.exit(1);
+    }
+
+    final Wrapper w = new Wrapper(".");
+    w.init(parameters.toArray(new String[0]));
+
+    final JobStore jobs = w.createJobStore();
+    final String   cmd  = command.get(0);
+
+    if ("list".equals(cmd)) {
+      for (final Iterator<JobState> it = jobs.list().iterator(); it.hasNext();) {
+        final JobState state = it.next();
+
+        /*
+         * Files that were worked on successfully
+         */
+        if ((state.failures == 0) && !state.quarantined) {
+          continue;
+        }
+
+        System.out.println((state.quarantined ? "QUARANTINED " : "RETRY       ") + state.key + " failures=" + state.failures + " last=" + new Date(state.lastFailure) + " next=" + new Date(state.nextAttempt) + ((state.quarantinedPath == null) ? "" : (" moved=" + state.quarantinedPath)) + " error=" + state.lastError);
+      }
+    } else if ("release".equals(cmd)) {
+      for (int i = 1; i < command.size(); i++) {
+        final File   f   = new File(command.get(i));
+        final String key = f.isAbsolute() ? jobs.getKey(f) : command.get(i);
+
+        if (!jobs.release(key)) {
+          System.err.println("! ERROR: Could not release " + command.get(i));
+        }
+      }
+    } else if ("release-all".equals(cmd)) {
+      for (final Iterator<JobState> it = jobs.list().iterator(); it.hasNext();) {
+        final JobState state = it.next();
+
+        if (state.quarantined && !jobs.release(state.key)) {
+          System.err.println("! ERROR: Could not release " + state.key);
+        }
+      }
+    } else {
+      System.err.println("! ERROR: Unknown command " + cmd);
+      System.exit(1);
+    }
+  }
+}
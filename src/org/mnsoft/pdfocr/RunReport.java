@@ -0,0 +1,323 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Machine readable report of a run.<p>
+ *
+ * Every {@link FileRecord} is appended to the report file as
+ * one JSON line as soon as the file is done, so the report can
+ * be followed while the run is going on. At the end, a summary
+ * line aggregates the whole batch: outcomes and their reasons,
+ * pages and bytes, the time spent per stage, throughput, and the
+ * slowest files. The summary also names the engine command, so
+ * that reports of runs with different engine versions can be
+ * compared.<p>
+ *
+ * Without a report file, only the summary is logged.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class RunReport {
+  /**
+   * Logger for this class
+   */
+  private static final Logger      log          = Logger.getLogger(RunReport.class);
+
+  /**
+   * Number of slowest files kept for the summary.
+   */
+  private static final int         SLOWEST      = 10;
+
+  /**
+   * The engine command.
+   */
+  private final String             engine;
+
+  /**
+   * Whether to write records of files that were
+   * skipped because they had been done already.
+   */
+  private final boolean            includeDone;
+
+  /**
+   * Start of the run.
+   */
+  private final long               started      = System.currentTimeMillis();
+
+  /**
+   * The report file writer, null if there is no report file.
+   */
+  private Writer                   out          = null;
+
+  /**
+   * Number of files, by status.
+   */
+  private final Map<String, Long>  statuses     = new TreeMap<String, Long>();
+
+  /**
+   * Number of files, by reason.
+   */
+  private final Map<String, Long>  reasons      = new TreeMap<String, Long>();
+
+  /**
+   * Total time, by stage.
+   */
+  private final Map<String, Long>  stages       = new LinkedHashMap<String, Long>();
+
+  /**
+   * The slowest files that were done.
+   */
+  private final List<FileRecord>   slowest      = new ArrayList<FileRecord>();
+
+  /**
+   * Pages of the files that were done.
+   */
+  private long                     pages        = 0;
+
+  /**
+   * Bytes in of the files that were done.
+   */
+  private long                     bytesIn      = 0;
+
+  /**
+   * Bytes out of the files that were done.
+   */
+  private long                     bytesOut     = 0;
+
+  /**
+   * Pages merged.
+   */
+  private long                     pagesMerged  = 0;
+
+  /**
+   * Pages not merged because of THRESHOLD.
+   */
+  private long                     pagesSkipped = 0;
+
+  /**
+   * Pages left out of the engine input for being blank.
+   */
+  private long                     pagesBlank   = 0;
+
+  /**
+   * Pages left out of the engine input for being in the page cache.
+   */
+  private long                     pagesCached  = 0;
+
+  /**
+   * Time the engine took on the files that were done.
+   */
+  private long                     engineMillis = 0;
+
+  /**
+   * Files that were done from a repaired copy.
+   */
+  private long                     repaired     = 0;
+
+
+  /**
+   * Constructor.
+   *
+   * @param file The report file, appended to; null for no report file
+   * @param engine The engine command
+   * @param includeDone Whether to write records of files that had been done already
+   */
+  public RunReport(File file, String engine, boolean includeDone) {
+    this.engine      = engine;
+    this.includeDone = includeDone;
+
+    if (file != null) {
+      try {
+        this.out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        log.info("+ Writing run report to " + file.getAbsolutePath());
+      } catch (IOException e) {
+        log.error("! ERROR: Could not open run report " + file.getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Add the record of a file.
+   *
+   * @param record The record; {@link FileRecord#finish()} must have been called.
+   */
+  public synchronized void add(FileRecord record) {
+    count(this.statuses, record.status);
+
+    if (record.reason != null) {
+      count(this.reasons, record.reason);
+    }
+
+    for (final Iterator<Map.Entry<String, Long>> it = record.stages.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, Long> entry  = it.next();
+      final Long                    before = this.stages.get(entry.getKey());
+
+      this.stages.put(entry.getKey(), Long.valueOf(((before == null) ? 0 : before.longValue()) + entry.getValue().longValue()));
+    }
+
+    /*
+     * The entries of an archive are added on their own
+     */
+    if (FileRecord.DONE.equals(record.status) && !record.archive) {
+      this.pages        += Math.max(0, record.pages);
+      this.bytesIn      += Math.max(0, record.bytesIn);
+      this.bytesOut     += Math.max(0, record.bytesOut);
+      this.pagesMerged  += record.pagesMerged;
+      this.pagesSkipped += record.pagesSkipped;
+      this.pagesBlank   += record.pagesBlank;
+      this.pagesCached  += record.pagesCached;
+      this.engineMillis += record.getStage("engine");
+
+      if (record.repaired != null) {
+        this.repaired++;
+      }
+
+      this.slowest.add(record);
+      Collections.sort(this.slowest, new Comparator<FileRecord>() {
+          public int compare(FileRecord a, FileRecord b) {
+            return Double.compare(millisPerPage(b), millisPerPage(a));
+          }
+        });
+
+      if (this.slowest.size() > SLOWEST) {
+        this.slowest.remove(SLOWEST);
+      }
+    }
+
+    if (!this.includeDone && FileRecord.SKIPPED.equals(record.status) && FileRecord.REASON_DONE.equals(record.reason)) {
+      return;
+    }
+
+    write(record.toJson());
+  }
+
+
+  /**
+   * Write the summary and close the report.
+   */
+  public synchronized void close() {
+    final String summary = getSummary();
+
+    log.info("+ Run summary: " + summary);
+
+    write(summary);
+
+    if (this.out != null) {
+      try {
+        this.out.close();
+      } catch (IOException e) {
+        log.error("! ERROR: Could not close run report: " + e.getMessage());
+      }
+
+      this.out = null;
+    }
+  }
+
+
+  /**
+   * Get the summary of the run as JSON.
+   *
+   * @return The JSON text, on one line
+   */
+  public synchronized String getSummary() {
+    final long                millis = System.currentTimeMillis() - this.started;
+    final Map<String, Object> m      = new LinkedHashMap<String, Object>();
+
+    m.put("type", "summary");
+    m.put("started", Long.valueOf(this.started));
+    m.put("millis", Long.valueOf(millis));
+    m.put("engine", this.engine);
+    m.put("files", this.statuses);
+    m.put("reasons", this.reasons);
+    m.put("pages", Long.valueOf(this.pages));
+    m.put("bytesIn", Long.valueOf(this.bytesIn));
+    m.put("bytesOut", Long.valueOf(this.bytesOut));
+    m.put("pagesMerged", Long.valueOf(this.pagesMerged));
+    m.put("pagesSkipped", Long.valueOf(this.pagesSkipped));
+    m.put("pagesBlank", Long.valueOf(this.pagesBlank));
+    m.put("pagesCached", Long.valueOf(this.pagesCached));
+    m.put("repaired", Long.valueOf(this.repaired));
+    m.put("stages", this.stages);
+    m.put("pagesPerHour", Long.valueOf((millis == 0) ? 0 : ((this.pages * 3600000L) / millis)));
+    m.put("engineMillisPerPage", Long.valueOf((this.pages == 0) ? 0 : (this.engineMillis / this.pages)));
+
+    final List<Map<String, Object>> slow = new ArrayList<Map<String, Object>>();
+    for (final Iterator<FileRecord> it = this.slowest.iterator(); it.hasNext();) {
+      final FileRecord          record = it.next();
+      final Map<String, Object> s      = new LinkedHashMap<String, Object>();
+
+      s.put("file", record.file.getAbsolutePath());
+      s.put("pages", Integer.valueOf(record.pages));
+      s.put("millis", Long.valueOf(record.millis));
+      s.put("millisPerPage", Long.valueOf(Math.round(millisPerPage(record))));
+      slow.add(s);
+    }
+
+    m.put("slowest", slow);
+
+    return Json.toJson(m);
+  }
+
+
+  /**
+   * Write a line to the report file, if any.
+   *
+   * @param line The line
+   */
+  private void write(String line) {
+    if (this.out == null) {
+      return;
+    }
+
+    try {
+      this.out.write(line);
+      this.out.write('\n');
+      this.out.flush();
+    } catch (IOException e) {
+      log.error("! ERROR: Could not write run report: " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Count a key.
+   */
+  private static void count(Map<String, Long> map, String key) {
+    final Long before = map.get(key);
+
+    map.put(key, Long.valueOf(((before == null) ? 0 : before.longValue()) + 1));
+  }
+
+
+  /**
+   * Get the time per page of a file.
+   */
+  private static double millisPerPage(FileRecord record) {
+    return (record.pages <= 0) ? record.millis : (record.millis / (double) record.pages);
+  }
+}
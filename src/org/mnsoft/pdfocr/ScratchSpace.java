@@ -0,0 +1,274 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Scratch space for the temporary files of a file being
+ * worked on: the copy for the engine, the engine output,
+ * and the merged, recompressed and compacted results.<p>
+ *
+ * There are two tiers. Small files are worked on entirely
+ * in a RAM backed directory, e.g. on /dev/shm, as long as
+ * the files there stay within a total size. All other files
+ * are worked on in the temporary directory, which should be
+ * a local disk rather than the share holding the archive.
+ * Only the final replace of the original touches the share.<p>
+ *
+ * The space a file needs is estimated from its size; see
+ * {@link #NEED_FACTOR}. The files and bytes per tier are
+ * counted in the metrics scratch.&lt;tier&gt;.files and
+ * scratch.&lt;tier&gt;.bytes.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class ScratchSpace {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log         = Logger.getLogger(ScratchSpace.class);
+
+  /**
+   * Space needed for a file, as a multiple of its size: the
+   * copy for the engine, the engine output, the merged file,
+   * and one more while recompressing or compacting.
+   */
+  public static final int     NEED_FACTOR = 4;
+
+  /**
+   * The RAM backed tier, or null if there is none.
+   */
+  private final Tier          ram;
+
+  /**
+   * The disk tier.
+   */
+  private final Tier          disk;
+
+
+  /**
+   * Constructor.
+   *
+   * @param ramDir The RAM backed directory, or null for none
+   * @param ramMaxFile The largest file worked on in the RAM backed directory, in bytes
+   * @param ramLimit The total size of the files in the RAM backed directory, in bytes
+   * @param diskDir The directory on disk
+   * @throws IOException If the directory on disk cannot be created
+   */
+  public ScratchSpace(File ramDir, long ramMaxFile, long ramLimit, File diskDir) throws IOException {
+    FileUtils.forceMkdir(diskDir);
+
+    this.disk = new Tier("disk", diskDir, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    Tier r = null;
+
+    if ((ramDir != null) && (ramMaxFile > 0) && (ramLimit > 0)) {
+      try {
+        FileUtils.forceMkdir(ramDir);
+
+        r = new Tier("ram", ramDir, ramMaxFile, ramLimit);
+
+        log.info("+ Working on files up to " + (ramMaxFile / 1024) + " KB in " + ramDir.getAbsolutePath() + ", using at most " + (ramLimit / (1024 * 1024)) + " MB there.");
+      } catch (IOException e) {
+        log.warn("! WARNING: Cannot use " + ramDir.getAbsolutePath() + " for small files: " + e.getMessage());
+      }
+    }
+
+    this.ram = r;
+  }
+
+
+  /**
+   * Allocate scratch space for a file. Release it
+   * with {@link Area#release()} when done.
+   *
+   * @param size The size of the file
+   * @return The scratch space
+   */
+  public Area allocate(long size) {
+    final long need = size * NEED_FACTOR;
+
+    if ((this.ram != null) && (size <= this.ram.maxFile) && this.ram.reserve(need)) {
+      return new Area(this.ram, size, need);
+    }
+
+    this.disk.reserve(need);
+
+    return new Area(this.disk, size, need);
+  }
+
+
+  /**
+   * A tier of scratch space.
+   */
+  private static class Tier {
+    /**
+     * The name, for logs and metrics.
+     */
+    final String     name;
+
+    /**
+     * The directory.
+     */
+    final File       dir;
+
+    /**
+     * Largest file worked on in this tier.
+     */
+    final long       maxFile;
+
+    /**
+     * Total space of this tier.
+     */
+    final long       limit;
+
+    /**
+     * Space in use.
+     */
+    final AtomicLong used = new AtomicLong();
+
+
+    Tier(String name, File dir, long maxFile, long limit) {
+      this.name    = name;
+      this.dir     = dir;
+      this.maxFile = maxFile;
+      this.limit   = limit;
+    }
+
+
+    /**
+     * Reserve space, if there is enough.
+     *
+     * @param bytes The space
+     * @return true if it was reserved.
+     */
+    boolean reserve(long bytes) {
+      while (true) {
+        final long before = this.used.get();
+
+        if ((before + bytes) > this.limit) {
+          return false;
+        }
+
+        if (this.used.compareAndSet(before, before + bytes)) {
+          return true;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * The scratch space of one file.
+   */
+  public static class Area {
+    /**
+     * The tier.
+     */
+    private final Tier tier;
+
+    /**
+     * The space reserved.
+     */
+    private long       need;
+
+    /**
+     * Whether the space has been released.
+     */
+    private boolean    released = false;
+
+
+    Area(Tier tier, long size, long need) {
+      this.tier = tier;
+      this.need = need;
+
+      Metrics.add("scratch." + tier.name + ".files", 1);
+      Metrics.add("scratch." + tier.name + ".bytes", size);
+
+      log.debug("+ Scratch space on " + tier.name + ": " + need + " bytes, " + tier.used.get() + " bytes in use.");
+    }
+
+
+    /**
+     * Get the name of the tier.
+     *
+     * @return ram or disk
+     */
+    public String getName() {
+      return this.tier.name;
+    }
+
+
+    /**
+     * Create a temporary file.
+     *
+     * @param prefix The prefix of the name
+     * @param suffix The suffix of the name
+     * @return The file
+     * @throws IOException
+     */
+    public File createTempFile(String prefix, String suffix) throws IOException {
+      return File.createTempFile(prefix, suffix, this.tier.dir);
+    }
+
+
+    /**
+     * Reserve more space for the file, e.g. for a second
+     * copy, if the tier has enough.
+     *
+     * @param bytes The space
+     * @return true if it was reserved; give it back with {@link #shrink(long)}.
+     */
+    public synchronized boolean grow(long bytes) {
+      if (this.released || !this.tier.reserve(bytes)) {
+        return false;
+      }
+
+      this.need += bytes;
+
+      return true;
+    }
+
+
+    /**
+     * Give back space reserved with {@link #grow(long)}.
+     *
+     * @param bytes The space
+     */
+    public synchronized void shrink(long bytes) {
+      if (this.released) {
+        return;
+      }
+
+      this.need -= bytes;
+      this.tier.used.addAndGet(-bytes);
+    }
+
+
+    /**
+     * Give the space back.
+     */
+    public synchronized void release() {
+      if (this.released) {
+        return;
+      }
+
+      this.released = true;
+      this.tier.used.addAndGet(-this.need);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PdfReader;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+
+/**
+ * Stand-in for the OCR engine.<p>
+ *
+ * Copies the input file to the output file, optionally
+ * waiting some time per page to simulate the engine. This
+ * allows to try out the wrapper, e.g. several nodes in multi
+ * node mode on one box, without an OCR engine license. Use
+ * it like
+ *
+ * <xmp>
+ *   CMD=java -cp pdfocrwrapper.jar:iText.jar:commons-io-2.2.jar org.mnsoft.pdfocr.StandInEngine -ms 500 ###IF### ###OF###
+ * </xmp>
+ *
+ * As the output then has the same size as the input, the merge
+ * will not add anything to the pages (see THRESHOLD), but the
+ * creator is set as usual.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class StandInEngine {
+  /**
+   * @param args [-ms milliseconds per page] input output
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int    msPerPage = 0;
+    String input     = null;
+    String output    = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-ms".equals(args[i]) && (i < (args.length - 1))) {
+        msPerPage = StringUtility.StringToInteger(args[++i], 0);
+      } else if (input == null) {
+        input = args[i];
+      } else if (output == null) {
+        output = args[i];
+      }
+    }
+
+    if ((input == null) || (output == null)) {
+      System.err.println("Usage: StandInEngine [-ms milliseconds per page] input output");
+      System.exit(1);
+    }
+
+    if (msPerPage > 0) {
+      final PdfReader reader = new PdfReader(input);
+      final int       pages  = reader.getNumberOfPages();
+      reader.close();
+
+      System.out.println("StandInEngine: " + pages + " pages, " + msPerPage + " ms per page.");
+
+      Thread.sleep((long) pages * msPerPage);
+    }
+
+    FileUtils.copyFile(new File(input), new File(output));
+  }
+}
@@ -1,5 +1,15 @@
 package org.mnsoft.pdfocr;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
 /**
  * Some String Utilities.
  *
@@ -182,4 +192,79 @@ public class StringUtility {
     return strText;
   }
 
+
+  /**
+   * Get the MD5 digest of a String, as hex.<p>
+   *
+   * @param strText The text, encoded as UTF-8
+   * @return The hex digest
+   */
+  public static String md5(String strText) {
+    try {
+      return md5(strText.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * Get the MD5 of some bytes, in hex.
+   *
+   * @param data The bytes
+   * @return The MD5
+   */
+  public static String md5(byte[] data) {
+    try {
+      return hex(MessageDigest.getInstance("MD5").digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * Get the MD5 of a file, in hex, reading
+   * it as a stream.
+   *
+   * @param file The file
+   * @return The MD5
+   * @throws IOException If the file cannot be read
+   */
+  public static String md5(File file) throws IOException {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("MD5");
+      final InputStream   is = new FileInputStream(file);
+
+      try {
+        final byte[] buffer = new byte[64 * 1024];
+        int          n;
+
+        while ((n = is.read(buffer)) > 0) {
+          md.update(buffer, 0, n);
+        }
+      } finally {
+        is.close();
+      }
+
+      return hex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * @param digest A digest
+   * @return The digest in hex.
+   */
+  private static String hex(byte[] digest) {
+    final StringBuffer sb = new StringBuffer();
+
+    for (int i = 0; i < digest.length; i++) {
+      sb.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+    }
+
+    return sb.toString();
+  }
 }
@@ -0,0 +1,764 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * Incremental full text index over the OCR'd files.<p>
+ *
+ * The text of the files is added while they are worked on.
+ * It is collected into an inverted index in memory, and written
+ * as a new segment to the index directory every so many documents
+ * and when the run ends. A segment is a UTF-8 text file holding
+ *
+ * <xmp>
+ *   D <tab> document number <tab> key
+ *   T <tab> term <tab> document number:page,page;document number:page...
+ * </xmp>
+ *
+ * with the terms in sorted order. Segments are never changed
+ * after they have been written; their names start with the time
+ * they were written at, so that the newest segment holding a
+ * document tells which postings of that document are current.
+ * Several nodes can add segments to the same index. {@link #compact()}
+ * merges all segments into one, dropping outdated postings.<p>
+ *
+ * Since the terms of a segment are sorted, a query finds the
+ * postings of its terms by binary search, and reads only those.
+ * It still reads the document lines of every segment, to tell
+ * which segment is the newest for each document, so its cost
+ * grows with the number of documents and segments; compacting
+ * keeps it to one segment.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class TextIndex {
+  /**
+   * Logger for this class
+   */
+  private static final Logger                               log               = Logger.getLogger(TextIndex.class);
+
+  /**
+   * Extension of the segment files.
+   */
+  private static final String                               SEGMENT_EXTENSION = ".seg";
+
+  /**
+   * Number of documents after which a segment is written.
+   */
+  private static final int                                  SEGMENT_DOCUMENTS = 500;
+
+  /**
+   * Minimum length of a term.
+   */
+  private static final int                                  MIN_TERM_LENGTH   = 2;
+
+  /**
+   * Number of bytes of a segment below which a term
+   * is searched for by reading them line by line.
+   */
+  private static final int                                  SCAN              = 8192;
+
+  /**
+   * The index directory.
+   */
+  private final File                                        dir;
+
+  /**
+   * Tag to make segment names of different nodes unique.
+   */
+  private final String                                      tag;
+
+  /**
+   * Keys of the documents of the segment being built.
+   */
+  private final List<String>                                keys              = new ArrayList<String>();
+
+  /**
+   * Postings of the segment being built: term to document number to pages.
+   */
+  private final TreeMap<String, Map<Integer, Set<Integer>>> postings          = new TreeMap<String, Map<Integer, Set<Integer>>>();
+
+  /**
+   * Sequence number of the segments we have written.
+   */
+  private int                                               sequence          = 0;
+
+
+  /**
+   * Constructor.
+   *
+   * @param dir The index directory
+   * @param tag Tag to make segment names of different nodes unique
+   * @throws IOException If the index directory cannot be created
+   */
+  public TextIndex(File dir, String tag) throws IOException {
+    this.dir = dir;
+    this.tag = tag.replaceAll("[^A-Za-z0-9]", "_");
+
+    FileUtils.forceMkdir(dir);
+  }
+
+
+  /**
+   * Add a document.
+   *
+   * @param key The key of the document
+   * @param pages The text of the pages
+   */
+  public synchronized void add(String key, List<String> pages) {
+    final Integer doc = Integer.valueOf(this.keys.size());
+
+    this.keys.add(key);
+
+    for (int i = 0; i < pages.size(); i++) {
+      final Integer   page  = Integer.valueOf(i + 1);
+      final String[]  terms = tokenize(pages.get(i));
+
+      for (int j = 0; j < terms.length; j++) {
+        Map<Integer, Set<Integer>> docs = this.postings.get(terms[j]);
+        if (docs == null) {
+          docs = new TreeMap<Integer, Set<Integer>>();
+          this.postings.put(terms[j], docs);
+        }
+
+        Set<Integer> docPages = docs.get(doc);
+        if (docPages == null) {
+          docPages = new TreeSet<Integer>();
+          docs.put(doc, docPages);
+        }
+
+        docPages.add(page);
+      }
+    }
+
+    if (this.keys.size() >= SEGMENT_DOCUMENTS) {
+      flush();
+    }
+  }
+
+
+  /**
+   * Write the documents added so far as a new segment.
+   */
+  public synchronized void flush() {
+    if (this.keys.isEmpty()) {
+      return;
+    }
+
+    final File segment = new File(this.dir, System.currentTimeMillis() + "-" + this.tag + "-" + (this.sequence++) + SEGMENT_EXTENSION);
+
+    try {
+      write(segment, this.keys, this.postings);
+
+      log.info("+ Wrote index segment " + segment.getName() + " (" + this.keys.size() + " documents, " + this.postings.size() + " terms).");
+    } catch (IOException e) {
+      log.error("! ERROR: Could not write index segment " + segment.getAbsolutePath() + ": " + e.getMessage());
+    }
+
+    this.keys.clear();
+    this.postings.clear();
+  }
+
+
+  /**
+   * Search the index for documents holding all terms of a query.
+   * This reads the documents of all segments, but only the
+   * postings of the terms of the query, see above.
+   *
+   * @param query The query
+   * @return For each matching key, the pages holding any of the terms.
+   * @throws IOException
+   */
+  public Map<String, Set<Integer>> search(String query) throws IOException {
+    final String[]                  terms   = tokenize(query);
+    final Map<String, Set<Integer>> results = new TreeMap<String, Set<Integer>>();
+
+    if (terms.length == 0) {
+      return results;
+    }
+
+    final Set<String>               wanted  = new TreeSet<String>(Arrays.asList(terms));
+    final File[]                    segments = getSegments();
+    final Map<String, Integer>      newest  = new HashMap<String, Integer>();
+
+    /*
+     * Go through the segments from the newest to the oldest;
+     * only the newest segment holding a document counts.
+     */
+    for (int s = segments.length - 1; s >= 0; s--) {
+      final Segment segment = Segment.read(segments[s], wanted);
+
+      for (int d = 0; d < segment.keys.size(); d++) {
+        final String key = segment.keys.get(d);
+
+        if (newest.containsKey(key)) {
+          continue;
+        }
+
+        newest.put(key, Integer.valueOf(s));
+
+        final Set<Integer> pages = new TreeSet<Integer>();
+        boolean            all   = true;
+
+        for (final Iterator<String> it = wanted.iterator(); it.hasNext();) {
+          final Map<Integer, Set<Integer>> docs     = segment.postings.get(it.next());
+          final Set<Integer>               docPages = (docs == null) ? null : docs.get(Integer.valueOf(d));
+
+          if (docPages == null) {
+            all = false;
+
+            break;
+          }
+
+          pages.addAll(docPages);
+        }
+
+        if (all) {
+          results.put(key, pages);
+        }
+      }
+    }
+
+    return results;
+  }
+
+
+  /**
+   * Merge all segments into one, keeping only the
+   * newest postings of each document.
+   *
+   * @throws IOException
+   */
+  public synchronized void compact() throws IOException {
+    flush();
+
+    final File[] segments = getSegments();
+    if (segments.length < 2) {
+      return;
+    }
+
+    final List<String>                                keys     = new ArrayList<String>();
+    final Map<String, Integer>                        numbers  = new HashMap<String, Integer>();
+    final TreeMap<String, Map<Integer, Set<Integer>>> postings = new TreeMap<String, Map<Integer, Set<Integer>>>();
+
+    for (int s = segments.length - 1; s >= 0; s--) {
+      final Segment segment = Segment.read(segments[s], null);
+
+      /*
+       * Renumber the documents that are not in a newer segment
+       */
+      final Integer[] renumbered = new Integer[segment.keys.size()];
+      for (int d = 0; d < segment.keys.size(); d++) {
+        final String key = segment.keys.get(d);
+
+        if (!numbers.containsKey(key)) {
+          renumbered[d] = Integer.valueOf(keys.size());
+          numbers.put(key, renumbered[d]);
+          keys.add(key);
+        }
+      }
+
+      for (final Iterator<Map.Entry<String, Map<Integer, Set<Integer>>>> it = segment.postings.entrySet().iterator(); it.hasNext();) {
+        final Map.Entry<String, Map<Integer, Set<Integer>>> entry = it.next();
+
+        for (final Iterator<Map.Entry<Integer, Set<Integer>>> jt = entry.getValue().entrySet().iterator(); jt.hasNext();) {
+          final Map.Entry<Integer, Set<Integer>> posting = jt.next();
+          final Integer                          doc     = renumbered[posting.getKey().intValue()];
+
+          if (doc == null) {
+            continue;
+          }
+
+          Map<Integer, Set<Integer>> docs = postings.get(entry.getKey());
+          if (docs == null) {
+            docs = new TreeMap<Integer, Set<Integer>>();
+            postings.put(entry.getKey(), docs);
+          }
+
+          docs.put(doc, posting.getValue());
+        }
+      }
+    }
+
+    /*
+     * The compacted segment takes the place of the newest one,
+     * so that segments written meanwhile stay newer. Only then
+     * are the older ones deleted: until they are, the newest
+     * segment holds all documents, and searches see no change.
+     */
+    final File newest    = segments[segments.length - 1];
+    final File compacted = new File(this.dir, newest.getName() + ".compact");
+
+    write(compacted, keys, postings);
+
+    try {
+      Files.move(compacted.toPath(), newest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(compacted.toPath(), newest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    for (int s = 0; s < (segments.length - 1); s++) {
+      FileUtils.deleteQuietly(segments[s]);
+    }
+
+    log.info("+ Compacted " + segments.length + " index segments into one (" + keys.size() + " documents, " + postings.size() + " terms).");
+  }
+
+
+  /**
+   * Split a text into lower case terms.
+   *
+   * @param text The text
+   * @return The terms
+   */
+  static String[] tokenize(String text) {
+    final List<String> terms = new ArrayList<String>();
+
+    if (text == null) {
+      return new String[0];
+    }
+
+    final StringBuffer sb = new StringBuffer();
+    for (int i = 0; i <= text.length(); i++) {
+      final char c = (i < text.length()) ? text.charAt(i) : ' ';
+
+      if (Character.isLetterOrDigit(c)) {
+        sb.append(Character.toLowerCase(c));
+      } else {
+        if (sb.length() >= MIN_TERM_LENGTH) {
+          terms.add(sb.toString());
+        }
+
+        sb.setLength(0);
+      }
+    }
+
+    return terms.toArray(new String[0]);
+  }
+
+
+  /**
+   * Get the segment files, oldest first.
+   *
+   * @return The segment files
+   */
+  private File[] getSegments() {
+    final File[] files = this.dir.listFiles(new java.io.FileFilter() {
+          public boolean accept(File f) {
+            return f.getName().endsWith(SEGMENT_EXTENSION);
+          }
+        });
+
+    if (files == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(files);
+
+    return files;
+  }
+
+
+  /**
+   * Write a segment. It is written to a temporary file
+   * first and then renamed, so that readers never see
+   * half of it.
+   *
+   * @param file The segment file
+   * @param keys The keys of the documents
+   * @param postings The postings
+   * @throws IOException
+   */
+  private static void write(File file, List<String> keys, TreeMap<String, Map<Integer, Set<Integer>>> postings) throws IOException {
+    final File   temp = new File(file.getAbsolutePath() + ".tmp");
+    final Writer out  = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+
+    try {
+      for (int d = 0; d < keys.size(); d++) {
+        out.write("D\t" + d + "\t" + keys.get(d) + "\n");
+      }
+
+      for (final Iterator<Map.Entry<String, Map<Integer, Set<Integer>>>> it = postings.entrySet().iterator(); it.hasNext();) {
+        final Map.Entry<String, Map<Integer, Set<Integer>>> entry = it.next();
+        final StringBuffer                                  sb    = new StringBuffer("T\t");
+
+        sb.append(entry.getKey());
+        sb.append('\t');
+
+        boolean firstDoc = true;
+        for (final Iterator<Map.Entry<Integer, Set<Integer>>> jt = entry.getValue().entrySet().iterator(); jt.hasNext();) {
+          final Map.Entry<Integer, Set<Integer>> posting = jt.next();
+
+          if (!firstDoc) {
+            sb.append(';');
+          }
+
+          firstDoc = false;
+
+          sb.append(posting.getKey());
+          sb.append(':');
+
+          boolean firstPage = true;
+          for (final Iterator<Integer> kt = posting.getValue().iterator(); kt.hasNext();) {
+            if (!firstPage) {
+              sb.append(',');
+            }
+
+            firstPage = false;
+
+            sb.append(kt.next());
+          }
+        }
+
+        sb.append('\n');
+        out.write(sb.toString());
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      FileUtils.moveFile(temp, file);
+    }
+  }
+
+
+  /**
+   * A segment read from disk.
+   */
+  private static class Segment {
+    /**
+     * Keys of the documents, by document number.
+     */
+    final List<String>                                keys     = new ArrayList<String>();
+
+    /**
+     * Postings: term to document number to pages.
+     */
+    final TreeMap<String, Map<Integer, Set<Integer>>> postings = new TreeMap<String, Map<Integer, Set<Integer>>>();
+
+
+    /**
+     * Read a segment.
+     *
+     * @param file The segment file
+     * @param terms The terms to read the postings of; null for all.
+     * @return The segment
+     * @throws IOException
+     */
+    static Segment read(File file, Set<String> terms) throws IOException {
+      final Segment        segment = new Segment();
+      final BufferedReader in      = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          final String[] fields = line.split("\t", 3);
+
+          if (fields.length < 3) {
+            continue;
+          }
+
+          if ("D".equals(fields[0])) {
+            segment.keys.add(fields[2]);
+          } else if ("T".equals(fields[0])) {
+            /*
+             * The documents come first; the postings of
+             * single terms are looked up below
+             */
+            if (terms != null) {
+              break;
+            }
+
+            segment.put(fields[1], fields[2]);
+          }
+        }
+      } finally {
+        in.close();
+      }
+
+      if (terms == null) {
+        return segment;
+      }
+
+      final LineReader lines = new LineReader(file);
+
+      try {
+        for (final Iterator<String> it = terms.iterator(); it.hasNext();) {
+          final String term     = it.next();
+          final String postings = find(lines, term);
+
+          if (postings != null) {
+            segment.put(term, postings);
+          }
+        }
+      } finally {
+        lines.close();
+      }
+
+      return segment;
+    }
+
+
+    /**
+     * Find the postings of a term. The term lines of a
+     * segment follow its document lines, sorted by term,
+     * so the term is searched for by bisecting the file
+     * down to {@link TextIndex#SCAN} bytes, which are then read
+     * line by line.
+     *
+     * @param lines The segment file
+     * @param term The term
+     * @return The postings of the term, or null if it is not in the segment.
+     * @throws IOException
+     */
+    private static String find(LineReader lines, String term) throws IOException {
+      /*
+       * lo is the start of the file or of a line before the
+       * term, hi the end of the file or the start of a line
+       * that is not before the term
+       */
+      long lo = 0;
+      long hi = lines.length();
+
+      while ((hi - lo) > SCAN) {
+        lines.seek((lo + hi) >>> 1);
+        lines.readLine();
+
+        final long start = lines.getPosition();
+
+        if (start >= hi) {
+          break;
+        }
+
+        final String line = lines.readLine();
+
+        if (compare(line, term) < 0) {
+          lo = start;
+        } else {
+          hi = start;
+        }
+      }
+
+      lines.seek(lo);
+
+      String line;
+      while ((line = lines.readLine()) != null) {
+        final int c = compare(line, term);
+
+        if (c == 0) {
+          return line.split("\t", 3)[2];
+        }
+
+        if (c > 0) {
+          break;
+        }
+      }
+
+      return null;
+    }
+
+
+    /**
+     * Compare a line of a segment to a term, in the order of
+     * the lines: document lines and broken lines come before
+     * all terms.
+     *
+     * @param line The line
+     * @param term The term
+     * @return Less than, equal to or greater than 0 if the line is before, of or after the term
+     */
+    private static int compare(String line, String term) {
+      final String[] fields = line.split("\t", 3);
+
+      if ((fields.length < 3) || !"T".equals(fields[0])) {
+        return -1;
+      }
+
+      return fields[1].compareTo(term);
+    }
+
+
+    /**
+     * Add the postings of a term, as written in the segment.
+     *
+     * @param term The term
+     * @param text The postings: document number:page,page;document number:page...
+     */
+    private void put(String term, String text) {
+      final Map<Integer, Set<Integer>> docs = new TreeMap<Integer, Set<Integer>>();
+
+      final String[]                   postings = text.split(";");
+      for (int i = 0; i < postings.length; i++) {
+        final int colon = postings[i].indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+
+        final Set<Integer> pages = new TreeSet<Integer>();
+        final String[]     nums  = postings[i].substring(colon + 1).split(",");
+        for (int j = 0; j < nums.length; j++) {
+          pages.add(Integer.valueOf(StringUtility.StringToInteger(nums[j], 0)));
+        }
+
+        docs.put(Integer.valueOf(StringUtility.StringToInteger(postings[i].substring(0, colon), 0)), pages);
+      }
+
+      this.postings.put(term, docs);
+    }
+  }
+
+
+  /**
+   * Reads the UTF-8 lines of a file from any position.
+   */
+  private static class LineReader {
+    /**
+     * The file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Bytes read ahead.
+     */
+    private final byte[]           buffer = new byte[8192];
+
+    /**
+     * Position of the buffer in the file.
+     */
+    private long                   start  = 0;
+
+    /**
+     * Number of bytes in the buffer.
+     */
+    private int                    length = 0;
+
+    /**
+     * Position of the next byte in the buffer.
+     */
+    private int                    next   = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param file The file
+     * @throws IOException
+     */
+    LineReader(File file) throws IOException {
+      this.file = new RandomAccessFile(file, "r");
+    }
+
+
+    /**
+     * Get the length of the file.
+     *
+     * @return The length in bytes
+     * @throws IOException
+     */
+    long length() throws IOException {
+      return this.file.length();
+    }
+
+
+    /**
+     * Get the position of the next line to be read.
+     *
+     * @return The position in bytes
+     */
+    long getPosition() {
+      return this.start + this.next;
+    }
+
+
+    /**
+     * Go to a position; the next line read starts there.
+     *
+     * @param position The position in bytes
+     * @throws IOException
+     */
+    void seek(long position) throws IOException {
+      this.file.seek(position);
+
+      this.start  = position;
+      this.length = 0;
+      this.next   = 0;
+    }
+
+
+    /**
+     * Read a line.
+     *
+     * @return The line without its line feed, or null at the end of the file.
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+      final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+      for (;;) {
+        if (this.next == this.length) {
+          this.start  += this.length;
+          this.length  = Math.max(0, this.file.read(this.buffer));
+          this.next    = 0;
+
+          if (this.length == 0) {
+            return (line.size() == 0) ? null : line.toString("UTF-8");
+          }
+        }
+
+        final byte b = this.buffer[this.next++];
+
+        if (b == '\n') {
+          return line.toString("UTF-8");
+        }
+
+        line.write(b);
+      }
+    }
+
+
+    /**
+     * Close the file.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+      this.file.close();
+    }
+  }
+}
@@ -0,0 +1,482 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfContentByte;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+
+/**
+ * Draws the invisible text layer of a page straight from the
+ * word boxes of the engine, rather than having the engine make
+ * a PDF of its own that is then stamped under the original.
+ * That PDF is slow to make, and brings its own fonts and page
+ * objects into the result.<p>
+ *
+ * The engine output is read as it streams, one page at a time,
+ * in either of two formats:
+ *
+ * <ul>
+ *   <li>hOCR: pages are elements of class ocr_page, lines of class
+ *       ocr_line, words of class ocrx_word, each with a bbox in its
+ *       title attribute</li>
+ *   <li>ALTO: pages are Page elements with WIDTH and HEIGHT, lines
+ *       TextLine elements, words String elements with CONTENT, HPOS,
+ *       VPOS, WIDTH and HEIGHT</li>
+ * </ul>
+ *
+ * Coordinates are scaled from the size the engine gives for the
+ * page to the size of the PDF page, so the unit the engine uses
+ * does not matter. Each word is drawn in text render mode 3,
+ * i.e. invisible, at the bottom left of its box, sized to the
+ * height and stretched to the width of the box, so that what is
+ * selected in a viewer matches the image.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class TextLayerRenderer {
+  /**
+   * Share of the box height taken by the font size; the
+   * rest is room for ascenders and descenders.
+   */
+  private static final float DESCENT = 0.2f;
+
+  /**
+   * The font for the text.
+   */
+  private final BaseFont     font;
+
+
+  /**
+   * Constructor.
+   *
+   * @param font The font for the text; it is not shown, but has to know the characters
+   */
+  public TextLayerRenderer(BaseFont font) {
+    this.font = font;
+  }
+
+
+  /**
+   * Receives the pages of the engine output, in order.
+   */
+  public interface PageHandler {
+    /**
+     * A page has been read.
+     *
+     * @param number The page of the engine output, starting at 1
+     * @param width The width of the page, in the unit of the engine
+     * @param height The height of the page, in the unit of the engine
+     * @param words The words on the page
+     * @param text The text of the page, lines separated by new lines
+     * @throws IOException
+     */
+    void page(int number, float width, float height, List<Word> words, String text) throws IOException;
+  }
+
+
+  /**
+   * A word with its box, in the unit of the engine, from the top left.
+   */
+  public static class Word {
+    public final String text;
+    public final float  x0;
+    public final float  y0;
+    public final float  x1;
+    public final float  y1;
+
+
+    Word(String text, float x0, float y0, float x1, float y1) {
+      this.text = text;
+      this.x0   = x0;
+      this.y0   = y0;
+      this.x1   = x1;
+      this.y1   = y1;
+    }
+  }
+
+
+  /**
+   * Read engine output, in hOCR or ALTO.
+   *
+   * @param file The engine output
+   * @param handler Receives the pages
+   * @throws IOException If the file cannot be read or parsed, or the handler fails
+   */
+  public static void parse(File file, PageHandler handler) throws IOException {
+    final InputStream in = new FileInputStream(file);
+
+    try {
+      final SAXParserFactory factory = SAXParserFactory.newInstance();
+
+      factory.setNamespaceAware(false);
+      factory.setValidating(false);
+
+      final SAXParser parser = factory.newSAXParser();
+
+      parser.parse(new InputSource(in), new Handler(handler));
+    } catch (SAXException e) {
+      if (e.getException() instanceof IOException) {
+        throw (IOException) e.getException();
+      }
+
+      throw new IOException("Could not parse " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+    } catch (ParserConfigurationException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Draw the words of a page as invisible text.
+   *
+   * @param cb Where to draw, e.g. the under content of the page
+   * @param page The size of the page, with its rotation
+   * @param width The width of the page, in the unit of the engine
+   * @param height The height of the page, in the unit of the engine
+   * @param words The words
+   */
+  public void draw(PdfContentByte cb, Rectangle page, float width, float height, List<Word> words) {
+    if (words.isEmpty() || (width <= 0) || (height <= 0)) {
+      return;
+    }
+
+    final float sx = page.getWidth() / width;
+    final float sy = page.getHeight() / height;
+
+    cb.saveState();
+    cb.beginText();
+    cb.setTextRenderingMode(PdfContentByte.TEXT_RENDER_MODE_INVISIBLE);
+
+    for (final Word word : words) {
+      final String text = getPrintable(word.text);
+
+      if (text.length() == 0) {
+        continue;
+      }
+
+      final float h    = (word.y1 - word.y0) * sy;
+      final float w    = (word.x1 - word.x0) * sx;
+      final float size = Math.max(1, h * (1 - DESCENT));
+
+      if (w <= 0) {
+        continue;
+      }
+
+      final float natural = this.font.getWidthPoint(text, size);
+
+      cb.setFontAndSize(this.font, size);
+      cb.setHorizontalScaling((natural > 0) ? ((100 * w) / natural) : 100);
+      cb.setTextMatrix(page.getLeft() + (word.x0 * sx), page.getBottom() + page.getHeight() - (word.y1 * sy) + (h * DESCENT));
+      cb.showText(text);
+    }
+
+    cb.endText();
+    cb.restoreState();
+  }
+
+
+  /**
+   * Drop the characters the font does not have.
+   *
+   * @param text A word
+   * @return The word, without them
+   */
+  private String getPrintable(String text) {
+    final StringBuffer sb = new StringBuffer();
+
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+
+      if (!Character.isWhitespace(c) && this.font.charExists(c)) {
+        sb.append(c);
+      }
+    }
+
+    return sb.toString();
+  }
+
+
+  /**
+   * Get the numbers after a key in an hOCR title, like
+   * the four of "bbox 10 20 110 40; x_wconf 93".
+   *
+   * @param title The title attribute
+   * @param key The key
+   * @param n The number of numbers
+   * @return The numbers, or null if there are not as many.
+   */
+  static float[] getProperty(String title, String key, int n) {
+    if (title == null) {
+      return null;
+    }
+
+    final String[] parts = title.split(";");
+
+    for (int i = 0; i < parts.length; i++) {
+      final String[] tokens = parts[i].trim().split("\\s+");
+
+      if ((tokens.length > n) && key.equals(tokens[0])) {
+        final float[] numbers = new float[n];
+
+        try {
+          for (int k = 0; k < n; k++) {
+            numbers[k] = Float.parseFloat(tokens[k + 1]);
+          }
+        } catch (NumberFormatException e) {
+          return null;
+        }
+
+        return numbers;
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Check whether an hOCR element has a class.
+   *
+   * @param attributes The attributes of the element
+   * @param name The class
+   * @return true if it has.
+   */
+  private static boolean hasClass(Attributes attributes, String name) {
+    final String classes = attributes.getValue("class");
+
+    if (classes == null) {
+      return false;
+    }
+
+    final String[] tokens = classes.trim().split("\\s+");
+
+    for (int i = 0; i < tokens.length; i++) {
+      if (name.equals(tokens[i])) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Parse a float attribute.
+   *
+   * @param attributes The attributes
+   * @param name The name
+   * @return The value, or 0 if there is none.
+   */
+  private static float getFloat(Attributes attributes, String name) {
+    final String value = attributes.getValue(name);
+
+    if (value == null) {
+      return 0;
+    }
+
+    try {
+      return Float.parseFloat(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+
+  /**
+   * The SAX handler for both formats. Only the words of
+   * the current page are held in memory.
+   */
+  private static class Handler extends DefaultHandler {
+    private final PageHandler  handler;
+    private int                pages   = 0;
+    private boolean            inPage  = false;
+    private float              width   = 0;
+    private float              height  = 0;
+    private List<Word>         words   = new ArrayList<Word>();
+    private final StringBuffer text    = new StringBuffer();
+    private boolean            newLine = false;
+
+    /**
+     * Depth of the hOCR element of the page, and of the word
+     * being read, or -1; hOCR pages and words are divs and
+     * spans, whose ends are only known by their depth.
+     */
+    private int                depth   = 0;
+    private int                pageAt  = -1;
+    private int                wordAt  = -1;
+    private float[]            box     = null;
+    private final StringBuffer word    = new StringBuffer();
+
+
+    Handler(PageHandler handler) {
+      this.handler = handler;
+    }
+
+
+    /**
+     * Do not load the DTD of XHTML, which hOCR
+     * files refer to, nor any other entity.
+     */
+    @Override public InputSource resolveEntity(String publicId, String systemId) {
+      return new InputSource(new StringReader(""));
+    }
+
+
+    @Override public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+      this.depth++;
+
+      final String name = qName.substring(qName.indexOf(':') + 1);
+
+      /*
+       * ALTO
+       */
+      if ("Page".equals(name)) {
+        startPage(getFloat(attributes, "WIDTH"), getFloat(attributes, "HEIGHT"));
+
+        return;
+      }
+
+      if ("TextLine".equals(name)) {
+        this.newLine = true;
+
+        return;
+      }
+
+      if ("String".equals(name) && this.inPage) {
+        final float x = getFloat(attributes, "HPOS");
+        final float y = getFloat(attributes, "VPOS");
+
+        addWord(attributes.getValue("CONTENT"), x, y, x + getFloat(attributes, "WIDTH"), y + getFloat(attributes, "HEIGHT"));
+
+        return;
+      }
+
+      /*
+       * hOCR
+       */
+      if (hasClass(attributes, "ocr_page")) {
+        final float[] bbox = getProperty(attributes.getValue("title"), "bbox", 4);
+
+        startPage((bbox == null) ? 0 : (bbox[2] - bbox[0]), (bbox == null) ? 0 : (bbox[3] - bbox[1]));
+
+        this.pageAt = this.depth;
+
+        return;
+      }
+
+      if (hasClass(attributes, "ocr_line") || hasClass(attributes, "ocrx_line")) {
+        this.newLine = true;
+
+        return;
+      }
+
+      if (hasClass(attributes, "ocrx_word") && this.inPage) {
+        this.box    = getProperty(attributes.getValue("title"), "bbox", 4);
+        this.wordAt = this.depth;
+        this.word.setLength(0);
+      }
+    }
+
+
+    @Override public void characters(char[] ch, int start, int length) {
+      if (this.wordAt >= 0) {
+        this.word.append(ch, start, length);
+      }
+    }
+
+
+    @Override public void endElement(String uri, String localName, String qName) throws SAXException {
+      final String name = qName.substring(qName.indexOf(':') + 1);
+
+      if (this.depth == this.wordAt) {
+        if (this.box != null) {
+          addWord(this.word.toString().trim(), this.box[0], this.box[1], this.box[2], this.box[3]);
+        }
+
+        this.wordAt = -1;
+      }
+
+      if ("Page".equals(name) || (this.depth == this.pageAt)) {
+        endPage();
+
+        this.pageAt = -1;
+      }
+
+      this.depth--;
+    }
+
+
+    @Override public void endDocument() throws SAXException {
+      if (this.inPage) {
+        endPage();
+      }
+    }
+
+
+    private void startPage(float w, float h) throws SAXException {
+      if (this.inPage) {
+        endPage();
+      }
+
+      this.inPage  = true;
+      this.width   = w;
+      this.height  = h;
+      this.newLine = false;
+      this.words   = new ArrayList<Word>();
+      this.text.setLength(0);
+    }
+
+
+    private void addWord(String s, float x0, float y0, float x1, float y1) {
+      if ((s == null) || (s.length() == 0)) {
+        return;
+      }
+
+      if (this.text.length() > 0) {
+        this.text.append(this.newLine ? '\n' : ' ');
+      }
+
+      this.newLine = false;
+      this.text.append(s);
+      this.words.add(new Word(s, x0, y0, x1, y1));
+    }
+
+
+    private void endPage() throws SAXException {
+      this.inPage = false;
+
+      try {
+        this.handler.page(++this.pages, this.width, this.height, this.words, this.text.toString());
+      } catch (IOException e) {
+        throw new SAXException(e);
+      }
+    }
+  }
+}
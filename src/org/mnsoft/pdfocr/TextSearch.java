@@ -0,0 +1,88 @@
+package org.mnsoft.pdfocr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Text Search Tool.
+ *
+ * Searches the full text index the wrapper builds when
+ * INDEXDIR is set, and prints the files holding all of
+ * the given words, with the pages they occur on. Call it
+ * from the working directory of the wrapper, like
+ *
+ * <xmp>
+ *   java org.mnsoft.pdfocr.TextSearch invoice 2013
+ *   java org.mnsoft.pdfocr.TextSearch -compact
+ * </xmp>
+ *
+ * The second form merges the index segments into one.
+ * Configuration parameters are read from pdfocr.properties,
+ * and can be given on the command line like for the wrapper
+ * itself.
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class TextSearch {
+  /**
+   * @param args Configuration parameters, followed by the words to search for.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final List<String> parameters = new ArrayList<String>();
+    final StringBuffer query      = new StringBuffer();
+    boolean            compact    = false;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-compact".equals(args[i])) {
+        compact = true;
+      } else if (args[i].indexOf('=') > 0) {
+        parameters.add(args[i]);
+      } else {
+        query.append(args[i]);
+        query.append(' ');
+      }
+    }
+
+    if (!compact && (query.length() == 0)) {
+      System.err.println("Usage: [name=value ...] word ... | -compact");
+      System.exit(1);
+    }
+
+    final Wrapper w = new Wrapper(".");
+    w.init(parameters.toArray(new String[0]));
+
+    final TextIndex index = w.createTextIndex();
+    if (index == null) {
+      System.err.println("! ERROR: No INDEXDIR configured.");
+      System.exit(1);
+    }
+
+    if (compact) {
+      index.compact();
+
+      return;
+    }
+
+    final Map<String, Set<Integer>> results = index.search(query.toString());
+
+    for (final Iterator<Map.Entry<String, Set<Integer>>> it = results.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<String, Set<Integer>> entry = it.next();
+
+      System.out.println(entry.getKey() + " " + entry.getValue());
+    }
+
+    System.err.println(results.size() + " file(s).");
+  }
+}
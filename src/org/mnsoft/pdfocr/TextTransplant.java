@@ -0,0 +1,213 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.pdf.PRTokeniser;
+import com.lowagie.text.pdf.PdfContentParser;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfLiteral;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+
+/**
+ * Reduces a page of the engine output to its text, before
+ * it is put under the page of the original. Engines that
+ * make "image on text" PDFs put the page image over the
+ * text, and stamping the whole page under the original
+ * carries the image twice.<p>
+ *
+ * The content stream of the page is parsed, and only kept
+ * are the text objects, from BT to ET, with all that is in
+ * them, and outside of them the operators that set the
+ * graphics and text state, and the marked content. Paths,
+ * shadings, inline images and image XObjects are dropped,
+ * and the images and shadings are taken out of the resources
+ * of the page, so that they are not copied along with it.
+ * The fonts stay, as does any form XObject, in case the
+ * engine put its text into one.<p>
+ *
+ * A page with inline images, or whose content stream does not
+ * parse, is left as it is and stamped in full as before.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class TextTransplant {
+  /**
+   * Logger for this class
+   */
+  private static final Logger      log   = Logger.getLogger(TextTransplant.class);
+
+  /**
+   * Operators kept outside of text objects.
+   */
+  private static final Set<String> STATE = new HashSet<String>(Arrays.asList(new String[] {
+        "q", "Q", "cm", "gs", "Tc", "Tw", "Tz", "TL", "Tf", "Tr", "Ts", "BMC", "BDC", "EMC", "MP", "DP", "BX", "EX"
+      }));
+
+
+  /**
+   * Reduce a page to its text. The page has to stay in the
+   * reader until it is written: if it is released, it is
+   * read from the file again as it was.
+   *
+   * @param reader The reader of the engine output
+   * @param page The page, starting at 1
+   * @return true if the page was reduced, false if it is left as it is.
+   */
+  public static boolean transplant(PdfReader reader, int page) {
+    try {
+      final byte[] content = reader.getPageContent(page);
+
+      if ((content == null) || BlankPageDetector.hasOperator(content, 'B', 'I')) {
+        return false;
+      }
+
+      final PdfDictionary pageN     = reader.getPageN(page);
+      final PdfDictionary resources = (PdfDictionary) PdfReader.getPdfObject(pageN.get(PdfName.RESOURCES));
+      final PdfDictionary xobjects  = (resources == null) ? null : resources.getAsDict(PdfName.XOBJECT);
+      final byte[]        text      = filter(content, xobjects);
+
+      reader.setPageContent(page, text);
+
+      if (resources != null) {
+        pageN.put(PdfName.RESOURCES, prune(resources));
+      }
+
+      log.debug("+ Reduced page " + page + " of the engine output from " + content.length + " to " + text.length + " bytes of content");
+
+      return true;
+    } catch (Exception e) {
+      log.debug("+ Cannot reduce page " + page + " of the engine output to its text: " + e.getMessage());
+
+      return false;
+    }
+  }
+
+
+  /**
+   * Keep the text of a content stream.
+   *
+   * @param content The content stream
+   * @param xobjects The XObjects of the page, or null
+   * @return The text objects and the state they need
+   * @throws IOException If the content stream does not parse
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static byte[] filter(byte[] content, PdfDictionary xobjects) throws IOException {
+    final PdfContentParser      parser   = new PdfContentParser(new PRTokeniser(content));
+    final ByteArrayOutputStream out      = new ByteArrayOutputStream(content.length / 4);
+    final ArrayList             operands = new ArrayList();
+    boolean                     inText   = false;
+
+    while (parser.parse(operands).size() > 0) {
+      final PdfObject last = (PdfObject) operands.get(operands.size() - 1);
+
+      if (!(last instanceof PdfLiteral)) {
+        throw new IOException("Operands without an operator at the end of the content stream");
+      }
+
+      final String operator = last.toString();
+
+      if ("BT".equals(operator)) {
+        inText = true;
+      }
+
+      final boolean keep = inText || STATE.contains(operator) || ("Do".equals(operator) && isForm(xobjects, (PdfObject) operands.get(0)));
+
+      if ("ET".equals(operator)) {
+        inText = false;
+      }
+
+      if (keep) {
+        for (int i = 0; i < operands.size(); i++) {
+          ((PdfObject) operands.get(i)).toPdf(null, out);
+          out.write((i == (operands.size() - 1)) ? '\n' : ' ');
+        }
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+
+  /**
+   * Take the images and shadings out of the resources.
+   * The resources may be shared with other pages, so
+   * they are copied rather than changed.
+   *
+   * @param resources The resources of a page
+   * @return The resources the text needs
+   */
+  static PdfDictionary prune(PdfDictionary resources) {
+    final PdfDictionary pruned = new PdfDictionary();
+
+    for (final Iterator<?> it = resources.getKeys().iterator(); it.hasNext();) {
+      final PdfName name = (PdfName) it.next();
+
+      if (PdfName.SHADING.equals(name)) {
+        continue;
+      }
+
+      if (PdfName.XOBJECT.equals(name)) {
+        final PdfDictionary xobjects = resources.getAsDict(PdfName.XOBJECT);
+        final PdfDictionary forms    = new PdfDictionary();
+
+        if (xobjects != null) {
+          for (final Iterator<?> x = xobjects.getKeys().iterator(); x.hasNext();) {
+            final PdfName key = (PdfName) x.next();
+
+            if (isForm(xobjects, key)) {
+              forms.put(key, xobjects.get(key));
+            }
+          }
+        }
+
+        if (forms.size() > 0) {
+          pruned.put(name, forms);
+        }
+
+        continue;
+      }
+
+      pruned.put(name, resources.get(name));
+    }
+
+    return pruned;
+  }
+
+
+  /**
+   * Check whether an XObject is a form.
+   *
+   * @param xobjects The XObjects of the page, or null
+   * @param name The name of the XObject
+   * @return true if it is a form.
+   */
+  private static boolean isForm(PdfDictionary xobjects, PdfObject name) {
+    if ((xobjects == null) || !(name instanceof PdfName)) {
+      return false;
+    }
+
+    final PdfObject obj = PdfReader.getPdfObject(xobjects.get((PdfName) name));
+
+    return (obj != null) && obj.isStream() && PdfName.FORM.equals(((PdfDictionary) obj).getAsName(PdfName.SUBTYPE));
+  }
+}
@@ -0,0 +1,127 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates the short lived helper threads that supervise
+ * engine processes: draining their output, waiting for
+ * them, and timing them out.<p>
+ *
+ * On a JDK with virtual threads, these are virtual threads,
+ * which cost next to nothing, so hundreds of engine processes
+ * can be supervised at once. On older JDKs, they are daemon
+ * platform threads. Virtual threads are looked up by reflection,
+ * so that the code still compiles and runs on old JDKs.<p>
+ *
+ * Threads that wait on a monitor, like the workers waiting in
+ * the {@link ConcurrencyController}, should stay platform threads:
+ * a virtual thread waiting on a monitor blocks its carrier thread.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class Threads {
+  /**
+   * Logger for this class
+   */
+  private static final Logger        log     = Logger.getLogger(Threads.class);
+
+  /**
+   * The factory for virtual threads, or null if there are none.
+   */
+  private static final ThreadFactory VIRTUAL = createVirtualFactory();
+
+  /**
+   * Number of platform threads created, for their names.
+   */
+  private static final AtomicInteger counter = new AtomicInteger();
+
+
+  /**
+   * Utility class.
+   */
+  private Threads() {
+  }
+
+
+  /**
+   * Check whether helper threads are virtual threads.
+   *
+   * @return true if virtual threads are available.
+   */
+  public static boolean isVirtual() {
+    return VIRTUAL != null;
+  }
+
+
+  /**
+   * Start a helper thread.
+   *
+   * @param name The name of the thread
+   * @param task The task
+   * @return The thread
+   */
+  public static Thread start(String name, Runnable task) {
+    final Thread t;
+
+    if (VIRTUAL != null) {
+      t = VIRTUAL.newThread(task);
+    } else {
+      t = new Thread(task);
+      t.setDaemon(true);
+    }
+
+    t.setName(name + "-" + counter.incrementAndGet());
+    t.start();
+
+    return t;
+  }
+
+
+  /**
+   * Get a factory for daemon platform threads.
+   *
+   * @param name The name of the threads
+   * @return The factory
+   */
+  public static ThreadFactory daemon(final String name) {
+    return new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+          t.setDaemon(true);
+
+          return t;
+        }
+      };
+  }
+
+
+  /**
+   * Look up the factory for virtual threads:
+   * Thread.ofVirtual().factory().
+   *
+   * @return The factory, or null if there are no virtual threads.
+   */
+  private static ThreadFactory createVirtualFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Object factory = Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+
+      log.debug("+ Using virtual threads to supervise engine processes.");
+
+      return (ThreadFactory) factory;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package org.mnsoft.pdfocr;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.BadPdfFormatException;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfImportedPage;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfRectangle;
+import com.lowagie.text.pdf.PdfStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Copies the pages of a PDF one by one, and can draw a page
+ * of a second PDF, like the engine output, under each of
+ * them. Each page is written out as soon as it is added,
+ * so that the heap does not grow with the number of pages
+ * as it does with a stamper, which writes all pages on close.<p>
+ *
+ * A {@link PdfCopy} imports pages from one reader at a time:
+ * it closes the reader whose page it imported last when it
+ * is asked for a page of another one, and it does not write
+ * pages of the other reader used as templates. The page drawn
+ * under is therefore not imported, but copied into the output
+ * as a form XObject, with the objects it uses, like its fonts.
+ * As for the pages, these objects are copied only once until
+ * {@link #freeReader(PdfReader)} is called for their reader.
+ * This is done for all readers every given number of pages,
+ * so that what the copy keeps of them does not grow either;
+ * objects shared by pages of different batches are copied
+ * once per batch then.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class UnderlayCopy extends PdfCopy {
+  /**
+   * Prefix of the names of the form XObjects drawn under pages.
+   */
+  private static final String  PREFIX  = "OCRUnder";
+
+  /**
+   * Number of pages after which the readers are freed.
+   */
+  private final int            flush;
+
+  /**
+   * The readers used since they were last freed.
+   */
+  private final Set<PdfReader> readers = new HashSet<PdfReader>();
+
+  /**
+   * Number of pages added.
+   */
+  private int                  pages   = 0;
+
+
+  /**
+   * Constructor.
+   *
+   * @param document The document
+   * @param os The output stream
+   * @param flush Number of pages after which the readers are freed
+   * @throws DocumentException
+   */
+  public UnderlayCopy(Document document, OutputStream os, int flush) throws DocumentException {
+    super(document, os);
+
+    this.flush = Math.max(1, flush);
+  }
+
+
+  /**
+   * Copy a page, and free the readers if it completes
+   * a batch of pages.
+   *
+   * @param page The page
+   * @throws IOException
+   * @throws BadPdfFormatException
+   */
+  @Override
+  public void addPage(PdfImportedPage page) throws IOException, BadPdfFormatException {
+    super.addPage(page);
+
+    this.readers.add(this.reader);
+
+    if ((++this.pages % this.flush) == 0) {
+      for (final PdfReader reader : new ArrayList<PdfReader>(this.readers)) {
+        freeReader(reader);
+      }
+    }
+  }
+
+
+  /**
+   * Forget the objects copied from a reader, so that they
+   * are copied again if they are needed again.
+   *
+   * @param reader The reader
+   * @throws IOException
+   */
+  @Override
+  public void freeReader(PdfReader reader) throws IOException {
+    super.freeReader(reader);
+
+    this.readers.remove(reader);
+  }
+
+
+  /**
+   * Copy a page as it is.
+   *
+   * @param reader The PDF
+   * @param page The page, starting at 1
+   * @throws IOException
+   * @throws BadPdfFormatException
+   */
+  public void addPage(PdfReader reader, int page) throws IOException, BadPdfFormatException {
+    addPage(getImportedPage(reader, page));
+  }
+
+
+  /**
+   * Draw a page of another PDF under a page to be copied.
+   * Call it right after {@link #createPageStamp(PdfImportedPage)},
+   * before anything else is drawn on the stamp; then draw
+   * more if needed, call
+   * {@link #alterContents(PdfReader, int, PdfCopy.PageStamp)}
+   * and add the page.<p>
+   *
+   * The page drawn under is taken as it is in the reader, so
+   * that changes made to it there, like those of
+   * {@link TextTransplant}, are copied as well.
+   *
+   * @param reader The PDF to copy the page of
+   * @param page The page to be copied, starting at 1
+   * @param stamp The stamp of the page
+   * @param under The PDF to take the page to draw under it from
+   * @param underPage The page to draw under it, starting at 1
+   * @param matrix The transformation of the page drawn under it, as a, b, c, d, e, f of {@link PdfContentByte#addTemplate(com.lowagie.text.pdf.PdfTemplate, float, float, float, float, float, float)}
+   * @throws IOException
+   * @throws BadPdfFormatException
+   */
+  public void drawUnder(PdfReader reader, int page, PageStamp stamp, PdfReader under, int underPage, float[] matrix) throws IOException, BadPdfFormatException {
+    final PdfIndirectReference form = copyForm(under, underPage);
+
+    /*
+     * The stamp takes the resources of the page when
+     * its under content is first asked for; the form
+     * has to be among them by then. The resources may
+     * be shared with other pages, so they are copied
+     * rather than changed.
+     */
+    final PdfDictionary pageN     = reader.getPageN(page);
+    final PdfDictionary resources = new PdfDictionary();
+    final PdfDictionary xobjects  = new PdfDictionary();
+    final PdfDictionary original  = (PdfDictionary) PdfReader.getPdfObject(pageN.get(PdfName.RESOURCES));
+
+    if (original != null) {
+      resources.merge(original);
+
+      final PdfDictionary x = (PdfDictionary) PdfReader.getPdfObject(original.get(PdfName.XOBJECT));
+
+      if (x != null) {
+        xobjects.merge(x);
+      }
+    }
+
+    PdfName name = new PdfName(PREFIX);
+
+    for (int i = 1; xobjects.contains(name); i++) {
+      name = new PdfName(PREFIX + i);
+    }
+
+    xobjects.put(name, form);
+    resources.put(PdfName.XOBJECT, xobjects);
+    pageN.put(PdfName.RESOURCES, resources);
+
+    final PdfContentByte cb = stamp.getUnderContent();
+
+    cb.saveState();
+    cb.concatCTM(matrix[0], matrix[1], matrix[2], matrix[3], matrix[4], matrix[5]);
+    cb.setLiteral(name.toString() + " Do\n");
+    cb.restoreState();
+  }
+
+
+  /**
+   * Put what was drawn on the stamp of a page into its
+   * content. The stamp reads the content stream of the
+   * page to wrap it; a partially read PDF would keep that
+   * stream until it is closed, so it is released here.
+   *
+   * @param reader The PDF to copy the page of
+   * @param page The page, starting at 1
+   * @param stamp The stamp of the page
+   * @throws IOException
+   */
+  public void alterContents(PdfReader reader, int page, PageStamp stamp) throws IOException {
+    final PdfObject contents = reader.getPageN(page).get(PdfName.CONTENTS);
+
+    stamp.alterContents();
+
+    PdfReader.releaseLastXrefPartial(contents);
+  }
+
+
+  /**
+   * Copy a page into the output as a form XObject, as
+   * {@link #getImportedPage(PdfReader, int)} would make it
+   * if the page was not of another reader. The form is
+   * written at once.
+   *
+   * @param reader The PDF
+   * @param page The page, starting at 1
+   * @return The reference to the form
+   * @throws IOException
+   * @throws BadPdfFormatException
+   */
+  private PdfIndirectReference copyForm(PdfReader reader, int page) throws IOException, BadPdfFormatException {
+    /*
+     * Take the dictionary before the content: the reader
+     * releases the page once it has read the content.
+     */
+    final PdfDictionary pageN     = reader.getPageN(page);
+    final PdfRectangle  box       = new PdfRectangle(reader.getPageSize(pageN));
+    final PdfObject     resources = pageN.get(PdfName.RESOURCES);
+    final PdfStream     form      = new PdfStream(reader.getPageContent(page));
+
+    form.put(PdfName.TYPE, PdfName.XOBJECT);
+    form.put(PdfName.SUBTYPE, PdfName.FORM);
+    form.put(PdfName.BBOX, box);
+
+    if (resources != null) {
+      setFromReader(reader);
+
+      this.readers.add(reader);
+
+      form.put(PdfName.RESOURCES, copyObject(resources));
+    }
+
+    form.flateCompress(getCompressionLevel());
+
+    return addToBody(form).getIndirectReference();
+  }
+}
@@ -1,10 +1,22 @@
 package org.mnsoft.pdfocr;
 
+import com.lowagie.text.Document;
 import com.lowagie.text.DocumentException;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BadPdfFormatException;
+import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfDictionary;
 import com.lowagie.text.pdf.PdfImportedPage;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
 import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfString;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+import com.lowagie.text.pdf.SimpleBookmark;
+import com.lowagie.text.pdf.parser.PdfTextExtractor;
 
 import org.apache.commons.io.FileUtils;
 
@@ -14,14 +26,33 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
 
 
 /**
@@ -47,6 +78,35 @@ public class Wrapper {
    */
   public static final String      CONFIG_FILE_NAME = "pdfocr.properties";
 
+  /**
+   * Time to wait for the last output of the engine after it ended, in milliseconds.
+   */
+  private static final long       DRAIN_WAIT       = 1000;
+
+  /**
+   * Time to wait for the engine to end after asking it to, in milliseconds.
+   */
+  private static final long       KILL_WAIT        = 5000;
+
+  /**
+   * Time between attempts to start a hedged engine run
+   * while there is no free slot, memory or scratch space, in milliseconds.
+   */
+  private static final long       HEDGE_RETRY      = 10000;
+
+  /**
+   * Number of engine runs the cost model must have
+   * learned from before engine runs are hedged.
+   */
+  private static final int        HEDGE_SAMPLES    = 3;
+
+  /**
+   * Relative difference up to which the pages of the engine
+   * output and of the original count as of the same size,
+   * or of the same shape.
+   */
+  private static final float      SIZE_TOLERANCE   = 0.01f;
+
   /**
    * The command to run the OCR Engine,
    * with place holders for the Input and Output file names.
@@ -92,6 +152,86 @@ public class Wrapper {
   private String                  wd               = ".";
 
 
+  /**
+   * Limits the number of engine processes
+   * running at the same time.
+   */
+  private ConcurrencyController   concurrency      = null;
+
+
+  /**
+   * Estimates the cost of engine runs.
+   */
+  private CostModel               costModel        = null;
+
+
+  /**
+   * Admits engine runs within the memory budget.
+   */
+  private AdmissionController     admission        = null;
+
+
+  /**
+   * The report of the run.
+   */
+  private RunReport               report           = null;
+
+
+  /**
+   * The state of files between runs.
+   */
+  private JobStore                jobs             = null;
+
+
+  /**
+   * The full text index, if any.
+   */
+  private TextIndex               index            = null;
+
+  /**
+   * The image recompressor, if page images are recompressed.
+   */
+  private ImageRecompressor       recompressor     = null;
+
+  /**
+   * The preprocessor, if page images are cleaned
+   * up before they go to the engine.
+   */
+  private Preprocessor            preprocessor     = null;
+
+  /**
+   * The blank page detector, if blank pages are
+   * left out of the engine input.
+   */
+  private BlankPageDetector       blankPages       = null;
+
+  /**
+   * The cache of pages seen before, if any.
+   */
+  private PageCache               pageCache        = null;
+
+  /**
+   * The renderer of the text layer, if the engine
+   * puts out hOCR or ALTO rather than PDF.
+   */
+  private TextLayerRenderer       textLayer        = null;
+
+  /**
+   * The repair of files that cannot be opened, if any.
+   */
+  private PdfRepair               repair           = null;
+
+  /**
+   * The processor of ZIP archives, if they are worked on.
+   */
+  private ZipProcessor            zips             = null;
+
+  /**
+   * Scratch space for the temporary files.
+   */
+  private ScratchSpace            scratch          = null;
+
+
   /**
    * Constructor.
    */
@@ -119,334 +259,2571 @@ public class Wrapper {
    * @throws InterruptedException
    * @throws DocumentException
    */
-  @SuppressWarnings("rawtypes")
   public void run() throws IOException, InterruptedException, DocumentException {
-    RecursiveFileListIterator it = new RecursiveFileListIterator(new File(wd), new FileFilter(".pdf"));
+    final Iterator<File>      it     = LocalityOrder.wrap(new RecursiveFileListIterator(new File(wd), new FileFilter(".pdf", "true".equals(getAttribute("INGEST")), "true".equals(getAttribute("ZIP")))),
+        getAttribute("ORDER"), StringUtility.StringToInteger(getAttribute("ORDERWINDOW"), 1000));
 
-    while (it.hasNext()) {
-      final File   originalFile         = it.next();
-      final String originalFilePath     = originalFile.getAbsolutePath();
+    final LeaseManager        leases = createLeaseManager();
 
-      /*
-       * Open the reader on the original File
-       */
-      PdfReader    readerOnOriginalFile;
+    start();
 
-      try {
-        readerOnOriginalFile = new PdfReader(originalFilePath);
-      } catch (Exception e) {
-        log.error("! ERROR: " + e.getMessage() + " File: " + originalFilePath);
+    /*
+     * If we may run more than one engine process at
+     * a time, the files are worked on by a pool of
+     * threads; the scanner waits while the queue is
+     * full.
+     */
+    final ExecutorService pool = (this.concurrency.getMax() > 1) ? createPool(this.concurrency.getMax()) : null;
 
-        continue;
-      }
+    try {
+      while (it.hasNext()) {
+        final File originalFile = it.next();
 
-      /*
-       * Get the document information
-       */
-      Map    info        = readerOnOriginalFile.getInfo();
+        if (pool == null) {
+          work(originalFile, leases);
 
-      /*
-       * Get the document creator. If the document
-       * has already been worked on, continue with
-       * the next document.
-       */
-      String doc_creator = (String) info.get("Creator");
+          continue;
+        }
 
-      if (this.OCR_CREATOR.equals(doc_creator)) {
-        log.debug("+ INFO: File " + originalFilePath + " had already been run trough OCR engine. Skipping.");
+        pool.execute(new Runnable() {
+            public void run() {
+              try {
+                work(originalFile, leases);
+              } catch (Exception e) {
+                log.error("! ERROR: " + e.getMessage() + " File: " + originalFile.getAbsolutePath(), e);
+              }
+            }
+          });
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
 
-        continue;
+      if (leases != null) {
+        leases.shutdown();
       }
 
-      /*
-       * Get the document time stamp so that we can set it later.
-       */
-      final Date doc_timestamp = new Date(originalFile.lastModified());
+      stop();
+    }
+  }
 
-      /*
-       * Get the number of pages in the original file
-       */
-      int        nOri          = readerOnOriginalFile.getNumberOfPages();
 
-      log.debug("+ Working on: " + originalFilePath + " (" + nOri + " pages).");
+  /**
+   * Set up what is needed to work on files: the
+   * concurrency and admission control, the cost
+   * model, the job store, the full text index, the
+   * repair of broken files, the blank page detector, the text layer renderer, the
+   * page cache, the image preprocessor and recompressor,
+   * the scratch space, the processor of ZIP archives
+   * and the run report.
+   *
+   * @throws IOException
+   */
+  void start() throws IOException {
+    this.concurrency = createConcurrencyController();
 
-      final StringBuffer sb = new StringBuffer();
+    this.jobs        = createJobStore();
 
-      sb.append(originalFilePath + " ... ");
+    this.index       = createTextIndex();
 
-      /*
-       * Get the remaining meta data
-       */
-      String doc_title    = ((String) info.get("Title") == null) ? "" : (String) info.get("Title");
-      String doc_subject  = ((String) info.get("Subject") == null) ? "" : (String) info.get("Subject");
-      String doc_keywords = ((String) info.get("Keywords") == null) ? "" : (String) info.get("Keywords");
-      String doc_author   = ((String) info.get("Author") == null) ? "" : (String) info.get("Author");
+    this.repair      = createPdfRepair();
 
-      readerOnOriginalFile.close();
+    this.blankPages   = createBlankPageDetector();
 
-      /*
-       * Set the creator to our marker
-       */
-      doc_creator = this.OCR_CREATOR;
+    this.textLayer    = createTextLayerRenderer();
+
+    this.pageCache    = createPageCache();
+
+    this.preprocessor = createPreprocessor();
+
+    this.recompressor = createImageRecompressor();
+
+    this.scratch     = createScratchSpace();
+
+    this.zips        = "true".equals(getAttribute("ZIP")) ? new ZipProcessor(this.scratch, this.TMP_EXTENSION) : null;
+
+    String costModelFile = getAttribute("COSTMODEL");
+    if ((costModelFile == null) || "".equals(costModelFile)) {
+      costModelFile = this.wd + "/" + CostModel.DEFAULT_FILE;
+    }
+
+    this.costModel = new CostModel(new File(costModelFile));
+    this.admission = new AdmissionController(StringUtility.StringToInteger(getAttribute("MEMBUDGET"), 0) * 1024L * 1024L);
+
+    final String reportFile = getAttribute("REPORT");
+    this.report = new RunReport(((reportFile == null) || "".equals(reportFile)) ? null : new File(reportFile), getAttribute("cmd"), "true".equals(getAttribute("REPORTSKIPPED")));
+  }
+
+
+  /**
+   * Tear down what {@link #start()} has set up, writing
+   * the full text index, run report and metrics.
+   */
+  void stop() {
+    this.concurrency.shutdown();
+
+    if (this.index != null) {
+      this.index.flush();
+    }
+
+    if (this.pageCache != null) {
+      this.pageCache.close();
+    }
+
+    if (this.preprocessor != null) {
+      this.preprocessor.shutdown();
+    }
+
+    if (this.recompressor != null) {
+      this.recompressor.shutdown();
+    }
+
+    this.report.close();
+
+    Metrics.dump();
+  }
+
+
+  /**
+   * Get the maximum number of engine processes
+   * running at a time. Only valid after {@link #start()}.
+   *
+   * @return The maximum number of engine processes
+   */
+  int getMaxJobs() {
+    return this.concurrency.getMax();
+  }
+
+
+  /**
+   * Get a parameter, from the command line
+   * or the configuration file.
+   *
+   * @param name The name of the parameter
+   * @return The value, or null if it is not set.
+   */
+  String getParameter(String name) {
+    return getAttribute(name);
+  }
+
+
+  /**
+   * Get the directory for temporary files.
+   *
+   * @return The directory for temporary files
+   */
+  File getTempDir() {
+    return new File(this.TMP_DIR);
+  }
+
+
+  /**
+   * Work on a single file outside of a scan, e.g. one
+   * that was handed to the {@link OcrService}. The file
+   * is replaced by the result in place. There is no
+   * lease and no retry policy; the file is recorded in
+   * the run report as usual.
+   *
+   * @param file The file to work on
+   * @param key The key of the file for the report and full text index
+   * @param text Whether to keep the recognized text in the record
+   * @return The record of what happened to the file
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  FileRecord processFile(File file, String key, boolean text) throws IOException, InterruptedException, DocumentException {
+    final FileRecord record = new FileRecord(file);
+
+    record.key      = key;
+    record.keepText = text;
+
+    if (text) {
+      record.text = new ArrayList<String>();
+    }
+
+    try {
+      process(file, null, null, record);
+    } catch (InterruptedException e) {
+      record.cancelled();
+
+      throw e;
+    } catch (Exception e) {
+      record.failed("exception", e);
+
+      throw e;
+    } finally {
+      record.finish();
+
+      this.report.add(record);
+    }
 
+    return record;
+  }
+
+
+  /**
+   * Work on a single file, taking a lease
+   * on it first in multi node mode.
+   *
+   * @param originalFile The file to work on
+   * @param leases The lease manager in multi node mode, else null
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  private void work(File originalFile, LeaseManager leases) throws IOException, InterruptedException, DocumentException {
+    final FileRecord record = new FileRecord(originalFile);
+    final String     jobKey = this.jobs.getKey(originalFile);
+
+    record.key = jobKey;
+
+    try {
       /*
-       * Run the OCR Engine
+       * Skip files that failed recently or too often
        */
-      File outputFileFromOCR = null;
-      try {
-        outputFileFromOCR = ocr(originalFile);
-      } catch (Exception e) {
-        log.error("! ERROR: " + e.getMessage());
+      final String reason = this.jobs.check(jobKey, originalFile);
 
-        continue;
+      if (reason != null) {
+        log.debug("+ INFO: File " + originalFile.getAbsolutePath() + " is skipped: " + reason);
+
+        record.skipped(reason);
+
+        return;
       }
 
       /*
-       * Check for the result of the OCR Engine
+       * In multi node mode, only work on files
+       * that no other node currently holds.
        */
-      if ((outputFileFromOCR == null) || !outputFileFromOCR.exists()) {
-        continue;
+      if (leases == null) {
+        process(originalFile, null, null, record);
+
+        return;
       }
 
-      log.debug("+ " + outputFileFromOCR.getAbsolutePath() + " has come out of the OCR engine.");
+      final String key = leases.getKey(originalFile);
 
-      /*
-       * Create final output
-       */
+      if (!leases.acquire(key)) {
+        log.debug("+ INFO: File " + originalFile.getAbsolutePath() + " is leased by another node. Skipping.");
 
-      /*
-       * Create a temporary file and copy the source
-       * file to it, to avoid UTF-8 encoding problems
-       * on the filename confusing the OCR engine
-       */
-      final File temp = File.createTempFile("ocr", ".pdf", new File(this.TMP_DIR));
-      temp.deleteOnExit();
+        record.skipped("leased by another node");
+
+        return;
+      }
 
-      mergePDFs(originalFile, outputFileFromOCR, temp, doc_title, doc_subject, doc_keywords, doc_author, doc_creator);
+      try {
+        process(originalFile, leases, key, record);
+      } finally {
+        leases.release(key);
+      }
+    } catch (InterruptedException e) {
+      record.cancelled();
 
-      FileUtils.deleteQuietly(originalFile);
+      throw e;
+    } catch (Exception e) {
+      record.failed("exception", e);
 
-      FileUtils.moveFile(temp, new File(originalFilePath));
+      throw e;
+    } finally {
+      record.finish();
 
       /*
-       * Set the file access time
+       * Remember failures for the retry policy. Losing
+       * the lease is not the fault of the file.
        */
-      if ("true".equals(getAttribute("KEEPTS"))) {
-        if (originalFile.exists()) {
-          originalFile.setLastModified(doc_timestamp.getTime() + 1000);
-        }
+      if (FileRecord.FAILED.equals(record.status) && !"lost lease".equals(record.reason)) {
+        this.jobs.failed(jobKey, originalFile, record.reason + ((record.error == null) ? "" : (": " + record.error)));
+      } else if (FileRecord.DONE.equals(record.status)) {
+        this.jobs.succeeded(jobKey, originalFile, record.checksum);
       }
 
-      /*
-       * Finally, remove the temporary document
-       */
-      FileUtils.deleteQuietly(temp);
-      FileUtils.deleteQuietly(outputFileFromOCR);
+      this.report.add(record);
+    }
+  }
+
+
+  /**
+   * Create a pool of threads to work on files. Its
+   * queue is bounded; when it is full, the caller
+   * waits until there is room again.
+   *
+   * @param threads The number of threads
+   * @return The pool
+   */
+  private ExecutorService createPool(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads), new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            try {
+              executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+  }
+
+
+  /**
+   * Process a single file: check whether it needs
+   * to be run through the OCR engine, run it, and
+   * replace the original by the merged result.
+   *
+   * @param originalFile The file to work on
+   * @param leases The lease manager in multi node mode, else null
+   * @param key The lease key of the file in multi node mode, else null
+   * @param record The record of what happens to the file
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  private void process(File originalFile, LeaseManager leases, String key, FileRecord record) throws IOException, InterruptedException, DocumentException {
+    if ((this.zips != null) && ZipProcessor.isZip(originalFile)) {
+      processZip(originalFile, leases, key, record);
+
+      return;
+    }
+
+    final ScratchSpace.Area area = this.scratch.allocate(originalFile.length());
+
+    record.scratch = area.getName();
+
+    try {
+      if (ImageIngest.isImage(originalFile)) {
+        ingest(originalFile, leases, key, record, area);
+      } else {
+        process(originalFile, originalFile, null, leases, key, record, area);
+      }
+    } finally {
+      area.release();
+    }
+  }
+
+
+  /**
+   * Process the PDFs, and with INGEST the images, in a ZIP
+   * archive, one at a time in scratch space, and replace the
+   * archive by one with the results. Each entry gets a record
+   * of its own in the run report, keyed by the archive and its
+   * name in it; the record of the archive counts the pages of
+   * all entries, but is left out of the totals of the run, and
+   * fails if an entry failed, so that the archive is tried
+   * again later.
+   *
+   * @param zip The archive
+   * @param leases The lease manager in multi node mode, else null
+   * @param key The lease key of the archive in multi node mode, else null
+   * @param record The record of what happens to the archive
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  private void processZip(final File zip, final LeaseManager leases, final String key, final FileRecord record) throws IOException, InterruptedException, DocumentException {
+    final boolean images = "true".equals(getAttribute("INGEST"));
+    final int[]   failed = new int[1];
+
+    record.archive = true;
+    record.begin("zip");
+    record.bytesIn = zip.length();
+    record.pages   = 0;
+
+    final int changed = this.zips.process(zip, new FileFilter(".pdf", images), new ZipProcessor.EntryHandler() {
+        public boolean process(ZipEntry entry, File copy, ScratchSpace.Area area, Set<String> taken, Map<String, File> extra) throws InterruptedException {
+          final FileRecord r = new FileRecord(new File(zip.getAbsolutePath() + "!/" + entry.getName()));
+
+          r.key     = record.key + "!/" + entry.getName();
+          r.scratch = area.getName();
+          r.bytesIn = copy.length();
+
+          final File   target  = ImageIngest.isImage(copy) ? ImageIngest.getTarget(copy) : copy;
+          final File   sidecar = new File(target.getAbsolutePath() + ".txt");
+          final String name    = (target == copy) ? entry.getName() : ImageIngest.getTarget(new File(entry.getName())).getPath().replace(File.separatorChar, '/');
+
+          try {
+            /*
+             * The PDF of a scan lies next to it in the
+             * archive once it has been made
+             */
+            if ((target != copy) && taken.contains(name)) {
+              log.debug("+ INFO: " + r.file.getPath() + " has its PDF already. Skipping.");
+
+              r.skipped(FileRecord.REASON_DONE);
+            } else if (target != copy) {
+              ingest(copy, leases, key, r, area);
+            } else {
+              Wrapper.this.process(copy, copy, null, leases, key, r, area);
+            }
+          } catch (InterruptedException e) {
+            r.cancelled();
+
+            throw e;
+          } catch (Exception e) {
+            log.error("! ERROR: " + e.getMessage() + " File: " + r.file.getPath(), e);
+
+            r.failed("exception", e);
+          } finally {
+            r.finish();
+
+            report.add(r);
+          }
+
+          if (FileRecord.FAILED.equals(r.status)) {
+            failed[0]++;
+          }
+
+          if (!FileRecord.DONE.equals(r.status)) {
+            if (target != copy) {
+              FileUtils.deleteQuietly(target);
+            }
+
+            FileUtils.deleteQuietly(sidecar);
+
+            return false;
+          }
+
+          if (target != copy) {
+            extra.put(name, target);
+          }
+
+          extra.put(name + ".txt", sidecar);
+
+          record.pages        += Math.max(0, r.pages);
+          record.pagesMerged  += r.pagesMerged;
+          record.pagesSkipped += r.pagesSkipped;
+          record.pagesBlank   += r.pagesBlank;
+          record.pagesCached  += r.pagesCached;
+
+          /*
+           * A scan is put into the archive as it was; only
+           * its PDF is new
+           */
+          return target == copy;
+        }
+      });
+
+    record.bytesOut = zip.length();
+
+    if (failed[0] > 0) {
+      record.failed(failed[0] + " entries failed", null);
+
+      return;
+    }
+
+    if (changed == 0) {
+      record.skipped(FileRecord.REASON_DONE);
+
+      return;
     }
+
+    if (!"false".equals(getAttribute("VERIFY"))) {
+      record.checksum = OutputVerifier.checksum(zip);
+    }
+
+    record.done();
+
+    log.info("+ Done: " + zip.getAbsolutePath() + " (" + changed + " entries, " + record.pages + " pages).");
+  }
+
+
+  /**
+   * Process a scan that comes as an image: make its PDF,
+   * and work on that, with the PDF of the same name as
+   * the result. With INGESTENGINE=image, the engine works
+   * on the image itself while the PDF is made, else on the
+   * PDF once it is made, like on any other file.
+   *
+   * @param image The image
+   * @param leases The lease manager in multi node mode, else null
+   * @param key The lease key of the file in multi node mode, else null
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the temporary files
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  private void ingest(File image, LeaseManager leases, String key, FileRecord record, ScratchSpace.Area area) throws IOException, InterruptedException, DocumentException {
+    final File target = ImageIngest.getTarget(image);
+
+    if (record.bytesIn < 0) {
+      record.bytesIn = image.length();
+    }
+
+    if (target.exists()) {
+      log.debug("+ INFO: " + image.getAbsolutePath() + " has its PDF already. Skipping.");
+
+      record.skipped(FileRecord.REASON_DONE);
+
+      return;
+    }
+
+    record.begin("ingest");
+
+    final File container = area.createTempFile("ingest", ".pdf");
+    IngestRun  engine    = null;
+
+    try {
+      if (!"pdf".equals(getAttribute("INGESTENGINE"))) {
+        engine = new IngestRun(image, ImageIngest.getPages(image), area);
+        engine.start();
+      }
+
+      try {
+        ImageIngest.write(image, container);
+
+        container.setLastModified(image.lastModified());
+      } catch (Exception e) {
+        log.error("! ERROR: " + e.getMessage() + " File: " + image.getAbsolutePath());
+
+        record.failed("unreadable", e);
+
+        return;
+      }
+
+      process(container, target, engine, leases, key, record, area);
+
+      if (FileRecord.DONE.equals(record.status) && "false".equals(getAttribute("INGESTKEEP"))) {
+        FileUtils.deleteQuietly(image);
+      }
+    } finally {
+      if (engine != null) {
+        engine.cancel();
+      }
+
+      FileUtils.deleteQuietly(container);
+    }
+  }
+
+
+  /**
+   * Process a single file, with its temporary
+   * files in the given scratch space.
+   *
+   * @param originalFile The file to work on
+   * @param target The file the result replaces or is written to; the
+   *               file to work on itself, but for scans that come as an image
+   * @param ingest The engine run on the image, if the file is made of one
+   *               and the engine works on it already, else null
+   * @param leases The lease manager in multi node mode, else null
+   * @param key The lease key of the file in multi node mode, else null
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the temporary files
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws DocumentException
+   */
+  @SuppressWarnings("rawtypes")
+  private void process(File originalFile, File target, IngestRun ingest, LeaseManager leases, String key, FileRecord record, ScratchSpace.Area area) throws IOException, InterruptedException, DocumentException {
+    final String originalFilePath     = record.file.getAbsolutePath();
+
+    record.begin("probe");
+
+    if (record.bytesIn < 0) {
+      record.bytesIn = originalFile.length();
+    }
+
+    /*
+     * Open the reader on the original File. If it cannot
+     * be opened, we work on a repaired copy, if we can
+     * make one; the result replaces the original all
+     * the same.
+     */
+    PdfReader        readerOnOriginalFile;
+    File             source   = originalFile;
+    PdfRepair.Result repaired = null;
+
+    try {
+      readerOnOriginalFile = new PdfReader(originalFile.getAbsolutePath());
+    } catch (Exception e) {
+      if (this.repair != null) {
+        record.begin("repair");
+
+        repaired = this.repair.repair(originalFile);
+      }
+
+      if (repaired == null) {
+        log.error("! ERROR: " + e.getMessage() + " File: " + originalFilePath);
+
+        record.failed("unreadable", e);
+
+        return;
+      }
+
+      source          = repaired.file;
+      record.repaired = repaired.how;
+
+      record.begin("probe");
+
+      try {
+        readerOnOriginalFile = new PdfReader(source.getAbsolutePath());
+      } catch (Exception e2) {
+        log.error("! ERROR: " + e2.getMessage() + " File: " + source.getAbsolutePath() + ", repaired from " + originalFilePath);
+
+        record.failed("unreadable", e2);
+
+        return;
+      }
+    }
+
+    /*
+     * Files whose owner does not allow changing them
+     * cannot be merged; we do not have the engine work
+     * on them for nothing.
+     */
+    if (readerOnOriginalFile.isEncrypted() && !readerOnOriginalFile.isOpenedWithFullPermissions()) {
+      log.error("! ERROR: " + originalFilePath + " is protected against changes. Not working on it.");
+
+      readerOnOriginalFile.close();
+
+      record.failed("protected", null);
+
+      return;
+    }
+
+    /*
+     * Get the document information
+     */
+    Map    info        = readerOnOriginalFile.getInfo();
+
+    /*
+     * Get the document creator. If the document
+     * has already been worked on, continue with
+     * the next document.
+     */
+    String doc_creator = (String) info.get("Creator");
+
+    if (this.OCR_CREATOR.equals(doc_creator)) {
+      log.debug("+ INFO: File " + originalFilePath + " had already been run trough OCR engine. Skipping.");
+
+      readerOnOriginalFile.close();
+
+      record.skipped(FileRecord.REASON_DONE);
+
+      return;
+    }
+
+    /*
+     * Get the document time stamp so that we can set it later.
+     */
+    final Date doc_timestamp = new Date(record.file.exists() ? record.file.lastModified() : originalFile.lastModified());
+
+    /*
+     * Get the number of pages in the original file
+     */
+    int        nOri          = readerOnOriginalFile.getNumberOfPages();
+
+    record.pages = nOri;
+
+    log.debug("+ Working on: " + originalFilePath + " (" + nOri + " pages).");
+
+    final StringBuffer sb = new StringBuffer();
+
+    sb.append(originalFilePath + " ... ");
+
+    /*
+     * Get the remaining meta data
+     */
+    String doc_title    = ((String) info.get("Title") == null) ? "" : (String) info.get("Title");
+    String doc_subject  = ((String) info.get("Subject") == null) ? "" : (String) info.get("Subject");
+    String doc_keywords = ((String) info.get("Keywords") == null) ? "" : (String) info.get("Keywords");
+    String doc_author   = ((String) info.get("Author") == null) ? "" : (String) info.get("Author");
+
+    /*
+     * Find the pages the engine need not see, unless
+     * it is working on all of them already
+     */
+    PagePlan plan = null;
+
+    if ((ingest == null) && ((this.blankPages != null) || (this.pageCache != null))) {
+      plan = new PagePlan(nOri);
+
+      if (this.blankPages != null) {
+        record.begin("blank");
+
+        findBlankPages(readerOnOriginalFile, plan, record);
+      }
+
+      if (this.pageCache != null) {
+        record.begin("cache");
+
+        findCachedPages(readerOnOriginalFile, plan, record, area);
+      }
+    }
+
+    readerOnOriginalFile.close();
+
+    /*
+     * Set the creator to our marker
+     */
+    doc_creator = this.OCR_CREATOR;
+
+    /*
+     * Run the OCR Engine
+     */
+    File outputFileFromOCR = null;
+
+    if ((plan == null) || (plan.getEnginePages() > 0)) {
+      try {
+        outputFileFromOCR = (ingest == null) ? ocr(source, nOri, plan, record, area) : ingest.join(record);
+      } catch (InterruptedException e) {
+        /*
+         * Cancelled, e.g. by the OcrService: not the
+         * fault of the engine, nor of the file
+         */
+        log.info("+ Cancelled: " + originalFilePath);
+
+        record.cancelled();
+
+        deleteLayers(plan);
+
+        throw e;
+      } catch (Exception e) {
+        log.error("! ERROR: " + e.getMessage());
+
+        record.failed("engine failed", e);
+
+        deleteLayers(plan);
+
+        return;
+      }
+
+      /*
+       * Check for the result of the OCR Engine
+       */
+      if ((outputFileFromOCR == null) || !outputFileFromOCR.exists()) {
+        record.failed("no engine output", null);
+
+        deleteLayers(plan);
+
+        return;
+      }
+
+      log.debug("+ " + outputFileFromOCR.getAbsolutePath() + " has come out of the OCR engine.");
+    } else {
+      log.debug("+ All pages of " + originalFilePath + " are blank or cached, not calling the OCR engine.");
+    }
+
+    /*
+     * Create final output
+     */
+
+    /*
+     * Create a temporary file and copy the source
+     * file to it, to avoid UTF-8 encoding problems
+     * on the filename confusing the OCR engine
+     */
+    record.begin("merge");
+
+    if ((record.text == null) && ((this.index != null) || "true".equals(getAttribute("TEXTSIDECAR")))) {
+      record.text = new ArrayList<String>();
+    }
+
+    final File temp = area.createTempFile("ocr", ".pdf");
+    temp.deleteOnExit();
+
+    final boolean merged = mergePDFs(source, outputFileFromOCR, plan, temp, doc_title, doc_subject, doc_keywords, doc_author, doc_creator, record);
+
+    deleteLayers(plan);
+
+    if (!merged) {
+      FileUtils.deleteQuietly(temp);
+      FileUtils.deleteQuietly(outputFileFromOCR);
+
+      return;
+    }
+
+    /*
+     * Keep what the engine made of pages that may come
+     * again, for the next file that has them
+     */
+    if ((this.pageCache != null) && (outputFileFromOCR != null)) {
+      record.begin("cache");
+
+      storeCachedPages(outputFileFromOCR, plan, record);
+    }
+
+    /*
+     * Shrink the page images, if configured
+     */
+    if (this.recompressor != null) {
+      record.begin("recompress");
+
+      recompress(temp, record);
+    }
+
+    /*
+     * Store shared fonts and images only once,
+     * and use object streams, if configured
+     */
+    if ("true".equals(getAttribute("COMPACT"))) {
+      record.begin("compact");
+
+      compact(temp, record);
+    }
+
+    record.bytesOut = temp.length();
+
+    /*
+     * If we have lost our lease in the meantime, another
+     * node may be working on the same file; in this case
+     * we must not replace the original.
+     */
+    if ((leases != null) && !leases.verify(key)) {
+      log.error("! ERROR: Lost the lease on " + originalFilePath + " while working on it. Not replacing the original.");
+
+      record.failed("lost lease", null);
+
+      FileUtils.deleteQuietly(temp);
+      FileUtils.deleteQuietly(outputFileFromOCR);
+
+      return;
+    }
+
+    /*
+     * Move the result next to the original, and check it
+     * there, so that what is checked is what replaces the
+     * original. If it is broken, e.g. truncated because the
+     * disk was full, the original is left alone.
+     */
+    record.begin("verify");
+
+    final File result = new File(target.getParentFile(), "." + target.getName() + this.TMP_EXTENSION);
+
+    try {
+      FileUtils.deleteQuietly(result);
+      FileUtils.moveFile(temp, result);
+    } catch (IOException e) {
+      log.error("! ERROR: Could not move the result for " + originalFilePath + " next to it: " + e.getMessage());
+
+      record.failed("result not written", e);
+
+      FileUtils.deleteQuietly(result);
+      FileUtils.deleteQuietly(temp);
+      FileUtils.deleteQuietly(outputFileFromOCR);
+
+      return;
+    }
+
+    if (!"false".equals(getAttribute("VERIFY"))) {
+      final String problem = OutputVerifier.verify(result, nOri);
+
+      if (problem != null) {
+        log.error("! ERROR: The result for " + originalFilePath + " is broken: " + problem + ". Not replacing the original.");
+
+        record.failed("verification failed", null);
+        record.error = problem;
+
+        Metrics.add("verify.failed", 1);
+
+        FileUtils.deleteQuietly(result);
+        FileUtils.deleteQuietly(outputFileFromOCR);
+
+        return;
+      }
+    }
+
+    record.begin("replace");
+
+    /*
+     * Replace the original in one step, so that
+     * there is always one complete file.
+     */
+    try {
+      Files.move(result.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(result.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+     * Set the file access time
+     */
+    if ("true".equals(getAttribute("KEEPTS"))) {
+      if (target.exists()) {
+        target.setLastModified(doc_timestamp.getTime() + 1000);
+      }
+    }
+
+    /*
+     * Finally, remove the temporary document, and
+     * the repaired copy the result was made from
+     */
+    FileUtils.deleteQuietly(outputFileFromOCR);
+
+    if (repaired != null) {
+      this.repair.forget(repaired);
+    }
+
+    if (!"false".equals(getAttribute("VERIFY"))) {
+      record.checksum = OutputVerifier.checksum(target);
+    }
+
+    /*
+     * Write the text sidecar, and add the
+     * text to the full text index
+     */
+    if (record.text != null) {
+      record.begin("index");
+
+      if ("true".equals(getAttribute("TEXTSIDECAR"))) {
+        writeSidecar(new File(target.getAbsolutePath() + ".txt"), record.text);
+      }
+
+      if (this.index != null) {
+        this.index.add(record.key, record.text);
+      }
+
+      if (!record.keepText) {
+        record.text = null;
+      }
+    }
+
+    record.done();
+
+    log.info("+ Done: " + originalFilePath + " (" + nOri + " pages, " + record.pagesMerged + " merged, " + record.pagesSkipped + " skipped, " + record.pagesBlank + " blank).");
+  }
+
+
+  /**
+   * Create the lease manager if we are
+   * running in multi node mode.
+   *
+   * @return The lease manager, or null if we are running on a single node.
+   * @throws IOException
+   */
+  private LeaseManager createLeaseManager() throws IOException {
+    if (!"true".equals(getAttribute("MULTINODE"))) {
+      return null;
+    }
+
+    String leaseDir = getAttribute("LEASEDIR");
+    if ((leaseDir == null) || "".equals(leaseDir)) {
+      leaseDir = this.wd + "/" + LeaseManager.DEFAULT_LEASE_DIR;
+    }
+
+    String nodeId = getAttribute("NODEID");
+    if ((nodeId == null) || "".equals(nodeId)) {
+      nodeId = LeaseManager.getDefaultNodeId();
+    }
+
+    final long ttl       = StringUtility.StringToInteger(getAttribute("LEASETTL"), 600) * 1000L;
+    final long heartbeat = StringUtility.StringToInteger(getAttribute("LEASEHEARTBEAT"), 60) * 1000L;
+
+    log.info("+ Multi node mode: node " + nodeId + ", leases in " + leaseDir + ", ttl " + (ttl / 1000) + "s, heartbeat " + (heartbeat / 1000) + "s.");
+
+    final LeaseManager leases = new LeaseManager(new File(this.wd), new File(leaseDir), nodeId, ttl, heartbeat);
+    leases.start();
+
+    return leases;
+  }
+
+
+  /**
+   * Create the store for the state of files
+   * between runs, configured for the retry policy.
+   *
+   * @return The job store
+   * @throws IOException
+   */
+  JobStore createJobStore() throws IOException {
+    String stateDir = getAttribute("STATEDIR");
+    if ((stateDir == null) || "".equals(stateDir)) {
+      stateDir = this.wd + "/" + JobStore.DEFAULT_STATE_DIR;
+    }
+
+    final String quarantineDir = getAttribute("QUARANTINEDIR");
+    final int    maxFailures   = StringUtility.StringToInteger(getAttribute("MAXFAILURES"), 3);
+    final long   retryBase     = StringUtility.StringToInteger(getAttribute("RETRYBASE"), 3600) * 1000L;
+    final long   retryMax      = StringUtility.StringToInteger(getAttribute("RETRYMAX"), 7 * 24 * 3600) * 1000L;
+
+    return new JobStore(new File(this.wd), new File(stateDir), maxFailures, retryBase, retryMax, ((quarantineDir == null) || "".equals(quarantineDir)) ? null : new File(quarantineDir));
+  }
+
+
+  /**
+   * Create the full text index, if one is configured.
+   *
+   * @return The full text index, or null.
+   * @throws IOException
+   */
+  TextIndex createTextIndex() throws IOException {
+    final String indexDir = getAttribute("INDEXDIR");
+    if ((indexDir == null) || "".equals(indexDir)) {
+      return null;
+    }
+
+    String nodeId = getAttribute("NODEID");
+    if ((nodeId == null) || "".equals(nodeId)) {
+      nodeId = LeaseManager.getDefaultNodeId();
+    }
+
+    return new TextIndex(new File(indexDir), nodeId);
+  }
+
+
+  /**
+   * Create the repair of files that cannot be opened, if
+   * REPAIR is true. REPAIRCMD is the external command
+   * to fall back to, if any.
+   *
+   * @return The repair, or null.
+   * @throws IOException If the repair directory cannot be created
+   */
+  private PdfRepair createPdfRepair() throws IOException {
+    if (!"true".equals(getAttribute("REPAIR"))) {
+      return null;
+    }
+
+    String repairDir = getAttribute("REPAIRDIR");
+    if ((repairDir == null) || "".equals(repairDir)) {
+      repairDir = this.wd + "/" + PdfRepair.DEFAULT_DIR;
+    }
+
+    final String command = getAttribute("REPAIRCMD");
+
+    log.info("+ Repairing files that cannot be opened, in " + repairDir + (((command == null) || "".equals(command)) ? "" : (", falling back to " + command)) + ".");
+
+    return new PdfRepair(new File(repairDir), command, StringUtility.StringToInteger(getAttribute("REPAIRTIMEOUT"), 600));
+  }
+
+
+  /**
+   * Create the blank page detector, if blank
+   * pages are to be left out of the engine input.
+   *
+   * @return The blank page detector, or null.
+   */
+  private BlankPageDetector createBlankPageDetector() {
+    if (!"true".equals(getAttribute("BLANKPAGES"))) {
+      return null;
+    }
+
+    final int maxInk = StringUtility.StringToInteger(getAttribute("BLANKINK"), 1);
+
+    log.info("+ Leaving blank pages (at most " + maxInk + " dark pixels per thousand) out of the engine input.");
+
+    return new BlankPageDetector(maxInk);
+  }
+
+
+  /**
+   * Find the blank pages of a file, and leave them out
+   * of the engine input. If that fails, all pages go to
+   * the engine.
+   *
+   * @param reader The reader on the file
+   * @param plan The pages for the engine
+   * @param record The record of what happens to the file
+   */
+  private void findBlankPages(PdfReader reader, PagePlan plan, FileRecord record) {
+    final boolean[] blank;
+
+    try {
+      blank = this.blankPages.detect(reader);
+    } catch (Exception e) {
+      log.warn("! WARNING: Could not look for blank pages in " + record.file.getAbsolutePath() + ", the engine gets all pages: " + e.getMessage());
+
+      return;
+    }
+
+    for (int i = 0; i < blank.length; i++) {
+      if (blank[i]) {
+        plan.leaveOut(i + 1);
+
+        record.pagesBlank++;
+      }
+    }
+
+    if (record.pagesBlank == 0) {
+      return;
+    }
+
+    final int units = getLicenceUnits(record.pagesBlank);
+
+    Metrics.add("blank.pages", record.pagesBlank);
+    Metrics.add("blank.licenceUnits", units);
+
+    log.info("+ " + record.pagesBlank + " of " + plan.getPages() + " pages of " + record.file.getAbsolutePath() + " are blank: saved " + record.pagesBlank + " engine pages, " + units + " licence units.");
+  }
+
+
+  /**
+   * Get the licence units the engine is charged for pages.
+   *
+   * @param pages The number of pages
+   * @return The licence units
+   */
+  private int getLicenceUnits(int pages) {
+    return pages * StringUtility.StringToInteger(getAttribute("LICENCEUNITS"), 1);
+  }
+
+
+  /**
+   * Create the text layer renderer, if the engine puts
+   * out hOCR or ALTO (TEXTLAYER) rather than PDF. The
+   * font is TEXTFONT, embedded, if set; else Helvetica,
+   * which is not embedded, but only has Latin characters.
+   *
+   * @return The text layer renderer, or null.
+   * @throws IOException If the font cannot be read
+   */
+  private TextLayerRenderer createTextLayerRenderer() throws IOException {
+    final String format = getAttribute("TEXTLAYER");
+
+    if ((format == null) || "".equals(format) || "pdf".equalsIgnoreCase(format)) {
+      return null;
+    }
+
+    final String fontFile = getAttribute("TEXTFONT");
+
+    try {
+      final BaseFont font;
+
+      if ((fontFile == null) || "".equals(fontFile)) {
+        font = BaseFont.createFont(BaseFont.HELVETICA, BaseFont.CP1252, BaseFont.NOT_EMBEDDED);
+      } else {
+        font = BaseFont.createFont(fontFile, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+      }
+
+      log.info("+ Drawing the text layer from the " + format + " output of the engine.");
+
+      return new TextLayerRenderer(font);
+    } catch (DocumentException e) {
+      throw new IOException("Cannot use the font " + fontFile + ": " + e.getMessage(), e);
+    }
+  }
+
+
+  /**
+   * Create the page cache, if pages seen
+   * before are not to go to the engine again.
+   *
+   * @return The page cache, or null.
+   * @throws IOException
+   */
+  private PageCache createPageCache() throws IOException {
+    if (!"true".equals(getAttribute("PAGECACHE"))) {
+      return null;
+    }
+
+    if (this.textLayer != null) {
+      log.warn("! WARNING: The page cache keeps the engine output in PDF, and does not work with TEXTLAYER=" + getAttribute("TEXTLAYER") + ". Not using it.");
+
+      return null;
+    }
+
+    String cacheDir = getAttribute("PAGECACHEDIR");
+    if ((cacheDir == null) || "".equals(cacheDir)) {
+      cacheDir = this.wd + "/" + PageCache.DEFAULT_CACHE_DIR;
+    }
+
+    final long limit = StringUtility.StringToInteger(getAttribute("PAGECACHESIZE"), 512) * 1024L * 1024L;
+
+    return new PageCache(new File(cacheDir), limit, "perceptual".equals(getAttribute("PAGECACHEHASH")));
+  }
+
+
+  /**
+   * Find the pages of a file that are in the page cache,
+   * and use what the engine made of them before instead
+   * of having them go to the engine. If a page cannot be
+   * looked up, it goes to the engine.
+   *
+   * @param reader The reader on the file
+   * @param plan The pages for the engine
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the temporary files
+   */
+  private void findCachedPages(PdfReader reader, PagePlan plan, FileRecord record, ScratchSpace.Area area) {
+    for (int i = 1; i <= plan.getPages(); i++) {
+      if (plan.isLeftOut(i)) {
+        continue;
+      }
+
+      try {
+        final String key = this.pageCache.getKey(reader, i);
+
+        if (key != null) {
+          plan.setKey(i, key);
+
+          final File layer = this.pageCache.get(key, area);
+
+          if (layer != null) {
+            plan.useLayer(i, layer);
+
+            record.pagesCached++;
+          }
+        }
+      } catch (Exception e) {
+        log.warn("! WARNING: Could not look up page " + i + " of " + record.file.getAbsolutePath() + " in the page cache: " + e.getMessage());
+      }
+
+      reader.releasePage(i);
+    }
+
+    if (record.pagesCached > 0) {
+      log.info("+ " + record.pagesCached + " of " + plan.getPages() + " pages of " + record.file.getAbsolutePath() + " were seen before: saved " + record.pagesCached + " engine pages, " + getLicenceUnits(record.pagesCached) + " licence units.");
+    }
+  }
+
+
+  /**
+   * Store what the engine made of the pages of a file
+   * that may come again in the page cache.
+   *
+   * @param output The engine output
+   * @param plan The pages that went to the engine
+   * @param record The record of what happens to the file
+   */
+  private void storeCachedPages(File output, PagePlan plan, FileRecord record) {
+    PdfReader reader = null;
+
+    try {
+      reader = new PdfReader(new RandomAccessFileOrArray(output.getAbsolutePath()), null);
+
+      for (int i = 1; i <= plan.getPages(); i++) {
+        if ((plan.getKey(i) != null) && !plan.isLeftOut(i)) {
+          this.pageCache.put(plan.getKey(i), reader, plan.getEnginePage(i));
+        }
+      }
+    } catch (Exception e) {
+      log.warn("! WARNING: Could not store the pages of " + record.file.getAbsolutePath() + " in the page cache: " + e.getMessage());
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+
+  /**
+   * Delete the copies of cached pages of a file.
+   *
+   * @param plan The pages for the engine, or null
+   */
+  private static void deleteLayers(PagePlan plan) {
+    if (plan == null) {
+      return;
+    }
+
+    for (int i = 1; i <= plan.getPages(); i++) {
+      FileUtils.deleteQuietly(plan.getLayer(i));
+    }
+  }
+
+
+  /**
+   * Create the preprocessor, if page images are to be
+   * cleaned up before they go to the engine. PREPROCESS
+   * lists the steps, like deskew,despeckle,binarize.
+   *
+   * @return The preprocessor, or null.
+   */
+  private Preprocessor createPreprocessor() {
+    final String steps = getAttribute("PREPROCESS");
+
+    if ((steps == null) || "".equals(steps.trim()) || "false".equals(steps.trim())) {
+      return null;
+    }
+
+    final boolean deskew    = steps.indexOf("deskew") >= 0;
+    final boolean despeckle = steps.indexOf("despeckle") >= 0;
+    final boolean binarize  = steps.indexOf("binarize") >= 0;
+
+    if (!deskew && !despeckle && !binarize) {
+      log.warn("! WARNING: PREPROCESS=" + steps + " names no known step (deskew, despeckle, binarize), not preprocessing.");
+
+      return null;
+    }
+
+    final int threads = StringUtility.StringToInteger(getAttribute("PREPROCESSTHREADS"), Runtime.getRuntime().availableProcessors());
+
+    log.info("+ Preprocessing page images before the engine (" + steps + ").");
+
+    return new Preprocessor(threads, deskew, despeckle, binarize);
+  }
+
+
+  /**
+   * Clean up the page images of the copy for the
+   * engine. If preprocessing fails, the engine gets
+   * the copy as it is.
+   *
+   * @param source The copy for the engine
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the temporary files
+   * @return The cleaned copy, or source if nothing was cleaned.
+   */
+  private File preprocess(File source, FileRecord record, ScratchSpace.Area area) {
+    File cleaned = null;
+
+    try {
+      cleaned = area.createTempFile("ocr", ".pdf");
+
+      final int images = this.preprocessor.preprocess(source, cleaned);
+
+      if (images == 0) {
+        FileUtils.deleteQuietly(cleaned);
+
+        return source;
+      }
+
+      Metrics.add("preprocess.images", images);
+
+      log.debug("+ Preprocessed " + images + " images of " + record.file.getAbsolutePath());
+
+      return cleaned;
+    } catch (Exception e) {
+      log.warn("! WARNING: Could not preprocess " + record.file.getAbsolutePath() + ", the engine gets it as it is: " + e.getMessage());
+
+      FileUtils.deleteQuietly(cleaned);
+
+      return source;
+    }
+  }
+
+
+  /**
+   * Create the image recompressor, if page
+   * images are to be recompressed.
+   *
+   * @return The image recompressor, or null.
+   */
+  private ImageRecompressor createImageRecompressor() {
+    if (!"true".equals(getAttribute("RECOMPRESS"))) {
+      return null;
+    }
+
+    final int threads = StringUtility.StringToInteger(getAttribute("RECOMPRESSTHREADS"), Runtime.getRuntime().availableProcessors());
+    final int quality = StringUtility.StringToInteger(getAttribute("JPEGQUALITY"), 75);
+    final int maxDpi  = StringUtility.StringToInteger(getAttribute("MAXDPI"), 300);
+
+    log.info("+ Recompressing page images (JPEG quality " + quality + ", at most " + ((maxDpi > 0) ? (maxDpi + " dpi") : "original resolution") + ").");
+
+    return new ImageRecompressor(threads, quality, maxDpi);
+  }
+
+
+  /**
+   * Recompress the page images of a merged file. The
+   * file is only replaced if it got smaller; if the
+   * recompression fails, the merged file is kept as
+   * it is.
+   *
+   * @param merged The merged file
+   * @param record The record of what happens to the file
+   */
+  private void recompress(File merged, final FileRecord record) {
+    shrink(merged, record, "recompress", "images", new Shrinker() {
+        public int shrink(File in, File out) throws Exception {
+          final int images = Wrapper.this.recompressor.recompress(in, out);
+
+          record.bytesMerged  = in.length();
+          record.recompressed = images;
+
+          /*
+           * Without a recompressed image, there is nothing to take
+           */
+          return (images == 0) ? -1 : images;
+        }
+      });
+  }
+
+
+  /**
+   * Compact a merged file. The file is only replaced
+   * if it got smaller; if compacting fails, the merged
+   * file is kept as it is.
+   *
+   * @param merged The merged file
+   * @param record The record of what happens to the file
+   */
+  private void compact(File merged, FileRecord record) {
+    shrink(merged, record, "compact", "shared objects", new Shrinker() {
+        public int shrink(File in, File out) throws Exception {
+          return PdfCompactor.compact(in, out);
+        }
+      });
+  }
+
+
+  /**
+   * Write a smaller version of a merged file next to
+   * it, and replace the merged file with it if it got
+   * smaller. If that fails, the merged file is kept
+   * as it is.
+   *
+   * @param merged The merged file
+   * @param record The record of what happens to the file
+   * @param step The name of the step, like "compact", for the log and the metrics
+   * @param what What the count of the step counts, for the log
+   * @param shrinker Writes the smaller version
+   */
+  private void shrink(File merged, FileRecord record, String step, String what, Shrinker shrinker) {
+    final long before  = merged.length();
+    File       smaller = null;
+
+    try {
+      smaller = File.createTempFile("ocr", ".pdf", merged.getParentFile());
+
+      final int  count = shrinker.shrink(merged, smaller);
+      final long after = smaller.length();
+
+      if ((count < 0) || (after >= before)) {
+        log.debug("+ Step " + step + " did not make " + record.file.getAbsolutePath() + " smaller (" + before + " -> " + after + " bytes).");
+
+        return;
+      }
+
+      FileUtils.deleteQuietly(merged);
+      FileUtils.moveFile(smaller, merged);
+
+      Metrics.add(step + ".bytesSaved", before - after);
+
+      log.info("+ Step " + step + " on " + record.file.getAbsolutePath() + " (" + count + " " + what + "): " + before + " -> " + after + " bytes (" + ((after * 100) / Math.max(1, before)) + "%).");
+    } catch (Exception e) {
+      log.warn("! WARNING: Could not " + step + " " + record.file.getAbsolutePath() + ", keeping it as it is: " + e.getMessage());
+    } finally {
+      FileUtils.deleteQuietly(smaller);
+    }
+  }
+
+
+  /**
+   * Write the text of a file to a sidecar file,
+   * with a form feed between the pages.
+   *
+   * @param sidecar The sidecar file
+   * @param pages The text of the pages
+   */
+  private void writeSidecar(File sidecar, List<String> pages) {
+    try {
+      final Writer out = new OutputStreamWriter(new FileOutputStream(sidecar), "UTF-8");
+
+      try {
+        for (int i = 0; i < pages.size(); i++) {
+          if (i > 0) {
+            out.write('\f');
+          }
+
+          out.write(pages.get(i));
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      log.error("! ERROR: Could not write " + sidecar.getAbsolutePath() + ": " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Create the scratch space: RAMDIR for files up to
+   * RAMMAXFILE megabytes, as long as they take up no
+   * more than RAMLIMIT megabytes there, and TMPDIR for
+   * all others.
+   *
+   * @return The scratch space
+   * @throws IOException
+   */
+  private ScratchSpace createScratchSpace() throws IOException {
+    final String ramDir   = getAttribute("RAMDIR");
+    final long   ramMax   = StringUtility.StringToInteger(getAttribute("RAMMAXFILE"), 16) * 1024L * 1024L;
+    final long   ramLimit = StringUtility.StringToInteger(getAttribute("RAMLIMIT"), 256) * 1024L * 1024L;
+
+    return new ScratchSpace(((ramDir == null) || "".equals(ramDir)) ? null : new File(ramDir), ramMax, ramLimit, new File(this.TMP_DIR));
+  }
+
+
+  /**
+   * Create the controller for the number of engine
+   * processes running at the same time.
+   *
+   * @return The controller
+   */
+  private ConcurrencyController createConcurrencyController() {
+    final int    max           = StringUtility.StringToInteger(getAttribute("MAXJOBS"), 1);
+    final int    min           = StringUtility.StringToInteger(getAttribute("MINJOBS"), 1);
+    final long   interval      = StringUtility.StringToInteger(getAttribute("JOBSINTERVAL"), 10) * 1000L;
+    final double maxLoad       = StringUtility.StringToInteger(getAttribute("MAXLOAD"), 100) / 100.0;
+    final long   minFree       = StringUtility.StringToInteger(getAttribute("MINFREEMEM"), 1024) * 1024L * 1024L;
+    final double latencyFactor = StringUtility.StringToInteger(getAttribute("LATENCYFACTOR"), 150) / 100.0;
+
+    final ConcurrencyController controller = new ConcurrencyController(min, max, interval, maxLoad, minFree, latencyFactor);
+
+    if (controller.getMax() > 1) {
+      log.info("+ Running " + min + " to " + controller.getMax() + " engine processes at a time.");
+    }
+
+    controller.start();
+
+    return controller;
+  }
+
+
+  /**
+   * Run the OCR command
+   *
+   * @param originalFile The file to run the command on, a PDF or, for
+   *                     scans that come as an image, the image
+   * @param nOri The number of pages of the file
+   * @param plan The pages for the engine, or null for all pages
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the temporary files
+   * @return The file that was created
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private File ocr(File originalFile, int nOri, PagePlan plan, FileRecord record, ScratchSpace.Area area) throws IOException, InterruptedException {
+    final int pages = (plan == null) ? nOri : plan.getEnginePages();
+
+    /*
+     * Create a temporary file and copy the source
+     * file to it, to avoid UTF-8 encoding problems
+     * on the filename confusing the OCR engine
+     */
+    record.begin("copy");
+
+    log.debug("> Creating Temporary Source File");
+
+    final File sourceFileForOCR = area.createTempFile("ocr", getSuffix(originalFile));
+    sourceFileForOCR.deleteOnExit();
+
+    log.debug("< Created Temporary Source File: " + sourceFileForOCR.getAbsolutePath());
+
+    if ((plan == null) || (plan.getLeftOut() == 0)) {
+      FileUtils.copyFile(originalFile, sourceFileForOCR, true);
+    } else {
+      selectPages(originalFile, plan, sourceFileForOCR);
+    }
+
+    log.debug("+ Copied " + originalFile.getAbsolutePath() + " to " + sourceFileForOCR.getAbsolutePath());
+
+    /*
+     * Clean up the page images for the engine; the
+     * original stays the foreground of the merge
+     */
+    File engineInput = sourceFileForOCR;
+
+    if ((this.preprocessor != null) && !ImageIngest.isImage(originalFile)) {
+      record.begin("preprocess");
+
+      engineInput = preprocess(sourceFileForOCR, record, area);
+    }
+
+    /*
+     * Wait until the estimated cost of the run fits
+     * into the memory budget, and until we may start
+     * another engine process. The estimate goes by the
+     * file the engine gets, which holds only its pages.
+     */
+    final CostModel.Estimate estimate = this.costModel.estimate(pages, engineInput.length());
+
+    log.debug("+ Estimated engine cost: " + estimate);
+
+    record.begin("wait");
+
+    this.admission.admit(estimate);
+
+    EngineRun run = null;
+
+    try {
+      this.concurrency.acquire();
+
+      record.begin("engine");
+
+      run = runEngine(engineInput, estimate, record, area);
+    } finally {
+      this.admission.done(estimate);
+
+      /*
+       * The copies are not needed any more; with scratch
+       * space in memory, they must not stay around.
+       */
+      FileUtils.deleteQuietly(sourceFileForOCR);
+      FileUtils.deleteQuietly(engineInput);
+
+      if ((run != null) && (run.source != engineInput)) {
+        FileUtils.deleteQuietly(run.source);
+      }
+    }
+
+    record.end();
+
+    if (run.error != null) {
+      throw run.error;
+    }
+
+    this.concurrency.completed(pages, run.millis);
+    this.costModel.observe(pages, estimate.bytes, run.peakMemory, run.millis);
+
+    /*
+     * Copy temporary output file to output file. Its name
+     * has to be unique as other files with the same name
+     * may be worked on at the same time.
+     */
+    final File targetFile = area.createTempFile(originalFile.getName() + ".", this.TMP_EXTENSION);
+    FileUtils.deleteQuietly(targetFile);
+
+    FileUtils.moveFile(run.output, targetFile);
+
+    /*
+     * Delete temporary file
+     */
+    FileUtils.deleteQuietly(run.output);
+
+    log.debug("< Calling OCR Engine. Output file is: " + targetFile.getAbsolutePath());
+
+    return targetFile;
+  }
+
+
+  /**
+   * Get the suffix for a copy of a file for the engine,
+   * which may tell the type of the file by its name.
+   *
+   * @param file The file
+   * @return Its extension, with the dot; .pdf if it has none
+   */
+  private static String getSuffix(File file) {
+    final String name = file.getName();
+    final int    dot  = name.lastIndexOf('.');
+
+    return (dot > 0) ? name.substring(dot) : ".pdf";
+  }
+
+
+  /**
+   * Write the pages of a file that go to the engine.
+   *
+   * @param originalFile The file
+   * @param plan The pages for the engine
+   * @param target The file to write
+   * @throws IOException
+   */
+  private void selectPages(File originalFile, PagePlan plan, File target) throws IOException {
+    final PdfReader    reader = new PdfReader(originalFile.getAbsolutePath());
+    final OutputStream os     = new FileOutputStream(target);
+
+    try {
+      reader.selectPages(plan.getSelection());
+
+      final PdfStamper stamper = new PdfStamper(reader, os);
+
+      stamper.close();
+    } catch (DocumentException e) {
+      throw new IOException("Could not write the pages for the engine: " + e.getMessage(), e);
+    } finally {
+      os.close();
+      reader.close();
+    }
+  }
+
+
+  /**
+   * Create the command line for the engine.
+   *
+   * @param source The input file of the engine
+   * @return The command line
+   */
+  String[] getCommand(File source) {
+    final String[] cmd = StringUtility.split(getAttribute("cmd"), " ");
+    for (int i = 0; i < cmd.length; i++) {
+      if ("###IF###".equals(cmd[i])) {
+        cmd[i] = source.getAbsolutePath();
+      } else if ("###OF###".equals(cmd[i])) {
+        cmd[i] = source.getAbsolutePath() + this.TMP_EXTENSION;
+      } else if ("###CREATOR###".equals(cmd[i])) {
+        cmd[i] = getAttribute("creator");
+      }
+    }
+
+    final StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < cmd.length; i++) {
+      sb.append(cmd[i]);
+      sb.append(" ");
+    }
+
+    log.debug("> Calling OCR Engine: " + sb);
+
+    return cmd;
+  }
+
+
+  /**
+   * Run the engine on a file. The caller holds a slot of
+   * the concurrency controller, which is given back when
+   * the engine ends.<p>
+   *
+   * If HEDGE is true and the engine runs HEDGEFACTOR percent
+   * longer than the cost model expects, at least HEDGEMIN
+   * seconds, a second, speculative run is started on a copy
+   * of the file, as soon as there is a free slot, and room for
+   * it in the memory budget and scratch space. Whichever
+   * run ends first with a result wins, and the other one is
+   * killed. Hedging only starts once the cost model has
+   * learned the time per page from a few runs.
+   *
+   * @param source The input file of the engine
+   * @param estimate The estimated cost of the run
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the copy
+   * @return The winning run; its error is set if both failed.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private EngineRun runEngine(File source, CostModel.Estimate estimate, FileRecord record, ScratchSpace.Area area) throws IOException, InterruptedException {
+    final BlockingQueue<EngineRun> finished = new LinkedBlockingQueue<EngineRun>();
+    final long                     delay    = getHedgeDelay(estimate);
+    final EngineRun                primary  = new EngineRun(source, record.file, finished);
+    EngineRun                      hedge    = null;
+
+    primary.start();
+
+    try {
+      long      next  = primary.started + delay;
+      EngineRun first = null;
+
+      while (first == null) {
+        if ((hedge != null) || (delay <= 0)) {
+          first = finished.take();
+
+          break;
+        }
+
+        first = finished.poll(Math.max(1, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+        if (first == null) {
+          hedge = startHedge(source, estimate, record, area, finished);
+          next  = System.currentTimeMillis() + HEDGE_RETRY;
+        }
+      }
+
+      /*
+       * If the first run failed, the other one may still succeed
+       */
+      if ((hedge != null) && !first.succeeded()) {
+        first = finished.take();
+      }
+
+      if (hedge != null) {
+        final EngineRun other = (first == primary) ? hedge : primary;
+
+        other.discard();
+
+        if (other.source != source) {
+          FileUtils.deleteQuietly(other.source);
+        }
+
+        Metrics.add("hedge.millisWasted", System.currentTimeMillis() - other.started);
+
+        if ((first == hedge) && first.succeeded()) {
+          /*
+           * We cannot know when the stalled run would have
+           * ended; we assume it would have needed at least
+           * as long again as it had run.
+           */
+          final long saved = System.currentTimeMillis() - primary.started;
+
+          record.hedge = "won";
+
+          Metrics.add("hedge.won", 1);
+          Metrics.add("hedge.millisSaved", saved);
+
+          log.info("+ Hedged engine run on " + record.file.getAbsolutePath() + " won, after " + (saved / 1000) + " s of the first run.");
+        } else {
+          record.hedge = "lost";
+
+          Metrics.add("hedge.lost", 1);
+        }
+      }
+
+      record.engineExitCode = first.record.engineExitCode;
+
+      return first;
+    } catch (InterruptedException e) {
+      /*
+       * Cancelled: stop all runs
+       */
+      primary.discard();
+
+      if (hedge != null) {
+        hedge.discard();
+        FileUtils.deleteQuietly(hedge.source);
+      }
+
+      throw e;
+    }
+  }
+
+
+  /**
+   * Get the time after which an engine run is hedged.
+   *
+   * @param estimate The estimated cost of the run
+   * @return The time in milliseconds, or 0 if the run is not hedged.
+   */
+  private long getHedgeDelay(CostModel.Estimate estimate) {
+    if (!"true".equals(getAttribute("HEDGE")) || (estimate.samples < HEDGE_SAMPLES)) {
+      return 0;
+    }
+
+    final double factor  = StringUtility.StringToInteger(getAttribute("HEDGEFACTOR"), 300) / 100.0;
+    final long   minimum = StringUtility.StringToInteger(getAttribute("HEDGEMIN"), 60) * 1000L;
+
+    return Math.max(minimum, (long) (estimate.seconds * factor * 1000));
+  }
+
+
+  /**
+   * Start a hedged engine run on a copy of a
+   * file, if there is a free slot, and room for it in
+   * the memory budget and scratch space.
+   *
+   * @param source The input file of the engine
+   * @param estimate The estimated cost of the run
+   * @param record The record of what happens to the file
+   * @param area The scratch space for the copy
+   * @param finished The queue of finished runs
+   * @return The hedged run, or null if there is no room for it.
+   * @throws IOException
+   */
+  private EngineRun startHedge(File source, CostModel.Estimate estimate, FileRecord record, ScratchSpace.Area area, BlockingQueue<EngineRun> finished) throws IOException {
+    if (!this.concurrency.tryAcquire()) {
+      log.debug("+ Engine run on " + record.file.getAbsolutePath() + " is late, but there is no free slot to hedge it.");
+
+      return null;
+    }
+
+    /*
+     * The hedged run needs memory next to the late one, and
+     * scratch space for a second copy and a second output;
+     * it is not worth waiting for either
+     */
+    final long extra = 2 * source.length();
+
+    if (!this.admission.tryAdmit(estimate)) {
+      this.concurrency.release();
+
+      log.debug("+ Engine run on " + record.file.getAbsolutePath() + " is late, but there is no memory to hedge it.");
+
+      return null;
+    }
+
+    if (!area.grow(extra)) {
+      this.admission.done(estimate);
+      this.concurrency.release();
+
+      log.debug("+ Engine run on " + record.file.getAbsolutePath() + " is late, but there is no scratch space to hedge it.");
+
+      return null;
+    }
+
+    final File copy;
+
+    try {
+      copy = area.createTempFile("ocr", getSuffix(source));
+
+      FileUtils.copyFile(source, copy);
+    } catch (IOException e) {
+      area.shrink(extra);
+      this.admission.done(estimate);
+      this.concurrency.release();
+
+      throw e;
+    }
+
+    log.warn("! WARNING: Engine run on " + record.file.getAbsolutePath() + " takes longer than expected (" + Math.round(estimate.seconds) + " s). Starting a hedged run.");
+
+    Metrics.add("hedge.started", 1);
+
+    final EngineRun hedge = new EngineRun(copy, record.file, finished);
+
+    hedge.admitted = estimate;
+    hedge.area     = area;
+    hedge.extra    = extra;
+
+    hedge.start();
+
+    return hedge;
+  }
+
+
+  /**
+   * Call an external program. Its output is drained
+   * while it runs, on helper threads, so that it cannot
+   * block on a full pipe; standard output is logged as
+   * info, standard error as warnings. If ENGINETIMEOUT
+   * is set and the program takes longer, it is killed.
+   *
+   * @param cmd
+   * @param record The record of what happens to the file
+   * @return The peak resident set size of the program in bytes, negative if unknown.
+   * @throws IOException If the program cannot be started or timed out
+   * @throws InterruptedException
+   */
+  private long callOCREngine(String[] cmd, FileRecord record) throws IOException, InterruptedException {
+    final long    timeout = StringUtility.StringToInteger(getAttribute("ENGINETIMEOUT"), 0) * 1000L;
+    final Process pr      = Runtime.getRuntime().exec(cmd);
+
+    this.concurrency.register(pr);
+
+    final Thread out = drain(pr.getInputStream(), false);
+    final Thread err = drain(pr.getErrorStream(), true);
+
+    long peakMemory = -1;
+
+    try {
+      if (timeout <= 0) {
+        record.engineExitCode = Integer.valueOf(pr.waitFor());
+      } else if (pr.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+        record.engineExitCode = Integer.valueOf(pr.exitValue());
+      } else {
+        log.error("! ERROR: OCR engine did not finish within " + (timeout / 1000) + " s on " + record.file.getAbsolutePath() + ". Killing it.");
+
+        kill(pr);
+
+        Metrics.add("engine.timeouts", 1);
+
+        throw new IOException("OCR engine timed out after " + (timeout / 1000) + " s");
+      }
+    } catch (InterruptedException e) {
+      /*
+       * Cancelled: do not leave the engine running
+       */
+      kill(pr);
+
+      throw e;
+    } finally {
+      peakMemory = this.concurrency.unregister(pr);
+    }
+
+    /*
+     * Let the drainers log the last lines
+     */
+    out.join(DRAIN_WAIT);
+    err.join(DRAIN_WAIT);
+
+    if (record.engineExitCode.intValue() != 0) {
+      log.warn("! WARNING: OCR engine exited with " + record.engineExitCode + " on " + record.file.getAbsolutePath());
+    }
+
+    return peakMemory;
+  }
+
+
+  /**
+   * Log the lines of an output stream of the
+   * engine on a helper thread, until it ends.
+   *
+   * @param in The stream
+   * @param error Whether it is standard error
+   * @return The helper thread
+   */
+  private Thread drain(final InputStream in, final boolean error) {
+    return Threads.start(error ? "pdfocr-engine-err" : "pdfocr-engine-out", new Runnable() {
+          public void run() {
+            final BufferedReader buf = new BufferedReader(new InputStreamReader(in));
+
+            try {
+              String line = "";
+              while ((line = buf.readLine()) != null) {
+                if (error) {
+                  log.warn("! ENGINE: " + line);
+                } else {
+                  log.info(line);
+                }
+              }
+            } catch (IOException e) {
+              /*
+               * The engine was killed
+               */
+            } finally {
+              try {
+                buf.close();
+              } catch (IOException e) {
+                // ignore
+              }
+            }
+          }
+        });
+  }
+
+
+  /**
+   * Kill an engine process: ask it to end first,
+   * and force it if it does not.
+   *
+   * @param pr The process
+   */
+  private void kill(Process pr) {
+    pr.destroy();
+
+    try {
+      if (!pr.waitFor(KILL_WAIT, TimeUnit.MILLISECONDS)) {
+        pr.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      pr.destroyForcibly();
+
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /**
+   * Merge the original file with the OCR output.<p>
+   *
+   * Both files are read partially, i.e. objects are read
+   * from disk when they are needed rather than all at once.
+   * The merged file is written page by page, see
+   * {@link UnderlayCopy}, and every MERGEFLUSH pages, what
+   * the output keeps of both files to write them is dropped,
+   * so that the heap does not grow with the number of pages.
+   * Objects shared by the pages, like fonts, are written once
+   * per batch then; COMPACT folds them together again.<p>
+   *
+   * Of the document as a whole, the merged file keeps the
+   * information and the outlines of the original. Its form
+   * fields stay on their pages, but are no longer filled in
+   * from the document's form.<p>
+   *
+   * With MERGEMODE=text, the pages of the OCR output are
+   * reduced to their text before they are put under the
+   * original, see {@link TextTransplant}.<p>
+   *
+   * @param foreground The original file
+   * @param background The OCR output, or null if all pages were left out
+   * @param plan The pages that went to the engine, or null for all pages
+   * @param newFile The merged file to create
+   * @param title The title
+   * @param subject The subject
+   * @param keywords The keywords
+   * @param author The author
+   * @param creator The creator
+   * @param record The record of what happens to the file
+   * @return true if the merged file was written.
+   */
+  boolean mergePDFs(File foreground, File background, PagePlan plan, File newFile, String title, String subject, String keywords, String author, String creator, FileRecord record) {
+    if ((background != null) && (this.textLayer != null)) {
+      return mergeTextLayer(foreground, background, plan, newFile, title, subject, keywords, author, creator, record);
+    }
+
+    log.debug("Merge " + foreground + " (FG) and " + background + " (BG) to " + newFile);
+
+    final double  threshold = ((Integer) StringUtility.StringToInteger(getAttribute("THRESHOLD"), 2)).doubleValue();
+    final int     flush     = getMergeFlush();
+    final boolean merge     = "true".equals(getAttribute("mergefiles"));
+    final boolean textOnly  = "text".equals(getAttribute("MERGEMODE"));
+
+    PdfReader    fg       = null;
+    PdfReader    bg       = null;
+    OutputStream os       = null;
+    Document     document = null;
+    boolean      written  = false;
+
+    try {
+      /*
+       * Foreground: Original Image.
+       * Background: OCR'd Text
+       */
+      fg = new PdfReader(new RandomAccessFileOrArray(foreground.getAbsolutePath()), null);
+      bg = (background == null) ? null : new PdfReader(new RandomAccessFileOrArray(background.getAbsolutePath()), null);
+
+      /*
+       * If we collect the text, we take it from the engine
+       * output while we have it open anyway
+       */
+      final PdfTextExtractor extractor = ((record.text == null) || (bg == null)) ? null : new PdfTextExtractor(bg);
+
+      /*
+       * Count pages for foreground and background
+       */
+      final int       fg_num_pages = fg.getNumberOfPages();
+      final int       bg_num_pages = (bg == null) ? 0 : bg.getNumberOfPages();
+
+      if (((plan == null) ? fg_num_pages : plan.getEnginePages()) != bg_num_pages) {
+        log.error("! Foreground and background have different number of pages. This should really not happen.");
+      }
+
+      /*
+       *  The output document
+       */
+      os       = new FileOutputStream(newFile);
+      document = new Document();
+
+      final UnderlayCopy fg_writer = new UnderlayCopy(document, os, flush);
+
+      document.open();
+
+      for (int i = 0; i < fg_num_pages;) {
+        ++i;
+
+        /*
+         * Pages left out of the engine input are passed
+         * through as they are if they are blank, or get
+         * the engine output of the page cache
+         */
+        final int j = (plan == null) ? i : plan.getEnginePage(i);
+
+        if (j == 0) {
+          passThrough(fg, fg_writer, plan, i, merge, record);
+
+          continue;
+        }
+
+        final byte[] fg_page_content = fg.getPageContent(i);
+        final byte[] bg_page_content = bg.getPageContent(j);
+
+        if (extractor != null) {
+          try {
+            record.text.add(extractor.getTextFromPage(j));
+          } catch (Exception e) {
+            log.warn("! WARNING: Could not extract the text of page " + j + " of " + background + ": " + e.getMessage());
+            record.text.add("");
+          }
+        }
+
+        final int    bg_size         = bg_page_content.length;
+        final int    fg_size         = fg_page_content.length;
+
+        /*
+         * If we're not explicitly merging, we're merging
+         * the document with itself only anyway.
+         */
+        if (!merge) {
+          fg_writer.addPage(fg, i);
+
+          fg.releasePage(i);
+          bg.releasePage(j);
+
+          continue;
+        }
+
+        /*
+         * Modification 20130904
+         *
+         * We want to scan only what's not been generated by a number of
+         * generators. So, until now, the generator of whom we wanted to
+         * ignore files was ocr, i.e. the one we set ourselves. Now, we
+         * have seen that when we run an OCR on a "pdf+text" file, as we
+         * collate in post the file with its image, we get an overlapping
+         * text which is not pixel correct, i.e. which makes the PDF appear
+         * not nicely.
+         *
+         * If the background image is not at least threshold times as large as
+         * the foreground image, we assume we've been working on a
+         * page that was plain text already, and don't add the image
+         * to the background.
+         */
+        if ((bg_size / fg_size) <= threshold) {
+          log.debug("! Not adding background for page " + i + " since background size (" + bg_size + ") not different enough from foreground size (" + fg_size + ").");
+
+          record.pagesSkipped++;
+
+          fg_writer.addPage(fg, i);
+
+          fg.releasePage(i);
+          bg.releasePage(j);
+
+          continue;
+        }
+
+        /*
+         * The sizes are taken before the page of the engine
+         * output is reduced: the reader forgets the reduced
+         * page once it is asked for its size.
+         */
+        final float[] matrix  = fitUnder(fg.getPageSize(i), bg.getPageSize(j));
+        final boolean reduced = textOnly && TextTransplant.transplant(bg, j);
+
+        if (textOnly) {
+          Metrics.add(reduced ? "transplant.pages" : "transplant.fullPages", 1);
+        }
+
+        final PdfImportedPage     page  = fg_writer.getImportedPage(fg, i);
+        final PdfCopy.PageStamp   stamp = fg_writer.createPageStamp(page);
+
+        fg_writer.drawUnder(fg, i, stamp, bg, j, matrix);
+        fg_writer.alterContents(fg, i, stamp);
+        fg_writer.addPage(page);
+
+        record.pagesMerged++;
+
+        fg.releasePage(i);
+        bg.releasePage(j);
+      }
+
+      setInfo(fg_writer, fg, title, subject, keywords, author, creator);
+
+      document.close();
+      document = null;
+
+      written = true;
+
+      return true;
+    } catch (Exception e) {
+      log.error("! ERROR: Merging " + foreground + " failed: " + e.getMessage(), e);
+
+      record.failed("merge failed", e);
+
+      return false;
+    } finally {
+      closeMerge(document, os, fg, bg, newFile, written);
+    }
+  }
+
+
+  /**
+   * Merge the original file with the words the engine
+   * found, in hOCR or ALTO, drawing them as invisible
+   * text under each page. The engine output is read page
+   * by page as the merge goes along, and the merged file
+   * is written page by page as in
+   * {@link #mergePDFs(File, File, PagePlan, File, String, String, String, String, String, FileRecord)}.
+   * Pages that have text already are left as they are,
+   * as with THRESHOLD for engine output in PDF.
+   *
+   * @param foreground The original file
+   * @param background The OCR output, in hOCR or ALTO
+   * @param plan The pages that went to the engine, or null for all pages
+   * @param newFile The merged file to create
+   * @param title The title
+   * @param subject The subject
+   * @param keywords The keywords
+   * @param author The author
+   * @param creator The creator
+   * @param record The record of what happens to the file
+   * @return true if the merged file was written.
+   */
+  private boolean mergeTextLayer(File foreground, File background, final PagePlan plan, File newFile, String title, String subject, String keywords, String author, String creator, final FileRecord record) {
+    log.debug("Merge " + foreground + " with the text layer " + background + " to " + newFile);
+
+    final int     flush    = getMergeFlush();
+    final boolean merge    = "true".equals(getAttribute("mergefiles"));
+
+    PdfReader     fg       = null;
+    OutputStream  os       = null;
+    Document      document = null;
+    boolean       written  = false;
+
+    try {
+      fg       = new PdfReader(new RandomAccessFileOrArray(foreground.getAbsolutePath()), null);
+      os       = new FileOutputStream(newFile);
+      document = new Document();
+
+      final PdfReader    reader    = fg;
+      final UnderlayCopy fg_writer = new UnderlayCopy(document, os, flush);
+      final int          pages     = fg.getNumberOfPages();
+
+      document.open();
+
+      /*
+       * The next page of the original to be written
+       */
+      final int[]        next      = { 1 };
+
+      TextLayerRenderer.parse(background, new TextLayerRenderer.PageHandler() {
+          public void page(int number, float width, float height, List<TextLayerRenderer.Word> words, String text) throws IOException {
+            final int page = (plan == null) ? number : plan.getOriginalPage(number);
+
+            if ((page < next[0]) || (page > pages)) {
+              log.error("! Page " + number + " of " + record.file.getAbsolutePath() + " from the OCR engine has no page in the original. This should really not happen.");
+
+              return;
+            }
+
+            while (next[0] < page) {
+              passThrough(reader, fg_writer, plan, next[0]++, merge, record);
+            }
+
+            if (record.text != null) {
+              record.text.add(text);
+            }
+
+            try {
+              final byte[] content = merge ? reader.getPageContent(page) : null;
+
+              if (!merge) {
+                fg_writer.addPage(reader, page);
+              } else if ((content != null) && BlankPageDetector.hasText(content)) {
+                log.debug("! Not adding text to page " + page + " since it has text already.");
+
+                record.pagesSkipped++;
+
+                fg_writer.addPage(reader, page);
+              } else {
+                final Rectangle         size  = reader.getPageSizeWithRotation(page);
+                final PdfImportedPage   p     = fg_writer.getImportedPage(reader, page);
+                final PdfCopy.PageStamp stamp = fg_writer.createPageStamp(p);
+
+                Wrapper.this.textLayer.draw(stamp.getUnderContent(), size, width, height, words);
+                fg_writer.alterContents(reader, page, stamp);
+                fg_writer.addPage(p);
+
+                record.pagesMerged++;
+              }
+            } catch (BadPdfFormatException e) {
+              throw new IOException("Cannot copy page " + page + ": " + e.getMessage());
+            }
+
+            reader.releasePage(page);
+
+            next[0] = page + 1;
+          }
+        });
+
+      if (next[0] <= pages) {
+        if ((plan == null) || (plan.getEnginePages() > 0)) {
+          log.error("! The text layer of " + record.file.getAbsolutePath() + " has fewer pages than expected. This should really not happen.");
+        }
+
+        while (next[0] <= pages) {
+          passThrough(fg, fg_writer, plan, next[0]++, merge, record);
+        }
+      }
+
+      setInfo(fg_writer, fg, title, subject, keywords, author, creator);
+
+      document.close();
+      document = null;
+
+      written = true;
+
+      return true;
+    } catch (Exception e) {
+      log.error("! ERROR: Merging " + foreground + " failed: " + e.getMessage(), e);
+
+      record.failed("merge failed", e);
+
+      return false;
+    } finally {
+      closeMerge(document, os, fg, null, newFile, written);
+    }
+  }
+
+
+  /**
+   * Get the number of pages after which a merge drops what
+   * it keeps of the files it merges, see {@link UnderlayCopy}.
+   *
+   * @return MERGEFLUSH, at least 1
+   */
+  private int getMergeFlush() {
+    return Math.max(1, StringUtility.StringToInteger(getAttribute("MERGEFLUSH"), 50));
   }
 
 
   /**
-   * Run the OCR command
+   * Close what a merge has opened. If the merged file has
+   * not been written in full, it is deleted.
    *
-   * @param originalFile The file to run the command on
-   * @return The file that was created
-   * @throws IOException
-   * @throws InterruptedException
+   * @param document The output document, or null if it is closed or was not opened
+   * @param os The output stream, or null
+   * @param fg The reader on the original, or null
+   * @param bg The reader on the OCR output, or null
+   * @param newFile The merged file
+   * @param written Whether the merged file was written in full
    */
-  private File ocr(File originalFile) throws IOException, InterruptedException {
-    /*
-     * Create a temporary file and copy the source
-     * file to it, to avoid UTF-8 encoding problems
-     * on the filename confusing the OCR engine
-     */
-    log.debug("> Creating Temporary Source File");
-
-    final File sourceFileForOCR = File.createTempFile("ocr", ".pdf", new File(this.TMP_DIR));
-    sourceFileForOCR.deleteOnExit();
-
-    log.debug("< Created Temporary Source File: " + sourceFileForOCR.getAbsolutePath());
-
-    FileUtils.copyFile(originalFile, sourceFileForOCR, true);
-
-    log.debug("+ Copied " + originalFile.getAbsolutePath() + " to " + sourceFileForOCR.getAbsolutePath());
+  private static void closeMerge(Document document, OutputStream os, PdfReader fg, PdfReader bg, File newFile, boolean written) {
+    if ((document != null) && document.isOpen()) {
+      try {
+        document.close();
+      } catch (Exception e) {
+        log.debug("+ Closing the merged document after a failure: " + e.getMessage());
+      }
+    }
 
-    /*
-     * Create the command line
-     */
-    String[] cmd = StringUtility.split(getAttribute("cmd"), " ");
-    for (int i = 0; i < cmd.length; i++) {
-      if ("###IF###".equals(cmd[i])) {
-        cmd[i] = sourceFileForOCR.getAbsolutePath();
-      } else if ("###OF###".equals(cmd[i])) {
-        cmd[i] = sourceFileForOCR.getAbsolutePath() + this.TMP_EXTENSION;
-      } else if ("###CREATOR###".equals(cmd[i])) {
-        cmd[i] = getAttribute("creator");
+    if (os != null) {
+      try {
+        os.close();
+      } catch (IOException e) {
+        log.debug("+ Closing " + newFile + " after a failure: " + e.getMessage());
       }
     }
 
-    final StringBuffer sb = new StringBuffer();
-    for (int i = 0; i < cmd.length; i++) {
-      sb.append(cmd[i]);
-      sb.append(" ");
+    if (fg != null) {
+      fg.close();
     }
 
-    log.debug("> Calling OCR Engine: " + sb);
+    if (bg != null) {
+      bg.close();
+    }
 
-    callOCREngine(cmd);
+    if (!written) {
+      FileUtils.deleteQuietly(newFile);
+    }
+  }
 
-    /*
-     * Copy temporary output file to output file
-     */
-    final File targetFile = new File(this.TMP_DIR + "/" + originalFile.getName() + this.TMP_EXTENSION);
-    FileUtils.deleteQuietly(targetFile);
 
-    FileUtils.moveFile(new File(sourceFileForOCR.getAbsolutePath() + this.TMP_EXTENSION), targetFile);
+  /**
+   * Write a page that did not go to the engine: as it
+   * is if it is blank, with the engine output of the
+   * page cache if it was seen before.
+   *
+   * @param fg The reader on the original
+   * @param fg_writer The output document
+   * @param plan The pages that went to the engine, or null for all pages
+   * @param page The page, starting at 1
+   * @param merge Whether to merge, or only to collect the text
+   * @param record The record of what happens to the file
+   * @throws IOException
+   */
+  private void passThrough(PdfReader fg, UnderlayCopy fg_writer, PagePlan plan, int page, boolean merge, FileRecord record) throws IOException {
+    final File layer = (plan == null) ? null : plan.getLayer(page);
 
-    /*
-     * Delete temporary file
-     */
-    FileUtils.deleteQuietly(new File(sourceFileForOCR.getAbsolutePath() + this.TMP_EXTENSION));
+    try {
+      if (layer != null) {
+        mergeLayer(fg, fg_writer, page, layer, merge, record);
+      } else {
+        if (record.text != null) {
+          record.text.add("");
+        }
 
-    log.debug("< Calling OCR Engine. Output file is: " + targetFile.getAbsolutePath());
+        fg_writer.addPage(fg, page);
+      }
+    } catch (BadPdfFormatException e) {
+      throw new IOException("Cannot copy page " + page + ": " + e.getMessage());
+    }
 
-    return targetFile;
+    fg.releasePage(page);
   }
 
 
   /**
-   * Call an external program.
+   * Set the document information of a merged file: that
+   * of the original, with the fields given.
    *
-   * @param cmd
-   * @throws IOException
-   * @throws InterruptedException
+   * @param fg_writer The output document
+   * @param fg The reader on the original
+   * @param title The title
+   * @param subject The subject
+   * @param keywords The keywords
+   * @param author The author
+   * @param creator The creator
    */
-  private void callOCREngine(String[] cmd) throws IOException, InterruptedException {
-    Runtime run = Runtime.getRuntime();
-    Process pr  = run.exec(cmd);
-    pr.waitFor();
+  @SuppressWarnings("unchecked")
+  private static void setInfo(UnderlayCopy fg_writer, PdfReader fg, String title, String subject, String keywords, String author, String creator) {
+    final Map<String, String> map = new HashMap<String, String>(fg.getInfo());
 
-    BufferedReader buf  = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-    String         line = "";
-    while ((line = buf.readLine()) != null) {
-      log.info(line);
+    /*
+     * These are set by the output document itself
+     */
+    map.remove("Producer");
+    map.remove("ModDate");
+
+    if (title != null) {
+      map.put("Title", title);
     }
-  }
 
+    if (subject != null) {
+      map.put("Subject", subject);
+    }
 
-  @SuppressWarnings({ "unchecked", "rawtypes" })
-  private void mergePDFs(File foreground, File background, File newFile, String title, String subject, String keywords, String author, String creator) {
-    log.debug("Merge " + foreground + " (FG) and " + background + " (BG) to " + newFile);
+    if (keywords != null) {
+      map.put("Keywords", keywords);
+    }
 
-    final double threshold = ((Integer) StringUtility.StringToInteger(getAttribute("THRESHOLD"), 2)).doubleValue();
+    if (author != null) {
+      map.put("Author", author);
+    }
 
-    try {
-      /*
-       * Foreground: Original Image.
-       * Background: OCR'd Text
-       */
-      final PdfReader fg           = new PdfReader(foreground.getAbsolutePath());
-      final PdfReader bg           = new PdfReader(background.getAbsolutePath());
+    if (creator != null) {
+      map.put("Creator", creator);
+    }
 
-      /*
-       * Count pages for foreground and background
-       */
-      final int       fg_num_pages = fg.getNumberOfPages();
-      final int       bg_num_pages = bg.getNumberOfPages();
+    final PdfDictionary info = fg_writer.getInfo();
 
-      if (fg_num_pages != bg_num_pages) {
-        log.error("! Foreground and background have different number of pages. This should really not happen.");
+    for (final Map.Entry<String, String> entry : map.entrySet()) {
+      if (entry.getValue() != null) {
+        info.put(new PdfName(entry.getKey()), new PdfString(entry.getValue(), PdfObject.TEXT_UNICODE));
       }
+    }
 
-      /*
-       *  The output document
-       */
-      final PdfStamper fg_writer = new PdfStamper(fg, new FileOutputStream(newFile));
-
-      /*
-       * Create a PdfTemplate from the first page of mark
-       * (PdfImportedPage is derived from PdfTemplate)
-       */
-      PdfImportedPage  bg_page   = null;
-      for (int i = 0; i < fg_num_pages;) {
-        ++i;
-        System.out.print(" [" + i + "]");
-
-        final byte[] fg_page_content = fg.getPageContent(i);
-        final byte[] bg_page_content = bg.getPageContent(i);
+    final List<?> outlines = SimpleBookmark.getBookmark(fg);
 
-        final int    bg_size         = bg_page_content.length;
-        final int    fg_size         = fg_page_content.length;
+    if (outlines != null) {
+      fg_writer.setOutlines(outlines);
+    }
+  }
 
-        /*
-         * If we're not explicitly merging, we're merging
-         * the document with itself only anyway.
-         */
-        if (!"true".equals(getAttribute("mergefiles"))) {
-          continue;
-        }
 
-        /*
-         * Modification 20130904
-         *
-         * We want to scan only what's not been generated by a number of
-         * generators. So, until now, the generator of whom we wanted to
-         * ignore files was ocr, i.e. the one we set ourselves. Now, we
-         * have seen that when we run an OCR on a "pdf+text" file, as we
-         * collate in post the file with its image, we get an overlapping
-         * text which is not pixel correct, i.e. which makes the PDF appear
-         * not nicely.
-         *
-         * If the background image is not at least threshold times as large as
-         * the foreground image, we assume we've been working on a
-         * page that was plain text already, and don't add the image
-         * to the background.
-         */
-        if ((bg_size / fg_size) <= threshold) {
-          log.debug("! Not adding background for page " + i + " since background size (" + bg_size + ") not different enough from foreground size (" + fg_size + ").");
+  /**
+   * Get where to put a page of the engine output under a
+   * page of the original. The engine may make a page of
+   * another size than the original, e.g. from a scan for
+   * which it took another resolution than the PDF made of
+   * it; the page is then scaled to the original, if it has
+   * the same shape.
+   *
+   * @param original The size of the page of the original
+   * @param output The size of the page of the engine output
+   * @return The transformation of the page of the engine output, as a, b, c, d, e, f
+   * @throws IOException If the pages are not of the same shape, so that the text would not fit
+   */
+  private static float[] fitUnder(Rectangle original, Rectangle output) throws IOException {
+    final float sx = original.getWidth() / output.getWidth();
+    final float sy = original.getHeight() / output.getHeight();
 
-          continue;
-        }
+    if ((Math.abs(sx - 1) <= SIZE_TOLERANCE) && (Math.abs(sy - 1) <= SIZE_TOLERANCE)) {
+      return new float[] { 1, 0, 0, 1, 0, 0 };
+    }
 
-        bg_page = fg_writer.getImportedPage(bg, i);
+    if (Math.abs(sx - sy) > (SIZE_TOLERANCE * Math.max(sx, sy))) {
+      throw new IOException("The engine output has a page of " + output.getWidth() + " x " + output.getHeight() + " pt for one of " + original.getWidth() + " x " + original.getHeight() + " pt");
+    }
 
-        final PdfContentByte contentByte = fg_writer.getUnderContent(i);
+    log.debug("+ Scaling a page of the engine output by " + sx + " to the original.");
 
-        contentByte.addTemplate(bg_page, 0, 0);
-      }
+    Metrics.add("merge.scaledPages", 1);
 
-      HashMap map = fg_writer.getMoreInfo();
-      if (map == null) {
-        map = new HashMap();
-      }
+    return new float[] { sx, 0, 0, sy, original.getLeft() - (output.getLeft() * sx), original.getBottom() - (output.getBottom() * sy) };
+  }
 
-      if (title != null) {
-        map.put("Title", title);
-      }
 
-      if (subject != null) {
-        map.put("Subject", subject);
-      }
+  /**
+   * Merge a page of the page cache under a page.
+   *
+   * @param fg The reader on the original
+   * @param fg_writer The output document
+   * @param page The page, starting at 1
+   * @param layer The engine output for the page, a PDF of one page
+   * @param merge Whether to merge, or only to collect the text
+   * @param record The record of what happens to the file
+   * @throws IOException
+   * @throws BadPdfFormatException
+   */
+  private void mergeLayer(PdfReader fg, UnderlayCopy fg_writer, int page, File layer, boolean merge, FileRecord record) throws IOException, BadPdfFormatException {
+    final PdfReader cached = new PdfReader(layer.getAbsolutePath());
 
-      if (keywords != null) {
-        map.put("Keywords", keywords);
+    try {
+      if (record.text != null) {
+        try {
+          record.text.add(new PdfTextExtractor(cached).getTextFromPage(1));
+        } catch (Exception e) {
+          log.warn("! WARNING: Could not extract the text of cached page " + page + " of " + record.file.getAbsolutePath() + ": " + e.getMessage());
+          record.text.add("");
+        }
       }
 
-      if (author != null) {
-        map.put("Author", author);
-      }
+      if (!merge) {
+        fg_writer.addPage(fg, page);
 
-      if (creator != null) {
-        map.put("Creator", creator);
+        return;
       }
 
-      fg_writer.setMoreInfo(map);
+      final float[]           matrix = fitUnder(fg.getPageSize(page), cached.getPageSize(1));
+      final PdfImportedPage   p      = fg_writer.getImportedPage(fg, page);
+      final PdfCopy.PageStamp stamp  = fg_writer.createPageStamp(p);
 
-      fg_writer.close();
+      fg_writer.drawUnder(fg, page, stamp, cached, 1, matrix);
+      fg_writer.alterContents(fg, page, stamp);
+      fg_writer.addPage(p);
+      fg_writer.freeReader(cached);
 
-      System.out.println("");
-    } catch (Exception e) {
-      e.printStackTrace();
+      record.pagesMerged++;
+    } finally {
+      cached.close();
     }
   }
 
@@ -456,7 +2833,7 @@ public class Wrapper {
    *
    * @param args The command line parameters.
    */
-  private void init(String[] args) {
+  void init(String[] args) {
     /*
      * Get the command line Parameters.
      */
@@ -619,4 +2996,299 @@ public class Wrapper {
       this.parameters.put(par.toUpperCase(), val);
     }
   }
+
+
+  /**
+   * A run of the engine on a helper thread, so that
+   * a hedged run can race it. When the run ends, it
+   * gives back its slot of the concurrency controller
+   * and puts itself into the queue of finished runs.
+   */
+  private class EngineRun implements Runnable {
+    /**
+     * The input file of the engine.
+     */
+    final File                     source;
+
+    /**
+     * The output file of the engine.
+     */
+    final File                     output;
+
+    /**
+     * The record of this run, for the exit code.
+     */
+    final FileRecord               record;
+
+    /**
+     * The queue of finished runs.
+     */
+    final BlockingQueue<EngineRun> finished;
+
+    /**
+     * When the run started.
+     */
+    final long                     started  = System.currentTimeMillis();
+
+    /**
+     * The time the run took, in milliseconds.
+     */
+    volatile long                  millis   = -1;
+
+    /**
+     * The peak memory of the engine, in bytes; negative if unknown.
+     */
+    volatile long                  peakMemory = -1;
+
+    /**
+     * Why the run failed, if it did.
+     */
+    volatile IOException           error    = null;
+
+    /**
+     * Whether the run has ended.
+     */
+    private boolean                done     = false;
+
+    /**
+     * Whether the result of the run is not wanted.
+     */
+    private boolean                discarded = false;
+
+    /**
+     * The estimate a hedged run was admitted with, given back when it ends.
+     */
+    CostModel.Estimate             admitted = null;
+
+    /**
+     * The scratch space a hedged run took more space in.
+     */
+    ScratchSpace.Area              area     = null;
+
+    /**
+     * The space a hedged run took in addition, given back when it ends.
+     */
+    long                           extra    = 0;
+
+    /**
+     * The thread of the run.
+     */
+    private Thread                 thread   = null;
+
+
+    EngineRun(File source, File file, BlockingQueue<EngineRun> finished) {
+      this.source   = source;
+      this.output   = new File(source.getAbsolutePath() + TMP_EXTENSION);
+      this.record   = new FileRecord(file);
+      this.finished = finished;
+    }
+
+
+    /**
+     * Start the run.
+     */
+    void start() {
+      this.thread = Threads.start("pdfocr-engine", this);
+    }
+
+
+    public void run() {
+      try {
+        this.peakMemory = callOCREngine(getCommand(this.source), this.record);
+      } catch (IOException e) {
+        this.error = e;
+      } catch (InterruptedException e) {
+        this.error = new IOException("Engine run cancelled");
+      } finally {
+        this.millis = System.currentTimeMillis() - this.started;
+
+        concurrency.release();
+
+        if (this.admitted != null) {
+          admission.done(this.admitted);
+          this.area.shrink(this.extra);
+        }
+
+        synchronized (this) {
+          this.done = true;
+
+          if (this.discarded) {
+            FileUtils.deleteQuietly(this.output);
+          }
+        }
+
+        this.finished.add(this);
+      }
+    }
+
+
+    /**
+     * Check whether the run ended with a result.
+     *
+     * @return true if the engine wrote its output.
+     */
+    boolean succeeded() {
+      return (this.error == null) && this.output.exists();
+    }
+
+
+    /**
+     * Drop the run: kill the engine if it still runs,
+     * and delete its output.
+     */
+    void discard() {
+      synchronized (this) {
+        this.discarded = true;
+
+        if (this.done) {
+          FileUtils.deleteQuietly(this.output);
+
+          return;
+        }
+      }
+
+      this.thread.interrupt();
+    }
+  }
+
+
+  /**
+   * The engine run on a scan that comes as an image, on
+   * a helper thread, while its PDF is made. The run has a
+   * record of its own, since a record belongs to one thread;
+   * its stages are added to that of the file when it is
+   * joined.
+   */
+  private class IngestRun implements Runnable {
+    /**
+     * The image.
+     */
+    final File                 image;
+
+    /**
+     * The number of pages of the image.
+     */
+    final int                  pages;
+
+    /**
+     * The scratch space of the file.
+     */
+    final ScratchSpace.Area    area;
+
+    /**
+     * The record of this run.
+     */
+    final FileRecord           record;
+
+    /**
+     * The output of the engine, once it is there.
+     */
+    volatile File              output = null;
+
+    /**
+     * Why the run failed, if it did.
+     */
+    volatile Exception         error  = null;
+
+    /**
+     * Whether the output has been taken.
+     */
+    private boolean            joined = false;
+
+    /**
+     * The thread of the run.
+     */
+    private Thread             thread = null;
+
+
+    IngestRun(File image, int pages, ScratchSpace.Area area) {
+      this.image  = image;
+      this.pages  = pages;
+      this.area   = area;
+      this.record = new FileRecord(image);
+    }
+
+
+    /**
+     * Start the run.
+     */
+    void start() {
+      /*
+       * The run waits for admission and for a slot, on
+       * monitors: it has to be a platform thread
+       */
+      this.thread = Threads.daemon("pdfocr-ingest").newThread(this);
+      this.thread.start();
+    }
+
+
+    public void run() {
+      try {
+        this.output = ocr(this.image, this.pages, null, this.record, this.area);
+      } catch (Exception e) {
+        this.error = e;
+      }
+    }
+
+
+    /**
+     * Wait for the run to end, and take its output.
+     *
+     * @param into The record of the file, to add the stages of the run to
+     * @return The output of the engine
+     * @throws Exception If the run failed
+     */
+    File join(FileRecord into) throws Exception {
+      this.thread.join();
+
+      this.joined = true;
+
+      for (final Map.Entry<String, Long> entry : this.record.stages.entrySet()) {
+        final Long before = into.stages.get(entry.getKey());
+
+        into.stages.put(entry.getKey(), Long.valueOf(((before == null) ? 0 : before.longValue()) + entry.getValue().longValue()));
+      }
+
+      into.engineExitCode = this.record.engineExitCode;
+      into.hedge          = this.record.hedge;
+
+      if (this.error != null) {
+        throw this.error;
+      }
+
+      return this.output;
+    }
+
+
+    /**
+     * Stop the run if it still runs, and delete its
+     * output if it has not been taken.
+     *
+     * @throws InterruptedException
+     */
+    void cancel() throws InterruptedException {
+      if (this.joined) {
+        return;
+      }
+
+      this.thread.interrupt();
+      this.thread.join();
+
+      FileUtils.deleteQuietly(this.output);
+    }
+  }
+
+
+  /**
+   * Writes a smaller version of a merged file.
+   */
+  private interface Shrinker {
+    /**
+     * @param in The merged file
+     * @param out The smaller version to write
+     * @return How many things were changed, or -1 if out must not be taken.
+     * @throws Exception
+     */
+    int shrink(File in, File out) throws Exception;
+  }
 }
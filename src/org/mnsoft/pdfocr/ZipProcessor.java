@@ -0,0 +1,378 @@
+package org.mnsoft.pdfocr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Works on the files in a ZIP archive as if the archive
+ * were a directory, without unpacking it to the share.<p>
+ *
+ * The entries are read in their order from the archive,
+ * which is only opened, not unpacked. An entry to work on
+ * is copied to scratch space on its own, worked on there,
+ * and written to the new archive; all other entries are
+ * copied over as they are. So at most one entry is in
+ * scratch space at a time, and the archive is read and
+ * written once. The new archive is written next to the old
+ * one, checked to have all its entries, and replaces the
+ * old one in one step, but only if an entry has changed.<p>
+ *
+ * This program is a free software available under the GNU
+ * Lesser General Public License.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * @author (c) 2010, Matthias Nott
+ */
+public class ZipProcessor {
+  /**
+   * Logger for this class
+   */
+  private static final Logger log = Logger.getLogger(ZipProcessor.class);
+
+  /**
+   * The scratch space for the entries.
+   */
+  private final ScratchSpace  scratch;
+
+  /**
+   * Extension of the new archive while it is written.
+   */
+  private final String        tmpExtension;
+
+
+  /**
+   * Constructor.
+   *
+   * @param scratch The scratch space for the entries
+   * @param tmpExtension Extension of the new archive while it is written
+   */
+  public ZipProcessor(ScratchSpace scratch, String tmpExtension) {
+    this.scratch      = scratch;
+    this.tmpExtension = tmpExtension;
+  }
+
+
+  /**
+   * Works on an entry of an archive.
+   */
+  public interface EntryHandler {
+    /**
+     * Work on an entry.
+     *
+     * @param entry The entry
+     * @param copy Its copy in scratch space, to be replaced by the result;
+     *             if it is deleted, the entry is left out of the new archive
+     * @param area The scratch space of the entry
+     * @param taken The names of the entries of the archive; files of these
+     *              names are not added, so there is no use making them
+     * @param extra Files to add after the entry, by their entry name, e.g. a text sidecar
+     * @return true if the copy has changed.
+     * @throws IOException If working on the entry fails; the archive is left as it is
+     * @throws InterruptedException
+     */
+    boolean process(ZipEntry entry, File copy, ScratchSpace.Area area, Set<String> taken, Map<String, File> extra) throws IOException, InterruptedException;
+  }
+
+
+  /**
+   * Check whether a file is a ZIP archive.
+   *
+   * @param file The file
+   * @return true if it is, by its name.
+   */
+  public static boolean isZip(File file) {
+    return file.getName().toLowerCase().endsWith(".zip");
+  }
+
+
+  /**
+   * Work on the entries of an archive.
+   *
+   * @param zip The archive
+   * @param filter Which entries to work on, by their name
+   * @param handler Works on the entries
+   * @return The number of entries that changed or had files added after them;
+   *         if none did, the archive is left as it is.
+   * @throws IOException If the archive cannot be read or written, or the handler fails
+   * @throws InterruptedException
+   */
+  public int process(File zip, java.io.FileFilter filter, EntryHandler handler) throws IOException, InterruptedException {
+    final File        result  = new File(zip.getParentFile(), "." + zip.getName() + this.tmpExtension);
+    final Set<String> names   = new HashSet<String>();
+    final ZipFile     in      = new ZipFile(zip);
+    int               changed = 0;
+    int               entries = 0;
+
+    /*
+     * Files made from an entry must not take the
+     * place of an entry of the archive
+     */
+    final Set<String> taken = new HashSet<String>();
+
+    for (final Enumeration<? extends ZipEntry> e = in.entries(); e.hasMoreElements();) {
+      taken.add(e.nextElement().getName());
+    }
+
+    try {
+      final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(result)));
+
+      try {
+        for (final Enumeration<? extends ZipEntry> e = in.entries(); e.hasMoreElements();) {
+          final ZipEntry entry = e.nextElement();
+
+          if (entry.isDirectory() || !filter.accept(new File(entry.getName()))) {
+            entries += copy(in, entry, out, names);
+
+            continue;
+          }
+
+          final ScratchSpace.Area area = this.scratch.allocate(Math.max(0, entry.getSize()));
+
+          try {
+            final File              copy  = area.createTempFile("zip", getSuffix(entry.getName()));
+            final Map<String, File> extra = new LinkedHashMap<String, File>();
+
+            try {
+              final InputStream is = in.getInputStream(entry);
+
+              try {
+                FileUtils.copyInputStreamToFile(is, copy);
+              } finally {
+                is.close();
+              }
+
+              if (entry.getTime() > 0) {
+                copy.setLastModified(entry.getTime());
+              }
+
+              int added = handler.process(entry, copy, area, Collections.unmodifiableSet(taken), extra) ? 1 : 0;
+
+              if (copy.exists()) {
+                entries += add(copy, entry.getName(), entry, out, names);
+              }
+
+              for (final Map.Entry<String, File> x : extra.entrySet()) {
+                if (taken.contains(x.getKey())) {
+                  log.warn("! WARNING: " + zip.getAbsolutePath() + " has an entry " + x.getKey() + " already. Not adding the one made from " + entry.getName() + ".");
+
+                  continue;
+                }
+
+                final int n = add(x.getValue(), x.getKey(), entry, out, names);
+
+                entries += n;
+                added   += n;
+              }
+
+              /*
+               * The entry only counts as changed if something
+               * new went into the archive for it
+               */
+              if (added > 0) {
+                changed++;
+              }
+            } finally {
+              FileUtils.deleteQuietly(copy);
+
+              for (final File x : extra.values()) {
+                FileUtils.deleteQuietly(x);
+              }
+            }
+          } finally {
+            area.release();
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } catch (Exception e) {
+      FileUtils.deleteQuietly(result);
+
+      throw e;
+    } finally {
+      in.close();
+    }
+
+    Metrics.add("zip.entries", entries);
+
+    if (changed == 0) {
+      log.debug("+ No entry of " + zip.getAbsolutePath() + " has changed. Leaving it as it is.");
+
+      FileUtils.deleteQuietly(result);
+
+      return 0;
+    }
+
+    /*
+     * Check that the new archive has all its entries
+     * before it replaces the old one
+     */
+    final int found = count(result);
+
+    if (found != entries) {
+      FileUtils.deleteQuietly(result);
+
+      throw new IOException("The new archive for " + zip.getAbsolutePath() + " has " + found + " entries instead of " + entries);
+    }
+
+    try {
+      Files.move(result.toPath(), zip.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(result.toPath(), zip.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    Metrics.add("zip.archives", 1);
+
+    return changed;
+  }
+
+
+  /**
+   * Copy an entry to the new archive as it is.
+   *
+   * @param in The old archive
+   * @param entry The entry
+   * @param out The new archive
+   * @param names The names of the entries written so far
+   * @return 1 if the entry was written, 0 if it was there already.
+   * @throws IOException
+   */
+  private static int copy(ZipFile in, ZipEntry entry, ZipOutputStream out, Set<String> names) throws IOException {
+    if (!names.add(entry.getName())) {
+      return 0;
+    }
+
+    out.putNextEntry(newEntry(entry.getName(), entry));
+
+    if (!entry.isDirectory()) {
+      final InputStream is = in.getInputStream(entry);
+
+      try {
+        IOUtils.copy(is, out);
+      } finally {
+        is.close();
+      }
+    }
+
+    out.closeEntry();
+
+    return 1;
+  }
+
+
+  /**
+   * Add a file to the new archive.
+   *
+   * @param file The file
+   * @param name The name of the entry
+   * @param like The entry of the old archive to take the time and comment from
+   * @param out The new archive
+   * @param names The names of the entries written so far
+   * @return 1 if the entry was written, 0 if there is one of the name already.
+   * @throws IOException
+   */
+  private static int add(File file, String name, ZipEntry like, ZipOutputStream out, Set<String> names) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    if (!names.add(name)) {
+      log.warn("! WARNING: There is an entry " + name + " already. Not adding " + file.getAbsolutePath() + ".");
+
+      return 0;
+    }
+
+    out.putNextEntry(newEntry(name, like));
+
+    final InputStream is = new FileInputStream(file);
+
+    try {
+      IOUtils.copy(is, out);
+    } finally {
+      is.close();
+    }
+
+    out.closeEntry();
+
+    return 1;
+  }
+
+
+  /**
+   * Make an entry for the new archive.
+   *
+   * @param name The name
+   * @param like The entry of the old archive to take the time and comment from
+   * @return The entry
+   */
+  private static ZipEntry newEntry(String name, ZipEntry like) {
+    final ZipEntry entry = new ZipEntry(name);
+
+    if (like.getTime() > 0) {
+      entry.setTime(like.getTime());
+    }
+
+    if (name.equals(like.getName())) {
+      entry.setComment(like.getComment());
+    }
+
+    return entry;
+  }
+
+
+  /**
+   * Count the entries of an archive.
+   *
+   * @param zip The archive
+   * @return The number of entries
+   * @throws IOException If it cannot be read
+   */
+  private static int count(File zip) throws IOException {
+    final ZipFile file = new ZipFile(zip);
+
+    try {
+      return file.size();
+    } finally {
+      file.close();
+    }
+  }
+
+
+  /**
+   * @param name The name of an entry
+   * @return Its extension, with the dot; empty if it has none
+   */
+  private static String getSuffix(String name) {
+    final String base = name.substring(name.lastIndexOf('/') + 1);
+    final int    dot  = base.lastIndexOf('.');
+
+    return (dot > 0) ? base.substring(dot) : "";
+  }
+}